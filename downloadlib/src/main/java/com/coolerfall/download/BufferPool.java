@@ -0,0 +1,161 @@
+package com.coolerfall.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A pool of byte arrays shared by download threads and local proxy responses, this is designed
+ * according to ByteArrayPool in Android-Volley. Requested lengths are rounded up to power-of-two
+ * size classes between {@link #MIN_BUFFER_SIZE} and {@link #MAX_BUFFER_SIZE}, so buffers returned
+ * by one stream can be reused by the next one. When the pool grows beyond its size limit, the
+ * least recently used buffers are discarded.
+ */
+public final class BufferPool {
+  public static final int MIN_BUFFER_SIZE = 8 * 1024;
+  public static final int MAX_BUFFER_SIZE = 256 * 1024;
+  private static final int DEFAULT_SIZE_LIMIT = 2 * 1024 * 1024;
+  /* read about 1/16 second of data each time, fast links get bigger buffers */
+  private static final int THROUGHPUT_DIVISOR = 16;
+
+  private static final BufferPool DEFAULT_POOL = new BufferPool(DEFAULT_SIZE_LIMIT);
+
+  private static final Comparator<byte[]> BUF_COMPARATOR = new Comparator<byte[]>() {
+    @Override public int compare(byte[] lhs, byte[] rhs) {
+      return lhs.length - rhs.length;
+    }
+  };
+
+  private final List<byte[]> buffersByLastUse = new LinkedList<>();
+  private final List<byte[]> buffersBySize = new ArrayList<>(64);
+  private final int sizeLimit;
+  private int currentSize = 0;
+  private long hitCount = 0;
+  private long missCount = 0;
+
+  /**
+   * Create a buffer pool.
+   *
+   * @param sizeLimit the maximum size of the pool, in bytes
+   */
+  public BufferPool(int sizeLimit) {
+    this.sizeLimit = sizeLimit;
+  }
+
+  /**
+   * Get the default pool shared in process.
+   *
+   * @return default {@link BufferPool}
+   */
+  public static BufferPool getDefault() {
+    return DEFAULT_POOL;
+  }
+
+  /**
+   * Round up the length to its size class.
+   *
+   * @param len the requested length
+   * @return size class, or len itself if larger than {@link #MAX_BUFFER_SIZE}
+   */
+  public static int sizeClass(int len) {
+    if (len > MAX_BUFFER_SIZE) {
+      return len;
+    }
+    int size = MIN_BUFFER_SIZE;
+    while (size < len) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  /**
+   * Get the buffer size suitable for current throughput.
+   *
+   * @param bytesPerSecond current throughput, 0 if unknown
+   * @return buffer size between {@link #MIN_BUFFER_SIZE} and {@link #MAX_BUFFER_SIZE}
+   */
+  public static int sizeForThroughput(long bytesPerSecond) {
+    long len = bytesPerSecond / THROUGHPUT_DIVISOR;
+    return sizeClass((int) Math.max(MIN_BUFFER_SIZE, Math.min(len, MAX_BUFFER_SIZE)));
+  }
+
+  /**
+   * Get a buffer from the pool if one is available with the size class of the requested length,
+   * or allocate a new one if not.
+   *
+   * @param len the minimum length of the buffer
+   * @return a byte array
+   */
+  public synchronized byte[] getBuf(int len) {
+    int size = sizeClass(len);
+    for (int i = 0; i < buffersBySize.size(); i++) {
+      byte[] buf = buffersBySize.get(i);
+      if (buf.length > size && size <= MAX_BUFFER_SIZE) {
+        /* buffers are sorted by size, no buffer in this size class */
+        break;
+      }
+      if (buf.length >= size) {
+        currentSize -= buf.length;
+        buffersBySize.remove(i);
+        buffersByLastUse.remove(buf);
+        hitCount++;
+        return buf;
+      }
+    }
+    missCount++;
+    return new byte[size];
+  }
+
+  /**
+   * Return a buffer to the pool, and the pool will be trimmed if it's larger than size limit.
+   *
+   * @param buf the buffer to return
+   */
+  public synchronized void returnBuf(byte[] buf) {
+    if (buf == null || buf.length > sizeLimit) {
+      return;
+    }
+    buffersByLastUse.add(buf);
+    int pos = Collections.binarySearch(buffersBySize, buf, BUF_COMPARATOR);
+    if (pos < 0) {
+      pos = -pos - 1;
+    }
+    buffersBySize.add(pos, buf);
+    currentSize += buf.length;
+    trim();
+  }
+
+  /**
+   * Remove buffers from the pool until it's under its size limit.
+   */
+  private synchronized void trim() {
+    while (currentSize > sizeLimit) {
+      byte[] buf = buffersByLastUse.remove(0);
+      buffersBySize.remove(buf);
+      currentSize -= buf.length;
+    }
+  }
+
+  /**
+   * Get the count of requests served by pooled buffers.
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Get the count of requests which have to allocate a new buffer.
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Get the total size of buffers held by the pool, in bytes.
+   */
+  public synchronized int getPooledSize() {
+    return currentSize;
+  }
+}
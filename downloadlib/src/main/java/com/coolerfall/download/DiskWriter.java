@@ -0,0 +1,406 @@
+package com.coolerfall.download;
+
+import android.os.Process;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import okio.Buffer;
+
+/**
+ * A write-behind file writer which decouples disk writes from the network read loop. Filled
+ * buffers are queued by the reader and written by a shared writer thread, buffers queued back to
+ * back are coalesced into one gathering write through {@link FileChannel}. The queue is bounded,
+ * so a slow disk blocks the reader instead of growing memory without limit.
+ *
+ * <p>One writer is used by a single reader thread. Buffers handed to {@link #write(byte[], int)}
+ * belong to the writer and are returned to {@link BufferPool#getDefault()} once written. Data
+ * handed to {@link #write(Buffer)} stays in the okio segments it was read into, the segments are
+ * wrapped for the gathering write without copying them into an array first.
+ */
+public final class DiskWriter implements Closeable {
+  public static final int DEFAULT_QUEUE_CAPACITY = 8;
+  /* limit the buffers of one gathering write, about 2M with the largest buffer size */
+  private static final int MAX_BATCH_COUNT = 8;
+  private static final int WRITER_THREAD_COUNT = 2;
+
+  private static final ExecutorService WRITER_EXECUTOR =
+      Executors.newFixedThreadPool(WRITER_THREAD_COUNT, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override public Thread newThread(final Runnable runnable) {
+          Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              runnable.run();
+            }
+          }, "DiskWriter-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Callback invoked on the writer thread after data reaches the file.
+   */
+  public interface Callback {
+    /**
+     * @param position the file position written up to, exclusive
+     */
+    void onWritten(long position);
+  }
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final Callback callback;
+  private final BlockingQueue<Block> queue;
+  private final AtomicBoolean draining = new AtomicBoolean(false);
+  private final Object flushLock = new Object();
+  private final Runnable drainRunnable = new Runnable() {
+    @Override public void run() {
+      drain();
+    }
+  };
+
+  /* position of the next queued byte, only touched by the reader thread */
+  private long queuedPosition;
+  private volatile long writtenPosition;
+  private volatile IOException error;
+  private volatile boolean closed;
+
+  /* metrics */
+  private volatile int maxQueueDepth;
+  private volatile long writeCount;
+  private volatile long totalWriteNanos;
+  private volatile long maxWriteNanos;
+  private volatile long blockedNanos;
+
+  /**
+   * Open the file and start writing at the given position.
+   *
+   * @param file the file to write, created if not exists
+   * @param position the position of the first byte
+   * @param queueCapacity the maximum count of buffers waiting to be written
+   * @param callback {@link Callback}, can be null
+   * @throws IOException if the file can not be opened
+   */
+  public DiskWriter(File file, long position, int queueCapacity, Callback callback)
+      throws IOException {
+    this.file = new RandomAccessFile(file, "rw");
+    this.channel = this.file.getChannel();
+    this.callback = callback;
+    this.queue = new ArrayBlockingQueue<>(Math.max(queueCapacity, 1));
+    this.queuedPosition = position;
+    this.writtenPosition = position;
+  }
+
+  /**
+   * Queue the buffer to be written after previously queued data. Blocks when the queue is full.
+   *
+   * @param buffer the buffer, owned by the writer after this call even if it throws
+   * @param length the length of valid data in buffer
+   * @throws IOException if a previous write failed or the writer is closed
+   */
+  public void write(byte[] buffer, int length) throws IOException {
+    if (length <= 0) {
+      BufferPool.getDefault().returnBuf(buffer);
+      checkWritable();
+      return;
+    }
+    enqueue(new Block(buffer, null, length));
+  }
+
+  /**
+   * Move all data of the okio buffer to the writer and queue it after previously queued data.
+   * Only the segments change owner, no byte is copied. Blocks when the queue is full.
+   *
+   * @param source the buffer, empty after this call and can be reused by the reader
+   * @throws IOException if a previous write failed or the writer is closed
+   */
+  public void write(Buffer source) throws IOException {
+    long length = source.size();
+    if (length <= 0) {
+      checkWritable();
+      return;
+    }
+    Buffer segments = new Buffer();
+    segments.write(source, length);
+    enqueue(new Block(null, segments, length));
+  }
+
+  private void checkWritable() throws IOException {
+    checkError();
+    if (closed) {
+      throw new IOException("writer closed");
+    }
+  }
+
+  private void enqueue(Block block) throws IOException {
+    try {
+      checkWritable();
+    } catch (IOException e) {
+      block.release();
+      throw e;
+    }
+    if (!queue.offer(block)) {
+      /* back-pressure, the reader waits for the disk */
+      long start = System.nanoTime();
+      try {
+        queue.put(block);
+      } catch (InterruptedException e) {
+        block.release();
+        throw new InterruptedIOException("interrupted while waiting for disk writer");
+      }
+      blockedNanos += System.nanoTime() - start;
+    }
+    queuedPosition += block.length;
+    if (error != null) {
+      /* the writer failed while the reader was blocked, nobody drains the queue any more */
+      releaseQueued();
+      checkError();
+    }
+    int depth = queue.size();
+    if (depth > maxQueueDepth) {
+      maxQueueDepth = depth;
+    }
+    scheduleDrain();
+  }
+
+  private void scheduleDrain() {
+    if (!queue.isEmpty() && error == null && draining.compareAndSet(false, true)) {
+      WRITER_EXECUTOR.execute(drainRunnable);
+    }
+  }
+
+  /*
+   * run on the writer thread, write one batch of queued buffers in order. The writer threads are
+   * shared by all downloads, so the rest of the queue is resubmitted instead of looping here.
+   */
+  private void drain() {
+    List<Block> batch = new ArrayList<>(MAX_BATCH_COUNT);
+    List<ByteBuffer> buffers = new ArrayList<>();
+    try {
+      Block first;
+      if (error == null && (first = queue.poll()) != null) {
+        batch.add(first);
+        queue.drainTo(batch, MAX_BATCH_COUNT - 1);
+        long length = 0;
+        for (Block block : batch) {
+          block.wrap(buffers);
+          length += block.length;
+        }
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+
+        long start = System.nanoTime();
+        channel.position(writtenPosition);
+        long written = 0;
+        while (written < length) {
+          written += channel.write(array);
+        }
+        long elapsed = System.nanoTime() - start;
+        writeCount++;
+        totalWriteNanos += elapsed;
+        if (elapsed > maxWriteNanos) {
+          maxWriteNanos = elapsed;
+        }
+
+        for (Block block : batch) {
+          block.release();
+        }
+        batch.clear();
+        buffers.clear();
+        writtenPosition += length;
+        if (callback != null) {
+          callback.onWritten(writtenPosition);
+        }
+      }
+    } catch (IOException e) {
+      fail(e, batch);
+    } catch (RuntimeException e) {
+      /* a broken callback stops the writer like a failed write */
+      fail(new IOException(e), batch);
+    } finally {
+      draining.set(false);
+      notifyFlushWaiters();
+    }
+    /* the remaining buffers and those queued before draining was reset */
+    scheduleDrain();
+  }
+
+  private void fail(IOException e, List<Block> batch) {
+    error = e;
+    for (Block block : batch) {
+      block.release();
+    }
+    batch.clear();
+    /* the reader gets the error on next write, unblock it */
+    releaseQueued();
+  }
+
+  /* the reader and the writer thread may both call this, each block is polled only once */
+  private void releaseQueued() {
+    Block block;
+    while ((block = queue.poll()) != null) {
+      block.release();
+    }
+  }
+
+  private void notifyFlushWaiters() {
+    synchronized (flushLock) {
+      flushLock.notifyAll();
+    }
+  }
+
+  private void checkError() throws IOException {
+    IOException e = error;
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  /**
+   * Wait until all queued data is written to the file.
+   *
+   * @throws IOException if the write failed
+   */
+  public void flush() throws IOException {
+    synchronized (flushLock) {
+      while (error == null && writtenPosition < queuedPosition) {
+        try {
+          flushLock.wait();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("interrupted while flushing disk writer");
+        }
+      }
+    }
+    checkError();
+  }
+
+  /**
+   * Write all queued data and close the file.
+   *
+   * @throws IOException if the write failed
+   */
+  @Override public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      closed = true;
+      file.close();
+    }
+  }
+
+  /**
+   * Get the file position written up to, exclusive.
+   */
+  public long getWrittenPosition() {
+    return writtenPosition;
+  }
+
+  /**
+   * Get the count of buffers waiting to be written.
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * Get the largest queue depth seen by the reader.
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  /**
+   * Get the count of coalesced writes.
+   */
+  public long getWriteCount() {
+    return writeCount;
+  }
+
+  /**
+   * Get the average latency of one coalesced write, in milliseconds.
+   */
+  public float getAverageWriteLatencyMs() {
+    long count = writeCount;
+    return count > 0 ? totalWriteNanos / 1000000f / count : 0f;
+  }
+
+  /**
+   * Get the largest latency of one coalesced write, in milliseconds.
+   */
+  public float getMaxWriteLatencyMs() {
+    return maxWriteNanos / 1000000f;
+  }
+
+  /**
+   * Get the total time the reader was blocked by a full queue, in milliseconds.
+   */
+  public long getBlockedTimeMs() {
+    return blockedNanos / 1000000;
+  }
+
+  /**
+   * Data waiting to be written, either a pooled array or okio segments.
+   */
+  private static final class Block {
+    final byte[] array;
+    final Buffer segments;
+    final long length;
+
+    Block(byte[] array, Buffer segments, long length) {
+      this.array = array;
+      this.segments = segments;
+      this.length = length;
+    }
+
+    /* wrap the data without copying, segments stay valid until they are released */
+    void wrap(List<ByteBuffer> buffers) {
+      if (array != null) {
+        buffers.add(ByteBuffer.wrap(array, 0, (int) length));
+        return;
+      }
+      Buffer.UnsafeCursor cursor = segments.readUnsafe();
+      try {
+        for (int count = cursor.seek(0); count != -1; count = cursor.next()) {
+          buffers.add(ByteBuffer.wrap(cursor.data, cursor.start, count));
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+
+    /* return the array to the pool or the segments to okio */
+    void release() {
+      if (array != null) {
+        BufferPool.getDefault().returnBuf(array);
+      } else {
+        segments.clear();
+      }
+    }
+  }
+
+  @Override public String toString() {
+    return "DiskWriter[writes=" + writeCount
+        + ", maxQueueDepth=" + maxQueueDepth
+        + ", avgLatency=" + getAverageWriteLatencyMs() + "ms"
+        + ", maxLatency=" + getMaxWriteLatencyMs() + "ms"
+        + ", blocked=" + getBlockedTimeMs() + "ms]";
+  }
+}
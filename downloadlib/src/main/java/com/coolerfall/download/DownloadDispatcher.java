@@ -6,9 +6,10 @@ import android.os.SystemClock;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.BufferedSource;
 
 import static com.coolerfall.download.Utils.HTTP_OK;
 import static com.coolerfall.download.Utils.HTTP_PARTIAL;
@@ -21,7 +22,6 @@ import static com.coolerfall.download.Utils.HTTP_PARTIAL;
  */
 final class DownloadDispatcher extends Thread {
   private static final int SLEEP_BEFORE_DOWNLOAD = 500;
-  private static final int BUFFER_SIZE = 8192; //4096;
   private static final int END_OF_STREAM = -1;
   private static final String DEFAULT_THREAD_NAME = "DownloadDispatcher";
   private static final String IDLE_THREAD_NAME = "DownloadDispatcher-Idle";
@@ -30,6 +30,7 @@ final class DownloadDispatcher extends Thread {
   private final DownloadDelivery delivery;
   private final Logger logger;
   private long lastProgressTimestamp;
+  private long lastBytesPerSecond;
   private volatile boolean quit = false;
 
   /**
@@ -195,7 +196,7 @@ final class DownloadDispatcher extends Thread {
     }
 
     Downloader downloader = request.downloader();
-    RandomAccessFile raf = null;
+    DiskWriter writer = null;
     InputStream is = null;
 
     try {
@@ -210,6 +211,9 @@ final class DownloadDispatcher extends Thread {
 
       int statusCode = downloader.start(request.uri(), breakpoint);
       is = downloader.byteStream();
+      /* okhttp keeps the data in okio segments, write them to the file without the array copy */
+      BufferedSource source =
+          downloader instanceof OkHttpDownloader ? ((OkHttpDownloader) downloader).source() : null;
       if (statusCode != HTTP_OK && statusCode != HTTP_PARTIAL) {
         logger.log("Incorrect http code got: " + statusCode);
         if (fileExist) {
@@ -221,18 +225,17 @@ final class DownloadDispatcher extends Thread {
       if (fileExist) {
         if (statusCode == HTTP_PARTIAL) {
           /* set the range to continue the downloading */
-          raf = new RandomAccessFile(file, "rw");
-          raf.seek(breakpoint);
+          writer = new DiskWriter(file, breakpoint, DiskWriter.DEFAULT_QUEUE_CAPACITY, null);
           bytesWritten = breakpoint;
           logger.log(
                   "Detect existed file with " + breakpoint + " bytes, start breakpoint downloading");
         } else {
           boolean ret = file.delete();
-          raf = new RandomAccessFile(file, "rw");
+          writer = new DiskWriter(file, 0, DiskWriter.DEFAULT_QUEUE_CAPACITY, null);
           logger.log("file:" + file.getName() + " exists, but server don't support breakpoint downloading, delete file:" + ret);
         }
       } else {
-        raf = new RandomAccessFile(file, "rw");
+        writer = new DiskWriter(file, 0, DiskWriter.DEFAULT_QUEUE_CAPACITY, null);
       }
 
       long contentLength = downloader.contentLength();
@@ -246,43 +249,72 @@ final class DownloadDispatcher extends Thread {
       logger.log("Start to download, content length: " + contentLength + " bytes");
 
       if (is != null) {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int length;
+        /* buffer size follows the throughput of last download */
+        byte[] buffer = source == null
+            ? BufferPool.getDefault().getBuf(BufferPool.sizeForThroughput(lastBytesPerSecond)) : null;
+        Buffer segments = source != null ? new Buffer() : null;
+        long length;
 
         long start = SystemClock.uptimeMillis();
         long hasReadBytes = 0;
-        while (true) {
-          /* if the request has canceld, stop the downloading */
-          if (quit || isInterrupted() || request.isCanceled()) {
-            request.finish();
-            return;
+        try {
+          while (true) {
+            /* if the request has canceld, stop the downloading */
+            if (quit || isInterrupted() || request.isCanceled()) {
+              request.finish();
+              return;
+            }
+
+            /* if current is not wifi and mobile network is not allowed, stop */
+            if (request.allowedNetworkTypes() != 0
+                && !Utils.isWifi(request.context())
+                && (request.allowedNetworkTypes() & DownloadRequest.NETWORK_MOBILE) == 0) {
+              throw new DownloadException(statusCode, "allowed network error");
+            }
+
+            /* read data into buffer from input stream */
+            if (source != null) {
+              length = readFromSource(segments, source,
+                  BufferPool.sizeForThroughput(lastBytesPerSecond));
+            } else {
+              length = readFromInputStream(buffer, is);
+            }
+            long totalBytes = noContentLength ? bytesWritten : contentLength;
+
+            if (length == END_OF_STREAM) {
+              /* all data must reach the file before it's renamed */
+              writer.close();
+              logger.log("Download finished, " + writer);
+              long time = SystemClock.uptimeMillis() - start;
+              if (time > 0) {
+                lastBytesPerSecond = hasReadBytes * 1000 / time;
+              }
+              updateSuccess(request, hasReadBytes, time);
+              return;
+            } else if (length == Integer.MIN_VALUE) {
+              throw new DownloadException(statusCode, "transfer data error");
+            }
+            hasReadBytes += length;
+            bytesWritten += length;
+            /* queue buffer to the disk writer, blocks if the disk can't keep up */
+            if (source != null) {
+              writer.write(segments);
+            } else {
+              /* the writer owns the array from now on, even if write throws */
+              byte[] block = buffer;
+              buffer = null;
+              writer.write(block, (int) length);
+              buffer = BufferPool.getDefault().getBuf(BufferPool.sizeForThroughput(lastBytesPerSecond));
+            }
+
+            /* deliver progress callback */
+            updateProgress(request, bytesWritten, totalBytes);
           }
-
-          /* if current is not wifi and mobile network is not allowed, stop */
-          if (request.allowedNetworkTypes() != 0
-              && !Utils.isWifi(request.context())
-              && (request.allowedNetworkTypes() & DownloadRequest.NETWORK_MOBILE) == 0) {
-            throw new DownloadException(statusCode, "allowed network error");
+        } finally {
+          BufferPool.getDefault().returnBuf(buffer);
+          if (segments != null) {
+            segments.clear();
           }
-
-          /* read data into buffer from input stream */
-          length = readFromInputStream(buffer, is);
-          long fileSize = raf.length();
-          long totalBytes = noContentLength ? fileSize : contentLength;
-
-          if (length == END_OF_STREAM) {
-            updateSuccess(request, hasReadBytes, SystemClock.uptimeMillis() - start);
-            return;
-          } else if (length == Integer.MIN_VALUE) {
-            throw new DownloadException(statusCode, "transfer data error");
-          }
-          hasReadBytes += length;
-          bytesWritten += length;
-          /* write buffer into local file */
-          raf.write(buffer, 0, length);
-
-          /* deliver progress callback */
-          updateProgress(request, bytesWritten, totalBytes);
         }
       } else {
         throw new DownloadException(statusCode, "input stream error");
@@ -303,7 +335,7 @@ final class DownloadDispatcher extends Thread {
       }
     } finally {
       downloader.close();
-      silentCloseFile(raf);
+      silentCloseWriter(writer);
       silentCloseInputStream(is);
     }
   }
@@ -317,11 +349,25 @@ final class DownloadDispatcher extends Thread {
     }
   }
 
-  /* a utility function to close a random access file without raising an exception */
-  static void silentCloseFile(RandomAccessFile raf) {
-    if (raf != null) {
+  /* read data from okio source until the byte count is reached, segments are moved not copied */
+  long readFromSource(Buffer sink, BufferedSource source, long byteCount) {
+    try {
+      while (sink.size() < byteCount) {
+        if (source.read(sink, byteCount - sink.size()) == END_OF_STREAM) {
+          break;
+        }
+      }
+      return sink.size() > 0 ? sink.size() : END_OF_STREAM;
+    } catch (IOException e) {
+      return Integer.MIN_VALUE;
+    }
+  }
+
+  /* a utility function to close a disk writer without raising an exception */
+  static void silentCloseWriter(DiskWriter writer) {
+    if (writer != null) {
       try {
-        raf.close();
+        writer.close();
       } catch (IOException ignore) {
       }
     }
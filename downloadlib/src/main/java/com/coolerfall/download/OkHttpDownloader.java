@@ -7,6 +7,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.BufferedSource;
 
 import static com.coolerfall.download.Utils.CONTENT_DISPOSITION;
 import static com.coolerfall.download.Utils.DEFAULT_CONNECT_TIMEOUT;
@@ -80,6 +81,14 @@ public final class OkHttpDownloader implements Downloader {
     return response == null || response.body() == null ? null : response.body().byteStream();
   }
 
+  /**
+   * Get the okio source of current response, data read from it stays in okio segments which can
+   * be handed to {@link DiskWriter#write(okio.Buffer)} without copying.
+   */
+  BufferedSource source() {
+    return response == null || response.body() == null ? null : response.body().source();
+  }
+
   @Override public void close() {
     if (response != null) {
       response.close();
@@ -0,0 +1,194 @@
+package com.coolerfall.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Download a file from a loopback origin through {@link DiskWriter}, once with the okio segments
+ * moved to the writer and once with the previous loop which copied the response into pooled
+ * arrays. Not part of the default unit tests, run with ./gradlew test -Pbenchmark.
+ */
+public class DiskWriterBenchmark {
+  private static final int FILE_SIZE = 32 * 1024 * 1024;
+  private static final int WARMUP_COUNT = 2;
+  private static final int RUN_COUNT = 5;
+  /* the same batch size for both paths, what the dispatcher uses on a fast network */
+  private static final int READ_SIZE = BufferPool.MAX_BUFFER_SIZE;
+
+  private File origin;
+  private File target;
+  private ServerSocket serverSocket;
+  private Thread serverThread;
+
+  @Before public void setUp() throws Exception {
+    origin = File.createTempFile("disk_writer_origin", ".tmp");
+    target = File.createTempFile("disk_writer_target", ".tmp");
+    byte[] data = new byte[FILE_SIZE];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 31 + i / 251);
+    }
+    RandomAccessFile randomAccessFile = new RandomAccessFile(origin, "rw");
+    try {
+      randomAccessFile.write(data);
+    } finally {
+      randomAccessFile.close();
+    }
+
+    serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+    serverThread = new Thread(new Runnable() {
+      @Override public void run() {
+        serve();
+      }
+    }, "LoopbackOrigin");
+    serverThread.start();
+  }
+
+  @After public void tearDown() throws Exception {
+    serverSocket.close();
+    serverThread.join();
+    origin.delete();
+    target.delete();
+  }
+
+  /* send the whole origin file to every connection */
+  private void serve() {
+    byte[] buffer = new byte[64 * 1024];
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        InputStream is = new FileInputStream(origin);
+        try {
+          OutputStream os = socket.getOutputStream();
+          int length;
+          while ((length = is.read(buffer)) != -1) {
+            os.write(buffer, 0, length);
+          }
+        } finally {
+          is.close();
+          socket.close();
+        }
+      } catch (IOException e) {
+        /* server socket closed */
+      }
+    }
+  }
+
+  private BufferedSource connect(Socket socket) throws IOException {
+    socket.connect(serverSocket.getLocalSocketAddress());
+    return Okio.buffer(Okio.source(socket.getInputStream()));
+  }
+
+  /* previous loop, the response is copied from the okio segments into a pooled array */
+  private long copyLoop() throws IOException {
+    Socket socket = new Socket();
+    DiskWriter writer = new DiskWriter(target, 0, DiskWriter.DEFAULT_QUEUE_CAPACITY, null);
+    try {
+      InputStream is = connect(socket).inputStream();
+      long total = 0;
+      byte[] buffer = BufferPool.getDefault().getBuf(READ_SIZE);
+      int length;
+      while ((length = is.read(buffer)) != -1) {
+        writer.write(buffer, length);
+        total += length;
+        buffer = BufferPool.getDefault().getBuf(READ_SIZE);
+      }
+      BufferPool.getDefault().returnBuf(buffer);
+      return total;
+    } finally {
+      writer.close();
+      socket.close();
+    }
+  }
+
+  /* current loop, the segments move to the writer without a copy */
+  private long segmentLoop() throws IOException {
+    Socket socket = new Socket();
+    DiskWriter writer = new DiskWriter(target, 0, DiskWriter.DEFAULT_QUEUE_CAPACITY, null);
+    try {
+      BufferedSource source = connect(socket);
+      Buffer segments = new Buffer();
+      long total = 0;
+      boolean exhausted = false;
+      while (!exhausted) {
+        while (segments.size() < READ_SIZE) {
+          if (source.read(segments, READ_SIZE - segments.size()) == -1) {
+            exhausted = true;
+            break;
+          }
+        }
+        total += segments.size();
+        writer.write(segments);
+      }
+      return total;
+    } finally {
+      writer.close();
+      socket.close();
+    }
+  }
+
+  private byte[] readFile(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      byte[] result = new byte[(int) randomAccessFile.length()];
+      randomAccessFile.readFully(result);
+      return result;
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  @Test public void loopbackDownload() throws Exception {
+    byte[] expected = readFile(origin);
+    for (int i = 0; i < WARMUP_COUNT; i++) {
+      assertEquals(FILE_SIZE, copyLoop());
+      assertEquals(FILE_SIZE, segmentLoop());
+    }
+    assertArrayEquals(expected, readFile(target));
+
+    /* interleave the runs so both paths see the same disk and page cache state */
+    long[] copyNanos = new long[RUN_COUNT];
+    long[] segmentNanos = new long[RUN_COUNT];
+    for (int i = 0; i < RUN_COUNT; i++) {
+      long start = System.nanoTime();
+      assertEquals(FILE_SIZE, copyLoop());
+      copyNanos[i] = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      assertEquals(FILE_SIZE, segmentLoop());
+      segmentNanos[i] = System.nanoTime() - start;
+    }
+    assertArrayEquals(expected, readFile(target));
+
+    Arrays.sort(copyNanos);
+    Arrays.sort(segmentNanos);
+    long copyMedian = copyNanos[RUN_COUNT / 2];
+    long segmentMedian = segmentNanos[RUN_COUNT / 2];
+    String result = "size=" + (FILE_SIZE >> 20) + "M"
+        + ", copy loop=" + megabytesPerSecond(copyMedian) + "MB/s"
+        + ", okio segments=" + megabytesPerSecond(segmentMedian) + "MB/s";
+    /* loopback and disk dominate both paths, the segment path must at least not be slower */
+    assertTrue(result, segmentMedian <= copyMedian * 11 / 10);
+  }
+
+  private static long megabytesPerSecond(long nanos) {
+    return FILE_SIZE * 1000000000L / nanos >> 20;
+  }
+}
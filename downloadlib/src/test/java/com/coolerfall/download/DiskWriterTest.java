@@ -0,0 +1,155 @@
+package com.coolerfall.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiskWriterTest {
+  private static final int BLOCK_SIZE = 8 * 1024;
+  private static final int BLOCK_COUNT = 200;
+
+  private File file;
+
+  @Before public void setUp() throws Exception {
+    file = File.createTempFile("disk_writer", ".tmp");
+  }
+
+  @After public void tearDown() {
+    file.delete();
+  }
+
+  private static byte[] data(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i * 31 + i / 251);
+    }
+    return data;
+  }
+
+  private byte[] readFile(long position, int length) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      byte[] result = new byte[length];
+      randomAccessFile.seek(position);
+      randomAccessFile.readFully(result);
+      return result;
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  @Test public void writeBuffersInOrder() throws Exception {
+    final long start = 4096;
+    final List<Long> positions = new CopyOnWriteArrayList<>();
+    DiskWriter writer = new DiskWriter(file, start, 4, new DiskWriter.Callback() {
+      @Override public void onWritten(long position) {
+        positions.add(position);
+      }
+    });
+    byte[] data = data(BLOCK_SIZE * BLOCK_COUNT);
+    for (int i = 0; i < BLOCK_COUNT; i++) {
+      byte[] buffer = BufferPool.getDefault().getBuf(BLOCK_SIZE);
+      System.arraycopy(data, i * BLOCK_SIZE, buffer, 0, BLOCK_SIZE);
+      writer.write(buffer, BLOCK_SIZE);
+    }
+    writer.flush();
+    assertEquals(start + data.length, writer.getWrittenPosition());
+    writer.close();
+
+    assertArrayEquals(data, readFile(start, data.length));
+    long last = start;
+    for (long position : positions) {
+      assertTrue(position > last);
+      last = position;
+    }
+    assertEquals(start + data.length, last);
+  }
+
+  @Test public void writeArraysAndSegmentsInOrder() throws Exception {
+    final long start = 4096;
+    DiskWriter writer = new DiskWriter(file, start, 4, null);
+    byte[] data = data(BLOCK_SIZE * BLOCK_COUNT);
+    Buffer segments = new Buffer();
+    for (int i = 0; i < BLOCK_COUNT; i++) {
+      if (i % 2 == 0) {
+        byte[] buffer = BufferPool.getDefault().getBuf(BLOCK_SIZE);
+        System.arraycopy(data, i * BLOCK_SIZE, buffer, 0, BLOCK_SIZE);
+        writer.write(buffer, BLOCK_SIZE);
+      } else {
+        /* okio data moves to the writer, the reader can reuse its buffer */
+        segments.write(data, i * BLOCK_SIZE, BLOCK_SIZE);
+        writer.write(segments);
+        assertEquals(0, segments.size());
+      }
+    }
+    writer.close();
+    assertEquals(start + data.length, writer.getWrittenPosition());
+    assertArrayEquals(data, readFile(start, data.length));
+  }
+
+  @Test public void emptySegmentsWriteDoesNothing() throws Exception {
+    DiskWriter writer = new DiskWriter(file, 0, 4, null);
+    writer.write(new Buffer());
+    writer.close();
+    assertEquals(0, writer.getWrittenPosition());
+  }
+
+  @Test public void emptyWriteDoesNothing() throws Exception {
+    DiskWriter writer = new DiskWriter(file, 0, 4, null);
+    writer.write(new byte[BLOCK_SIZE], 0);
+    writer.close();
+    assertEquals(0, writer.getWrittenPosition());
+  }
+
+  @Test public void failedWriteReleasesBufferOnce() throws Exception {
+    DiskWriter writer = new DiskWriter(file, 0, 4, null);
+    writer.close();
+    /* an unusual size class, so no other test shares these arrays */
+    int size = BufferPool.MAX_BUFFER_SIZE;
+    byte[] buffer = BufferPool.getDefault().getBuf(size);
+    try {
+      writer.write(buffer, size);
+      fail("write after close should fail");
+    } catch (IOException expected) {
+      assertNotNull(expected);
+    }
+    assertSame(buffer, BufferPool.getDefault().getBuf(size));
+    assertTrue(buffer != BufferPool.getDefault().getBuf(size));
+  }
+
+  @Test public void failingCallbackWakesFlush() throws Exception {
+    final RuntimeException failure = new IllegalStateException("callback failed");
+    DiskWriter writer = new DiskWriter(file, 0, 4, new DiskWriter.Callback() {
+      @Override public void onWritten(long position) {
+        throw failure;
+      }
+    });
+    writer.write(data(BLOCK_SIZE), BLOCK_SIZE);
+    try {
+      writer.flush();
+      fail("flush should report the callback failure");
+    } catch (IOException expected) {
+      assertSame(failure, expected.getCause());
+    }
+    try {
+      writer.write(data(BLOCK_SIZE), BLOCK_SIZE);
+      fail("write after failure should fail");
+    } catch (IOException expected) {
+      assertSame(failure, expected.getCause());
+    }
+    assertEquals(0, writer.getQueueDepth());
+  }
+}
@@ -3,6 +3,7 @@ package com.jeffmony.playersdk.common;
 public class PlayerSettings {
 
     private boolean mLocalProxyEnable = false;     //是否打开本地代理开关
+    private boolean mInProcessCacheEnable = true;  //ExoPlayer是否在进程内直接读取缓存, 关闭后通过本地代理的HTTP请求读取
 
     public void setLocalProxyEnable(boolean enable) {
         mLocalProxyEnable = enable;
@@ -11,4 +12,12 @@ public class PlayerSettings {
     public boolean getLocalProxyEnable() {
         return mLocalProxyEnable;
     }
+
+    public void setInProcessCacheEnable(boolean enable) {
+        mInProcessCacheEnable = enable;
+    }
+
+    public boolean getInProcessCacheEnable() {
+        return mInProcessCacheEnable;
+    }
 }
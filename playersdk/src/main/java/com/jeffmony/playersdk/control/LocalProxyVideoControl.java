@@ -5,6 +5,8 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 
 import com.jeffmony.playersdk.impl.BasePlayerImpl;
+import com.jeffmony.videocache.PlaybackSession;
+import com.jeffmony.videocache.PlaybackSessionManager;
 import com.jeffmony.videocache.VideoProxyCacheManager;
 import com.jeffmony.videocache.common.ProxyMessage;
 import com.jeffmony.videocache.common.VideoParams;
@@ -22,6 +24,7 @@ public class LocalProxyVideoControl {
 
     private BasePlayerImpl mPlayer;
     private String mVideoUrl;
+    private PlaybackSession mPlaybackSession;   //每个播放器独立的播放会话, 多个播放器同时播放互不影响
 
     private IVideoCacheListener mListener = new IVideoCacheListener() {
         @Override
@@ -58,10 +61,17 @@ public class LocalProxyVideoControl {
         mPlayer = player;
     }
 
+    public String getProxyUrl(String videoUrl) {
+        if (mPlaybackSession == null) {
+            mPlaybackSession = PlaybackSessionManager.getInstance().openSession();
+        }
+        return ProxyCacheUtils.getProxyUrl(videoUrl, null, null, mPlaybackSession);
+    }
+
     public void startRequestVideoInfo(String videoUrl, Map<String, String> headers, Map<String, Object> extraParams) {
         mVideoUrl = videoUrl;
         VideoProxyCacheManager.getInstance().addCacheListener(videoUrl, mListener);
-        VideoProxyCacheManager.getInstance().setPlayingUrlMd5(ProxyCacheUtils.computeMD5(videoUrl));
+        VideoProxyCacheManager.getInstance().setPlayingUrlMd5(ProxyCacheUtils.getCacheKey(videoUrl));
         VideoProxyCacheManager.getInstance().startRequestVideoInfo(videoUrl, headers, extraParams);
     }
 
@@ -76,15 +86,24 @@ public class LocalProxyVideoControl {
     }
 
     public void seekToCachePosition(long position) {
-        long totalDuration = mPlayer.getDuration();
-        if (totalDuration > 0) {
-            float percent = position * 1.0f / totalDuration;
-            VideoProxyCacheManager.getInstance().seekToCacheTaskFromClient(mVideoUrl, percent);
-        }
+        //mp4视频根据关键帧索引直接从seek位置对应的关键帧开始缓存
+        VideoProxyCacheManager.getInstance().seekToCacheTaskFromClientByTime(mVideoUrl, position);
+    }
+
+    /**
+     * @param position 当前播放位置, 单位ms
+     * @return 根据关键帧索引计算的缓冲位置, 无法计算时返回-1
+     */
+    public long getBufferedPosition(long position) {
+        return VideoProxyCacheManager.getInstance().getMp4BufferedTime(mVideoUrl, position);
     }
 
     public void releaseLocalProxyResources() {
         VideoProxyCacheManager.getInstance().stopCacheTask(mVideoUrl);   //停止视频缓存任务
         VideoProxyCacheManager.getInstance().releaseProxyReleases(mVideoUrl);
+        if (mPlaybackSession != null) {
+            mPlaybackSession.close();
+            mPlaybackSession = null;
+        }
     }
 }
@@ -0,0 +1,120 @@
+package com.jeffmony.playersdk.datasource;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.jeffmony.videocache.VideoCacheReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ExoPlayer在进程内直接读取本地代理的缓存数据, 不经过loopback HTTP
+ * 播放地址仍然是代理url, M3U8中相对路径的分片地址可以正常解析
+ * 无法在进程内处理的url交给upstream, 例如原始url或者需要网络判断类型的代理url
+ */
+public class LocalProxyDataSource implements DataSource {
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final List<TransferListener> mTransferListeners = new ArrayList<>();
+    private VideoCacheReader mReader;
+    private DataSource mUpstream;
+    private Uri mUri;
+    private long mBytesRemaining;
+
+    public LocalProxyDataSource(@NonNull DataSource.Factory upstreamFactory) {
+        mUpstreamFactory = upstreamFactory;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        //进程内读取不是网络传输, 只有upstream需要通知
+        mTransferListeners.add(transferListener);
+        if (mUpstream != null) {
+            mUpstream.addTransferListener(transferListener);
+        }
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        mUri = dataSpec.uri;
+        mReader = VideoCacheReader.create(dataSpec.uri.toString());
+        if (mReader == null) {
+            mUpstream = mUpstreamFactory.createDataSource();
+            for (TransferListener listener : mTransferListeners) {
+                mUpstream.addTransferListener(listener);
+            }
+            return mUpstream.open(dataSpec);
+        }
+        long remaining = mReader.open(dataSpec.position);
+        if (dataSpec.length != C.LENGTH_UNSET) {
+            if (dataSpec.length > remaining) {
+                throw new IOException("Request length is out of range, length=" + dataSpec.length + ", remaining=" + remaining);
+            }
+            remaining = dataSpec.length;
+        }
+        mBytesRemaining = remaining;
+        return remaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if (mUpstream != null) {
+            return mUpstream.read(buffer, offset, readLength);
+        }
+        if (readLength == 0) {
+            return 0;
+        }
+        if (mBytesRemaining == 0) {
+            return C.RESULT_END_OF_INPUT;
+        }
+        int result = mReader.read(buffer, offset, (int) Math.min(readLength, mBytesRemaining));
+        if (result == -1) {
+            return C.RESULT_END_OF_INPUT;
+        }
+        mBytesRemaining -= result;
+        return result;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        if (mUpstream != null) {
+            return mUpstream.getUri();
+        }
+        return mUri;
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        if (mUpstream != null) {
+            return mUpstream.getResponseHeaders();
+        }
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mUri = null;
+        if (mReader != null) {
+            mReader.close();
+            mReader = null;
+        }
+        if (mUpstream != null) {
+            try {
+                mUpstream.close();
+            } finally {
+                mUpstream = null;
+            }
+        }
+    }
+}
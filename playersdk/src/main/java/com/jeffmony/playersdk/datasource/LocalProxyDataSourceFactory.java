@@ -0,0 +1,22 @@
+package com.jeffmony.playersdk.datasource;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+
+/**
+ * 创建LocalProxyDataSource, 本地代理之外的请求使用upstreamFactory创建的DataSource
+ */
+public class LocalProxyDataSourceFactory implements DataSource.Factory {
+
+    private final DataSource.Factory mUpstreamFactory;
+
+    public LocalProxyDataSourceFactory(@NonNull DataSource.Factory upstreamFactory) {
+        mUpstreamFactory = upstreamFactory;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return new LocalProxyDataSource(mUpstreamFactory);
+    }
+}
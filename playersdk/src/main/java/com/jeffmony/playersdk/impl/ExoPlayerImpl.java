@@ -25,6 +25,7 @@ import com.google.android.exoplayer2.upstream.DefaultHttpDataSourceFactory;
 import com.google.android.exoplayer2.util.Util;
 import com.google.android.exoplayer2.video.VideoListener;
 import com.jeffmony.playersdk.common.SeekType;
+import com.jeffmony.playersdk.datasource.LocalProxyDataSourceFactory;
 import com.jeffmony.videocache.utils.LogUtils;
 import com.jeffmony.videocache.utils.ProxyCacheUtils;
 
@@ -55,7 +56,7 @@ public class ExoPlayerImpl extends BasePlayerImpl {
         String playUrl;
         if (mPlayerSettings.getLocalProxyEnable()) {
             mIsM3U8 = ProxyCacheUtils.isM3U8(uri.toString(), null);
-            playUrl = ProxyCacheUtils.getProxyUrl(uri.toString(), null, null);
+            playUrl = mLocalProxyVideoControl.getProxyUrl(uri.toString());
             //请求放在客户端,非常便于控制
             mLocalProxyVideoControl.startRequestVideoInfo(uri.toString(), null, null);
         } else {
@@ -176,6 +177,10 @@ public class ExoPlayerImpl extends BasePlayerImpl {
         String userAgent = Util.getUserAgent(mContext, "JeffPlayerSDK");
         DefaultDataSourceFactory upstreamFactory;
         upstreamFactory = new DefaultDataSourceFactory(mContext, new DefaultHttpDataSourceFactory(userAgent));
+        if (mPlayerSettings.getLocalProxyEnable() && mPlayerSettings.getInProcessCacheEnable()) {
+            //代理url直接在进程内读取缓存, 不经过本地代理的HTTP请求
+            return new LocalProxyDataSourceFactory(upstreamFactory);
+        }
         return upstreamFactory;
     }
 
@@ -6,7 +6,6 @@ import android.net.Uri;
 import android.view.Surface;
 
 import com.jeffmony.playersdk.common.SeekType;
-import com.jeffmony.videocache.utils.ProxyCacheUtils;
 
 import java.io.IOException;
 import java.util.Map;
@@ -47,7 +46,7 @@ public class IjkPlayerImpl extends BasePlayerImpl {
     public void setDataSource(Context context, Uri uri, Map<String, String> headers) throws IllegalArgumentException, SecurityException, IllegalStateException, IOException {
         String playUrl;
         if (mPlayerSettings.getLocalProxyEnable()) {
-            playUrl = ProxyCacheUtils.getProxyUrl(uri.toString(), null, null);
+            playUrl = mLocalProxyVideoControl.getProxyUrl(uri.toString());
             //请求放在客户端,非常便于控制
             mLocalProxyVideoControl.startRequestVideoInfo(uri.toString(), null, null);
         } else {
@@ -109,6 +108,10 @@ public class IjkPlayerImpl extends BasePlayerImpl {
     @Override
     public long getBufferedPosition() {
         if (mPlayerSettings.getLocalProxyEnable()) {
+            long bufferedPosition = mLocalProxyVideoControl.getBufferedPosition(mIjkPlayer.getCurrentPosition());
+            if (bufferedPosition >= 0) {
+                return bufferedPosition;
+            }
             return (long) (mProxyCachePercent * mIjkPlayer.getDuration() / 100);
         }
         return 0;
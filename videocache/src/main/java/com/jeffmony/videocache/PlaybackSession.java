@@ -0,0 +1,102 @@
+package com.jeffmony.videocache;
+
+import com.jeffmony.videocache.common.RequestClass;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author jeffmony
+ *
+ * 播放会话, 每个播放器持有一个
+ * 同一个会话中只有最新的请求可以获得数据, 不同会话之间互不影响, 多个播放器可以同时通过本地代理播放
+ */
+public class PlaybackSession {
+
+    private final String mId;
+    private volatile long mLatestRequestTime = -1L;   //会话中最新请求的时间
+    private volatile boolean mClosed;
+    private volatile int mRequestClass;   //会话中请求的类别, 预加载的会话优先级低于正在播放的会话
+    private final AtomicReference<String> mLatestMd5 = new AtomicReference<>();   //会话中最新请求的视频md5
+    private final Set<String> mRequestMd5Set = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());   //会话中请求过的视频, 关闭时只唤醒这些视频的等待者
+
+    PlaybackSession(String id, int requestClass) {
+        mId = id;
+        mRequestClass = requestClass;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public int getRequestClass() {
+        return mRequestClass;
+    }
+
+    /**
+     * 预加载的播放器开始播放时, 可以提升为RequestClass.FOREGROUND
+     * @param requestClass
+     */
+    public void setRequestClass(int requestClass) {
+        mRequestClass = requestClass;
+    }
+
+    public void setLatestRequestTime(long time) {
+        mLatestRequestTime = time;
+    }
+
+    /**
+     * 记录会话中最新请求的视频, 被替代的请求只可能在等待之前请求的视频数据
+     * @param md5
+     * @return 上一个请求的视频md5, 没有时返回null
+     */
+    public String setLatestRequestMd5(String md5) {
+        addRequestMd5(md5);
+        return mLatestMd5.getAndSet(md5);
+    }
+
+    /**
+     * 记录会话中请求过的视频, 不影响最新请求
+     * @param md5
+     */
+    public void addRequestMd5(String md5) {
+        if (md5 != null) {
+            mRequestMd5Set.add(md5);
+        }
+    }
+
+    Set<String> getRequestMd5Set() {
+        return mRequestMd5Set;
+    }
+
+    /**
+     * 会话关闭或者有了更新的请求, 当前请求就不应该继续发送数据
+     * @param time 请求的时间
+     * @return
+     */
+    public boolean isLatestRequest(long time) {
+        return !mClosed && mLatestRequestTime == time;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * 播放器释放时调用, 会话中等待数据的请求会立即退出
+     */
+    public void close() {
+        PlaybackSessionManager.getInstance().closeSession(this);
+    }
+
+    void markClosed() {
+        mClosed = true;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackSession[" + mId + "]";
+    }
+}
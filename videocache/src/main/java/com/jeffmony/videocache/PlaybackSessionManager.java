@@ -0,0 +1,79 @@
+package com.jeffmony.videocache;
+
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+
+import com.jeffmony.videocache.common.RequestClass;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author jeffmony
+ *
+ * 管理播放会话, 会话id出现在代理url中: /ps/{sessionId}/v/{id}
+ * 没有使用会话的代理url共用一个全局的"最新请求", 和之前的行为一致
+ */
+public class PlaybackSessionManager {
+
+    public static final String SESSION_PATH = "ps/";
+
+    private static volatile PlaybackSessionManager sInstance = null;
+    private final Map<String, PlaybackSession> mSessionMap = new ConcurrentHashMap<>();
+    private final AtomicInteger mSessionId = new AtomicInteger(0);
+
+    private PlaybackSessionManager() {
+
+    }
+
+    public static PlaybackSessionManager getInstance() {
+        if (sInstance == null) {
+            synchronized (PlaybackSessionManager.class) {
+                if (sInstance == null) {
+                    sInstance = new PlaybackSessionManager();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public PlaybackSession openSession() {
+        return openSession(RequestClass.FOREGROUND);
+    }
+
+    /**
+     * @param requestClass 会话中请求的类别, 预加载使用RequestClass.PRELOAD
+     * @return
+     */
+    public PlaybackSession openSession(int requestClass) {
+        PlaybackSession session = new PlaybackSession(String.valueOf(mSessionId.incrementAndGet()), requestClass);
+        mSessionMap.put(session.getId(), session);
+        return session;
+    }
+
+    public PlaybackSession getSession(String id) {
+        if (TextUtils.isEmpty(id)) {
+            return null;
+        }
+        return mSessionMap.get(id);
+    }
+
+    public void closeSession(@NonNull PlaybackSession session) {
+        mSessionMap.remove(session.getId());
+        session.markClosed();
+        //唤醒会话中等待数据的请求, 其他会话不受影响
+        for (String md5 : session.getRequestMd5Set()) {
+            VideoAvailabilityManager.getInstance().notifyChanged(md5);
+        }
+    }
+
+    /**
+     * 代理url中会话的路径前缀
+     * @param session
+     * @return
+     */
+    public static String getSessionPath(PlaybackSession session) {
+        return session != null ? SESSION_PATH + session.getId() + "/" : "";
+    }
+}
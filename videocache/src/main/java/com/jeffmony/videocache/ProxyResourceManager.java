@@ -0,0 +1,104 @@
+package com.jeffmony.videocache;
+
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+
+import com.jeffmony.videocache.m3u8.M3U8;
+import com.jeffmony.videocache.model.ProxyResource;
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author jeffmony
+ *
+ * 本地代理资源注册表
+ * 代理url只携带资源id和分片名, 不再把原始url和请求头base64编码进每一个url
+ *
+ * 视频:  http://127.0.0.1:port/v/{id}
+ * 分片:  /s/{id}/{segName}    写在proxy m3u8文件中, 相对于m3u8的url解析
+ */
+public class ProxyResourceManager {
+
+    public static final String VIDEO_PATH = "v/";
+    public static final String SEG_PATH = "s/";
+
+    private static volatile ProxyResourceManager sInstance = null;
+    private final Map<String, ProxyResource> mResourceMap = new ConcurrentHashMap<>();
+
+    private ProxyResourceManager() {
+
+    }
+
+    public static ProxyResourceManager getInstance() {
+        if (sInstance == null) {
+            synchronized (ProxyResourceManager.class) {
+                if (sInstance == null) {
+                    sInstance = new ProxyResourceManager();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * 注册视频资源, 返回资源id
+     * @param videoUrl
+     * @param videoTypeInfo
+     * @param headers
+     * @return
+     */
+    public String registerResource(@NonNull String videoUrl, String videoTypeInfo, Map<String, String> headers) {
+        String id = ProxyCacheUtils.getCacheKey(videoUrl);
+        ProxyResource resource = mResourceMap.get(id);
+        Map<String, String> headersCopy = headers == null ? new HashMap<String, String>() : new HashMap<>(headers);
+        if (resource == null || !TextUtils.equals(resource.getVideoUrl(), videoUrl) ||
+                !TextUtils.equals(resource.getVideoTypeInfo(), videoTypeInfo) || !resource.getHeaders().equals(headersCopy)) {
+            ProxyResource newResource = new ProxyResource(id, videoUrl, videoTypeInfo, headersCopy);
+            if (resource != null) {
+                newResource.setM3U8(resource.getM3U8());
+            }
+            mResourceMap.put(id, newResource);
+        }
+        return id;
+    }
+
+    /**
+     * M3U8解析完成, 记录分片信息
+     * @param videoUrl
+     * @param m3u8
+     * @param headers
+     */
+    public void registerM3U8(@NonNull String videoUrl, M3U8 m3u8, Map<String, String> headers) {
+        String id = ProxyCacheUtils.getCacheKey(videoUrl);
+        ProxyResource resource = mResourceMap.get(id);
+        if (resource == null) {
+            registerResource(videoUrl, ProxyCacheUtils.M3U8, headers);
+            resource = mResourceMap.get(id);
+        }
+        resource.setM3U8(m3u8);
+    }
+
+    public ProxyResource getResource(String id) {
+        if (TextUtils.isEmpty(id)) {
+            return null;
+        }
+        return mResourceMap.get(id);
+    }
+
+    public void removeResource(String id) {
+        if (!TextUtils.isEmpty(id)) {
+            mResourceMap.remove(id);
+        }
+    }
+
+    /**
+     * 相对proxy m3u8的路径, 播放器根据m3u8的地址解析: /v/{id}.m3u8 -> /s/{id}/{segName},
+     * /ps/{sessionId}/v/{id}.m3u8 -> /ps/{sessionId}/s/{id}/{segName}, 分片请求和m3u8属于同一个播放会话
+     */
+    public static String getSegProxyPath(String id, String segName) {
+        return "../" + SEG_PATH + id + "/" + segName;
+    }
+}
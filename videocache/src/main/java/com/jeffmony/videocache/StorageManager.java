@@ -190,6 +190,7 @@ public class StorageManager {
                     File file = new File(filePath);
                     boolean deleted = StorageUtils.deleteFile(file);
                     if (deleted) {
+                        VideoAvailabilityManager.getInstance().resetAvailability(file.getName());
                         mCurrentSize -= cacheFileInfo.mSize;
                         //不会存在多线程的操作情况
                         iterator.remove();
@@ -0,0 +1,191 @@
+package com.jeffmony.videocache;
+
+import com.jeffmony.videocache.model.VideoRangeSet;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author jeffmony
+ *
+ * 单个视频的数据可用性
+ * 下载线程写入数据或者状态变化时直接唤醒等待的本地代理请求, 不再按固定间隔轮询
+ * 非M3U8视频记录已经写入文件的区间; M3U8视频只通知状态变化(分片下载完成/proxy m3u8生成/失败)
+ */
+public class VideoAvailability {
+
+    //已经写入文件的区间, 结束位置不包含; 写入时加锁发布新的快照, 读取不加锁
+    private final AtomicReference<VideoRangeSet> mRangeSet = new AtomicReference<>(VideoRangeSet.EMPTY);
+    private long mVersion;        //每次数据或者状态变化都会递增
+    private int mWaiterCount;     //等待中的请求数, 没有等待者时不需要notify
+    private volatile VideoStreamBuffer mStreamBuffer;   //下载线程写入的最新数据, 没有下载任务时为null
+    private volatile VideoBlockBitmap mBlockBitmap;     //持久化的块位图, 非M3U8视频的缓存任务运行时才有
+    private volatile VideoRangeJournal mRangeJournal;   //精确到字节的区间日志, 和块位图一起设置
+
+    /**
+     * 区间[start, end)的数据已经写入文件
+     * @param start
+     * @param end 不包含
+     */
+    public synchronized void addRange(long start, long end) {
+        VideoRangeSet rangeSet = mRangeSet.get();
+        VideoRangeSet newRangeSet = rangeSet.add(start, end);
+        if (newRangeSet == rangeSet) {
+            //已经包含, 没有新的数据
+            return;
+        }
+        mRangeSet.set(newRangeSet);
+        VideoBlockBitmap blockBitmap = mBlockBitmap;
+        if (blockBitmap != null) {
+            //只有和新数据相交的块可能变成完整的块, 不需要遍历整个合并后的区间
+            int index = newRangeSet.floorIndex(start);
+            long rangeStart = Math.max(newRangeSet.getStart(index), start - VideoBlockBitmap.BLOCK_SIZE);
+            long rangeEnd = Math.min(newRangeSet.getEnd(index), end + VideoBlockBitmap.BLOCK_SIZE);
+            blockBitmap.setRange(rangeStart, rangeEnd);
+        }
+        VideoRangeJournal rangeJournal = mRangeJournal;
+        if (rangeJournal != null) {
+            rangeJournal.checkpoint(start, end);
+        }
+        onChanged();
+    }
+
+    /**
+     * 缓存任务打开区间日志之后设置, 之后写入的数据按检查点追加到日志中
+     * @param rangeJournal
+     */
+    public synchronized void setRangeJournal(VideoRangeJournal rangeJournal) {
+        mRangeJournal = rangeJournal;
+    }
+
+    /**
+     * 缓存任务打开块位图之后设置, 之后写入的数据同时记录到位图中
+     * @param blockBitmap
+     */
+    public synchronized void setBlockBitmap(VideoBlockBitmap blockBitmap) {
+        mBlockBitmap = blockBitmap;
+        if (blockBitmap != null) {
+            VideoRangeSet rangeSet = mRangeSet.get();
+            for (int index = 0; index < rangeSet.size(); index++) {
+                blockBitmap.setRange(rangeSet.getStart(index), rangeSet.getEnd(index));
+            }
+        }
+    }
+
+    /**
+     * position所在的块是否已经缓存, 没有位图时返回false
+     * @param position
+     * @return
+     */
+    public boolean isBlockCached(long position) {
+        VideoBlockBitmap blockBitmap = mBlockBitmap;
+        return blockBitmap != null && blockBitmap.isCached(position);
+    }
+
+    /**
+     * 从position开始连续可读的结束位置(不包含), position不可读时返回position
+     * @param position
+     * @return
+     */
+    public long getAvailablePosition(long position) {
+        return mRangeSet.get().getAvailablePosition(position);
+    }
+
+    /**
+     * 从position开始本地代理可以连续读取的结束位置(不包含), 包括共享缓冲区中还没有写入文件的数据
+     * 缓冲区的数据可能被覆盖, 缓冲区读取失败时只能读取getAvailablePosition之前的文件数据
+     * @param position
+     * @return
+     */
+    public long getReadablePosition(long position) {
+        long available = getAvailablePosition(position);
+        VideoStreamBuffer streamBuffer = mStreamBuffer;
+        if (streamBuffer != null) {
+            long bufferPosition = streamBuffer.getAvailablePosition(available);
+            if (bufferPosition > available) {
+                available = getAvailablePosition(bufferPosition);
+            }
+        }
+        return available;
+    }
+
+    /**
+     * 状态发生变化, 唤醒所有等待的请求重新检查
+     */
+    public synchronized void notifyChanged() {
+        onChanged();
+    }
+
+    /**
+     * 缓存文件被删除
+     */
+    public synchronized void reset() {
+        mRangeSet.set(VideoRangeSet.EMPTY);
+        if (mBlockBitmap != null) {
+            mBlockBitmap.clear();
+        }
+        if (mRangeJournal != null) {
+            mRangeJournal.clear();
+        }
+        mStreamBuffer = null;
+        onChanged();
+    }
+
+    /**
+     * 下载线程获取共享缓冲区, 不存在时创建
+     * @return
+     */
+    public synchronized VideoStreamBuffer obtainStreamBuffer() {
+        if (mStreamBuffer == null) {
+            mStreamBuffer = new VideoStreamBuffer(VideoStreamBuffer.DEFAULT_CAPACITY);
+        }
+        return mStreamBuffer;
+    }
+
+    /**
+     * @return 没有下载任务时为null
+     */
+    public VideoStreamBuffer getStreamBuffer() {
+        return mStreamBuffer;
+    }
+
+    /**
+     * 缓存任务停止之后释放缓冲区
+     */
+    public void releaseStreamBuffer() {
+        mStreamBuffer = null;
+    }
+
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * 等待version之后的下一次变化, 先获取version再检查条件, 保证不会错过通知
+     * @param version
+     * @param timeout
+     * @return 超时返回false
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitChanged(long version, long timeout) throws InterruptedException {
+        long remaining = timeout;
+        long deadline = System.currentTimeMillis() + timeout;
+        mWaiterCount++;
+        try {
+            while (mVersion == version && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } finally {
+            mWaiterCount--;
+        }
+        return mVersion != version;
+    }
+
+    private void onChanged() {
+        mVersion++;
+        if (mWaiterCount > 0) {
+            notifyAll();
+        }
+        VideoAvailabilityManager.getInstance().dispatchChanged();
+    }
+}
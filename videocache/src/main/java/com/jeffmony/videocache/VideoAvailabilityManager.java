@@ -0,0 +1,183 @@
+package com.jeffmony.videocache;
+
+import android.support.annotation.NonNull;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author jeffmony
+ *
+ * 管理每个视频的数据可用性, key是视频的md5
+ * 缓存任务通过acquireAvailability强引用对应的对象, 没有任务之后只保留弱引用:
+ * 还在等待数据的请求持有的对象不会被替换, 没有请求持有之后被回收并从map中移除
+ */
+public class VideoAvailabilityManager {
+
+    private static volatile VideoAvailabilityManager sInstance = null;
+    private final Map<String, AvailabilityRef> mAvailabilityMap = new HashMap<>();   //访问时加锁
+    private final ReferenceQueue<VideoAvailability> mReferenceQueue = new ReferenceQueue<>();
+    //任意视频的数据或者状态变化, NIO模式下唤醒selector检查挂起的请求
+    private final AtomicReference<Runnable> mChangedListener = new AtomicReference<>();
+
+    private VideoAvailabilityManager() {
+
+    }
+
+    public static VideoAvailabilityManager getInstance() {
+        if (sInstance == null) {
+            synchronized (VideoAvailabilityManager.class) {
+                if (sInstance == null) {
+                    sInstance = new VideoAvailabilityManager();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public synchronized VideoAvailability getAvailability(@NonNull String md5) {
+        expungeStaleRefs();
+        AvailabilityRef ref = mAvailabilityMap.get(md5);
+        VideoAvailability availability = ref != null ? ref.get() : null;
+        if (availability == null) {
+            availability = new VideoAvailability();
+            mAvailabilityMap.put(md5, new AvailabilityRef(md5, availability, mReferenceQueue));
+        }
+        return availability;
+    }
+
+    /**
+     * 缓存任务创建时调用, 任务停止时调用releaseAvailability
+     * @param md5
+     * @return
+     */
+    public synchronized VideoAvailability acquireAvailability(@NonNull String md5) {
+        VideoAvailability availability = getAvailability(md5);
+        AvailabilityRef ref = mAvailabilityMap.get(md5);
+        ref.mAvailability = availability;
+        ref.mTaskCount++;
+        return availability;
+    }
+
+    /**
+     * 没有缓存任务之后不再强引用, 共享缓冲区也一起释放
+     * @param md5
+     * @param availability acquireAvailability返回的对象
+     */
+    public synchronized void releaseAvailability(@NonNull String md5, @NonNull VideoAvailability availability) {
+        AvailabilityRef ref = mAvailabilityMap.get(md5);
+        if (ref != null && ref.mAvailability == availability && --ref.mTaskCount > 0) {
+            //还有其他任务在使用
+            return;
+        }
+        availability.releaseStreamBuffer();
+        if (ref != null && ref.mAvailability == availability) {
+            ref.mTaskCount = 0;
+            ref.mAvailability = null;
+        }
+    }
+
+    /**
+     * 当前map中的视频数, 包括还没有被回收的弱引用
+     * @return
+     */
+    public synchronized int getAvailabilityCount() {
+        expungeStaleRefs();
+        return mAvailabilityMap.size();
+    }
+
+    //持有锁时调用, 移除已经被回收的对象
+    private void expungeStaleRefs() {
+        AvailabilityRef ref;
+        while ((ref = (AvailabilityRef) mReferenceQueue.poll()) != null) {
+            if (mAvailabilityMap.get(ref.mMd5) == ref) {
+                mAvailabilityMap.remove(ref.mMd5);
+            }
+        }
+    }
+
+    private synchronized List<VideoAvailability> getAvailabilityList() {
+        expungeStaleRefs();
+        List<VideoAvailability> list = new ArrayList<>(mAvailabilityMap.size());
+        for (AvailabilityRef ref : mAvailabilityMap.values()) {
+            VideoAvailability availability = ref.get();
+            if (availability != null) {
+                list.add(availability);
+            }
+        }
+        return list;
+    }
+
+    private synchronized VideoAvailability peekAvailability(String md5) {
+        AvailabilityRef ref = mAvailabilityMap.get(md5);
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * @param listener 在下载线程中回调, 不能阻塞; 会替换之前的监听
+     */
+    public void setChangedListener(Runnable listener) {
+        mChangedListener.set(listener);
+    }
+
+    /**
+     * 只有当前的监听还是listener时才取消, 重启本地代理时旧的服务退出不能清除新服务的监听
+     * @param listener
+     */
+    public void removeChangedListener(Runnable listener) {
+        mChangedListener.compareAndSet(listener, null);
+    }
+
+    void dispatchChanged() {
+        Runnable listener = mChangedListener.get();
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    public void notifyChanged(@NonNull String md5) {
+        VideoAvailability availability = peekAvailability(md5);
+        if (availability != null) {
+            availability.notifyChanged();
+        }
+    }
+
+    /**
+     * 唤醒所有视频等待的请求重新检查, 代价和视频数成正比
+     * 新的请求到来时只需要用notifyChanged(md5)唤醒被替代的请求
+     */
+    public void notifyAllChanged() {
+        for (VideoAvailability availability : getAvailabilityList()) {
+            availability.notifyChanged();
+        }
+    }
+
+    /**
+     * 缓存文件被删除, 已经记录的区间失效
+     * 不从map中移除, 避免正在等待的请求持有旧的对象
+     * @param md5
+     */
+    public void resetAvailability(@NonNull String md5) {
+        VideoAvailability availability = peekAvailability(md5);
+        if (availability != null) {
+            availability.reset();
+        }
+    }
+
+    private static class AvailabilityRef extends WeakReference<VideoAvailability> {
+
+        private final String mMd5;
+        private VideoAvailability mAvailability;   //有缓存任务时的强引用
+        private int mTaskCount;
+
+        private AvailabilityRef(String md5, VideoAvailability availability, ReferenceQueue<VideoAvailability> queue) {
+            super(availability, queue);
+            mMd5 = md5;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.jeffmony.videocache;
+
+import com.jeffmony.videocache.model.VideoRangeSet;
+import com.jeffmony.videocache.utils.LogUtils;
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author jeffmony
+ *
+ * 非M3U8视频按固定大小的块记录缓存进度, 保存在.video文件旁边的位图文件中
+ * 位图通过mmap映射到内存, 写入数据后立即置位, 进程崩溃后已经完整写入的块不会丢失
+ * 判断某个位置是否已经缓存只需要测试一个bit
+ *
+ * 文件格式: magic(4) + version(4) + blockSize(4) + 保留(4) + totalSize(8) + 位图
+ */
+public class VideoBlockBitmap {
+
+    private static final String TAG = "VideoBlockBitmap";
+
+    public static final int BLOCK_SIZE = 256 * 1024;      //256K
+
+    private static final int MAGIC = 0x4A564342;          //"JVCB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final MappedByteBuffer mBuffer;
+    private final long mTotalSize;
+    private final int mBlockCount;
+    private volatile boolean mClosed;
+
+    private VideoBlockBitmap(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer, long totalSize, int blockCount) {
+        mFile = file;
+        mRandomAccessFile = randomAccessFile;
+        mBuffer = buffer;
+        mTotalSize = totalSize;
+        mBlockCount = blockCount;
+    }
+
+    /**
+     * 打开位图文件, 文件不存在或者和视频大小不匹配时重新创建
+     * @param file
+     * @param totalSize 视频文件大小
+     * @return 打开失败返回null, 调用方继续使用原来的range记录
+     */
+    public static VideoBlockBitmap open(File file, long totalSize) {
+        if (totalSize <= 0) {
+            return null;
+        }
+        long blockCount = (totalSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (blockCount > Integer.MAX_VALUE) {
+            return null;
+        }
+        long length = HEADER_SIZE + (blockCount + 7) / 8;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            boolean valid = randomAccessFile.length() == length;
+            if (valid) {
+                randomAccessFile.seek(0);
+                valid = randomAccessFile.readInt() == MAGIC && randomAccessFile.readInt() == VERSION &&
+                        randomAccessFile.readInt() == BLOCK_SIZE && randomAccessFile.readInt() == 0 &&
+                        randomAccessFile.readLong() == totalSize;
+            }
+            if (!valid) {
+                //旧的位图不可用, 全部清零重新记录
+                randomAccessFile.setLength(0);
+                randomAccessFile.setLength(length);
+                randomAccessFile.seek(0);
+                randomAccessFile.writeInt(MAGIC);
+                randomAccessFile.writeInt(VERSION);
+                randomAccessFile.writeInt(BLOCK_SIZE);
+                randomAccessFile.writeInt(0);
+                randomAccessFile.writeLong(totalSize);
+            }
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            return new VideoBlockBitmap(file, randomAccessFile, buffer, totalSize, (int) blockCount);
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Open block bitmap failed, file=" + file + ", exception=" + e);
+            ProxyCacheUtils.close(randomAccessFile);
+            return null;
+        }
+    }
+
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * position所在的块是否已经完整缓存
+     * @param position
+     * @return
+     */
+    public boolean isCached(long position) {
+        if (position < 0 || position >= mTotalSize) {
+            return false;
+        }
+        return isBlockSet((int) (position / BLOCK_SIZE));
+    }
+
+    /**
+     * 区间[start, end)的数据已经写入文件, 被完整覆盖的块置位
+     * @param start
+     * @param end 不包含
+     */
+    public synchronized void setRange(long start, long end) {
+        if (mClosed) {
+            return;
+        }
+        start = Math.max(start, 0);
+        end = Math.min(end, mTotalSize);
+        //第一个完整的块和最后一个完整的块之后, 文件最后一块不足BLOCK_SIZE时写到结尾就算完整
+        long firstBlock = (start + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long endBlock = end == mTotalSize ? mBlockCount : end / BLOCK_SIZE;
+        for (long block = firstBlock; block < endBlock; block++) {
+            int index = HEADER_SIZE + (int) (block >> 3);
+            int mask = 1 << (block & 7);
+            byte value = mBuffer.get(index);
+            if ((value & mask) == 0) {
+                mBuffer.put(index, (byte) (value | mask));
+            }
+        }
+    }
+
+    /**
+     * 已经缓存的块合并成区间
+     * @return
+     */
+    public synchronized VideoRangeSet toRangeSet() {
+        VideoRangeSet rangeSet = VideoRangeSet.EMPTY;
+        int block = 0;
+        while (block < mBlockCount) {
+            byte value = mBuffer.get(HEADER_SIZE + (block >> 3));
+            if (value == 0 && (block & 7) == 0) {
+                //整个字节都没有置位, 跳过8块
+                block += 8;
+                continue;
+            }
+            if (!isBlockSet(block)) {
+                block++;
+                continue;
+            }
+            int endBlock = block + 1;
+            while (endBlock < mBlockCount && isBlockSet(endBlock)) {
+                endBlock++;
+            }
+            rangeSet = rangeSet.add((long) block * BLOCK_SIZE, Math.min((long) endBlock * BLOCK_SIZE, mTotalSize));
+            block = endBlock;
+        }
+        return rangeSet;
+    }
+
+    private boolean isBlockSet(int block) {
+        return (mBuffer.get(HEADER_SIZE + (block >> 3)) & (1 << (block & 7))) != 0;
+    }
+
+    /**
+     * 清空所有记录, 缓存文件被删除时调用
+     */
+    public synchronized void clear() {
+        if (mClosed) {
+            return;
+        }
+        for (int index = HEADER_SIZE; index < mBuffer.capacity(); index++) {
+            mBuffer.put(index, (byte) 0);
+        }
+    }
+
+    /**
+     * 写回磁盘并关闭文件, 映射的内存由GC释放
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mBuffer.force();
+        } catch (Exception e) {
+            LogUtils.w(TAG, "Force block bitmap failed, exception=" + e);
+        }
+        ProxyCacheUtils.close(mRandomAccessFile);
+    }
+
+    /**
+     * 视频已经完整缓存, 不再需要位图
+     */
+    public synchronized void delete() {
+        mClosed = true;
+        ProxyCacheUtils.close(mRandomAccessFile);
+        if (mFile.exists() && !mFile.delete()) {
+            LogUtils.w(TAG, "Delete block bitmap failed, file=" + mFile);
+        }
+    }
+}
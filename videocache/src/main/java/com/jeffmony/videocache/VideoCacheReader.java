@@ -0,0 +1,276 @@
+package com.jeffmony.videocache;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.jeffmony.videocache.common.VideoCacheException;
+import com.jeffmony.videocache.m3u8.M3U8Seg;
+import com.jeffmony.videocache.model.ProxyResource;
+import com.jeffmony.videocache.utils.LogUtils;
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
+import com.jeffmony.videocache.utils.StorageUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+/**
+ * @author jeffmony
+ *
+ * 在进程内直接读取代理url对应的缓存数据, 不经过本地代理的loopback HTTP
+ * 只支持资源id形式的代理url: /v/{id}, /s/{id}/{segName}, 以及带播放会话的/ps/{sessionId}/...
+ * 和本地代理的响应一样, 数据没有缓存好的时候阻塞等待, 同时会通知缓存任务调整下载位置
+ *
+ * 一个reader对应一次open, 不是线程安全的, close可以在其他线程调用
+ */
+public class VideoCacheReader {
+
+    private static final String TAG = "VideoCacheReader";
+
+    private static final int TIME_OUT = 60 * 1000;   //同BaseResponse.TIME_OUT
+
+    private static final int TYPE_MP4 = 1;
+    private static final int TYPE_M3U8 = 2;
+    private static final int TYPE_SEG = 3;
+
+    private final int mType;
+    private final String mVideoUrl;      //缓存任务对应的url, 分片对应M3U8的url
+    private final String mMd5;
+    private final File mFile;
+    private final int mSegIndex;
+    private final PlaybackSession mSession;
+    private final VideoAvailability mAvailability;
+    private RandomAccessFile mRandomAccessFile;
+    private long mFilePosition = -1;     //mRandomAccessFile当前的读取位置
+    private long mPosition;
+    private long mEndPosition;           //不包含
+    private volatile boolean mClosed;
+
+    private VideoCacheReader(int type, String videoUrl, String md5, File file, int segIndex, PlaybackSession session) {
+        mType = type;
+        mVideoUrl = videoUrl;
+        mMd5 = md5;
+        mFile = file;
+        mSegIndex = segIndex;
+        mSession = session;
+        mAvailability = VideoAvailabilityManager.getInstance().getAvailability(md5);
+        if (session != null) {
+            //会话关闭时唤醒等待数据的读取线程
+            session.addRequestMd5(md5);
+        }
+    }
+
+    /**
+     * 根据代理url创建reader
+     * @param proxyUrl
+     * @return 不是本地代理的资源url, 或者视频类型未知时返回null, 调用方继续使用HTTP请求
+     */
+    public static VideoCacheReader create(String proxyUrl) {
+        String prefix = ProxyCacheUtils.LOCAL_PROXY_URL + ":" + ProxyCacheUtils.getLocalPort() + "/";
+        if (TextUtils.isEmpty(proxyUrl) || !proxyUrl.startsWith(prefix) || ProxyCacheUtils.getConfig() == null) {
+            return null;
+        }
+        String path = proxyUrl.substring(prefix.length());
+        int queryIndex = path.indexOf('?');
+        if (queryIndex != -1) {
+            path = path.substring(0, queryIndex);
+        }
+        PlaybackSession session = null;
+        if (path.startsWith(PlaybackSessionManager.SESSION_PATH)) {
+            String sessionInfo = path.substring(PlaybackSessionManager.SESSION_PATH.length());
+            int separatorIndex = sessionInfo.indexOf('/');
+            if (separatorIndex == -1) {
+                return null;
+            }
+            session = PlaybackSessionManager.getInstance().getSession(sessionInfo.substring(0, separatorIndex));
+            if (session == null) {
+                return null;
+            }
+            path = sessionInfo.substring(separatorIndex + 1);
+        }
+        String cachePath = ProxyCacheUtils.getConfig().getFilePath();
+        if (path.startsWith(ProxyResourceManager.VIDEO_PATH)) {
+            String id = path.substring(ProxyResourceManager.VIDEO_PATH.length());
+            int suffixIndex = id.indexOf('.');
+            if (suffixIndex != -1) {
+                id = id.substring(0, suffixIndex);
+            }
+            ProxyResource resource = ProxyResourceManager.getInstance().getResource(id);
+            if (resource == null) {
+                return null;
+            }
+            String videoUrl = resource.getVideoUrl();
+            String md5 = ProxyCacheUtils.getCacheKey(videoUrl);
+            if (TextUtils.equals(ProxyCacheUtils.M3U8, resource.getVideoTypeInfo())) {
+                File file = new File(cachePath, md5 + File.separator + md5 + StorageUtils.PROXY_M3U8_SUFFIX);
+                return new VideoCacheReader(TYPE_M3U8, videoUrl, md5, file, -1, session);
+            } else if (TextUtils.equals(ProxyCacheUtils.NON_M3U8, resource.getVideoTypeInfo())) {
+                File file = new File(cachePath, md5 + File.separator + md5 + StorageUtils.NON_M3U8_SUFFIX);
+                return new VideoCacheReader(TYPE_MP4, videoUrl, md5, file, -1, session);
+            }
+            //视频类型需要请求网络才能确定, 交给本地代理处理
+            return null;
+        } else if (path.startsWith(ProxyResourceManager.SEG_PATH)) {
+            String segInfo = path.substring(ProxyResourceManager.SEG_PATH.length());
+            int separatorIndex = segInfo.indexOf('/');
+            if (separatorIndex == -1) {
+                return null;
+            }
+            String id = segInfo.substring(0, separatorIndex);
+            String segName = segInfo.substring(separatorIndex + 1);
+            ProxyResource resource = ProxyResourceManager.getInstance().getResource(id);
+            if (resource == null) {
+                return null;
+            }
+            boolean isInitSeg = segName.startsWith(ProxyCacheUtils.INIT_SEGMENT_PREFIX);
+            int dotIndex = segName.indexOf('.');
+            int segIndex;
+            try {
+                segIndex = Integer.parseInt(segName.substring(isInitSeg ? ProxyCacheUtils.INIT_SEGMENT_PREFIX.length() : 0, dotIndex == -1 ? segName.length() : dotIndex));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            M3U8Seg seg = resource.getSeg(segIndex);
+            if (seg == null) {
+                return null;
+            }
+            String parentUrl = TextUtils.isEmpty(seg.getParentUrl()) ? resource.getVideoUrl() : seg.getParentUrl();
+            File file = new File(cachePath, id + File.separator + segName);
+            return new VideoCacheReader(TYPE_SEG, parentUrl, id, file, segIndex, session);
+        }
+        return null;
+    }
+
+    /**
+     * 等待数据可以读取, 并且通知缓存任务从position开始缓存
+     * @param position
+     * @return position之后的数据长度
+     * @throws IOException
+     */
+    public long open(long position) throws IOException {
+        long time = SystemClock.uptimeMillis();
+        long totalSize;
+        if (mType == TYPE_MP4) {
+            VideoProxyCacheManager.getInstance().notifyRequestStarted(mVideoUrl, time);
+            //等不到MP4文件大小就不返回
+            long version = mAvailability.getVersion();
+            while ((totalSize = VideoProxyCacheManager.getInstance().getTotalSize(mMd5)) <= 0) {
+                awaitChanged(version);
+                version = mAvailability.getVersion();
+            }
+            if (position > 0 && position < totalSize &&
+                    !VideoProxyCacheManager.getInstance().isMp4CompletedFromPosition(mVideoUrl, position)) {
+                VideoProxyCacheManager.getInstance().seekToCacheTaskFromServer(mVideoUrl, position);
+            }
+        } else {
+            if (mType == TYPE_SEG) {
+                VideoProxyCacheManager.getInstance().notifyCurSegIndex(mVideoUrl, mSegIndex, time);
+            }
+            long version = mAvailability.getVersion();
+            while (!isFileReady()) {
+                if (mType == TYPE_M3U8 && VideoProxyCacheManager.getInstance().isM3U8LiveType(mMd5)) {
+                    throw new IOException(new VideoCacheException("M3U8 is live type"));
+                }
+                awaitChanged(version);
+                version = mAvailability.getVersion();
+            }
+            totalSize = mFile.length();
+        }
+        if (position > totalSize) {
+            throw new IOException(new VideoCacheException("Position out of range, position=" + position + ", total size=" + totalSize));
+        }
+        mPosition = position;
+        mEndPosition = totalSize;
+        LogUtils.d(TAG, "open " + mFile.getName() + ", position=" + position + ", total size=" + totalSize);
+        return totalSize - position;
+    }
+
+    //M3U8分片下载完成之后才会重命名, 文件存在说明已经完整缓存
+    private boolean isFileReady() {
+        if (mType == TYPE_M3U8) {
+            return mFile.exists() && VideoProxyCacheManager.getInstance().isM3U8LocalProxyReady(mMd5);
+        }
+        return mFile.exists();
+    }
+
+    /**
+     * 读取数据, 数据还没有缓存时阻塞等待
+     * @return -1表示已经读取到结尾
+     * @throws IOException
+     */
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (mPosition >= mEndPosition) {
+            return -1;
+        }
+        long available = mEndPosition;
+        if (mType == TYPE_MP4) {
+            VideoProxyCacheManager.getInstance().notifyMp4ReadPosition(mVideoUrl, mPosition);
+            //先获取version再检查数据, 保证不会错过下载线程的通知
+            long version = mAvailability.getVersion();
+            while ((available = Math.min(mAvailability.getReadablePosition(mPosition), mEndPosition)) <= mPosition) {
+                awaitChanged(version);
+                version = mAvailability.getVersion();
+            }
+        }
+        int readLength = (int) Math.min(length, available - mPosition);
+        int result = -1;
+        if (mType == TYPE_MP4) {
+            //刚下载的数据优先从共享缓冲区读取
+            VideoStreamBuffer streamBuffer = mAvailability.getStreamBuffer();
+            result = streamBuffer != null ? streamBuffer.read(mPosition, buffer, offset, readLength) : -1;
+            if (result <= 0) {
+                //缓冲区的数据已经被覆盖, 只能读取已经写入文件的部分
+                long version = mAvailability.getVersion();
+                long written;
+                while ((written = Math.min(mAvailability.getAvailablePosition(mPosition), mEndPosition)) <= mPosition) {
+                    awaitChanged(version);
+                    version = mAvailability.getVersion();
+                }
+                readLength = (int) Math.min(readLength, written - mPosition);
+            }
+        }
+        if (result <= 0) {
+            if (mRandomAccessFile == null) {
+                mRandomAccessFile = new RandomAccessFile(mFile, "r");
+            }
+            if (mFilePosition != mPosition) {
+                mRandomAccessFile.seek(mPosition);
+            }
+            result = mRandomAccessFile.read(buffer, offset, readLength);
+            if (result == -1) {
+                throw new IOException(new VideoCacheException("Read video file failed, position=" + mPosition + ", file length=" + mFile.length()));
+            }
+            mFilePosition = mPosition + result;
+        }
+        mPosition += result;
+        return result;
+    }
+
+    private void awaitChanged(long version) throws IOException {
+        if (mClosed || (mSession != null && mSession.isClosed())) {
+            throw new InterruptedIOException("Reader is closed");
+        }
+        try {
+            if (!mAvailability.awaitChanged(version, TIME_OUT)) {
+                throw new IOException(new VideoCacheException("Wait video data timeout, file=" + mFile.getName()));
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Wait video data interrupted");
+        }
+        if (mClosed) {
+            throw new InterruptedIOException("Reader is closed");
+        }
+    }
+
+    public void close() {
+        mClosed = true;
+        //唤醒可能正在等待数据的读取线程
+        mAvailability.notifyChanged();
+        ProxyCacheUtils.close(mRandomAccessFile);
+        mRandomAccessFile = null;
+    }
+}
@@ -156,6 +156,8 @@ public class VideoInfoParseManager {
             File localM3U8File = new File(cacheInfo.getSavePath(), cacheInfo.getMd5() + StorageUtils.LOCAL_M3U8_SUFFIX);
             try {
                 M3U8 m3u8 = M3U8Utils.parseLocalM3U8Info(localM3U8File, cacheInfo.getVideoUrl());
+                //旧版本的proxy m3u8使用base64编码的分片url, 按照当前格式重新生成
+                M3U8Utils.createProxyM3U8File(proxyM3U8File, m3u8, cacheInfo.getMd5());
                 cacheInfo.setTotalTs(m3u8.getSegCount());
                 //todo:可以像芒果tv那样自定义字段记录信息，不用再网络请求
                 //这里先不抛出空间不足提示，因为还要计算已经下载大小,推迟到task抛出
@@ -218,7 +220,7 @@ public class VideoInfoParseManager {
 
                 File proxyM3U8File = new File(cacheInfo.getSavePath(), cacheInfo.getMd5() + StorageUtils.PROXY_M3U8_SUFFIX);
                 cacheInfo.setLocalPort(ProxyCacheUtils.getLocalPort());
-                M3U8Utils.createProxyM3U8File(proxyM3U8File, m3u8, cacheInfo.getMd5(), videoRequest.getHeaders());
+                M3U8Utils.createProxyM3U8File(proxyM3U8File, m3u8, cacheInfo.getMd5());
 
                 // 2.构建一个本地代理的m3u8结构
                 videoRequest.getVideoInfoParsedListener().onM3U8ParsedFinished(videoRequest, m3u8, cacheInfo);
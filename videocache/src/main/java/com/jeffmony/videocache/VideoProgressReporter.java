@@ -0,0 +1,72 @@
+package com.jeffmony.videocache;
+
+import android.os.Handler;
+
+import com.jeffmony.videocache.model.VideoCacheInfo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author jeffmony
+ *
+ * 合并缓存进度的回调
+ * 下载线程只标记任务有新的进度, 每个周期在内部线程采样一次, 所有任务的进度合并成一个消息发送到主线程
+ */
+class VideoProgressReporter {
+
+    private final Handler mWorkHandler;       //采样进度的内部线程
+    private final Handler mMainHandler;       //回调用户监听接口
+    private final int mWhat;
+    private final long mInterval;
+    private final Map<String, VideoCacheInfo> mPendingMap = new ConcurrentHashMap<>();   //上次采样之后有新进度的任务
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+    private final Runnable mReportRunnable = this::report;
+
+    VideoProgressReporter(Handler workHandler, Handler mainHandler, int what, long interval) {
+        mWorkHandler = workHandler;
+        mMainHandler = mainHandler;
+        mWhat = what;
+        mInterval = Math.max(interval, 0);
+    }
+
+    /**
+     * 下载线程调用, 同一个周期内只有第一次需要写map
+     * @param cacheInfo 任务的进度已经更新到cacheInfo中
+     */
+    void notifyProgress(VideoCacheInfo cacheInfo) {
+        String url = cacheInfo.getVideoUrl();
+        if (!mPendingMap.containsKey(url)) {
+            mPendingMap.put(url, cacheInfo);
+        }
+        if (!mScheduled.get() && mScheduled.compareAndSet(false, true)) {
+            mWorkHandler.postDelayed(mReportRunnable, mInterval);
+        }
+    }
+
+    /**
+     * 任务完成或者失败时丢弃还没有发送的进度, 避免完成回调之后再回调进度
+     * @param url
+     */
+    void cancelProgress(String url) {
+        mPendingMap.remove(url);
+    }
+
+    private void report() {
+        //先清除标记, 采样过程中有新的进度会重新调度
+        mScheduled.set(false);
+        List<VideoCacheInfo> cacheInfos = new ArrayList<>(mPendingMap.size());
+        Iterator<VideoCacheInfo> iterator = mPendingMap.values().iterator();
+        while (iterator.hasNext()) {
+            cacheInfos.add(iterator.next());
+            iterator.remove();
+        }
+        if (!cacheInfos.isEmpty()) {
+            mMainHandler.obtainMessage(mWhat, cacheInfos).sendToTarget();
+        }
+    }
+}
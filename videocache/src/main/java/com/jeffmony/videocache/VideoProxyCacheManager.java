@@ -11,20 +11,24 @@ import android.text.TextUtils;
 import android.support.annotation.NonNull;
 
 import com.jeffmony.videocache.common.ProxyMessage;
+import com.jeffmony.videocache.common.CacheKeyFactory;
 import com.jeffmony.videocache.common.SourceCreator;
 import com.jeffmony.videocache.common.VideoCacheConfig;
 import com.jeffmony.videocache.common.VideoCacheException;
 import com.jeffmony.videocache.common.VideoRequest;
 import com.jeffmony.videocache.common.VideoType;
+import com.jeffmony.videocache.listener.IProxyServerListener;
 import com.jeffmony.videocache.listener.IVideoCacheListener;
 import com.jeffmony.videocache.listener.IVideoCacheTaskListener;
 import com.jeffmony.videocache.listener.IVideoInfoParsedListener;
 import com.jeffmony.videocache.m3u8.M3U8;
 import com.jeffmony.videocache.model.VideoCacheInfo;
+import com.jeffmony.videocache.mp4.Mp4SampleIndex;
 import com.jeffmony.videocache.okhttp.IHttpPipelineListener;
 import com.jeffmony.videocache.okhttp.NetworkConfig;
 import com.jeffmony.videocache.okhttp.OkHttpManager;
 import com.jeffmony.videocache.proxy.LocalProxyVideoServer;
+import com.jeffmony.videocache.proxy.RequestAdmission;
 import com.jeffmony.videocache.task.VideoCacheTask;
 import com.jeffmony.videocache.utils.LogUtils;
 import com.jeffmony.videocache.utils.ProxyCacheUtils;
@@ -33,10 +37,13 @@ import com.jeffmony.videocache.utils.VideoProxyThreadUtils;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author jeffmony
@@ -47,6 +54,7 @@ import java.util.concurrent.ConcurrentSkipListSet;
 public class VideoProxyCacheManager {
 
     private static final String TAG = "VideoProxyCacheManager";
+    private static final int CANCEL_DELAY_TIME = 2000;   //播放器断开之后, 这段时间内没有新的请求才取消缓存任务
 
     private static volatile VideoProxyCacheManager sInstance = null;
     private final Handler mthreadHandler; //用于内部通信
@@ -57,10 +65,17 @@ public class VideoProxyCacheManager {
     private final Map<String, IVideoCacheListener> mCacheListenerMap = new ConcurrentHashMap<>();
     private final Map<String, Long> mVideoSeekMd5PositionMap = new ConcurrentHashMap<>();      //发生seek的时候加入set, 如果可以播放了, remove掉
     private final Object mSeekPositionLock = new Object();
+    private final Map<String, Long> mLastRequestTimeMap = new ConcurrentHashMap<>();          //每个视频最新的本地代理请求时间
+    private final Set<String> mCanceledUrlSet = new ConcurrentSkipListSet<>();                //播放器断开之后暂停的缓存任务
+    private final Object mCancelLock = new Object();
 
     private final Set<String> mM3U8LocalProxyMd5Set = new ConcurrentSkipListSet<>();
     private final Set<String> mM3U8LiveMd5Set = new ConcurrentSkipListSet<>();
 
+    private volatile LocalProxyVideoServer mLocalProxyServer;
+    private volatile VideoProgressReporter mProgressReporter;   //合并所有任务的进度回调
+    private final List<IProxyServerListener> mProxyServerListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean mServerRestarting = new AtomicBoolean(false);
     private String mPlayingUrlMd5;   //设置当前正在播放的视频url的MD5值
 
     private final IVideoInfoParsedListener mListener;
@@ -84,37 +99,39 @@ public class VideoProxyCacheManager {
         mListener = new IVideoInfoParsedListener() {
             @Override
             public void onM3U8ParsedFinished(VideoRequest videoRequest, M3U8 m3u8, VideoCacheInfo cacheInfo) {
+                //记录分片信息, 本地代理根据分片名查找分片url
+                ProxyResourceManager.getInstance().registerM3U8(cacheInfo.getVideoUrl(), m3u8, videoRequest.getHeaders());
                 //开始发起请求M3U8视频中的ts数据
                 startM3U8Task(m3u8, cacheInfo, videoRequest.getHeaders());
                 //下载任务准备好才通知可以回复
                 String md5 = cacheInfo.getMd5();
                 mM3U8LocalProxyMd5Set.add(md5);
-                notifyLocalProxyLock(VideoLockManager.getInstance().getLock(md5));
+                notifyLocalProxyLock(md5);
             }
 
             @Override
             public void onM3U8ParsedFailed(VideoCacheException e, VideoCacheInfo cacheInfo) {
-                notifyLocalProxyLock(VideoLockManager.getInstance().getLock(cacheInfo.getMd5()));
+                notifyLocalProxyLock(cacheInfo.getMd5());
                 mMainHandler.obtainMessage(ProxyMessage.MSG_VIDEO_PROXY_ERROR, new VideoResult(cacheInfo, e.getMessage())).sendToTarget();
             }
 
             @Override
             public void onM3U8LiveCallback(VideoCacheInfo cacheInfo) {
                 mM3U8LiveMd5Set.add(cacheInfo.getMd5());
-                notifyLocalProxyLock(VideoLockManager.getInstance().getLock(cacheInfo.getMd5()));
+                notifyLocalProxyLock(cacheInfo.getMd5());
                 mMainHandler.obtainMessage(ProxyMessage.MSG_VIDEO_PROXY_FORBIDDEN, new VideoResult(cacheInfo)).sendToTarget();
             }
 
             @Override
             public void onNonM3U8ParsedFinished(VideoRequest videoRequest, VideoCacheInfo cacheInfo) {
-                notifyLocalProxyLock(VideoLockManager.getInstance().getLock(cacheInfo.getMd5()));
+                notifyLocalProxyLock(cacheInfo.getMd5());
                 //开始发起请求视频数据
                 startNonM3U8Task(cacheInfo, videoRequest.getHeaders());
             }
 
             @Override
             public void onNonM3U8ParsedFailed(VideoCacheException e, VideoCacheInfo cacheInfo) {
-                notifyLocalProxyLock(VideoLockManager.getInstance().getLock(cacheInfo.getMd5()));
+                notifyLocalProxyLock(cacheInfo.getMd5());
                 mMainHandler.obtainMessage(ProxyMessage.MSG_VIDEO_PROXY_ERROR, new VideoResult(cacheInfo, e.getMessage())).sendToTarget();
             }
         };
@@ -129,6 +146,10 @@ public class VideoProxyCacheManager {
         @Override
         public void handleMessage(@NonNull Message msg) {
             super.handleMessage(msg);
+            if (msg.what == ProxyMessage.MSG_VIDEO_PROXY_PROGRESS) {
+                handleProgressMessage((List<VideoCacheInfo>) msg.obj);
+                return;
+            }
             VideoResult videoResult = (VideoResult) msg.obj;
             VideoCacheInfo cacheInfo = videoResult.videoCacheInfo;
             IVideoCacheListener cacheListener = mCacheListenerMap.get(cacheInfo.getVideoUrl());
@@ -143,9 +164,6 @@ public class VideoProxyCacheManager {
                     case ProxyMessage.MSG_VIDEO_PROXY_START:
                         cacheListener.onCacheStart(cacheInfo);
                         break;
-                    case ProxyMessage.MSG_VIDEO_PROXY_PROGRESS:
-                        cacheListener.onCacheProgress(cacheInfo);
-                        break;
                     case ProxyMessage.MSG_VIDEO_PROXY_COMPLETED:
                         cacheListener.onCacheFinished(cacheInfo);
                         break;
@@ -155,6 +173,16 @@ public class VideoProxyCacheManager {
             }
         }
 
+        //一个周期内所有任务的进度合并成一个消息
+        private void handleProgressMessage(List<VideoCacheInfo> cacheInfos) {
+            for (VideoCacheInfo cacheInfo : cacheInfos) {
+                IVideoCacheListener cacheListener = mCacheListenerMap.get(cacheInfo.getVideoUrl());
+                if (cacheListener != null && !cacheInfo.isCompleted()) {
+                    cacheListener.onCacheProgress(cacheInfo);
+                }
+            }
+        }
+
     }
 
     /**
@@ -170,7 +198,13 @@ public class VideoProxyCacheManager {
         private boolean mIgnoreCert;
         private int mPort;
         private boolean mUseOkHttp;
+        private boolean mUseNioServer;
+        private boolean mAutoRestartServer = VideoCacheConfig.DEFAULT_AUTO_RESTART_SERVER;
+        private int mMp4DownloadConnections = VideoCacheConfig.DEFAULT_MP4_DOWNLOAD_CONNECTIONS;
+        private int mMp4ReadAheadSeconds = VideoCacheConfig.DEFAULT_MP4_READ_AHEAD_SECONDS;
+        private long mProgressInterval = VideoCacheConfig.DEFAULT_PROGRESS_INTERVAL;
         private SourceCreator mSourceCreator;
+        private CacheKeyFactory mCacheKeyFactory;
 
         private final Context mContext;
 
@@ -219,13 +253,50 @@ public class VideoProxyCacheManager {
             return this;
         }
 
+        //本地代理使用NIO selector模式, 等待数据的请求不再占用线程
+        public Builder setUseNioServer(boolean useNioServer) {
+            mUseNioServer = useNioServer;
+            return this;
+        }
+
+        //本地代理失效时是否自动重启, 重启之后端口可能变化
+        public Builder setAutoRestartServer(boolean autoRestartServer) {
+            mAutoRestartServer = autoRestartServer;
+            return this;
+        }
+
+        //mp4视频的最大并行下载连接数, 大于1时开启多连接并行下载, 实际连接数根据下载速度调整
+        public Builder setMp4DownloadConnections(int mp4DownloadConnections) {
+            mMp4DownloadConnections = mp4DownloadConnections;
+            return this;
+        }
+
+        //mp4视频最多缓存到播放位置之后多少秒, 播放器继续读取时再恢复下载, 0表示完整下载
+        public Builder setMp4ReadAheadSeconds(int mp4ReadAheadSeconds) {
+            mMp4ReadAheadSeconds = mp4ReadAheadSeconds;
+            return this;
+        }
+
+        //缓存进度回调的间隔, 单位ms, 间隔内所有任务的进度合并成一次主线程回调
+        public Builder setProgressInterval(long progressInterval) {
+            mProgressInterval = progressInterval;
+            return this;
+        }
+
         public Builder setSourceCreator(SourceCreator mSourceCreator) {
             this.mSourceCreator = mSourceCreator;
             return this;
         }
 
+        //自定义缓存key的生成规则, 例如去掉CDN签名url中变化的参数
+        public Builder setCacheKeyFactory(CacheKeyFactory cacheKeyFactory) {
+            mCacheKeyFactory = cacheKeyFactory;
+            return this;
+        }
+
         public VideoCacheConfig build() {
-            return new VideoCacheConfig(mContext, mExpireTime, mMaxCacheSize, mFilePath, mReadTimeOut, mConnTimeOut, mIgnoreCert, mPort, mUseOkHttp, mSourceCreator);
+            return new VideoCacheConfig(mContext, mExpireTime, mMaxCacheSize, mFilePath, mReadTimeOut, mConnTimeOut, mIgnoreCert, mPort, mUseOkHttp, mUseNioServer, mAutoRestartServer, mMp4DownloadConnections, mMp4ReadAheadSeconds, mProgressInterval, mSourceCreator,
+                    mCacheKeyFactory);
         }
     }
 
@@ -324,7 +395,8 @@ public class VideoProxyCacheManager {
 
     public void initProxyConfig(@NonNull VideoCacheConfig config) {
         ProxyCacheUtils.setVideoCacheConfig(config);
-        new LocalProxyVideoServer();  //初始化本地代理服务
+        mLocalProxyServer = createLocalProxyServer();  //初始化本地代理服务
+        mProgressReporter = new VideoProgressReporter(mthreadHandler, mMainHandler, ProxyMessage.MSG_VIDEO_PROXY_PROGRESS, config.getProgressInterval());
 
         NetworkConfig networkConfig = new NetworkConfig(config.getReadTimeOut(), config.getConnTimeOut(), config.ignoreCert());
         OkHttpManager.getInstance().initConfig(networkConfig, mHttpPipelineListener);
@@ -333,6 +405,89 @@ public class VideoProxyCacheManager {
         StorageManager.getInstance().initCacheConfig(config.getFilePath(), config.getMaxCacheSize(), config.getExpireTime());
     }
 
+    private LocalProxyVideoServer createLocalProxyServer() {
+        return new LocalProxyVideoServer((server, e) -> {
+            if (ProxyCacheUtils.getConfig().autoRestartServer()) {
+                restartLocalProxyServer();
+            }
+        });
+    }
+
+    /**
+     * 内部通信的线程, 缓存任务中不能阻塞下载和socket线程的工作也在这里执行
+     * @return
+     */
+    public Handler getThreadHandler() {
+        return mthreadHandler;
+    }
+
+    /**
+     * 本地代理的请求准入控制, 可以获取每个请求类别的排队时间
+     * @return 本地代理没有启动时返回null
+     */
+    public RequestAdmission getRequestAdmission() {
+        LocalProxyVideoServer server = mLocalProxyServer;
+        return server != null ? server.getRequestAdmission() : null;
+    }
+
+    /**
+     * 本地代理是否存活, 读取服务自身维护的心跳状态, 不会阻塞
+     * @return
+     */
+    public boolean isLocalProxyServerAlive() {
+        LocalProxyVideoServer server = mLocalProxyServer;
+        return server != null && server.isAlive();
+    }
+
+    /**
+     * 在后台线程重启本地代理, 多次调用只会执行一次
+     */
+    public void restartLocalProxyServer() {
+        if (ProxyCacheUtils.getConfig() == null || !mServerRestarting.compareAndSet(false, true)) {
+            return;
+        }
+        mthreadHandler.post(() -> {
+            try {
+                if (isLocalProxyServerAlive()) {
+                    return;
+                }
+                LocalProxyVideoServer oldServer = mLocalProxyServer;
+                int oldPort = oldServer != null ? oldServer.getPort() : 0;
+                if (oldServer != null) {
+                    oldServer.shutdown();
+                }
+                LocalProxyVideoServer newServer = createLocalProxyServer();
+                mLocalProxyServer = newServer;
+                if (newServer.isAlive()) {
+                    int newPort = newServer.getPort();
+                    LogUtils.i(TAG, "restartLocalProxyServer oldPort=" + oldPort + ", newPort=" + newPort);
+                    mMainHandler.post(() -> {
+                        for (IProxyServerListener listener : mProxyServerListeners) {
+                            listener.onProxyServerRestarted(oldPort, newPort);
+                        }
+                    });
+                } else {
+                    LogUtils.e(TAG, "restartLocalProxyServer failed");
+                    mMainHandler.post(() -> {
+                        for (IProxyServerListener listener : mProxyServerListeners) {
+                            listener.onProxyServerFailed("Restart local proxy server failed");
+                        }
+                    });
+                }
+            } finally {
+                mServerRestarting.set(false);
+            }
+        });
+    }
+
+    public void addProxyServerListener(@NonNull IProxyServerListener listener) {
+        mProxyServerListeners.add(listener);
+    }
+
+    public void removeProxyServerListener(@NonNull IProxyServerListener listener) {
+        mProxyServerListeners.remove(listener);
+    }
+
     public void addCacheListener(String videoUrl, @NonNull IVideoCacheListener listener) {
         if (TextUtils.isEmpty(videoUrl)) {
             return;
@@ -346,9 +501,10 @@ public class VideoProxyCacheManager {
 
     public void releaseProxyReleases(String videoUrl) {
         removeCacheListener(videoUrl);
-        String md5 = ProxyCacheUtils.computeMD5(videoUrl);
+        String md5 = ProxyCacheUtils.getCacheKey(videoUrl);
         releaseProxyCacheSet(md5);
         removeVideoSeekInfo(md5);
+        ProxyResourceManager.getInstance().removeResource(md5);
     }
 
     /**
@@ -382,13 +538,17 @@ public class VideoProxyCacheManager {
                 videoInfoParsedListener(mListener).build();
         VideoProxyThreadUtils.submitRunnableTask(() -> {
             StorageManager.getInstance().initCacheInfo();
-            String md5 = ProxyCacheUtils.computeMD5(videoRequest.getVideoUrl());
+            String md5 = ProxyCacheUtils.getCacheKey(videoRequest.getVideoUrl());
             File saveDir = new File(ProxyCacheUtils.getConfig().getFilePath(), md5);
             if (!saveDir.exists()) {
                 saveDir.mkdirs();
             }
             VideoCacheInfo videoCacheInfo = StorageUtils.readVideoCacheInfo(saveDir);
             LogUtils.i(TAG, "startRequestVideoInfo " + videoCacheInfo);
+            if (videoCacheInfo != null && !TextUtils.equals(videoUrl, videoCacheInfo.getVideoUrl())) {
+                //归一化之后key相同, 但是url的签名参数可能已经变化, 使用最新的url请求
+                videoCacheInfo.setVideoUrl(videoUrl);
+            }
             if (videoCacheInfo == null) {
                 //之前没有缓存信息
                 videoCacheInfo = new VideoCacheInfo(videoUrl);
@@ -444,7 +604,8 @@ public class VideoProxyCacheManager {
     }
 
     private void startVideoCacheTask(VideoCacheTask cacheTask, VideoCacheInfo cacheInfo) {
-        final Object lock = VideoLockManager.getInstance().getLock(cacheInfo.getMd5());
+        //cacheInfo在下载过程中原地更新, 只需要放入一次
+        mCacheInfoMap.put(cacheInfo.getVideoUrl(), cacheInfo);
         cacheTask.setTaskListener(new IVideoCacheTaskListener() {
             @Override
             public void onTaskStart() {
@@ -454,40 +615,42 @@ public class VideoProxyCacheManager {
             @Override
             public void onTaskProgress(float percent, long cachedSize, float speed) {
                 if (shouldNotifyLock(cacheInfo.getVideoType(), cacheInfo.getVideoUrl(), cacheInfo.getMd5())) {
-                    notifyLocalProxyLock(lock);
+                    notifyLocalProxyLock(cacheInfo.getMd5());
                 }
                 cacheInfo.setPercent(percent);
                 cacheInfo.setCachedSize(cachedSize);
                 cacheInfo.setSpeed(speed);
-                mCacheInfoMap.put(cacheInfo.getVideoUrl(), cacheInfo);
-                mMainHandler.obtainMessage(ProxyMessage.MSG_VIDEO_PROXY_PROGRESS, new VideoResult(cacheInfo)).sendToTarget();
+                //进度由reporter按固定间隔合并回调, 下载线程不再直接发送主线程消息
+                mProgressReporter.notifyProgress(cacheInfo);
             }
 
             @Override
             public void onM3U8TaskProgress(float percent, long cachedSize, float speed) {
-                notifyLocalProxyLock(lock);
-                mMainHandler.obtainMessage(ProxyMessage.MSG_VIDEO_PROXY_PROGRESS, new VideoResult(cacheInfo)).sendToTarget();
+                notifyLocalProxyLock(cacheInfo.getMd5());
+                mProgressReporter.notifyProgress(cacheInfo);
             }
 
             @Override
             public void onTaskFailed(Exception e) {
-                notifyLocalProxyLock(lock);
+                mProgressReporter.cancelProgress(cacheInfo.getVideoUrl());
+                notifyLocalProxyLock(cacheInfo.getMd5());
                 mMainHandler.obtainMessage(ProxyMessage.MSG_VIDEO_PROXY_ERROR, new VideoResult(cacheInfo, e.getMessage())).sendToTarget();
             }
 
             @Override
             public void onVideoSeekComplete() {
-                notifyLocalProxyLock(lock);
+                notifyLocalProxyLock(cacheInfo.getMd5());
             }
 
             @Override
             public void onTaskCompleted(long totalSize) {
                 if (shouldNotifyLock(cacheInfo.getVideoType(), cacheInfo.getVideoUrl(), cacheInfo.getMd5())) {
                     LogUtils.i(TAG, "onTaskCompleted ----, totalSize="+totalSize);
-                    notifyLocalProxyLock(lock);
+                    notifyLocalProxyLock(cacheInfo.getMd5());
                 }
                 cacheInfo.setTotalSize(totalSize);
                 mCacheInfoMap.put(cacheInfo.getVideoUrl(), cacheInfo);
+                mProgressReporter.cancelProgress(cacheInfo.getVideoUrl());
                 mMainHandler.obtainMessage(ProxyMessage.MSG_VIDEO_PROXY_COMPLETED, new VideoResult(cacheInfo)).sendToTarget();
             }
         });
@@ -507,6 +670,10 @@ public class VideoProxyCacheManager {
     }
 
     public void stopCacheTask(String url) {
+        synchronized (mCancelLock) {
+            mCanceledUrlSet.remove(url);
+            mLastRequestTimeMap.remove(url);
+        }
         VideoCacheTask cacheTask = mCacheTaskMap.get(url);
         if (cacheTask != null) {
             cacheTask.stopCacheTask();
@@ -540,8 +707,21 @@ public class VideoProxyCacheManager {
         }
     }
 
+    /**
+     * 按时间拖动播放进度条之后的操作, mp4视频可以根据关键帧索引直接从对应的位置开始缓存
+     * @param url
+     * @param timeMs
+     */
+    public void seekToCacheTaskFromClientByTime(String url, long timeMs) {
+        VideoCacheTask cacheTask = mCacheTaskMap.get(url);
+        if (cacheTask != null) {
+            addVideoSeekInfo(url);
+            cacheTask.seekToCacheTaskFromClientByTime(timeMs);
+        }
+    }
+
     private void addVideoSeekInfo(String url) {
-        String md5 = ProxyCacheUtils.computeMD5(url);
+        String md5 = ProxyCacheUtils.getCacheKey(url);
         synchronized (mSeekPositionLock) {
             LogUtils.i(TAG, "addVideoSeekInfo md5=" + md5 + ", url=" + url);
             mVideoSeekMd5PositionMap.put(md5, -1L);
@@ -549,6 +729,10 @@ public class VideoProxyCacheManager {
     }
 
     private boolean shouldNotifyLock(int videoType, String url, String md5) {
+        if (videoType != VideoType.OTHER_TYPE || !mVideoSeekMd5PositionMap.containsKey(md5)) {
+            //没有等待中的seek, 进度回调不需要竞争锁
+            return true;
+        }
         synchronized (mSeekPositionLock) {
             //只有非M3U8视频才能进入这个逻辑
             if (videoType == VideoType.OTHER_TYPE && mVideoSeekMd5PositionMap.containsKey(md5)) {
@@ -596,7 +780,7 @@ public class VideoProxyCacheManager {
      * @param startPosition
      */
     public void seekToCacheTaskFromServer(String url, long startPosition) {
-        String md5 = ProxyCacheUtils.computeMD5(url);
+        String md5 = ProxyCacheUtils.getCacheKey(url);
         boolean shouldSeek = false;
         synchronized (mSeekPositionLock) {
             long oldPosition = mVideoSeekMd5PositionMap.containsKey(md5) ? mVideoSeekMd5PositionMap.get(md5) : 0L;
@@ -624,7 +808,7 @@ public class VideoProxyCacheManager {
      */
     @Deprecated
     public void seekToCacheTaskFromServer(String url, int segIndex) {
-        String md5 = ProxyCacheUtils.computeMD5(url);
+        String md5 = ProxyCacheUtils.getCacheKey(url);
         boolean shouldSeek = false;
         synchronized (mSeekPositionLock) {
             if (mVideoSeekMd5PositionMap.containsKey(md5)) {
@@ -649,12 +833,77 @@ public class VideoProxyCacheManager {
      * @param time
      */
     public void notifyCurSegIndex(String m3u8Url, int segIndex, long time) {
+        notifyRequestStarted(m3u8Url, time);
         VideoCacheTask cacheTask = mCacheTaskMap.get(m3u8Url);
         if (cacheTask != null) {
             cacheTask.seekToCacheTaskFromServer(segIndex, time);
         }
     }
 
+    /**
+     * 本地代理收到了新的视频请求, 如果之前因为播放器断开暂停了缓存任务, 需要恢复
+     * @param url
+     * @param time
+     */
+    public void notifyRequestStarted(String url, long time) {
+        boolean shouldResume;
+        synchronized (mCancelLock) {
+            Long lastTime = mLastRequestTimeMap.get(url);
+            if (lastTime == null || lastTime < time) {
+                mLastRequestTimeMap.put(url, time);
+            }
+            shouldResume = mCanceledUrlSet.remove(url);
+        }
+        if (shouldResume) {
+            LogUtils.i(TAG, "notifyRequestStarted, resume canceled cache task, url=" + url);
+            VideoProxyThreadUtils.runOnUiThread(() -> resumeCacheTask(url));
+        }
+    }
+
+    /**
+     * 播放器断开了等待数据的请求, 一段时间内没有新的请求说明这部分数据已经不需要了
+     * 针对非M3U8视频
+     * @param url
+     * @param requestTime 被取消的请求时间
+     * @param startPosition
+     */
+    public void cancelCacheTaskFromServer(String url, long requestTime, long startPosition) {
+        VideoProxyThreadUtils.runOnUiThread(() -> {
+            VideoCacheTask cacheTask = mCacheTaskMap.get(url);
+            if (cacheTask != null && shouldCancelCacheTask(url, requestTime)) {
+                cacheTask.cancelCacheTaskFromServer(startPosition);
+            }
+        }, CANCEL_DELAY_TIME);
+    }
+
+    /**
+     * 播放器断开了等待数据的请求, 针对M3U8视频
+     * @param m3u8Url
+     * @param requestTime 被取消的请求时间
+     * @param segIndex
+     */
+    public void cancelCacheTaskFromServer(String m3u8Url, long requestTime, int segIndex) {
+        VideoProxyThreadUtils.runOnUiThread(() -> {
+            VideoCacheTask cacheTask = mCacheTaskMap.get(m3u8Url);
+            if (cacheTask != null && shouldCancelCacheTask(m3u8Url, requestTime)) {
+                cacheTask.cancelCacheTaskFromServer(segIndex);
+            }
+        }, CANCEL_DELAY_TIME);
+    }
+
+    private boolean shouldCancelCacheTask(String url, long requestTime) {
+        synchronized (mCancelLock) {
+            Long lastTime = mLastRequestTimeMap.get(url);
+            if (lastTime != null && lastTime > requestTime) {
+                //播放器已经发起了新的请求, 缓存任务已经跟随新的请求调整
+                return false;
+            }
+            LogUtils.i(TAG, "cancelCacheTask, no request after client disconnected, url=" + url);
+            mCanceledUrlSet.add(url);
+            return true;
+        }
+    }
+
     /**
      * 当前MP4视频是否已经缓存到了startPosition位置
      * @param url
@@ -714,6 +963,47 @@ public class VideoProxyCacheManager {
         return false;
     }
 
+    /**
+     * 从positionMs开始已经缓存的数据可以播放到的时间, 以关键帧为粒度
+     * @param url
+     * @param positionMs 当前播放的时间
+     * @return 单位ms, 没有关键帧索引时返回-1
+     */
+    public long getMp4BufferedTime(String url, long positionMs) {
+        VideoCacheTask cacheTask = mCacheTaskMap.get(url);
+        if (cacheTask == null) {
+            return -1L;
+        }
+        Mp4SampleIndex sampleIndex = cacheTask.getMp4SampleIndex();
+        if (sampleIndex == null) {
+            return -1L;
+        }
+        if (cacheTask.isMp4Completed()) {
+            return sampleIndex.getDurationMs();
+        }
+        long offset = sampleIndex.getKeyframeOffset(positionMs);
+        if (offset < 0) {
+            return -1L;
+        }
+        if (cacheTask.isMp4CompletedFromPosition(offset)) {
+            return sampleIndex.getDurationMs();
+        }
+        long cachedPosition = cacheTask.getMp4CachedPosition(offset);
+        return Math.max(sampleIndex.getTimeAtOffset(cachedPosition), positionMs);
+    }
+
+    /**
+     * 播放器已经读取到的位置, 缓存任务根据预读窗口暂停或者恢复下载
+     * @param url
+     * @param position
+     */
+    public void notifyMp4ReadPosition(String url, long position) {
+        VideoCacheTask cacheTask = mCacheTaskMap.get(url);
+        if (cacheTask != null) {
+            cacheTask.notifyReadPosition(position);
+        }
+    }
+
     public long getMp4CachedPosition(String url, long position) {
         VideoCacheTask cacheTask = mCacheTaskMap.get(url);
         if (cacheTask != null) {
@@ -722,10 +1012,15 @@ public class VideoProxyCacheManager {
         return 0L;
     }
 
-    private void notifyLocalProxyLock(Object lock) {
+    private void notifyLocalProxyLock(String md5) {
+        Object lock = VideoLockManager.getInstance().getLock(md5);
         synchronized (lock) {
             lock.notifyAll();
         }
+        VideoAvailabilityManager.getInstance().notifyChanged(md5);
+        if (mLocalProxyServer != null) {
+            mLocalProxyServer.notifyDataChanged();
+        }
     }
 
     /**
@@ -752,7 +1047,12 @@ public class VideoProxyCacheManager {
     }
 
     public void setPlayingUrlMd5(String md5) {
+        String oldMd5 = mPlayingUrlMd5;
         mPlayingUrlMd5 = md5;
+        //切换视频之后, 等待之前视频数据的旧请求需要尽快退出
+        if (oldMd5 != null && !TextUtils.equals(oldMd5, md5)) {
+            VideoAvailabilityManager.getInstance().notifyChanged(oldMd5);
+        }
     }
 
     public String getPlayingUrlMd5() {
@@ -0,0 +1,253 @@
+package com.jeffmony.videocache;
+
+import android.os.SystemClock;
+
+import com.jeffmony.videocache.model.VideoRangeSet;
+import com.jeffmony.videocache.utils.LogUtils;
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * @author jeffmony
+ *
+ * 非M3U8视频只追加的缓存区间日志, 保存在.video文件旁边
+ * 下载过程中每写入CHECKPOINT_SIZE或者间隔CHECKPOINT_INTERVAL追加一条记录, 精确到字节
+ * 块位图只记录完整的块, 日志补上每段区间末尾不足一块的数据
+ * 每条记录带校验, 进程崩溃时写了一半的记录在恢复时丢弃
+ *
+ * 文件格式: magic(4) + version(4) + totalSize(8) + 记录[start(8) + end(8) + crc(4)]
+ */
+public class VideoRangeJournal {
+
+    private static final String TAG = "VideoRangeJournal";
+
+    private static final int MAGIC = 0x4A56434A;          //"JVCJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 20;
+    private static final long CHECKPOINT_SIZE = 1024 * 1024;   //同一段区间每写入1M记录一次
+    private static final long CHECKPOINT_INTERVAL = 1000;      //或者距离上次记录超过1s, 单位ms
+    private static final int MAX_RECORD_COUNT = 1024;          //记录过多时压缩成合并后的区间
+
+    private final File mFile;
+    private final long mTotalSize;
+    private RandomAccessFile mRandomAccessFile;
+    private VideoRangeSet mRangeSet;                   //日志中已经记录的区间
+    private final Map<Long, Long> mCheckpointMap = new HashMap<>();   //每段区间起点上一次记录的位置
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    private int mRecordCount;
+    private long mLastCheckpointTime;
+    private boolean mClosed;
+
+    private VideoRangeJournal(File file, long totalSize) {
+        mFile = file;
+        mTotalSize = totalSize;
+    }
+
+    /**
+     * 打开日志并恢复已经记录的区间, 文件不存在或者和视频大小不匹配时重新创建
+     * @param file
+     * @param totalSize 视频文件大小
+     * @return 打开失败返回null, 调用方继续使用原来的range记录
+     */
+    public static VideoRangeJournal open(File file, long totalSize) {
+        if (totalSize <= 0) {
+            return null;
+        }
+        VideoRangeJournal journal = new VideoRangeJournal(file, totalSize);
+        try {
+            journal.recover();
+            return journal;
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Open range journal failed, file=" + file + ", exception=" + e);
+            ProxyCacheUtils.close(journal.mRandomAccessFile);
+            return null;
+        }
+    }
+
+    private void recover() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mRangeSet = VideoRangeSet.EMPTY;
+        long length = mRandomAccessFile.length();
+        boolean valid = length >= HEADER_SIZE;
+        if (valid) {
+            mRandomAccessFile.seek(0);
+            valid = mRandomAccessFile.readInt() == MAGIC && mRandomAccessFile.readInt() == VERSION &&
+                    mRandomAccessFile.readLong() == mTotalSize;
+        }
+        if (!valid) {
+            writeHeader(mRandomAccessFile);
+            return;
+        }
+        byte[] records = new byte[(int) Math.min(length - HEADER_SIZE, Integer.MAX_VALUE - RECORD_SIZE)];
+        mRandomAccessFile.readFully(records);
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        while (buffer.remaining() >= RECORD_SIZE) {
+            long start = buffer.getLong();
+            long end = buffer.getLong();
+            int crc = buffer.getInt();
+            if (crc != checksum(start, end) || start < 0 || start >= end || end > mTotalSize) {
+                //崩溃时写了一半的记录, 后面的数据都不可信
+                break;
+            }
+            mRangeSet = mRangeSet.add(start, end);
+            mRecordCount++;
+        }
+        long validLength = HEADER_SIZE + (long) mRecordCount * RECORD_SIZE;
+        if (validLength != length) {
+            LogUtils.w(TAG, "Drop torn records, length=" + length + ", valid length=" + validLength);
+            mRandomAccessFile.setLength(validLength);
+        }
+        mRandomAccessFile.seek(validLength);
+        LogUtils.i(TAG, "Recover range journal, records=" + mRecordCount + ", ranges=" + mRangeSet);
+    }
+
+    private void writeHeader(RandomAccessFile randomAccessFile) throws IOException {
+        randomAccessFile.setLength(0);
+        randomAccessFile.seek(0);
+        randomAccessFile.writeInt(MAGIC);
+        randomAccessFile.writeInt(VERSION);
+        randomAccessFile.writeLong(mTotalSize);
+    }
+
+    /**
+     * 日志中已经记录的区间
+     * @return
+     */
+    public synchronized VideoRangeSet getRangeSet() {
+        return mRangeSet;
+    }
+
+    /**
+     * 区间[start, end)的数据已经写入文件, 达到检查点时追加一条记录
+     * @param start 下载区间的起点
+     * @param end 已经写入的位置, 不包含
+     */
+    public synchronized void checkpoint(long start, long end) {
+        if (mClosed || start >= end) {
+            return;
+        }
+        Long recordedEnd = mCheckpointMap.get(start);
+        long lastEnd = recordedEnd != null ? recordedEnd : start;
+        long nowTime = SystemClock.uptimeMillis();
+        if (end - lastEnd < CHECKPOINT_SIZE && nowTime - mLastCheckpointTime < CHECKPOINT_INTERVAL && end < mTotalSize) {
+            return;
+        }
+        mCheckpointMap.put(start, end);
+        mLastCheckpointTime = nowTime;
+        append(start, end);
+    }
+
+    private void append(long start, long end) {
+        try {
+            if (mRecordCount >= MAX_RECORD_COUNT) {
+                compact();
+            }
+            mRecord.clear();
+            mRecord.putLong(start).putLong(end).putInt(checksum(start, end));
+            mRandomAccessFile.write(mRecord.array(), 0, RECORD_SIZE);
+            mRecordCount++;
+            mRangeSet = mRangeSet.add(start, end);
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Append range journal failed, exception=" + e);
+        }
+    }
+
+    /**
+     * 把所有记录压缩成合并后的区间
+     * 先写临时文件再重命名, 压缩过程中崩溃也不会丢失原来的记录
+     */
+    private void compact() throws IOException {
+        File tempFile = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+        RandomAccessFile tempRandomAccessFile = new RandomAccessFile(tempFile, "rw");
+        try {
+            writeHeader(tempRandomAccessFile);
+            for (int index = 0; index < mRangeSet.size(); index++) {
+                long start = mRangeSet.getStart(index);
+                long end = mRangeSet.getEnd(index);
+                mRecord.clear();
+                mRecord.putLong(start).putLong(end).putInt(checksum(start, end));
+                tempRandomAccessFile.write(mRecord.array(), 0, RECORD_SIZE);
+            }
+        } finally {
+            ProxyCacheUtils.close(tempRandomAccessFile);
+        }
+        ProxyCacheUtils.close(mRandomAccessFile);
+        boolean renamed = tempFile.renameTo(mFile);
+        //重命名失败时继续在原来的文件后面追加
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mRandomAccessFile.seek(mRandomAccessFile.length());
+        if (!renamed) {
+            throw new IOException("Rename journal failed, file=" + tempFile);
+        }
+        mRecordCount = mRangeSet.size();
+        LogUtils.i(TAG, "Compact range journal, records=" + mRecordCount);
+    }
+
+    private int checksum(long start, long end) {
+        mCrc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mCrc.update((int) (start >>> shift));
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mCrc.update((int) (end >>> shift));
+        }
+        return (int) mCrc.getValue();
+    }
+
+    /**
+     * 清空所有记录, 缓存文件被删除时调用
+     */
+    public synchronized void clear() {
+        if (mClosed) {
+            return;
+        }
+        mCheckpointMap.clear();
+        mRangeSet = VideoRangeSet.EMPTY;
+        mRecordCount = 0;
+        try {
+            writeHeader(mRandomAccessFile);
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Clear range journal failed, exception=" + e);
+        }
+    }
+
+    /**
+     * 补上还没有记录的数据, 压缩之后关闭文件
+     * @param availableRangeSet 缓存任务记录的已经写入文件的区间
+     */
+    public synchronized void close(VideoRangeSet availableRangeSet) {
+        if (mClosed) {
+            return;
+        }
+        mRangeSet = mRangeSet.addAll(availableRangeSet);
+        mCheckpointMap.clear();
+        try {
+            compact();
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Compact range journal failed, exception=" + e);
+        }
+        mClosed = true;
+        ProxyCacheUtils.close(mRandomAccessFile);
+    }
+
+    /**
+     * 视频已经完整缓存, 不再需要日志
+     */
+    public synchronized void delete() {
+        mClosed = true;
+        mCheckpointMap.clear();
+        ProxyCacheUtils.close(mRandomAccessFile);
+        if (mFile.exists() && !mFile.delete()) {
+            LogUtils.w(TAG, "Delete range journal failed, file=" + mFile);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.jeffmony.videocache;
+
+/**
+ * @author jeffmony
+ *
+ * 下载线程和本地代理响应之间共享的环形缓冲区
+ * 保存最近写入的一段连续数据, 响应优先从内存读取, 不在缓冲区内的数据再从缓存文件读取
+ */
+public class VideoStreamBuffer {
+
+    public static final int DEFAULT_CAPACITY = 2 * 1024 * 1024;   //2M
+
+    private final byte[] mBuffer;
+    private long mStartPosition;   //缓冲数据在视频中的起始位置
+    private long mEndPosition;     //缓冲数据在视频中的结束位置, 不包含
+
+    public VideoStreamBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * 写入视频中position位置的数据, 和之前的数据不连续(seek之后)时丢弃之前的数据
+     * @param position
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public synchronized void write(long position, byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (position != mEndPosition) {
+            mStartPosition = position;
+            mEndPosition = position;
+        }
+        int capacity = mBuffer.length;
+        if (length > capacity) {
+            //只保留最后capacity长度的数据
+            offset += length - capacity;
+            position += length - capacity;
+            length = capacity;
+            mStartPosition = position;
+            mEndPosition = position;
+        }
+        int index = (int) (position % capacity);
+        int firstLength = Math.min(length, capacity - index);
+        System.arraycopy(data, offset, mBuffer, index, firstLength);
+        if (firstLength < length) {
+            System.arraycopy(data, offset + firstLength, mBuffer, 0, length - firstLength);
+        }
+        mEndPosition = position + length;
+        if (mEndPosition - mStartPosition > capacity) {
+            mStartPosition = mEndPosition - capacity;
+        }
+    }
+
+    /**
+     * 从position开始缓冲区内连续数据的结束位置(不包含), position不在缓冲区内返回position
+     * @param position
+     * @return
+     */
+    public synchronized long getAvailablePosition(long position) {
+        if (position < mStartPosition || position >= mEndPosition) {
+            return position;
+        }
+        return mEndPosition;
+    }
+
+    /**
+     * 读取视频中position位置的数据
+     * @param position
+     * @param dst
+     * @param offset
+     * @param length
+     * @return 实际读取的长度, position不在缓冲区内返回-1
+     */
+    public synchronized int read(long position, byte[] dst, int offset, int length) {
+        if (position < mStartPosition || position >= mEndPosition || length <= 0) {
+            return -1;
+        }
+        int capacity = mBuffer.length;
+        int readLength = (int) Math.min(length, mEndPosition - position);
+        int index = (int) (position % capacity);
+        int firstLength = Math.min(readLength, capacity - index);
+        System.arraycopy(mBuffer, index, dst, offset, firstLength);
+        if (firstLength < readLength) {
+            System.arraycopy(mBuffer, 0, dst, offset + firstLength, readLength - firstLength);
+        }
+        return readLength;
+    }
+}
@@ -0,0 +1,101 @@
+package com.jeffmony.videocache.common;
+
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 生成视频缓存的key, 可以自定义url的归一化规则
+ *
+ * 默认使用完整的url计算md5, 与之前的缓存目录保持一致
+ * CDN签名url中的时间戳、token之类每次都会变化的参数可以通过ignoredQueryParams去掉, 提高缓存命中率
+ */
+public class CacheKeyFactory {
+
+    private static final int MAX_CACHED_KEY_COUNT = 64;
+
+    private final Set<String> mIgnoredQueryParams;
+
+    //url -> key, 热路径上同一个url会反复计算
+    private final Map<String, String> mKeyCache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_KEY_COUNT;
+        }
+    };
+
+    public CacheKeyFactory() {
+        this(null);
+    }
+
+    /**
+     * @param ignoredQueryParams 计算key的时候忽略的url参数, 例如 "token", "expires"
+     */
+    public CacheKeyFactory(Collection<String> ignoredQueryParams) {
+        mIgnoredQueryParams = new HashSet<>();
+        if (ignoredQueryParams != null) {
+            mIgnoredQueryParams.addAll(ignoredQueryParams);
+        }
+    }
+
+    public final String getCacheKey(String url) {
+        if (url == null) {
+            url = "";
+        }
+        String key;
+        synchronized (mKeyCache) {
+            key = mKeyCache.get(url);
+        }
+        if (key == null) {
+            key = ProxyCacheUtils.computeMD5(normalizeUrl(url));
+            synchronized (mKeyCache) {
+                mKeyCache.put(url, key);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * url归一化, 子类可以重写实现自定义的规则
+     * @param url
+     * @return
+     */
+    protected String normalizeUrl(String url) {
+        if (mIgnoredQueryParams.isEmpty()) {
+            return url;
+        }
+        int queryIndex = url.indexOf('?');
+        if (queryIndex == -1) {
+            return url;
+        }
+        int fragmentIndex = url.indexOf('#', queryIndex);
+        int queryEnd = fragmentIndex == -1 ? url.length() : fragmentIndex;
+        StringBuilder result = new StringBuilder(url.length());
+        result.append(url, 0, queryIndex);
+        char separator = '?';
+        int start = queryIndex + 1;
+        while (start <= queryEnd) {
+            int end = url.indexOf('&', start);
+            if (end == -1 || end > queryEnd) {
+                end = queryEnd;
+            }
+            if (end > start) {
+                int equalIndex = url.indexOf('=', start);
+                String name = url.substring(start, equalIndex == -1 || equalIndex > end ? end : equalIndex);
+                if (!mIgnoredQueryParams.contains(name)) {
+                    result.append(separator).append(url, start, end);
+                    separator = '&';
+                }
+            }
+            start = end + 1;
+        }
+        if (fragmentIndex != -1) {
+            result.append(url, fragmentIndex, url.length());
+        }
+        return result.toString();
+    }
+}
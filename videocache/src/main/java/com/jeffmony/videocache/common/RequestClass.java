@@ -0,0 +1,26 @@
+package com.jeffmony.videocache.common;
+
+/**
+ * 本地代理请求的类别, 数值越小优先级越高
+ */
+public class RequestClass {
+
+    public static final int FOREGROUND = 0;   //正在播放的播放器发起的请求
+    public static final int PRELOAD = 1;      //预加载, 或者不是当前播放视频的请求
+    public static final int PROBE = 2;        //HEAD/ping之类的探测请求
+
+    public static final int COUNT = 3;
+
+    public static String getName(int requestClass) {
+        switch (requestClass) {
+            case FOREGROUND:
+                return "FOREGROUND";
+            case PRELOAD:
+                return "PRELOAD";
+            case PROBE:
+                return "PROBE";
+            default:
+                return "UNKNOWN";
+        }
+    }
+}
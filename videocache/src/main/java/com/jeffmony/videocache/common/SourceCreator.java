@@ -11,6 +11,8 @@ import com.jeffmony.videocache.socket.response.M3U8SegResponseNew;
 import com.jeffmony.videocache.socket.response.Mp4Response;
 import com.jeffmony.videocache.task.M3U8CacheTaskNew;
 import com.jeffmony.videocache.task.Mp4CacheTask;
+import com.jeffmony.videocache.task.Mp4ParallelCacheTask;
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
 import com.jeffmony.videocache.task.VideoCacheTask;
 
 import java.util.Map;
@@ -36,6 +38,10 @@ public class SourceCreator {
     }
 
     public VideoCacheTask createMp4CacheTask(VideoCacheInfo cacheInfo, Map<String, String> headers) {
+        int maxConnectionCount = ProxyCacheUtils.getConfig().getMp4DownloadConnections();
+        if (maxConnectionCount > 1) {
+            return new Mp4ParallelCacheTask(cacheInfo, headers, maxConnectionCount);
+        }
         return new Mp4CacheTask(cacheInfo, headers);
     }
 }
@@ -4,6 +4,11 @@ import android.content.Context;
 
 public class VideoCacheConfig {
 
+    public static final boolean DEFAULT_AUTO_RESTART_SERVER = true;
+    public static final int DEFAULT_MP4_DOWNLOAD_CONNECTIONS = 1;
+    public static final int DEFAULT_MP4_READ_AHEAD_SECONDS = 0;
+    public static final long DEFAULT_PROGRESS_INTERVAL = 200;
+
     private final long mExpireTime;      //video cache中的过期时间，超过过期时间采用LRU清理规则清理video cache数据
     private final long mMaxCacheSize;    //设置video cache最大的缓存限制,例如超过2G，则采用LRU清理规则清理video cache数据
     private final String mFilePath;      //video cache存储的位置
@@ -12,14 +17,32 @@ public class VideoCacheConfig {
     private final boolean mIgnoreCert;   //是否忽略证书校验
     private int mPort;             //本地代理的端口
     private boolean mUseOkHttp;    //使用okhttp接管网络请求
+    private final boolean mUseNioServer; //本地代理使用NIO selector模式
+    private final boolean mAutoRestartServer; //本地代理失效时自动重启
+    private final int mMp4DownloadConnections; //mp4视频最大的并行下载连接数, 1表示单线程顺序下载
+    private final int mMp4ReadAheadSeconds;    //mp4视频最多预读到播放位置之后多少秒, 0表示完整下载
+    private final long mProgressInterval;      //缓存进度回调的间隔, 单位ms, 所有任务的进度合并回调
 
     private final SourceCreator mSourceCreator; //可以自定义响应、下载逻辑
+    private final CacheKeyFactory mCacheKeyFactory; //可以自定义缓存key的生成规则
 
     private final Context mContext;
 
+    /**
+     * 兼容之前的构造方法, 新增的配置使用默认值, 建议使用VideoProxyCacheManager.Builder
+     */
     public VideoCacheConfig(Context context, long expireTime, long maxCacheSize, String filePath,
                             int readTimeOut, int connTimeOut, boolean ignoreCert,
                             int port, boolean useOkHttp, SourceCreator sourceCreator) {
+        this(context, expireTime, maxCacheSize, filePath, readTimeOut, connTimeOut, ignoreCert, port, useOkHttp,
+                false, DEFAULT_AUTO_RESTART_SERVER, DEFAULT_MP4_DOWNLOAD_CONNECTIONS, DEFAULT_MP4_READ_AHEAD_SECONDS,
+                DEFAULT_PROGRESS_INTERVAL, sourceCreator, null);
+    }
+
+    public VideoCacheConfig(Context context, long expireTime, long maxCacheSize, String filePath,
+                            int readTimeOut, int connTimeOut, boolean ignoreCert,
+                            int port, boolean useOkHttp, boolean useNioServer, boolean autoRestartServer, int mp4DownloadConnections,
+                            int mp4ReadAheadSeconds, long progressInterval, SourceCreator sourceCreator, CacheKeyFactory cacheKeyFactory) {
         mContext = context;
         mExpireTime = expireTime;
         mMaxCacheSize = maxCacheSize;
@@ -29,7 +52,13 @@ public class VideoCacheConfig {
         mIgnoreCert = ignoreCert;
         mPort = port;
         mUseOkHttp = useOkHttp;
+        mUseNioServer = useNioServer;
+        mAutoRestartServer = autoRestartServer;
+        mMp4DownloadConnections = Math.max(mp4DownloadConnections, 1);
+        mMp4ReadAheadSeconds = Math.max(mp4ReadAheadSeconds, 0);
+        mProgressInterval = Math.max(progressInterval, 0);
         mSourceCreator = sourceCreator != null ? sourceCreator : new SourceCreator();
+        mCacheKeyFactory = cacheKeyFactory != null ? cacheKeyFactory : new CacheKeyFactory();
     }
 
     public long getExpireTime() {
@@ -68,10 +97,24 @@ public class VideoCacheConfig {
 
     public boolean ignoreCert() { return mIgnoreCert; }
 
+    public boolean useNioServer() { return mUseNioServer; }
+
+    public boolean autoRestartServer() { return mAutoRestartServer; }
+
+    public int getMp4DownloadConnections() { return mMp4DownloadConnections; }
+
+    public int getMp4ReadAheadSeconds() { return mMp4ReadAheadSeconds; }
+
+    public long getProgressInterval() { return mProgressInterval; }
+
     public SourceCreator getSourceCreator() {
         return mSourceCreator;
     }
 
+    public CacheKeyFactory getCacheKeyFactory() {
+        return mCacheKeyFactory;
+    }
+
     public Context getContext() {
         return mContext;
     }
@@ -0,0 +1,16 @@
+package com.jeffmony.videocache.listener;
+
+/**
+ * 本地代理服务状态的回调, 在主线程执行
+ */
+public interface IProxyServerListener {
+
+    /**
+     * 本地代理重启之后端口可能变化, 之前生成的代理url需要重新获取
+     * @param oldPort
+     * @param newPort
+     */
+    void onProxyServerRestarted(int oldPort, int newPort);
+
+    void onProxyServerFailed(String msg);
+}
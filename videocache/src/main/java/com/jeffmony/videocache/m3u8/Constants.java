@@ -25,6 +25,9 @@ public class Constants {
     public static final String TAG_STREAM_INF = "#EXT-X-STREAM-INF"; // Multiple m3u8 stream, we usually fetch the first.
     public static final String TAG_ALLOW_CACHE = "EXT-X-ALLOW-CACHE"; // YES : not live; NO: live
 
+    // proxy m3u8 tag, players ignore unknown tags:
+    public static final String TAG_PROXY_VERSION = "#EXT-X-JEFF-PROXY-VERSION";
+
     public static final Pattern REGEX_TARGET_DURATION = Pattern.compile(TAG_TARGET_DURATION + ":(\\d+)\\b");
     public static final Pattern REGEX_MEDIA_DURATION = Pattern.compile(TAG_MEDIA_DURATION + ":([\\d\\.]+)\\b");
     public static final Pattern REGEX_VERSION = Pattern.compile(TAG_VERSION + ":(\\d+)\\b");
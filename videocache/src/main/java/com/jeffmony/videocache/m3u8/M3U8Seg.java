@@ -3,11 +3,9 @@ package com.jeffmony.videocache.m3u8;
 import android.net.Uri;
 import android.text.TextUtils;
 
+import com.jeffmony.videocache.ProxyResourceManager;
 import com.jeffmony.videocache.utils.ProxyCacheUtils;
 
-import java.io.File;
-import java.util.Map;
-
 /**
  * @author jeffmony
  *
@@ -171,28 +169,18 @@ public class M3U8Seg implements Comparable<M3U8Seg> {
         return super.hashCode();
     }
 
-    public String getInitSegProxyUrl(String md5, Map<String, String> headers) {
-        //三个字符串
-        //1.parent url
-        //2.init Seg的url
-        //3.init Seg存储的位置
-        //4.init Seg url对应的请求headers
-        String proxyExtraInfo = mParentUrl + ProxyCacheUtils.SEG_PROXY_SPLIT_STR + mInitSegmentUri + ProxyCacheUtils.SEG_PROXY_SPLIT_STR +
-                File.separator + md5 + File.separator + getInitSegmentName() + ProxyCacheUtils.SEG_PROXY_SPLIT_STR + ProxyCacheUtils.map2Str(headers);
-        //return String.format(Locale.US, "http://%s:%d/%s", ProxyCacheUtils.LOCAL_PROXY_HOST, ProxyCacheUtils.getLocalPort(), ProxyCacheUtils.encodeUriWithBase64(proxyExtraInfo));
-        return ProxyCacheUtils.encodeUriWithBase64(proxyExtraInfo);
-    }
-
-    public String getSegProxyUrl(String md5, Map<String, String> headers) {
-        //三个字符串
-        //1.parent url
-        //2.Seg的url
-        //3.Seg存储的位置
-        //4.Seg url对应的请求headers
-        String proxyExtraInfo = mParentUrl + ProxyCacheUtils.SEG_PROXY_SPLIT_STR + mUrl + ProxyCacheUtils.SEG_PROXY_SPLIT_STR +
-                File.separator + md5 + File.separator + getSegName() + ProxyCacheUtils.SEG_PROXY_SPLIT_STR + ProxyCacheUtils.map2Str(headers);
-        //return String.format(Locale.US, "http://%s:%d/%s", ProxyCacheUtils.LOCAL_PROXY_HOST, ProxyCacheUtils.getLocalPort(), ProxyCacheUtils.encodeUriWithBase64(proxyExtraInfo));
-        return ProxyCacheUtils.encodeUriWithBase64(proxyExtraInfo);
+    /**
+     * 分片的代理路径只包含资源id和文件名: ../s/{md5}/init_seg_0.mp4, 相对proxy m3u8的地址
+     * 原始url和请求头从ProxyResourceManager中获取
+     * @param md5
+     * @return
+     */
+    public String getInitSegProxyUrl(String md5) {
+        return ProxyResourceManager.getSegProxyPath(md5, getInitSegmentName());
+    }
+
+    public String getSegProxyUrl(String md5) {
+        return ProxyResourceManager.getSegProxyPath(md5, getSegName());
     }
 
 }
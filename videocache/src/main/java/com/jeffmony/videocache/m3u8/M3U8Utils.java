@@ -29,6 +29,10 @@ public class M3U8Utils {
 
     private static final String TAG = "M3U8Utils";
 
+    //proxy m3u8的格式版本, 分片url的格式变化时递增, 旧版本的文件需要重新生成
+    //1: 分片url是base64编码的原始url和请求头(没有版本tag); 2: 分片url是资源id形式的相对路径
+    public static final int PROXY_M3U8_VERSION = 2;
+
     private static int sOldPort = 0;
 
     /**
@@ -400,22 +404,26 @@ public class M3U8Utils {
      * @param m3u8File
      * @param m3u8
      * @param md5  这是videourl的MD5值
-     * @param headers
      * @throws Exception
      */
-    public static void createProxyM3U8File(File m3u8File, M3U8 m3u8, String md5, Map<String, String> headers) throws Exception {
+    public static void createProxyM3U8File(File m3u8File, M3U8 m3u8, String md5) throws Exception {
         if (m3u8File.exists()) {
-            return;
+            if (getProxyM3U8Version(m3u8File) == PROXY_M3U8_VERSION) {
+                return;
+            }
+            //升级之前生成的文件, 分片url播放器已经无法解析
+            LogUtils.i(TAG, "Recreate outdated proxy m3u8, file=" + m3u8File);
         }
         BufferedWriter bfw = new BufferedWriter(new FileWriter(m3u8File, false));
         bfw.write(Constants.PLAYLIST_HEADER + "\n");
+        bfw.write(Constants.TAG_PROXY_VERSION + ":" + PROXY_M3U8_VERSION + "\n");
         bfw.write(Constants.TAG_VERSION + ":" + m3u8.getVersion() + "\n");
         bfw.write(Constants.TAG_MEDIA_SEQUENCE + ":" + m3u8.getSequence() + "\n");
         bfw.write(Constants.TAG_TARGET_DURATION + ":" + m3u8.getTargetDuration() + "\n");
 
         for (M3U8Seg m3u8Ts : m3u8.getSegList()) {
             if (m3u8Ts.hasInitSegment()) {
-                String initSegmentInfo = "URI=\"" + m3u8Ts.getInitSegProxyUrl(md5, headers) + "\"";
+                String initSegmentInfo = "URI=\"" + m3u8Ts.getInitSegProxyUrl(md5) + "\"";
                 if (m3u8Ts.getSegmentByteRange() != null) {
                     initSegmentInfo += ",BYTERANGE=\"" + m3u8Ts.getSegmentByteRange() +"\"";
                 }
@@ -435,13 +443,41 @@ public class M3U8Utils {
                 bfw.write(Constants.TAG_DISCONTINUITY + "\n");
             }
             bfw.write(Constants.TAG_MEDIA_DURATION + ":" + m3u8Ts.getDuration() + ",\n");
-            bfw.write(m3u8Ts.getSegProxyUrl(md5, headers) + "\n");
+            bfw.write(m3u8Ts.getSegProxyUrl(md5) + "\n");
         }
         bfw.write(Constants.TAG_ENDLIST);
         bfw.flush();
         bfw.close();
     }
 
+    /**
+     * 读取proxy m3u8的格式版本, 版本tag紧跟在文件头之后
+     * @param proxyM3U8File
+     * @return 没有版本tag的旧文件或者读取失败返回1
+     */
+    public static int getProxyM3U8Version(File proxyM3U8File) {
+        BufferedReader bufferedReader = null;
+        try {
+            bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(proxyM3U8File)));
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.equals(Constants.PLAYLIST_HEADER)) {
+                    continue;
+                }
+                if (line.startsWith(Constants.TAG_PROXY_VERSION + ":")) {
+                    return Integer.parseInt(line.substring(Constants.TAG_PROXY_VERSION.length() + 1).trim());
+                }
+                break;
+            }
+        } catch (Exception e) {
+            LogUtils.w(TAG, "Read proxy m3u8 version failed, exception=" + e);
+        } finally {
+            ProxyCacheUtils.close(bufferedReader);
+        }
+        return 1;
+    }
+
     /**
      * 更新M3U8 索引文件中的端口号
      * @param proxyM3U8File
@@ -0,0 +1,61 @@
+package com.jeffmony.videocache.model;
+
+import com.jeffmony.videocache.m3u8.M3U8;
+import com.jeffmony.videocache.m3u8.M3U8Seg;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author jeffmony
+ *
+ * 本地代理url对应的资源信息, 代理url中只携带id, 原始url和请求头只保存一份
+ */
+public class ProxyResource {
+
+    private final String mId;                 //视频url的md5值
+    private final String mVideoUrl;           //原始视频url
+    private final String mVideoTypeInfo;      //M3U8/NON_M3U8/UNKNOWN
+    private final Map<String, String> mHeaders;
+    private volatile M3U8 mM3U8;              //M3U8解析完成之后设置, 用于查找分片url
+
+    public ProxyResource(String id, String videoUrl, String videoTypeInfo, Map<String, String> headers) {
+        mId = id;
+        mVideoUrl = videoUrl;
+        mVideoTypeInfo = videoTypeInfo;
+        mHeaders = headers;
+    }
+
+    public String getId() { return mId; }
+
+    public String getVideoUrl() { return mVideoUrl; }
+
+    public String getVideoTypeInfo() { return mVideoTypeInfo; }
+
+    public Map<String, String> getHeaders() { return mHeaders; }
+
+    public void setM3U8(M3U8 m3u8) { mM3U8 = m3u8; }
+
+    public M3U8 getM3U8() { return mM3U8; }
+
+    public M3U8Seg getSeg(int segIndex) {
+        M3U8 m3u8 = mM3U8;
+        if (m3u8 == null) {
+            return null;
+        }
+        List<M3U8Seg> segList = m3u8.getSegList();
+        if (segIndex < 0 || segIndex >= segList.size()) {
+            return null;
+        }
+        M3U8Seg seg = segList.get(segIndex);
+        if (seg.getSegIndex() == segIndex) {
+            return seg;
+        }
+        for (M3U8Seg item : segList) {
+            if (item.getSegIndex() == segIndex) {
+                return item;
+            }
+        }
+        return null;
+    }
+}
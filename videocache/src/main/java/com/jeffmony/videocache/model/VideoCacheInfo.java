@@ -36,6 +36,10 @@ public class VideoCacheInfo implements Serializable {
         return mVideoUrl;
     }
 
+    public void setVideoUrl(String url) {
+        mVideoUrl = url;
+    }
+
     public void setVideoType(int type) {
         mVideoType = type;
     }
@@ -0,0 +1,207 @@
+package com.jeffmony.videocache.model;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author jeffmony
+ *
+ * 有序且合并过的区间集合, 不可变
+ * 区间按起始位置升序存放在两个long数组中, 互不重叠也不相邻, 查询都是二分查找 O(log n)
+ * 写入方通过add生成新的集合再发布(AtomicReference), 读取方拿到的快照不会再变化, 不需要加锁
+ */
+public final class VideoRangeSet {
+
+    public static final VideoRangeSet EMPTY = new VideoRangeSet(new long[0], new long[0]);
+
+    private final long[] mStarts;    //区间的起始位置
+    private final long[] mEnds;      //区间的结束位置, 和mStarts一一对应
+
+    private VideoRangeSet(long[] starts, long[] ends) {
+        mStarts = starts;
+        mEnds = ends;
+    }
+
+    /**
+     * 从本地序列化的range结构恢复
+     * @param segMap key是起始位置, value是结束位置
+     * @return
+     */
+    public static VideoRangeSet fromSegMap(Map<Long, Long> segMap) {
+        VideoRangeSet rangeSet = EMPTY;
+        if (segMap != null) {
+            for (Map.Entry<Long, Long> entry : segMap.entrySet()) {
+                rangeSet = rangeSet.add(entry.getKey(), entry.getValue());
+            }
+        }
+        return rangeSet;
+    }
+
+    public int size() {
+        return mStarts.length;
+    }
+
+    public boolean isEmpty() {
+        return mStarts.length == 0;
+    }
+
+    public long getStart(int index) {
+        return mStarts[index];
+    }
+
+    public long getEnd(int index) {
+        return mEnds[index];
+    }
+
+    /**
+     * 所有区间的总长度
+     * @return
+     */
+    public long getTotalLength() {
+        long length = 0;
+        for (int index = 0; index < mStarts.length; index++) {
+            length += mEnds[index] - mStarts[index];
+        }
+        return length;
+    }
+
+    /**
+     * 加入区间[start, end], 和已有的区间有交集或者相邻时合并
+     * @param start
+     * @param end
+     * @return 新的集合, 没有变化时返回自身
+     */
+    public VideoRangeSet add(long start, long end) {
+        if (start >= end) {
+            return this;
+        }
+        //first: 第一个结束位置>=start的区间; last: 最后一个起始位置<=end的区间, [first, last]都需要合并
+        int first = lowerBound(mEnds, start);
+        int last = lowerBound(mStarts, end + 1) - 1;
+        int size = mStarts.length;
+        if (first > last) {
+            //没有交集, 插入到first的位置
+            long[] starts = new long[size + 1];
+            long[] ends = new long[size + 1];
+            System.arraycopy(mStarts, 0, starts, 0, first);
+            System.arraycopy(mEnds, 0, ends, 0, first);
+            starts[first] = start;
+            ends[first] = end;
+            System.arraycopy(mStarts, first, starts, first + 1, size - first);
+            System.arraycopy(mEnds, first, ends, first + 1, size - first);
+            return new VideoRangeSet(starts, ends);
+        }
+        long finalStart = Math.min(start, mStarts[first]);
+        long finalEnd = Math.max(end, mEnds[last]);
+        if (first == last && finalStart == mStarts[first] && finalEnd == mEnds[first]) {
+            //已经包含, 没有新的数据
+            return this;
+        }
+        int newSize = size - (last - first);
+        long[] starts = new long[newSize];
+        long[] ends = new long[newSize];
+        System.arraycopy(mStarts, 0, starts, 0, first);
+        System.arraycopy(mEnds, 0, ends, 0, first);
+        starts[first] = finalStart;
+        ends[first] = finalEnd;
+        System.arraycopy(mStarts, last + 1, starts, first + 1, size - last - 1);
+        System.arraycopy(mEnds, last + 1, ends, first + 1, size - last - 1);
+        return new VideoRangeSet(starts, ends);
+    }
+
+    /**
+     * 合并另一个集合中的所有区间
+     * @param other
+     * @return
+     */
+    public VideoRangeSet addAll(VideoRangeSet other) {
+        VideoRangeSet rangeSet = this;
+        for (int index = 0; index < other.size(); index++) {
+            rangeSet = rangeSet.add(other.getStart(index), other.getEnd(index));
+        }
+        return rangeSet;
+    }
+
+    /**
+     * 起始位置<=position的最后一个区间
+     * @param position
+     * @return 不存在时返回-1
+     */
+    public int floorIndex(long position) {
+        return lowerBound(mStarts, position + 1) - 1;
+    }
+
+    /**
+     * 从position开始连续缓存的结束位置(不包含), 区间按照[start, end)处理
+     * @param position
+     * @return position没有缓存时返回position
+     */
+    public long getAvailablePosition(long position) {
+        int index = floorIndex(position);
+        if (index != -1 && mEnds[index] > position) {
+            return mEnds[index];
+        }
+        return position;
+    }
+
+    /**
+     * position开始是否已经连续缓存到end
+     * @param position
+     * @param end
+     * @return
+     */
+    public boolean isCompletedFromPosition(long position, long end) {
+        int index = floorIndex(position);
+        return index != -1 && mEnds[index] >= end;
+    }
+
+    /**
+     * 从position开始需要请求的range, 跳过position所在的已缓存区间, 到下一个已缓存区间的起始位置为止
+     * @param position
+     * @param totalSize
+     * @return
+     */
+    public VideoRange getRequestRange(long position, long totalSize) {
+        int index = floorIndex(position);
+        long start = position;
+        if (index != -1 && position <= mEnds[index]) {
+            start = mEnds[index];
+        }
+        long end = index + 1 < mStarts.length ? mStarts[index + 1] : totalSize;
+        return new VideoRange(start, end);
+    }
+
+    /**
+     * 转换成本地序列化的range结构
+     * @return
+     */
+    public LinkedHashMap<Long, Long> toSegMap() {
+        LinkedHashMap<Long, Long> segMap = new LinkedHashMap<>();
+        for (int index = 0; index < mStarts.length; index++) {
+            segMap.put(mStarts[index], mEnds[index]);
+        }
+        return segMap;
+    }
+
+    //第一个>=value的元素下标, 不存在时返回array.length
+    private static int lowerBound(long[] array, long value) {
+        int index = Arrays.binarySearch(array, value);
+        if (index < 0) {
+            return -index - 1;
+        }
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("VideoRangeSet[");
+        for (int index = 0; index < mStarts.length; index++) {
+            if (index > 0) {
+                builder.append(", ");
+            }
+            builder.append(mStarts[index]).append('-').append(mEnds[index]);
+        }
+        return builder.append(']').toString();
+    }
+}
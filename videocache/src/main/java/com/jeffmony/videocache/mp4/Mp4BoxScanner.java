@@ -0,0 +1,130 @@
+package com.jeffmony.videocache.mp4;
+
+import com.jeffmony.videocache.VideoAvailability;
+import com.jeffmony.videocache.model.VideoRange;
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * @author jeffmony
+ *
+ * 扫描MP4文件顶层的box, 只读取box头部(size + type)
+ * 非faststart的MP4文件moov在mdat之后, 播放器读完文件头就会跳到文件尾部读取moov
+ */
+public class Mp4BoxScanner {
+
+    public static final long NEED_MORE_DATA = -1L;   //已经下载的数据还不够判断
+    public static final long NOT_FOUND = -2L;        //moov在mdat之前, 或者不是MP4文件
+
+    public static final int TYPE_FTYP = 0x66747970;  //"ftyp"
+    public static final int TYPE_MOOV = 0x6D6F6F76;  //"moov"
+    public static final int TYPE_MDAT = 0x6D646174;  //"mdat"
+
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int LARGE_BOX_HEADER_SIZE = 16;
+    private static final int MAX_BOX_COUNT = 32;     //文件头部不会有这么多box, 超过说明数据有问题
+
+    private static final long CONTINUE = Long.MIN_VALUE;   //BoxVisitor继续遍历下一个box
+
+    /**
+     * 根据文件开头已经下载的数据查找mdat之后的位置, 也就是moov所在的位置
+     * @param file 缓存的视频文件
+     * @param availableLength 从0开始连续下载的长度
+     * @param totalSize 视频文件大小
+     * @return moov的起始位置, 或者NEED_MORE_DATA/NOT_FOUND
+     * @throws IOException
+     */
+    public static long findMoovPosition(File file, long availableLength, long totalSize) throws IOException {
+        return walkTopLevelBoxes(file, totalSize, position -> availableLength, (index, type, position, size) -> {
+            if (index == 0 && type != TYPE_FTYP) {
+                return NOT_FOUND;
+            }
+            if (type == TYPE_MOOV) {
+                return NOT_FOUND;
+            }
+            if (type == TYPE_MDAT) {
+                long nextPosition = position + size;
+                return nextPosition < totalSize ? nextPosition : NOT_FOUND;
+            }
+            return CONTINUE;
+        });
+    }
+
+    /**
+     * 查找顶层的box, 只读取已经缓存的box头部
+     * @param file 缓存的视频文件
+     * @param type box类型
+     * @param totalSize 视频文件大小
+     * @param availability 已经写入文件的区间
+     * @return box在文件中的区间, 没有找到或者前面的box头部还没有缓存时返回null
+     * @throws IOException
+     */
+    public static VideoRange findTopLevelBox(File file, int type, long totalSize, VideoAvailability availability) throws IOException {
+        long[] boxEnd = new long[1];
+        long boxPosition = walkTopLevelBoxes(file, totalSize, availability::getAvailablePosition, (index, boxType, position, size) -> {
+            if (boxType == type) {
+                boxEnd[0] = Math.min(position + size, totalSize);
+                return position;
+            }
+            return CONTINUE;
+        });
+        return boxPosition >= 0 ? new VideoRange(boxPosition, boxEnd[0]) : null;
+    }
+
+    /**
+     * 从文件开头依次读取顶层box的头部, 交给visitor处理
+     * @param file 缓存的视频文件
+     * @param totalSize 视频文件大小
+     * @param dataSource 从某个位置开始连续缓存的结束位置
+     * @param visitor 返回CONTINUE时继续遍历, 否则作为结果返回
+     * @return visitor的结果, 或者NEED_MORE_DATA/NOT_FOUND
+     * @throws IOException
+     */
+    private static long walkTopLevelBoxes(File file, long totalSize, DataSource dataSource, BoxVisitor visitor) throws IOException {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            long position = 0;
+            for (int index = 0; index < MAX_BOX_COUNT && position + BOX_HEADER_SIZE <= totalSize; index++) {
+                long availablePosition = dataSource.getAvailablePosition(position);
+                if (availablePosition < position + BOX_HEADER_SIZE) {
+                    return NEED_MORE_DATA;
+                }
+                randomAccessFile.seek(position);
+                long size = randomAccessFile.readInt() & 0xFFFFFFFFL;
+                int type = randomAccessFile.readInt();
+                if (size == 1) {
+                    if (availablePosition < position + LARGE_BOX_HEADER_SIZE) {
+                        return NEED_MORE_DATA;
+                    }
+                    size = randomAccessFile.readLong();
+                } else if (size == 0) {
+                    //box一直到文件结尾
+                    size = totalSize - position;
+                }
+                if (size < BOX_HEADER_SIZE) {
+                    return NOT_FOUND;
+                }
+                long result = visitor.visit(index, type, position, size);
+                if (result != CONTINUE) {
+                    return result;
+                }
+                position += size;
+            }
+            return NOT_FOUND;
+        } finally {
+            ProxyCacheUtils.close(randomAccessFile);
+        }
+    }
+
+    private interface DataSource {
+        long getAvailablePosition(long position);
+    }
+
+    private interface BoxVisitor {
+        long visit(int index, int type, long position, long size);
+    }
+}
@@ -0,0 +1,107 @@
+package com.jeffmony.videocache.mp4;
+
+import java.util.Arrays;
+
+/**
+ * @author jeffmony
+ *
+ * MP4视频轨道的关键帧索引, 不可变
+ * 只保存关键帧的时间和在文件中的偏移, 1小时的视频一般只有几千个关键帧
+ */
+public class Mp4SampleIndex {
+
+    private final long[] mTimesMs;     //关键帧的时间, 单位ms, 升序
+    private final long[] mOffsets;     //关键帧在文件中的偏移
+    private final long mDurationMs;
+    private final boolean mOffsetsSorted;   //交织的MP4文件偏移和时间同序, 可以二分查找
+
+    public Mp4SampleIndex(long[] timesMs, long[] offsets, long durationMs) {
+        mTimesMs = timesMs;
+        mOffsets = offsets;
+        mDurationMs = durationMs;
+        boolean sorted = true;
+        for (int index = 1; index < offsets.length; index++) {
+            if (offsets[index] < offsets[index - 1]) {
+                sorted = false;
+                break;
+            }
+        }
+        mOffsetsSorted = sorted;
+    }
+
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    public int getKeyframeCount() {
+        return mTimesMs.length;
+    }
+
+    /**
+     * 播放timeMs需要从哪个关键帧开始读取
+     * @param timeMs
+     * @return 关键帧在文件中的偏移, 没有关键帧时返回-1
+     */
+    public long getKeyframeOffset(long timeMs) {
+        if (mTimesMs.length == 0) {
+            return -1L;
+        }
+        int index = floorIndex(mTimesMs, timeMs);
+        return mOffsets[Math.max(index, 0)];
+    }
+
+    /**
+     * 文件缓存到offset时可以连续播放到的时间, 以关键帧为粒度
+     * @param offset
+     * @return 单位ms, offset之前没有关键帧时返回0
+     */
+    public long getTimeAtOffset(long offset) {
+        int index = -1;
+        if (mOffsetsSorted) {
+            index = floorIndex(mOffsets, offset);
+        } else {
+            for (int i = 0; i < mOffsets.length; i++) {
+                if (mOffsets[i] <= offset && (index == -1 || mTimesMs[i] > mTimesMs[index])) {
+                    index = i;
+                }
+            }
+        }
+        return index != -1 ? mTimesMs[index] : 0L;
+    }
+
+    /**
+     * 从offset开始播放windowMs需要缓存到的位置
+     * 平均码率估算和关键帧索引取较大的值, 避免码率不均匀时缓存不够
+     * @param offset 播放器读取的位置
+     * @param windowMs
+     * @param totalSize 视频文件大小
+     * @return
+     */
+    public long getReadAheadPosition(long offset, long windowMs, long totalSize) {
+        long position = mDurationMs > 0 ? offset + totalSize * windowMs / mDurationMs : totalSize;
+        int index = floorIndex(mTimesMs, getTimeAtOffset(offset) + windowMs) + 1;
+        if (index >= mTimesMs.length) {
+            //已经到了最后一个关键帧之后, 需要缓存到结尾
+            return totalSize;
+        }
+        return Math.min(Math.max(position, mOffsets[index]), totalSize);
+    }
+
+    //最后一个<=value的元素下标, 不存在时返回-1
+    private static int floorIndex(long[] array, long value) {
+        int index = Arrays.binarySearch(array, value);
+        if (index < 0) {
+            return -index - 2;
+        }
+        //有相同的值时取最后一个
+        while (index + 1 < array.length && array[index + 1] == value) {
+            index++;
+        }
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "Mp4SampleIndex[keyframes=" + mTimesMs.length + ", duration=" + mDurationMs + "ms]";
+    }
+}
@@ -0,0 +1,118 @@
+package com.jeffmony.videocache.mp4;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.jeffmony.videocache.VideoAvailability;
+import com.jeffmony.videocache.model.VideoRange;
+import com.jeffmony.videocache.utils.LogUtils;
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author jeffmony
+ *
+ * moov缓存完整之后解析关键帧索引, 每个mp4缓存任务一个
+ * requestLoad在下载进度回调和socket线程中调用, 只是把检查交给handler线程, 有最小间隔, 不会频繁读取文件
+ * 读取和解析moov(最大MAX_MOOV_SIZE)都在handler线程执行, 其他线程只读取已经发布的mSampleIndex
+ */
+public class Mp4SampleIndexLoader {
+
+    private static final String TAG = "Mp4SampleIndexLoader";
+
+    private static final long CHECK_INTERVAL = 500;              //两次检查的最小间隔, 单位ms
+    private static final long MAX_MOOV_SIZE = 32 * 1024 * 1024;  //moov过大时不解析
+
+    private final File mFile;
+    private final long mTotalSize;
+    private final VideoAvailability mAvailability;
+    private final Handler mHandler;
+    private final AtomicBoolean mLoadPending = new AtomicBoolean(false);
+    private final Runnable mLoadRunnable = this::load;
+    private volatile Mp4SampleIndex mSampleIndex;
+    private volatile boolean mFinished;     //已经解析完成或者确定无法解析
+    private volatile long mLastRequestTime = -CHECK_INTERVAL;
+    private VideoRange mMoovRange;          //moov在文件中的位置, 找到之后不用再扫描box, 只在handler线程访问
+
+    /**
+     * @param file 缓存的视频文件
+     * @param totalSize 视频文件大小
+     * @param availability 已经写入文件的区间
+     * @param handler 执行读取和解析的线程
+     */
+    public Mp4SampleIndexLoader(File file, long totalSize, VideoAvailability availability, Handler handler) {
+        mFile = file;
+        mTotalSize = totalSize;
+        mAvailability = availability;
+        mHandler = handler;
+    }
+
+    /**
+     * @return moov还没有缓存完整时返回null
+     */
+    public Mp4SampleIndex getSampleIndex() {
+        return mSampleIndex;
+    }
+
+    /**
+     * 在handler线程检查moov是否已经缓存完整, 完整的话解析关键帧索引, 不会阻塞调用的线程
+     * @param force 忽略最小间隔, 例如一段range下载完成时
+     */
+    public void requestLoad(boolean force) {
+        if (mFinished || mTotalSize <= 0) {
+            return;
+        }
+        long nowTime = SystemClock.uptimeMillis();
+        if (!force && nowTime - mLastRequestTime < CHECK_INTERVAL) {
+            return;
+        }
+        mLastRequestTime = nowTime;
+        //已经在排队的检查执行时会读取最新的数据, 不需要重复提交
+        if (mLoadPending.compareAndSet(false, true)) {
+            mHandler.post(mLoadRunnable);
+        }
+    }
+
+    //只在handler线程执行
+    private void load() {
+        mLoadPending.set(false);
+        if (mFinished) {
+            return;
+        }
+        try {
+            if (mMoovRange == null) {
+                mMoovRange = Mp4BoxScanner.findTopLevelBox(mFile, Mp4BoxScanner.TYPE_MOOV, mTotalSize, mAvailability);
+                if (mMoovRange == null) {
+                    return;
+                }
+            }
+            long moovSize = mMoovRange.getEnd() - mMoovRange.getStart();
+            if (moovSize > MAX_MOOV_SIZE) {
+                LogUtils.w(TAG, "Moov is too large, size=" + moovSize);
+                mFinished = true;
+                return;
+            }
+            if (mAvailability.getAvailablePosition(mMoovRange.getStart()) < mMoovRange.getEnd()) {
+                return;
+            }
+            byte[] moov = new byte[(int) moovSize];
+            RandomAccessFile randomAccessFile = null;
+            try {
+                randomAccessFile = new RandomAccessFile(mFile, "r");
+                randomAccessFile.seek(mMoovRange.getStart());
+                randomAccessFile.readFully(moov);
+            } finally {
+                ProxyCacheUtils.close(randomAccessFile);
+            }
+            mSampleIndex = Mp4SampleTableParser.parse(moov);
+            mFinished = true;
+            LogUtils.i(TAG, "Load sample index, moov=" + mMoovRange + ", index=" + mSampleIndex);
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Load sample index failed, exception=" + e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.jeffmony.videocache.mp4;
+
+import com.jeffmony.videocache.utils.LogUtils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author jeffmony
+ *
+ * 解析moov中视频轨道的sample table(stts/stss/stsc/stsz/stco/co64), 生成关键帧索引
+ * 只用于缓存预取, 不处理ctts和edit list, 时间按照解码时间计算
+ */
+public class Mp4SampleTableParser {
+
+    private static final String TAG = "Mp4SampleTableParser";
+
+    private static final int TYPE_TRAK = 0x7472616B;   //"trak"
+    private static final int TYPE_MDIA = 0x6D646961;   //"mdia"
+    private static final int TYPE_MDHD = 0x6D646864;   //"mdhd"
+    private static final int TYPE_HDLR = 0x68646C72;   //"hdlr"
+    private static final int TYPE_MINF = 0x6D696E66;   //"minf"
+    private static final int TYPE_STBL = 0x7374626C;   //"stbl"
+    private static final int TYPE_STTS = 0x73747473;   //"stts"
+    private static final int TYPE_STSS = 0x73747373;   //"stss"
+    private static final int TYPE_STSC = 0x73747363;   //"stsc"
+    private static final int TYPE_STSZ = 0x7374737A;   //"stsz"
+    private static final int TYPE_STCO = 0x7374636F;   //"stco"
+    private static final int TYPE_CO64 = 0x636F3634;   //"co64"
+    private static final int HANDLER_VIDEO = 0x76696465;   //"vide"
+
+    private static final long MIN_KEYFRAME_INTERVAL = 1000;   //没有stss时所有sample都是关键帧, 按1s抽取
+
+    /**
+     * @param moov 完整的moov box, 包括box头部
+     * @return 没有视频轨道或者格式不支持时返回null
+     */
+    public static Mp4SampleIndex parse(byte[] moov) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(moov);
+            int moovEnd = readBoxEnd(buffer, 0);
+            int position = buffer.position();
+            while (position < moovEnd) {
+                int boxEnd = readBoxEnd(buffer, position);
+                if (buffer.getInt(position + 4) == TYPE_TRAK) {
+                    Mp4SampleIndex index = parseTrack(buffer, buffer.position(), boxEnd);
+                    if (index != null) {
+                        return index;
+                    }
+                }
+                position = boxEnd;
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            LogUtils.w(TAG, "Parse moov failed, exception=" + e);
+        }
+        return null;
+    }
+
+    private static Mp4SampleIndex parseTrack(ByteBuffer buffer, int start, int end) {
+        int mdia = findBox(buffer, start, end, TYPE_MDIA);
+        if (mdia == -1) {
+            return null;
+        }
+        int mdiaEnd = readBoxEnd(buffer, mdia);
+        int mdiaStart = buffer.position();
+        int hdlr = findBox(buffer, mdiaStart, mdiaEnd, TYPE_HDLR);
+        if (hdlr == -1) {
+            return null;
+        }
+        readBoxEnd(buffer, hdlr);
+        //version/flags(4) + pre_defined(4) + handler_type(4)
+        if (buffer.getInt(buffer.position() + 8) != HANDLER_VIDEO) {
+            return null;
+        }
+        int mdhd = findBox(buffer, mdiaStart, mdiaEnd, TYPE_MDHD);
+        if (mdhd == -1) {
+            return null;
+        }
+        readBoxEnd(buffer, mdhd);
+        int version = buffer.get(buffer.position()) & 0xFF;
+        long timescale;
+        long duration;
+        if (version == 1) {
+            timescale = buffer.getInt(buffer.position() + 20) & 0xFFFFFFFFL;
+            duration = buffer.getLong(buffer.position() + 24);
+        } else {
+            timescale = buffer.getInt(buffer.position() + 12) & 0xFFFFFFFFL;
+            duration = buffer.getInt(buffer.position() + 16) & 0xFFFFFFFFL;
+        }
+        if (timescale <= 0) {
+            return null;
+        }
+        int minf = findBox(buffer, mdiaStart, mdiaEnd, TYPE_MINF);
+        if (minf == -1) {
+            return null;
+        }
+        int minfEnd = readBoxEnd(buffer, minf);
+        int stbl = findBox(buffer, buffer.position(), minfEnd, TYPE_STBL);
+        if (stbl == -1) {
+            return null;
+        }
+        int stblEnd = readBoxEnd(buffer, stbl);
+        return parseSampleTable(buffer, buffer.position(), stblEnd, timescale, duration);
+    }
+
+    private static Mp4SampleIndex parseSampleTable(ByteBuffer buffer, int start, int end, long timescale, long duration) {
+        int sttsBox = findBox(buffer, start, end, TYPE_STTS);
+        int stssBox = findBox(buffer, start, end, TYPE_STSS);
+        int stscBox = findBox(buffer, start, end, TYPE_STSC);
+        int stszBox = findBox(buffer, start, end, TYPE_STSZ);
+        int stcoBox = findBox(buffer, start, end, TYPE_STCO);
+        boolean largeOffset = false;
+        if (stcoBox == -1) {
+            stcoBox = findBox(buffer, start, end, TYPE_CO64);
+            largeOffset = true;
+        }
+        if (sttsBox == -1 || stscBox == -1 || stszBox == -1 || stcoBox == -1) {
+            //stz2等不常见的格式不支持
+            return null;
+        }
+        //entry数量来自文件, 先检查是否超出box的大小, 损坏的moov不能导致按照数量分配内存
+        int stts = readFullBoxData(buffer, sttsBox);
+        int sttsCount = readEntryCount(buffer, sttsBox, 0, 8);
+        int sttsIndex = 0;
+        long sttsRemaining = sttsCount > 0 ? buffer.getInt(stts + 4) & 0xFFFFFFFFL : 0;
+        long sttsDelta = sttsCount > 0 ? buffer.getInt(stts + 8) & 0xFFFFFFFFL : 0;
+
+        int stss = stssBox != -1 ? readFullBoxData(buffer, stssBox) : -1;
+        int syncCount = stssBox != -1 ? readEntryCount(buffer, stssBox, 0, 4) : 0;
+        int syncIndex = 0;
+
+        int stsc = readFullBoxData(buffer, stscBox);
+        int stscCount = readEntryCount(buffer, stscBox, 0, 12);
+        int stscIndex = 0;
+
+        int stsz = readFullBoxData(buffer, stszBox);
+        int sampleSize = buffer.getInt(stsz);
+        //所有sample大小相同时没有表
+        int sampleCount = sampleSize == 0 ? readEntryCount(buffer, stszBox, 4, 4) : buffer.getInt(stsz + 4);
+        int stco = readFullBoxData(buffer, stcoBox);
+        int chunkCount = readEntryCount(buffer, stcoBox, 0, largeOffset ? 8 : 4);
+        if (sampleCount < 0 || stscCount <= 0) {
+            return null;
+        }
+
+        int capacity = stss != -1 ? syncCount : Math.min(sampleCount, 1024);
+        long[] timesMs = new long[Math.max(capacity, 1)];
+        long[] offsets = new long[timesMs.length];
+        int keyframeCount = 0;
+        long lastKeyframeTimeMs = -MIN_KEYFRAME_INTERVAL;
+
+        long decodeTime = 0;
+        int sample = 0;   //从0开始
+        for (int chunk = 1; chunk <= chunkCount && sample < sampleCount; chunk++) {
+            //stsc按first_chunk升序, 找到当前chunk对应的entry
+            while (stscIndex + 1 < stscCount && (buffer.getInt(stsc + 4 + (stscIndex + 1) * 12) & 0xFFFFFFFFL) <= chunk) {
+                stscIndex++;
+            }
+            long samplesPerChunk = buffer.getInt(stsc + 4 + stscIndex * 12 + 4) & 0xFFFFFFFFL;
+            long offset = largeOffset ? buffer.getLong(stco + 4 + (chunk - 1) * 8) : buffer.getInt(stco + 4 + (chunk - 1) * 4) & 0xFFFFFFFFL;
+            for (long i = 0; i < samplesPerChunk && sample < sampleCount; i++) {
+                boolean isKeyframe;
+                if (stss != -1) {
+                    isKeyframe = syncIndex < syncCount && (buffer.getInt(stss + 4 + syncIndex * 4) & 0xFFFFFFFFL) == sample + 1;
+                    if (isKeyframe) {
+                        syncIndex++;
+                    }
+                } else {
+                    isKeyframe = true;
+                }
+                long timeMs = decodeTime * 1000 / timescale;
+                if (isKeyframe && (stss != -1 || timeMs - lastKeyframeTimeMs >= MIN_KEYFRAME_INTERVAL)) {
+                    if (keyframeCount == timesMs.length) {
+                        timesMs = grow(timesMs);
+                        offsets = grow(offsets);
+                    }
+                    timesMs[keyframeCount] = timeMs;
+                    offsets[keyframeCount] = offset;
+                    keyframeCount++;
+                    lastKeyframeTimeMs = timeMs;
+                }
+                offset += sampleSize != 0 ? sampleSize & 0xFFFFFFFFL : buffer.getInt(stsz + 8 + sample * 4) & 0xFFFFFFFFL;
+                decodeTime += sttsDelta;
+                sample++;
+                if (--sttsRemaining <= 0 && sttsIndex + 1 < sttsCount) {
+                    sttsIndex++;
+                    sttsRemaining = buffer.getInt(stts + 4 + sttsIndex * 8) & 0xFFFFFFFFL;
+                    sttsDelta = buffer.getInt(stts + 4 + sttsIndex * 8 + 4) & 0xFFFFFFFFL;
+                }
+            }
+        }
+        if (keyframeCount == 0) {
+            return null;
+        }
+        if (duration <= 0) {
+            duration = decodeTime;
+        }
+        long[] resultTimes = new long[keyframeCount];
+        long[] resultOffsets = new long[keyframeCount];
+        System.arraycopy(timesMs, 0, resultTimes, 0, keyframeCount);
+        System.arraycopy(offsets, 0, resultOffsets, 0, keyframeCount);
+        return new Mp4SampleIndex(resultTimes, resultOffsets, duration * 1000 / timescale);
+    }
+
+    private static long[] grow(long[] array) {
+        long[] result = new long[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    /**
+     * 读取position位置的box头部, buffer的position移动到box内容的起始位置
+     * @return box的结束位置
+     */
+    private static int readBoxEnd(ByteBuffer buffer, int position) {
+        buffer.position(position);
+        long size = buffer.getInt() & 0xFFFFFFFFL;
+        buffer.getInt();
+        if (size == 1) {
+            size = buffer.getLong();
+        } else if (size == 0) {
+            size = buffer.limit() - position;
+        }
+        long end = position + size;
+        if (size < 8 || end > buffer.limit()) {
+            throw new IllegalArgumentException("Invalid box size=" + size + ", position=" + position);
+        }
+        return (int) end;
+    }
+
+    //在[start, end)中查找子box, 返回box的起始位置
+    private static int findBox(ByteBuffer buffer, int start, int end, int type) {
+        int position = start;
+        while (position + 8 <= end) {
+            int boxEnd = readBoxEnd(buffer, position);
+            if (buffer.getInt(position + 4) == type) {
+                return position;
+            }
+            position = boxEnd;
+        }
+        return -1;
+    }
+
+    //full box中version/flags之后的数据位置
+    private static int readFullBoxData(ByteBuffer buffer, int box) {
+        readBoxEnd(buffer, box);
+        return buffer.position() + 4;
+    }
+
+    /**
+     * 读取full box中的entry数量, 数量不能超过box剩余的大小
+     * @param box box的起始位置
+     * @param countOffset entry_count相对version/flags之后的偏移
+     * @param entrySize 每个entry的大小
+     * @return
+     */
+    private static int readEntryCount(ByteBuffer buffer, int box, int countOffset, int entrySize) {
+        int boxEnd = readBoxEnd(buffer, box);
+        int countPosition = buffer.position() + 4 + countOffset;
+        long count = buffer.getInt(countPosition) & 0xFFFFFFFFL;
+        long maxCount = (boxEnd - countPosition - 4L) / entrySize;
+        if (count > maxCount) {
+            throw new IllegalArgumentException("Invalid entry count=" + count + ", max count=" + maxCount + ", box=" + box);
+        }
+        return (int) count;
+    }
+}
@@ -13,6 +13,7 @@ import java.util.Map;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.BufferedSource;
 
 public class OkHttpControl {
 
@@ -126,6 +127,22 @@ public class OkHttpControl {
         }
     }
 
+    /**
+     * 响应数据的okio数据源, 数据保存在okio的segment中
+     * @return 请求失败时返回null
+     */
+    public BufferedSource getResponseSource() {
+        if (mResponse == null) {
+            return null;
+        }
+        if (mResponse.code() == 200 || mResponse.code() == 206) {
+            return mResponse.body().source();
+        } else {
+            ProxyCacheUtils.close(mResponse.body().source());
+            return null;
+        }
+    }
+
     /**
      * Content-Range: bytes 0-X/Y
      * Content-Range: bytes 0-X/*
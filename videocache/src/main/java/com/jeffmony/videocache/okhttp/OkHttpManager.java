@@ -9,6 +9,8 @@ import java.io.InputStream;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import okio.BufferedSource;
+
 /**
  * okhttp 请求的管理类
  */
@@ -121,6 +123,22 @@ public class OkHttpManager {
         return control.getResponseBody();
     }
 
+    /**
+     * 直接获取okio的数据源, 下载数据可以不经过byte[]拷贝写入文件
+     * @param url
+     * @param headers
+     * @param listener
+     * @return
+     * @throws VideoCacheException
+     */
+    public BufferedSource getResponseSource(String url, Map<String, String> headers, @NonNull IFetchResponseListener listener) throws VideoCacheException {
+        OkHttpControl control = createOkHttpControl(url, headers, false);
+        mHttpControlMap.put(url, control);
+
+        listener.onContentLength(control.parseContentLengthFromContentRange());
+        return control.getResponseSource();
+    }
+
     public void remove(String key) {
         mHttpControlMap.remove(key);
     }
@@ -0,0 +1,418 @@
+package com.jeffmony.videocache.proxy;
+
+import android.os.SystemClock;
+
+import com.coolerfall.download.BufferPool;
+import com.jeffmony.videocache.VideoAvailabilityManager;
+import com.jeffmony.videocache.common.RequestClass;
+import com.jeffmony.videocache.common.SourceCreator;
+import com.jeffmony.videocache.socket.SocketProcessTask;
+import com.jeffmony.videocache.socket.request.HttpRequest;
+import com.jeffmony.videocache.socket.response.BaseResponse;
+import com.jeffmony.videocache.utils.LogUtils;
+import com.jeffmony.videocache.utils.Pinger;
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
+import com.jeffmony.videocache.utils.StorageUtils;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @author jeffmony
+ * 本地代理NIO模式
+ *
+ * selector线程负责accept和读取请求头, 数据没有准备好的请求挂在selector上等待,
+ * 只有可以发送数据的请求才会交给线程池, 避免等待数据的请求占满线程池
+ * 发送响应的任务按照请求类别排队, 前台播放的请求优先
+ * keep-alive的连接发送完响应之后重新注册到selector上, 等待下一个请求
+ * 挂起的请求同时监听读事件, 播放器断开连接时立即取消响应
+ * 发送过程中数据不够时响应也会挂起, 连接挂回selector, 数据到达之后从挂起的位置继续发送
+ */
+public class LocalProxyNioServer implements Runnable {
+
+    private static final String TAG = "LocalProxyNioServer";
+
+    private static final int SELECT_TIME = 1000;       //挂起请求的兜底检查间隔
+    private static final int PARK_TIME_OUT = 60 * 1000; //挂起请求的超时时间, 同BaseResponse.TIME_OUT
+
+    private final LocalProxyVideoServer mServer;
+    private final ServerSocketChannel mServerChannel;
+    private final RequestAdmission mAdmission;
+    private final SourceCreator mSourceCreator;
+    private final Selector mSelector;
+    private final Runnable mChangedListener = this::notifyDataChanged;
+    private final Queue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<>();
+    private final List<ProxyConnection> mParkedConnections = new LinkedList<>();   //只在selector线程访问
+    private volatile boolean mRecheckParked;
+    private volatile int mParkedCount;       //挂起的请求数, 没有挂起的请求时数据变化不需要唤醒selector
+    private volatile boolean mRunning;
+    private volatile long mHeartbeatTime;    //selector循环的心跳, select正常返回才更新, 最多间隔SELECT_TIME
+
+    public LocalProxyNioServer(LocalProxyVideoServer server, ServerSocketChannel serverChannel, RequestAdmission admission) throws IOException {
+        mServer = server;
+        mServerChannel = serverChannel;
+        mAdmission = admission;
+        mSourceCreator = ProxyCacheUtils.getConfig().getSourceCreator();
+        mSelector = Selector.open();
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mRunning = true;
+        mHeartbeatTime = SystemClock.uptimeMillis();
+        VideoAvailabilityManager.getInstance().setChangedListener(mChangedListener);
+    }
+
+    public long getHeartbeatTime() {
+        return mHeartbeatTime;
+    }
+
+    /**
+     * 缓存数据有更新, 重新检查挂起的请求
+     */
+    public void notifyDataChanged() {
+        if (mParkedCount == 0 || mRecheckParked) {
+            return;
+        }
+        mRecheckParked = true;
+        mSelector.wakeup();
+    }
+
+    public void shutdown() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastCheckTime = System.currentTimeMillis();
+        Exception lastException = null;
+        int failureCount = 0;
+        while (mRunning) {
+            try {
+                mSelector.select(SELECT_TIME);
+                mHeartbeatTime = SystemClock.uptimeMillis();
+                Runnable task;
+                while ((task = mPendingTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnection();
+                    } else if (key.isReadable()) {
+                        readRequest(key);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (mRecheckParked || now - lastCheckTime >= SELECT_TIME) {
+                    mRecheckParked = false;
+                    lastCheckTime = now;
+                    checkParkedConnections(now);
+                }
+                failureCount = 0;
+            } catch (Exception e) {
+                lastException = e;
+                failureCount++;
+                LogUtils.w(TAG, "Selector loop failed, count=" + failureCount + ", exception=" + e);
+                //selector或者server channel已经关闭, 继续循环只会一直失败
+                if (e instanceof ClosedSelectorException || !mSelector.isOpen() || !mServerChannel.isOpen() ||
+                        failureCount >= LocalProxyVideoServer.MAX_FAILURE_COUNT || !LocalProxyVideoServer.backoff(failureCount)) {
+                    break;
+                }
+            }
+        }
+        boolean died = mRunning;
+        mRunning = false;
+        VideoAvailabilityManager.getInstance().removeChangedListener(mChangedListener);
+        for (ProxyConnection connection : mParkedConnections) {
+            connection.close();
+        }
+        mParkedConnections.clear();
+        mParkedCount = 0;
+        ProxyCacheUtils.close(mSelector);
+        ProxyCacheUtils.close(mServerChannel);
+        if (died) {
+            mServer.notifyServerDied(lastException);
+        }
+    }
+
+    private void acceptConnection() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(mSelector, SelectionKey.OP_READ, new ProxyConnection(channel));
+    }
+
+    private void readRequest(SelectionKey key) {
+        ProxyConnection connection = (ProxyConnection) key.attachment();
+        try {
+            int read = connection.mChannel.read(connection.mBuffer);
+            if (connection.mParked) {
+                onParkedConnectionReadable(key, connection, read);
+                return;
+            }
+            if (read == -1) {
+                closeConnection(key, connection);
+                return;
+            }
+            if (isRequestHeaderReady(connection)) {
+                //请求头读取完成, 交给线程池构建响应
+                key.interestOps(0);
+                mAdmission.execute(new CreateResponseTask(key, connection));
+            } else if (!connection.mBuffer.hasRemaining()) {
+                LogUtils.w(TAG, "Request header is too large");
+                closeConnection(key, connection);
+            }
+        } catch (Exception e) {
+            LogUtils.w(TAG, "Read request failed, exception=" + e);
+            closeConnection(key, connection);
+        }
+    }
+
+    //挂起的请求在等待响应期间读到EOF, 说明播放器已经断开
+    private void onParkedConnectionReadable(SelectionKey key, ProxyConnection connection, int read) {
+        if (read == -1) {
+            LogUtils.i(TAG, "Client disconnected while waiting data, url=" + connection.mRequest.getUri());
+            unparkConnection(connection);
+            connection.mResponse.cancel();
+            closeConnection(key, connection);
+        } else if (!connection.mBuffer.hasRemaining()) {
+            //pipelining的数据保留在buffer中, buffer满了之后不再监听
+            key.interestOps(0);
+        }
+    }
+
+    private boolean isRequestHeaderReady(ProxyConnection connection) {
+        return HttpRequest.findResponseHeaderEnd(connection.mBuffer.array(), connection.mBuffer.position()) > 0;
+    }
+
+    //selector线程执行, keep-alive连接重新等待下一个请求, pipelining的请求可能已经在buffer中
+    private void registerKeepAliveConnection(ProxyConnection connection) {
+        SelectionKey key = null;
+        try {
+            connection.mResponse = null;
+            //发送响应期间检查连接读到的后续请求
+            connection.mRequest.drainPendingData(connection.mBuffer);
+            connection.mChannel.configureBlocking(false);
+            key = connection.mChannel.register(mSelector, SelectionKey.OP_READ, connection);
+            if (isRequestHeaderReady(connection)) {
+                key.interestOps(0);
+                mAdmission.execute(new CreateResponseTask(key, connection));
+            }
+        } catch (Exception e) {
+            LogUtils.w(TAG, "Register keep-alive connection failed, exception=" + e);
+            closeConnection(key, connection);
+        }
+    }
+
+    private void checkParkedConnections(long now) {
+        Iterator<ProxyConnection> iterator = mParkedConnections.iterator();
+        while (iterator.hasNext()) {
+            ProxyConnection connection = iterator.next();
+            SelectionKey key = connection.mChannel.keyFor(mSelector);
+            if (!connection.mChannel.isOpen()) {
+                iterator.remove();
+                connection.mParked = false;
+            } else if (connection.mResponse.isReadyToSend()) {
+                iterator.remove();
+                connection.mParked = false;
+                dispatchSendTask(key, connection);
+            } else if (now - connection.mParkTime > PARK_TIME_OUT) {
+                LogUtils.w(TAG, "Wait response data timeout, url=" + connection.mRequest.getUri());
+                iterator.remove();
+                connection.mParked = false;
+                closeConnection(key, connection);
+            }
+        }
+        mParkedCount = mParkedConnections.size();
+    }
+
+    //selector线程执行
+    private void onResponseCreated(SelectionKey key, ProxyConnection connection) {
+        if (connection.mResponse == null || connection.mResponse.isReadyToSend()) {
+            dispatchSendTask(key, connection);
+        } else {
+            parkConnection(key, connection);
+        }
+    }
+
+    //selector线程执行, 挂起等待数据, 同时监听读事件检查播放器是否断开
+    private void parkConnection(SelectionKey key, ProxyConnection connection) {
+        connection.mParkTime = System.currentTimeMillis();
+        connection.mParked = true;
+        mParkedConnections.add(connection);
+        mParkedCount = mParkedConnections.size();
+        //挂起之前的数据变化可能因为没有挂起的请求被忽略, 本轮循环再检查一次
+        mRecheckParked = true;
+        if (key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void unparkConnection(ProxyConnection connection) {
+        mParkedConnections.remove(connection);
+        mParkedCount = mParkedConnections.size();
+        connection.mParked = false;
+    }
+
+    //selector线程执行, 发送过程中挂起的响应重新注册到selector上
+    private void reparkConnection(ProxyConnection connection) {
+        SelectionKey key = null;
+        try {
+            //发送期间读到的后续请求数据放回连接的buffer
+            connection.mRequest.drainPendingData(connection.mBuffer);
+            connection.mChannel.configureBlocking(false);
+            key = connection.mChannel.register(mSelector, SelectionKey.OP_READ, connection);
+            if (connection.mResponse.isReadyToSend()) {
+                //挂起期间数据已经到达
+                dispatchSendTask(key, connection);
+            } else {
+                parkConnection(key, connection);
+            }
+        } catch (Exception e) {
+            LogUtils.w(TAG, "Park suspended connection failed, exception=" + e);
+            closeConnection(key, connection);
+        }
+    }
+
+    //selector线程执行, 切换为阻塞模式之后交给线程池发送数据
+    private void dispatchSendTask(SelectionKey key, ProxyConnection connection) {
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            mSelector.selectNow();
+            connection.mChannel.configureBlocking(true);
+            int requestClass = connection.mResponse != null ? connection.mResponse.getRequestClass() : RequestClass.PROBE;
+            mAdmission.submit(requestClass, new SendResponseTask(connection));
+        } catch (Exception e) {
+            LogUtils.w(TAG, "Dispatch send task failed, exception=" + e);
+            closeConnection(key, connection);
+        }
+    }
+
+    private void closeConnection(SelectionKey key, ProxyConnection connection) {
+        if (key != null) {
+            key.cancel();
+        }
+        connection.close();
+    }
+
+    private static class ProxyConnection {
+        private final SocketChannel mChannel;
+        private final byte[] mBufferArray = BufferPool.getDefault().getBuf(StorageUtils.DEFAULT_BUFFER_SIZE);
+        private final ByteBuffer mBuffer = ByteBuffer.wrap(mBufferArray);
+        private final HttpRequest mRequest;     //跟随连接复用
+        private BaseResponse mResponse;   //为null表示ping请求
+        private long mParkTime;
+        private boolean mParked;          //只在selector线程访问
+        private boolean mClosed;
+
+        private ProxyConnection(SocketChannel channel) {
+            mChannel = channel;
+            mRequest = new HttpRequest(channel.socket().getInetAddress());
+        }
+
+        //关闭连接并归还buffer, 只归还一次
+        private synchronized void close() {
+            ProxyCacheUtils.close(mChannel);
+            if (!mClosed) {
+                mClosed = true;
+                BufferPool.getDefault().returnBuf(mBufferArray);
+                mRequest.release();
+            }
+        }
+    }
+
+    private class CreateResponseTask implements Runnable {
+
+        private final SelectionKey mKey;
+        private final ProxyConnection mConnection;
+        private final long mTaskCreateTime;
+
+        private CreateResponseTask(SelectionKey key, ProxyConnection connection) {
+            mKey = key;
+            mConnection = connection;
+            mTaskCreateTime = SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void run() {
+            try {
+                ByteBuffer buffer = mConnection.mBuffer;
+                int headerEnd = HttpRequest.findResponseHeaderEnd(buffer.array(), buffer.position());
+                HttpRequest request = mConnection.mRequest;
+                request.parseRequest(buffer.array(), headerEnd);
+                //保留pipelining的后续请求数据
+                buffer.flip();
+                buffer.position(headerEnd);
+                buffer.compact();
+                if (!SocketProcessTask.isPingRequest(request)) {
+                    mConnection.mResponse = SocketProcessTask.createResponse(mSourceCreator, request, mTaskCreateTime);
+                }
+                mPendingTasks.offer(() -> onResponseCreated(mKey, mConnection));
+                mSelector.wakeup();
+            } catch (Exception e) {
+                LogUtils.w(TAG, "Create response failed, exception=" + e);
+                closeConnection(mKey, mConnection);
+            }
+        }
+    }
+
+    private class SendResponseTask implements Runnable {
+
+        private final ProxyConnection mConnection;
+
+        private SendResponseTask(ProxyConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void run() {
+            Socket socket = mConnection.mChannel.socket();
+            boolean keepAlive = false;
+            boolean suspended = false;
+            try {
+                if (mConnection.mResponse == null) {
+                    Pinger.responseToPing(socket);
+                } else {
+                    BaseResponse response = mConnection.mResponse;
+                    response.setNonBlocking(true);
+                    response.sendResponse(socket, socket.getOutputStream());
+                    suspended = mRunning && response.isSuspended() && mConnection.mChannel.isOpen();
+                    keepAlive = mRunning && response.canKeepAlive() && mConnection.mChannel.isOpen();
+                }
+            } catch (Exception e) {
+                LogUtils.w(TAG, "Send response failed, exception=" + e);
+            } finally {
+                if (suspended) {
+                    //数据不够, 释放线程和并发名额, 挂回selector等待
+                    mPendingTasks.offer(() -> reparkConnection(mConnection));
+                    mSelector.wakeup();
+                } else if (keepAlive) {
+                    mPendingTasks.offer(() -> registerKeepAliveConnection(mConnection));
+                    mSelector.wakeup();
+                } else {
+                    mConnection.close();
+                }
+            }
+        }
+    }
+}
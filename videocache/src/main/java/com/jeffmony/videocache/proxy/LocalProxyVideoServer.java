@@ -1,12 +1,17 @@
 package com.jeffmony.videocache.proxy;
 
+import android.os.SystemClock;
+
 import com.jeffmony.videocache.socket.SocketProcessTask;
 import com.jeffmony.videocache.utils.LogUtils;
 import com.jeffmony.videocache.utils.ProxyCacheUtils;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -14,24 +19,69 @@ import java.util.concurrent.Executors;
 /**
  * @author jeffmony
  * 本地代理服务端类
+ *
+ * accept循环定时更新心跳, 外部通过isAlive()判断服务是否存活, 不需要再通过ping请求自己
+ * 只有accept成功或者超时返回才更新心跳, 连续失败时退避重试, 失败次数过多时退出并通知服务失效
  */
 
 public class LocalProxyVideoServer {
 
     private static final String TAG = "LocalProxyCacheServer";
 
-    private final ExecutorService mSocketPool = Executors.newFixedThreadPool(8);
+    public static final int HEARTBEAT_INTERVAL = 1000;           //accept循环的心跳间隔
+    private static final int HEARTBEAT_TIME_OUT = 5 * HEARTBEAT_INTERVAL; //超过这个时间没有心跳认为服务已经失效
+    static final int MAX_FAILURE_COUNT = 5;                      //accept/select连续失败的次数上限
+    private static final int MIN_BACKOFF_TIME = 50;               //第一次失败之后的等待时间, 之后每次翻倍
+
+    //读取请求和发送响应的并发数量都由RequestAdmission控制, 线程池不会排队
+    private final ExecutorService mSocketPool = Executors.newFixedThreadPool(RequestAdmission.MAX_THREAD_COUNT);
+    private final RequestAdmission mAdmission = new RequestAdmission(mSocketPool);
+    private final OnServerStateListener mStateListener;
 
     private ServerSocket mLocalServer;
+    private LocalProxyNioServer mNioServer;   //NIO模式下的selector引擎
     private Thread mRequestThread;
+    private int mPort;
+    private volatile long mHeartbeatTime;
+    private volatile boolean mShutdown;
+
+    public interface OnServerStateListener {
+        /**
+         * accept循环异常退出, 回调在服务线程执行
+         * @param server
+         * @param e
+         */
+        void onServerDied(LocalProxyVideoServer server, Exception e);
+    }
 
     public LocalProxyVideoServer() {
+        this(null);
+    }
+
+    public LocalProxyVideoServer(OnServerStateListener listener) {
+        mStateListener = listener;
         try {
             InetAddress address = InetAddress.getByName(ProxyCacheUtils.LOCAL_PROXY_HOST);
-            mLocalServer = new ServerSocket(0, 8, address);
-            int mPort = mLocalServer.getLocalPort();
+            //通过ServerSocketChannel创建, accept的socket带有channel, 可以使用transferTo零拷贝发送文件
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            mLocalServer = serverChannel.socket();
+            mLocalServer.bind(new InetSocketAddress(address, 0), 8);
+            if (ProxyCacheUtils.getConfig().useNioServer()) {
+                mNioServer = new LocalProxyNioServer(this, serverChannel, mAdmission);
+            } else {
+                //accept定时返回, 用来更新心跳
+                mLocalServer.setSoTimeout(HEARTBEAT_INTERVAL);
+            }
+            mPort = mLocalServer.getLocalPort();
             ProxyCacheUtils.getConfig().setPort(mPort);
             ProxyCacheUtils.setLocalPort(mPort);
+            mHeartbeatTime = SystemClock.uptimeMillis();
+            if (mNioServer != null) {
+                mRequestThread = new Thread(mNioServer);
+                mRequestThread.setName("LocalProxyNioServerThread");
+                mRequestThread.start();
+                return;
+            }
             CountDownLatch startSignal = new CountDownLatch(1);
             WaitSocketRequestsTask task = new WaitSocketRequestsTask(startSignal);
             mRequestThread = new Thread(task);
@@ -60,19 +110,102 @@ public class LocalProxyVideoServer {
     }
 
     private void initSocketProcessor() {
-        do {
+        Exception lastException = null;
+        int failureCount = 0;
+        while (!mLocalServer.isClosed() && !mShutdown) {
+            Socket socket;
+            try {
+                socket = mLocalServer.accept();
+            } catch (SocketTimeoutException e) {
+                //心跳间隔内没有新的请求
+                mHeartbeatTime = SystemClock.uptimeMillis();
+                failureCount = 0;
+                continue;
+            } catch (Exception e) {
+                lastException = e;
+                failureCount++;
+                LogUtils.w(TAG, "WaitRequestsRun ServerSocket accept failed, count=" + failureCount + ", exception=" + e);
+                if (failureCount >= MAX_FAILURE_COUNT || !backoff(failureCount)) {
+                    break;
+                }
+                continue;
+            }
+            mHeartbeatTime = SystemClock.uptimeMillis();
+            failureCount = 0;
             try {
-                Socket socket = mLocalServer.accept();
                 if (ProxyCacheUtils.getConfig().getConnTimeOut() > 0)
                     socket.setSoTimeout(ProxyCacheUtils.getConfig().getConnTimeOut());
-                mSocketPool.submit(new SocketProcessTask(socket));
+                mAdmission.execute(new SocketProcessTask(socket, mAdmission));
             } catch (Exception e) {
-                LogUtils.w(TAG, "WaitRequestsRun ServerSocket accept failed, exception=" + e);
+                LogUtils.w(TAG, "WaitRequestsRun dispatch socket failed, exception=" + e);
+                ProxyCacheUtils.close(socket);
             }
-        } while (!mLocalServer.isClosed());
+        }
+        notifyServerDied(lastException);
+    }
+
+    /**
+     * 连续失败之后等待一段时间再重试, 避免空转
+     * @param failureCount 连续失败的次数
+     * @return 等待期间被中断返回false, 服务线程应该退出
+     */
+    static boolean backoff(int failureCount) {
+        long backoffTime = Math.min((long) MIN_BACKOFF_TIME << (failureCount - 1), HEARTBEAT_INTERVAL);
+        try {
+            Thread.sleep(backoffTime);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
     }
 
-    private void shutdown() {
+    void notifyServerDied(Exception e) {
+        if (mShutdown) {
+            return;
+        }
+        LogUtils.e(TAG, "Local proxy server died, exception=" + e);
+        if (mStateListener != null) {
+            mStateListener.onServerDied(this, e);
+        }
+    }
+
+    /**
+     * 服务是否存活: 没有关闭, 服务线程还在运行, 并且心跳没有超时
+     * @return
+     */
+    public boolean isAlive() {
+        if (mShutdown || mLocalServer == null || mLocalServer.isClosed()) {
+            return false;
+        }
+        if (mRequestThread == null || !mRequestThread.isAlive()) {
+            return false;
+        }
+        long heartbeatTime = mNioServer != null ? mNioServer.getHeartbeatTime() : mHeartbeatTime;
+        return SystemClock.uptimeMillis() - heartbeatTime < HEARTBEAT_TIME_OUT;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    public RequestAdmission getRequestAdmission() {
+        return mAdmission;
+    }
+
+    /**
+     * 缓存数据有更新, NIO模式下唤醒挂起的请求
+     */
+    public void notifyDataChanged() {
+        if (mNioServer != null) {
+            mNioServer.notifyDataChanged();
+        }
+    }
+
+    public void shutdown() {
+        mShutdown = true;
+        if (mNioServer != null) {
+            mNioServer.shutdown();
+        }
         if (mLocalServer != null) {
             try {
                 mLocalServer.close();
@@ -0,0 +1,256 @@
+package com.jeffmony.videocache.proxy;
+
+import android.os.SystemClock;
+
+import com.jeffmony.videocache.common.RequestClass;
+import com.jeffmony.videocache.utils.LogUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * @author jeffmony
+ * 本地代理发送响应的准入控制
+ *
+ * 发送响应(包括等待数据)的任务按照请求类别排队, 前台播放的请求优先执行,
+ * 每个类别有自己的并发上限, 并且总名额中预留一部分只给前台播放的请求
+ * 读取请求头(包括keep-alive连接等待下一个请求)单独限制并发数量, 超过时排队
+ * 线程池的大小是两部分名额之和, 连接再多也不会创建更多线程
+ */
+public class RequestAdmission {
+
+    private static final String TAG = "RequestAdmission";
+
+    private static final int MAX_RUNNING_COUNT = 8;              //同时发送响应的最大数量
+    private static final int FOREGROUND_RESERVED_COUNT = 2;      //只有前台请求可以使用的名额
+    private static final int[] CLASS_LIMITS = {8, 4, 2};         //每个类别同时发送的最大数量, 按RequestClass的顺序
+    private static final int MAX_READING_COUNT = 8;              //同时读取请求头的最大数量
+    public static final int MAX_THREAD_COUNT = MAX_RUNNING_COUNT + MAX_READING_COUNT;   //线程池的大小
+
+    private final ExecutorService mExecutor;
+    private final Object mLock = new Object();
+    private final List<ArrayDeque<PendingTask>> mQueues = new ArrayList<>(RequestClass.COUNT);
+    private final ArrayDeque<Runnable> mReadQueue = new ArrayDeque<>();
+    private final int[] mRunningCounts = new int[RequestClass.COUNT];
+    private final long[] mAdmittedCounts = new long[RequestClass.COUNT];
+    private final long[] mTotalWaitTimes = new long[RequestClass.COUNT];
+    private final long[] mMaxWaitTimes = new long[RequestClass.COUNT];
+    private int mTotalRunningCount;
+    private int mReadingCount;
+
+    public RequestAdmission(ExecutorService executor) {
+        mExecutor = executor;
+        for (int index = 0; index < RequestClass.COUNT; index++) {
+            mQueues.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * 读取请求头的任务, 同时读取的数量超过MAX_READING_COUNT时排队
+     * @param task
+     */
+    public void execute(Runnable task) {
+        synchronized (mLock) {
+            mReadQueue.add(task);
+        }
+        scheduleRead();
+    }
+
+    private void scheduleRead() {
+        while (true) {
+            Runnable task;
+            synchronized (mLock) {
+                if (mReadingCount >= MAX_READING_COUNT || mReadQueue.isEmpty()) {
+                    return;
+                }
+                task = mReadQueue.poll();
+                mReadingCount++;
+            }
+            try {
+                mExecutor.execute(new ReadTask(task));
+            } catch (RejectedExecutionException e) {
+                //服务已经关闭
+                LogUtils.w(TAG, "Execute read task failed, exception=" + e);
+                synchronized (mLock) {
+                    mReadingCount--;
+                }
+                return;
+            }
+        }
+    }
+
+    private void onReadFinished() {
+        synchronized (mLock) {
+            mReadingCount--;
+        }
+        scheduleRead();
+    }
+
+    /**
+     * 按照请求类别排队执行
+     * @param requestClass RequestClass中定义的类别
+     * @param task
+     */
+    public void submit(int requestClass, Runnable task) {
+        if (requestClass < 0 || requestClass >= RequestClass.COUNT) {
+            requestClass = RequestClass.PRELOAD;
+        }
+        synchronized (mLock) {
+            mQueues.get(requestClass).add(new PendingTask(requestClass, task));
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        while (true) {
+            PendingTask task;
+            synchronized (mLock) {
+                task = pollNextTask();
+            }
+            if (task == null) {
+                return;
+            }
+            try {
+                mExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                //服务已经关闭
+                LogUtils.w(TAG, "Execute " + RequestClass.getName(task.mRequestClass) + " task failed, exception=" + e);
+                synchronized (mLock) {
+                    mRunningCounts[task.mRequestClass]--;
+                    mTotalRunningCount--;
+                }
+                return;
+            }
+        }
+    }
+
+    //持有mLock时调用, 优先级高的类别先出队
+    private PendingTask pollNextTask() {
+        if (mTotalRunningCount >= MAX_RUNNING_COUNT) {
+            return null;
+        }
+        for (int requestClass = 0; requestClass < RequestClass.COUNT; requestClass++) {
+            if (requestClass != RequestClass.FOREGROUND && mTotalRunningCount >= MAX_RUNNING_COUNT - FOREGROUND_RESERVED_COUNT) {
+                //剩下的名额留给前台请求
+                break;
+            }
+            ArrayDeque<PendingTask> queue = mQueues.get(requestClass);
+            if (!queue.isEmpty() && mRunningCounts[requestClass] < CLASS_LIMITS[requestClass]) {
+                PendingTask task = queue.poll();
+                long waitTime = SystemClock.uptimeMillis() - task.mEnqueueTime;
+                mRunningCounts[requestClass]++;
+                mTotalRunningCount++;
+                mAdmittedCounts[requestClass]++;
+                mTotalWaitTimes[requestClass] += waitTime;
+                mMaxWaitTimes[requestClass] = Math.max(mMaxWaitTimes[requestClass], waitTime);
+                if (waitTime > 0) {
+                    LogUtils.d(TAG, "Admit " + RequestClass.getName(requestClass) + " task, wait time=" + waitTime);
+                }
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private void onTaskFinished(int requestClass) {
+        synchronized (mLock) {
+            mRunningCounts[requestClass]--;
+            mTotalRunningCount--;
+        }
+        schedule();
+    }
+
+    /**
+     * 等待读取请求头的连接数
+     * @return
+     */
+    public int getQueuedReadCount() {
+        synchronized (mLock) {
+            return mReadQueue.size();
+        }
+    }
+
+    public int getQueuedCount(int requestClass) {
+        synchronized (mLock) {
+            return mQueues.get(requestClass).size();
+        }
+    }
+
+    public int getRunningCount(int requestClass) {
+        synchronized (mLock) {
+            return mRunningCounts[requestClass];
+        }
+    }
+
+    public long getAdmittedCount(int requestClass) {
+        synchronized (mLock) {
+            return mAdmittedCounts[requestClass];
+        }
+    }
+
+    /**
+     * 排队等待的平均时间, 单位ms
+     * @param requestClass
+     * @return
+     */
+    public long getAverageWaitTime(int requestClass) {
+        synchronized (mLock) {
+            long count = mAdmittedCounts[requestClass];
+            return count > 0 ? mTotalWaitTimes[requestClass] / count : 0L;
+        }
+    }
+
+    /**
+     * 排队等待的最长时间, 单位ms
+     * @param requestClass
+     * @return
+     */
+    public long getMaxWaitTime(int requestClass) {
+        synchronized (mLock) {
+            return mMaxWaitTimes[requestClass];
+        }
+    }
+
+    private class ReadTask implements Runnable {
+
+        private final Runnable mTask;
+
+        private ReadTask(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            } finally {
+                onReadFinished();
+            }
+        }
+    }
+
+    private class PendingTask implements Runnable {
+
+        private final int mRequestClass;
+        private final Runnable mTask;
+        private final long mEnqueueTime;
+
+        private PendingTask(int requestClass, Runnable task) {
+            mRequestClass = requestClass;
+            mTask = task;
+            mEnqueueTime = SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            } finally {
+                onTaskFinished(mRequestClass);
+            }
+        }
+    }
+}
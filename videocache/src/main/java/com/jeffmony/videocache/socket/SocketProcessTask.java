@@ -4,8 +4,15 @@ import android.os.Build;
 import android.os.SystemClock;
 import android.text.TextUtils;
 
+import com.jeffmony.videocache.PlaybackSession;
+import com.jeffmony.videocache.PlaybackSessionManager;
+import com.jeffmony.videocache.ProxyResourceManager;
+import com.jeffmony.videocache.VideoAvailabilityManager;
 import com.jeffmony.videocache.common.SourceCreator;
 import com.jeffmony.videocache.common.VideoCacheException;
+import com.jeffmony.videocache.m3u8.M3U8Seg;
+import com.jeffmony.videocache.model.ProxyResource;
+import com.jeffmony.videocache.proxy.RequestAdmission;
 import com.jeffmony.videocache.socket.request.HttpRequest;
 import com.jeffmony.videocache.socket.response.BaseResponse;
 import com.jeffmony.videocache.utils.HttpUtils;
@@ -13,120 +20,282 @@ import com.jeffmony.videocache.utils.LogUtils;
 import com.jeffmony.videocache.utils.Pinger;
 import com.jeffmony.videocache.utils.ProxyCacheUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.Socket;
+import java.net.SocketException;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class SocketProcessTask implements Runnable {
 
     private static final String TAG  = "SocketProcessTask";
     private static final AtomicInteger sRequestCountAtomic = new AtomicInteger(0);
+    private static final AtomicReference<String> sLatestRequestMd5 = new AtomicReference<>();   //没有使用会话的最新请求的视频md5
+    private static final int KEEP_ALIVE_TIME_OUT = 5 * 1000;   //keep-alive连接等待下一个请求的超时时间
     private final Socket mSocket;
 
     private final SourceCreator mSourceCreator;
+    private final RequestAdmission mAdmission;
+    //连接上的状态, 读取请求和发送响应在不同的任务中执行, 同一时刻只有一个任务访问
+    private HttpRequest mRequest;
+    private InputStream mInputStream;
+    private OutputStream mOutputStream;
+    private int mReadTimeOut;
+    private int mRequestCount;
 
-    private final long mSocketTaskCreateTime = SystemClock.uptimeMillis();
-
-    public SocketProcessTask(Socket socket) {
+    public SocketProcessTask(Socket socket, RequestAdmission admission) {
         mSocket = socket;
+        mAdmission = admission;
         mSourceCreator = ProxyCacheUtils.getConfig().getSourceCreator();
     }
 
+    public static boolean isPingRequest(HttpRequest request) {
+        return Pinger.isPingRequest(request.getUri().substring(1));
+    }
+
+    /**
+     * 根据请求的url构建对应的响应, 阻塞模式和NIO模式共用
+     * @param sourceCreator
+     * @param request
+     * @param currentTime
+     * @return
+     * @throws Exception
+     */
+    public static BaseResponse createResponse(SourceCreator sourceCreator, HttpRequest request, long currentTime) throws Exception {
+        String url = request.getUri().substring(1);
+        PlaybackSession session = null;
+        if (url.startsWith(PlaybackSessionManager.SESSION_PATH)) {
+            // /ps/{sessionId}/v/{id}
+            String sessionInfo = url.substring(PlaybackSessionManager.SESSION_PATH.length());
+            int separatorIndex = sessionInfo.indexOf('/');
+            if (separatorIndex == -1) {
+                throw new VideoCacheException("Local Socket Error, illegal session url=" + url);
+            }
+            session = PlaybackSessionManager.getInstance().getSession(sessionInfo.substring(0, separatorIndex));
+            if (session == null) {
+                throw new VideoCacheException("Local Socket Error, playback session is closed, url=" + url);
+            }
+            url = sessionInfo.substring(separatorIndex + 1);
+        }
+        request.setPlaybackSession(session);
+        //最新的请求可以获得回应，旧的关闭；意味着同一个会话中只能一个socket在请求数据
+        if (session != null) {
+            session.setLatestRequestTime(currentTime);
+        } else {
+            ProxyCacheUtils.setSocketTime(currentTime);
+        }
+        BaseResponse response = createResponse(sourceCreator, request, url, currentTime);
+        //只唤醒被替代的请求: 同一个会话(或者都没有使用会话)中上一个请求等待的视频
+        String md5 = response.getVideoMd5();
+        String previousMd5 = session != null ? session.setLatestRequestMd5(md5) : sLatestRequestMd5.getAndSet(md5);
+        if (previousMd5 != null) {
+            VideoAvailabilityManager.getInstance().notifyChanged(previousMd5);
+        }
+        return response;
+    }
+
+    private static BaseResponse createResponse(SourceCreator sourceCreator, HttpRequest request, String url, long currentTime) throws Exception {
+        if (url.startsWith(ProxyResourceManager.VIDEO_PATH) || url.startsWith(ProxyResourceManager.SEG_PATH)) {
+            return createResourceResponse(sourceCreator, request, url, currentTime);
+        }
+        //兼容旧版本base64编码的代理url, 旧版本的proxy m3u8在解析时会按照资源id的格式重新生成
+        url = ProxyCacheUtils.decodeUriWithBase64(url);
+        LogUtils.d(TAG, "decode request url=" + url);
+        //m3u8里的ts视频请求:Range header=null
+        LogUtils.d(TAG, "Range header=" + request.getRangeString());
+        if (url.contains(ProxyCacheUtils.VIDEO_PROXY_SPLIT_STR)) {
+            String[] videoInfoArr = ProxyCacheUtils.splitProxyInfo(url, ProxyCacheUtils.VIDEO_PROXY_SPLIT_STR);
+            if (videoInfoArr.length < 3) {
+                throw new VideoCacheException("Local Socket Error Argument");
+            }
+            String videoUrl = videoInfoArr[0];
+            String videoTypeInfo = videoInfoArr[1];
+            String videoHeaders = videoInfoArr[2];
+
+            Map<String, String> headers = ProxyCacheUtils.str2Map(videoHeaders);
+            LogUtils.d(TAG, videoUrl + "\n" + videoTypeInfo + "\n" + videoHeaders);
+
+            return createVideoResponse(sourceCreator, request, videoUrl, videoTypeInfo, headers, currentTime);
+        } else if (url.contains(ProxyCacheUtils.SEG_PROXY_SPLIT_STR)) {
+            //说明是M3U8 ts格式的文件
+            String[] videoInfoArr = ProxyCacheUtils.splitProxyInfo(url, ProxyCacheUtils.SEG_PROXY_SPLIT_STR);
+            if (videoInfoArr.length < 4) {
+                throw new VideoCacheException("Local Socket for M3U8 ts file Error Argument");
+            }
+            String parentUrl = videoInfoArr[0];
+            String videoUrl = videoInfoArr[1];
+            String fileName = videoInfoArr[2];
+            String videoHeaders = videoInfoArr[3];
+            Map<String, String> headers = ProxyCacheUtils.str2Map(videoHeaders);
+            LogUtils.d(TAG,  "ts request: parentUrl:" + parentUrl + "\nvideoUrl:" + videoUrl + "\nfileName:" + fileName + "\nvideoHeaders:" + videoHeaders);
+            return sourceCreator.createM3U8SegResponse(request, parentUrl, videoUrl, headers, currentTime, fileName);
+        } else {
+            throw new VideoCacheException("Local Socket Error url");
+        }
+    }
+
+    private static BaseResponse createVideoResponse(SourceCreator sourceCreator, HttpRequest request, String videoUrl, String videoTypeInfo,
+                                                    Map<String, String> headers, long currentTime) throws Exception {
+        if (TextUtils.equals(ProxyCacheUtils.M3U8, videoTypeInfo)) {
+            return sourceCreator.createM3U8Response(request, videoUrl, headers, currentTime);
+        } else if (TextUtils.equals(ProxyCacheUtils.NON_M3U8, videoTypeInfo)) {
+            return sourceCreator.createMp4Response(request, videoUrl, headers, currentTime);
+        } else {
+            //无法从已知的信息判定视频信息，需要重新请求
+            HttpURLConnection connection = HttpUtils.getConnection(videoUrl, headers);
+            String contentType = connection.getContentType();
+            if (ProxyCacheUtils.isM3U8Mimetype(contentType)) {
+                return sourceCreator.createM3U8Response(request, videoUrl, headers, currentTime);
+            } else {
+                return sourceCreator.createMp4Response(request, videoUrl, headers, currentTime);
+            }
+        }
+    }
+
+    /**
+     * 资源id形式的代理url
+     * /v/{id}            视频
+     * /s/{id}/{segName}  M3U8分片
+     */
+    private static BaseResponse createResourceResponse(SourceCreator sourceCreator, HttpRequest request, String url, long currentTime) throws Exception {
+        LogUtils.d(TAG, "Range header=" + request.getRangeString());
+        if (url.startsWith(ProxyResourceManager.VIDEO_PATH)) {
+            String id = url.substring(ProxyResourceManager.VIDEO_PATH.length());
+            int suffixIndex = id.indexOf('.');
+            if (suffixIndex != -1) {
+                id = id.substring(0, suffixIndex);
+            }
+            ProxyResource resource = ProxyResourceManager.getInstance().getResource(id);
+            if (resource == null) {
+                throw new VideoCacheException("Local Socket Error, unknown resource id=" + id);
+            }
+            String videoUrl = resource.getVideoUrl();
+            Map<String, String> headers = resource.getHeaders();
+            String videoTypeInfo = resource.getVideoTypeInfo();
+            return createVideoResponse(sourceCreator, request, videoUrl, videoTypeInfo, headers, currentTime);
+        }
+        String segInfo = url.substring(ProxyResourceManager.SEG_PATH.length());
+        int separatorIndex = segInfo.indexOf('/');
+        if (separatorIndex == -1) {
+            throw new VideoCacheException("Local Socket for M3U8 ts file Error Argument");
+        }
+        String id = segInfo.substring(0, separatorIndex);
+        String segName = segInfo.substring(separatorIndex + 1);
+        ProxyResource resource = ProxyResourceManager.getInstance().getResource(id);
+        if (resource == null) {
+            throw new VideoCacheException("Local Socket Error, unknown resource id=" + id);
+        }
+        boolean isInitSeg = segName.startsWith(ProxyCacheUtils.INIT_SEGMENT_PREFIX);
+        int dotIndex = segName.indexOf('.');
+        String indexStr = segName.substring(isInitSeg ? ProxyCacheUtils.INIT_SEGMENT_PREFIX.length() : 0, dotIndex == -1 ? segName.length() : dotIndex);
+        M3U8Seg seg = resource.getSeg(Integer.parseInt(indexStr));
+        if (seg == null) {
+            throw new VideoCacheException("Local Socket Error, unknown seg=" + segName + ", id=" + id);
+        }
+        String parentUrl = TextUtils.isEmpty(seg.getParentUrl()) ? resource.getVideoUrl() : seg.getParentUrl();
+        String segUrl = isInitSeg ? seg.getInitSegmentUri() : seg.getUrl();
+        String fileName = File.separator + id + File.separator + segName;
+        return sourceCreator.createM3U8SegResponse(request, parentUrl, segUrl, resource.getHeaders(), currentTime, fileName);
+    }
+
+    /**
+     * 读取请求阶段, 占用读取请求的名额; 构建好响应之后按照请求类别排队发送
+     * keep-alive连接发送完响应之后重新执行这个任务, 读取下一个请求
+     */
     @Override
     public void run() {
-        sRequestCountAtomic.addAndGet(1);
-        LogUtils.i(TAG, "sRequestCountAtomic : " + sRequestCountAtomic.get());
-        OutputStream outputStream = null;
-        InputStream inputStream = null;
+        boolean dispatched = false;
         try {
-            outputStream = mSocket.getOutputStream();
-            inputStream = mSocket.getInputStream();
-            HttpRequest request = new HttpRequest(inputStream, mSocket.getInetAddress());
-            while(!mSocket.isClosed()) {
-                request.parseRequest();
-                BaseResponse response;
-                String url = request.getUri();
-                url = url.substring(1);
-                LogUtils.d(TAG, "request url=" + url);
-                if (Pinger.isPingRequest(url)) {
-                    Pinger.responseToPing(mSocket);
-                    break;
-                }
-                url = ProxyCacheUtils.decodeUriWithBase64(url);
-                LogUtils.d(TAG, "decode request url=" + url);
-                //m3u8里的ts视频请求:Range header=null
-                LogUtils.d(TAG, "Range header=" + request.getRangeString());
-                //最新的请求可以获得回应，旧的关闭；意味着播放器内部只能一个socket在请求数据
-                long currentTime = mSocketTaskCreateTime; //System.currentTimeMillis();
-                ProxyCacheUtils.setSocketTime(currentTime);
-                if (url.contains(ProxyCacheUtils.VIDEO_PROXY_SPLIT_STR)) {
-                    String[] videoInfoArr = url.split(ProxyCacheUtils.VIDEO_PROXY_SPLIT_STR);
-                    if (videoInfoArr.length < 3) {
-                        throw new VideoCacheException("Local Socket Error Argument");
-                    }
-                    String videoUrl = videoInfoArr[0];
-                    String videoTypeInfo = videoInfoArr[1];
-                    String videoHeaders = videoInfoArr[2];
-
-                    Map<String, String> headers = ProxyCacheUtils.str2Map(videoHeaders);
-                    LogUtils.d(TAG, videoUrl + "\n" + videoTypeInfo + "\n" + videoHeaders);
-
-                    if (TextUtils.equals(ProxyCacheUtils.M3U8, videoTypeInfo)) {
-                        response = mSourceCreator.createM3U8Response(request, videoUrl, headers, currentTime);
-                    } else if (TextUtils.equals(ProxyCacheUtils.NON_M3U8, videoTypeInfo)) {
-                        response = mSourceCreator.createMp4Response(request, videoUrl, headers, currentTime);
-                    } else {
-                        //无法从已知的信息判定视频信息，需要重新请求
-                        HttpURLConnection connection = HttpUtils.getConnection(videoUrl, headers);
-                        String contentType = connection.getContentType();
-                        if (ProxyCacheUtils.isM3U8Mimetype(contentType)) {
-                            response = mSourceCreator.createM3U8Response(request, videoUrl, headers, currentTime);
-                        } else {
-                            response = mSourceCreator.createMp4Response(request, videoUrl, headers, currentTime);
-                        }
-                    }
-                    response.sendResponse(mSocket, outputStream);
-                } else if (url.contains(ProxyCacheUtils.SEG_PROXY_SPLIT_STR)) {
-                    //说明是M3U8 ts格式的文件
-                    String[] videoInfoArr = url.split(ProxyCacheUtils.SEG_PROXY_SPLIT_STR);
-                    if (videoInfoArr.length < 4) {
-                        throw new VideoCacheException("Local Socket for M3U8 ts file Error Argument");
-                    }
-                    String parentUrl = videoInfoArr[0];
-                    String videoUrl = videoInfoArr[1];
-                    String fileName = videoInfoArr[2];
-                    String videoHeaders = videoInfoArr[3];
-                    Map<String, String> headers = ProxyCacheUtils.str2Map(videoHeaders);
-                    LogUtils.d(TAG,  "ts request: parentUrl:" + parentUrl + "\nvideoUrl:" + videoUrl + "\nfileName:" + fileName + "\nvideoHeaders:" + videoHeaders);
-                    response = mSourceCreator.createM3U8SegResponse(request, parentUrl, videoUrl, headers, currentTime, fileName);
-                    response.sendResponse(mSocket, outputStream);
-                } else {
-                    throw new VideoCacheException("Local Socket Error url");
+            if (mRequest == null) {
+                mOutputStream = mSocket.getOutputStream();
+                mInputStream = mSocket.getInputStream();
+                mRequest = new HttpRequest(mInputStream, mSocket.getInetAddress());
+                mReadTimeOut = mSocket.getSoTimeout();
+                sRequestCountAtomic.addAndGet(1);
+                LogUtils.i(TAG, "sRequestCountAtomic : " + sRequestCountAtomic.get());
+            }
+            //HTTP/1.1 keep-alive, 同一个连接上持续处理播放器的请求, 直到播放器关闭连接
+            if (mSocket.isClosed()) {
+                return;
+            }
+            if (mRequestCount > 0) {
+                //空闲的keep-alive连接不能长时间占用线程池
+                mSocket.setSoTimeout(KEEP_ALIVE_TIME_OUT);
+            }
+            try {
+                mRequest.parseRequest();
+            } catch (SocketException e) {
+                if (mRequestCount == 0) {
+                    throw e;
                 }
-                break;
+                LogUtils.d(TAG, "keep-alive socket closed, request count=" + mRequestCount);
+                return;
             }
-
+            mSocket.setSoTimeout(mReadTimeOut);
+            mRequestCount++;
+            String url = mRequest.getUri();
+            url = url.substring(1);
+            LogUtils.d(TAG, "request url=" + url);
+            if (Pinger.isPingRequest(url)) {
+                Pinger.responseToPing(mSocket);
+                return;
+            }
+            BaseResponse response = createResponse(mSourceCreator, mRequest, SystemClock.uptimeMillis());
+            mAdmission.submit(response.getRequestClass(), () -> sendResponse(response));
+            dispatched = true;
         } catch (Exception e) {
             e.printStackTrace();
             LogUtils.w(TAG,"socket request failed, exception=" + e);
         } finally {
-            ProxyCacheUtils.close(outputStream);
-            ProxyCacheUtils.close(inputStream);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                ProxyCacheUtils.close(mSocket);
+            if (!dispatched) {
+                release();
+            }
+        }
+    }
+
+    //发送响应阶段, 占用请求类别的并发名额
+    private void sendResponse(BaseResponse response) {
+        boolean keepAlive = false;
+        try {
+            response.sendResponse(mSocket, mOutputStream);
+            keepAlive = response.canKeepAlive() && !mSocket.isClosed();
+        } catch (Exception e) {
+            LogUtils.w(TAG,"socket response failed, exception=" + e);
+        } finally {
+            if (keepAlive) {
+                try {
+                    mAdmission.execute(this);
+                } catch (Exception e) {
+                    LogUtils.w(TAG,"socket keep-alive failed, exception=" + e);
+                    release();
+                }
             } else {
-                if (mSocket != null) {
-                    try {
-                        mSocket.close();
-                    } catch (IOException e) {
-                        LogUtils.e(TAG,"close " + mSocket + " failed, exception = " + e);
-                    }
+                release();
+            }
+        }
+    }
+
+    private void release() {
+        ProxyCacheUtils.close(mOutputStream);
+        ProxyCacheUtils.close(mInputStream);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            ProxyCacheUtils.close(mSocket);
+        } else {
+            if (mSocket != null) {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    LogUtils.e(TAG,"close " + mSocket + " failed, exception = " + e);
                 }
             }
+        }
+        if (mRequest != null) {
+            mRequest.release();
             int count = sRequestCountAtomic.decrementAndGet();
             LogUtils.i(TAG, "finally Socket solve count = " + count);
         }
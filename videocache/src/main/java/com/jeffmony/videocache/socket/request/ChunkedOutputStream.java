@@ -6,9 +6,19 @@ import java.io.OutputStream;
 
 /**
  * @author jeffmony
+ *
+ * 长度未知的响应使用chunked编码
+ * chunk头 + 数据 + 结尾的CRLF拼接到复用的buffer中一次写入, 避免每个chunk格式化字符串和多次写socket
  */
 
 public class ChunkedOutputStream extends FilterOutputStream {
+
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final int MAX_HEADER_LENGTH = 10;   //8位16进制长度 + CRLF
+
+    private byte[] mChunkBuffer = new byte[0];
+
     public ChunkedOutputStream(OutputStream outputStream) {
         super(outputStream);
     }
@@ -28,12 +38,29 @@ public class ChunkedOutputStream extends FilterOutputStream {
     public void write(byte[] b, int off, int len) throws IOException {
         if (len == 0)
             return;
-        out.write(String.format("%x\r\n", len).getBytes());
-        out.write(b, off, len);
-        out.write("\r\n".getBytes());
+        int capacity = MAX_HEADER_LENGTH + len + 2;
+        if (mChunkBuffer.length < capacity) {
+            mChunkBuffer = new byte[capacity];
+        }
+        byte[] buffer = mChunkBuffer;
+        int index = 0;
+        int shift = 28;
+        while (shift > 0 && ((len >>> shift) & 0xF) == 0) {
+            shift -= 4;
+        }
+        for (; shift >= 0; shift -= 4) {
+            buffer[index++] = HEX_DIGITS[(len >>> shift) & 0xF];
+        }
+        buffer[index++] = '\r';
+        buffer[index++] = '\n';
+        System.arraycopy(b, off, buffer, index, len);
+        index += len;
+        buffer[index++] = '\r';
+        buffer[index++] = '\n';
+        out.write(buffer, 0, index);
     }
 
     public void finish() throws IOException {
-        out.write("0\r\n\r\n".getBytes());
+        out.write(LAST_CHUNK);
     }
 }
@@ -0,0 +1,96 @@
+package com.jeffmony.videocache.socket.request;
+
+/**
+ * @author jeffmony
+ *
+ * 解析Range请求头, 只支持单个byte range
+ * bytes=100-      从100到文件结尾
+ * bytes=100-199   有界的range, 播放器探测的时候经常使用
+ * bytes=-500      文件最后500个字节
+ */
+public class HttpRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    //range超出文件范围, 需要返回416
+    public static final HttpRange UNSATISFIABLE = new HttpRange(-1L, -1L);
+
+    private final long mStart;   //起始位置
+    private final long mEnd;     //结束位置, 包含
+
+    private HttpRange(long start, long end) {
+        mStart = start;
+        mEnd = end;
+    }
+
+    public long getStart() {
+        return mStart;
+    }
+
+    public long getEnd() {
+        return mEnd;
+    }
+
+    public long getLength() {
+        return mEnd - mStart + 1;
+    }
+
+    /**
+     * @param rangeStr  Range请求头
+     * @param totalSize 文件总大小
+     * @return null表示没有range或者range无法解析, 按照完整文件返回
+     */
+    public static HttpRange parse(String rangeStr, long totalSize) {
+        if (rangeStr == null || rangeStr.isEmpty() || totalSize <= 0) {
+            return null;
+        }
+        rangeStr = rangeStr.trim();
+        if (!rangeStr.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        int end = rangeStr.indexOf(',');
+        if (end == -1) {
+            end = rangeStr.length();
+        }
+        //多个range只处理第一个, 不支持multipart/byteranges
+        String spec = rangeStr.substring(BYTES_UNIT.length(), end).trim();
+        int dashIndex = spec.indexOf('-');
+        if (dashIndex == -1) {
+            return null;
+        }
+        try {
+            String startStr = spec.substring(0, dashIndex).trim();
+            String endStr = spec.substring(dashIndex + 1).trim();
+            if (startStr.isEmpty()) {
+                if (endStr.isEmpty()) {
+                    return null;
+                }
+                long suffixLength = Long.parseLong(endStr);
+                if (suffixLength <= 0) {
+                    return UNSATISFIABLE;
+                }
+                return new HttpRange(Math.max(0, totalSize - suffixLength), totalSize - 1);
+            }
+            long start = Long.parseLong(startStr);
+            if (start >= totalSize) {
+                return UNSATISFIABLE;
+            }
+            if (endStr.isEmpty()) {
+                return new HttpRange(start, totalSize - 1);
+            }
+            long endPosition = Long.parseLong(endStr);
+            if (endPosition < start) {
+                //语法错误的range忽略掉
+                return null;
+            }
+            return new HttpRange(start, Math.min(endPosition, totalSize - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpRange[start=" + mStart + ", end=" + mEnd + "]";
+    }
+}
@@ -1,115 +1,121 @@
 package com.jeffmony.videocache.socket.request;
 
+import com.coolerfall.download.BufferPool;
+import com.jeffmony.videocache.PlaybackSession;
 import com.jeffmony.videocache.common.VideoCacheException;
 import com.jeffmony.videocache.utils.ProxyCacheUtils;
 import com.jeffmony.videocache.utils.StorageUtils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.net.Socket;
 import java.net.SocketException;
-import java.util.HashMap;
-import java.util.Locale;
-import java.util.Map;
-import java.util.StringTokenizer;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 import javax.net.ssl.SSLException;
 
 /**
  * @author jeffmony
+ *
+ * 按字节解析请求头, 只提取本地代理需要的method/uri/version/Range/Connection
+ * buffer跟随连接复用, keep-alive连接上解析请求不再分配buffer和header map
  */
 
 public class HttpRequest {
-    private static final String HEADER_RANGE = "range";   //头部统一转化为小写
-    private final BufferedInputStream mInputStream;
+    private static final byte[] HEADER_RANGE = {'r', 'a', 'n', 'g', 'e'};
+    private static final byte[] HEADER_CONNECTION = {'c', 'o', 'n', 'n', 'e', 'c', 't', 'i', 'o', 'n'};
+    private static final byte[] TOKEN_CLOSE = {'c', 'l', 'o', 's', 'e'};
+    private static final byte[] TOKEN_KEEP_ALIVE = {'k', 'e', 'e', 'p', '-', 'a', 'l', 'i', 'v', 'e'};
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String HTTP_1_0 = "HTTP/1.0";
+    private static final int PROBE_TIME_OUT = 1;   //检查连接状态时的读超时, 不能阻塞等待数据的响应
+
+    private final InputStream mInputStream;
     private final String mRemoteIP;
-    private final HashMap<String, String> mHeaders;
+    private byte[] mBuffer;        //从BufferPool获取, 连接关闭时release归还
+    private int mBufferLength;     //buffer中有效数据的长度, pipelining的后续请求保留在buffer中
+    private int mConsumedLength;   //上一个请求占用的长度
+    private boolean mReleased;     //buffer已经归还, 之后不能再从BufferPool获取
     private Method mMethod;
     private String mUri;
     private String mProtocolVersion;
+    private String mRange;
     private boolean mKeepAlive;
+    private PlaybackSession mPlaybackSession;   //请求所属的播放会话, 为null表示没有使用会话
 
     public HttpRequest(InputStream inputStream, InetAddress inetAddress) {
-        mInputStream = new BufferedInputStream(inputStream);
+        mInputStream = inputStream;
 
         // isLoopbackAddress() : local address; 127.0.0.0 ~ 127.255.255.255
         // isAnyLocalAddress() : normal address ?
         mRemoteIP = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress()
                         ? ProxyCacheUtils.LOCAL_PROXY_HOST
                         : inetAddress.getHostAddress();
-        mHeaders = new HashMap<>();
         mKeepAlive = false;
     }
 
-    public void parseRequest() throws Exception {
-        byte[] buf = new byte[StorageUtils.DEFAULT_BUFFER_SIZE];
-        int splitByteIndex = 0;
-        int readLength = 0;
-
-        int read;
-        mInputStream.mark(StorageUtils.DEFAULT_BUFFER_SIZE);
-        try {
-            read = mInputStream.read(buf, 0, StorageUtils.DEFAULT_BUFFER_SIZE);
-        } catch (SSLException e) {
-            ProxyCacheUtils.close(mInputStream);
-            throw e;
-        } catch (IOException e) {
-            ProxyCacheUtils.close(mInputStream);
-            throw new SocketException("Socket Shutdown");
-        } catch (Exception e) {
-            ProxyCacheUtils.close(mInputStream);
-            throw new VideoCacheException("Other exception");
-        }
-        if (read == -1) {
-            ProxyCacheUtils.close(mInputStream);
-            throw new SocketException("Can't read inputStream");
-        }
-        while (read > 0) {
-            readLength += read;
-            splitByteIndex = findResponseHeaderEnd(buf, readLength);
-            if (splitByteIndex > 0) {
-                break;
-            }
-            read = mInputStream.read(buf, readLength, StorageUtils.DEFAULT_BUFFER_SIZE - readLength);
-        }
+    /**
+     * NIO模式下请求头由selector读取, 不需要inputStream
+     * @param inetAddress
+     */
+    public HttpRequest(InetAddress inetAddress) {
+        this(null, inetAddress);
+    }
 
-        if (splitByteIndex < readLength) {
-            mInputStream.reset();
-            mInputStream.skip(splitByteIndex);
+    public void parseRequest() throws Exception {
+        if (mBuffer == null) {
+            mBuffer = BufferPool.getDefault().getBuf(StorageUtils.DEFAULT_BUFFER_SIZE);
         }
-
-        mHeaders.clear();
-
-        // Create a BufferedReader for parsing the header.
-        BufferedReader headerReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, readLength)));
-
-        // Decode the header into params and header java properties
-        Map<String, String> extraInfo = new HashMap<String, String>();
-        decodeHeader(headerReader, extraInfo, mHeaders);
-
-        if (null != mRemoteIP) {
-            mHeaders.put("remote-addr", mRemoteIP);
-            mHeaders.put("http-client-ip", mRemoteIP);
+        //丢弃上一个请求, 保留pipelining的数据
+        if (mConsumedLength > 0) {
+            mBufferLength -= mConsumedLength;
+            System.arraycopy(mBuffer, mConsumedLength, mBuffer, 0, mBufferLength);
+            mConsumedLength = 0;
         }
-
-        mMethod = Method.lookup(extraInfo.get("method"));
-        if (mMethod == null) {
-            throw new VideoCacheException("BAD REQUEST: Syntax error. HTTP verb " + extraInfo.get("method") + " unhandled.");
+        int splitByteIndex = findResponseHeaderEnd(mBuffer, mBufferLength);
+        while (splitByteIndex == 0) {
+            if (mBufferLength == mBuffer.length) {
+                throw new VideoCacheException("BAD REQUEST: header is too large");
+            }
+            int read;
+            try {
+                read = mInputStream.read(mBuffer, mBufferLength, mBuffer.length - mBufferLength);
+            } catch (SSLException e) {
+                ProxyCacheUtils.close(mInputStream);
+                throw e;
+            } catch (IOException e) {
+                ProxyCacheUtils.close(mInputStream);
+                throw new SocketException("Socket Shutdown");
+            } catch (Exception e) {
+                ProxyCacheUtils.close(mInputStream);
+                throw new VideoCacheException("Other exception");
+            }
+            if (read == -1) {
+                ProxyCacheUtils.close(mInputStream);
+                throw new SocketException("Can't read inputStream");
+            }
+            mBufferLength += read;
+            splitByteIndex = findResponseHeaderEnd(mBuffer, mBufferLength);
         }
+        mConsumedLength = splitByteIndex;
+        decodeHeader(mBuffer, splitByteIndex);
+    }
 
-        mUri = extraInfo.get("uri");
-
-        String connection = this.mHeaders.get("connection");
-        mKeepAlive = "HTTP/1.1".equals(mProtocolVersion) && (connection == null || !connection.matches("(?i).*close.*"));
+    /**
+     * 解析已经读取完整的请求头, NIO模式使用
+     * @param buf
+     * @param headerLength 请求头的长度, 包含结尾的空行
+     * @throws VideoCacheException
+     */
+    public void parseRequest(byte[] buf, int headerLength) throws VideoCacheException {
+        decodeHeader(buf, headerLength);
     }
 
     // GET / HTTP/1.1\r\nHost: www.sina.com.cn\r\nConnection: close\r\n\r\n
     //'\r\n\r\n'
-    private int findResponseHeaderEnd(final byte[] buf, int readLength) {
+    public static int findResponseHeaderEnd(final byte[] buf, int readLength) {
         int splitByteIndex = 0;
         while (splitByteIndex + 1 < readLength) {
 
@@ -129,56 +135,214 @@ public class HttpRequest {
         return 0;
     }
 
-    private void decodeHeader(BufferedReader headerReader, Map<String, String> extraInfo, Map<String, String> headers)
-            throws VideoCacheException {
-        try {
-            // Read the request line
-            String readLine = headerReader.readLine();
-            if (readLine == null) {
-                return;
+    private void decodeHeader(byte[] buf, int length) throws VideoCacheException {
+        mMethod = null;
+        mUri = null;
+        mRange = null;
+        boolean connectionClose = false;
+        boolean connectionKeepAlive = false;
+
+        // Read the request line
+        int lineEnd = findLineEnd(buf, 0, length);
+        int methodEnd = indexOf(buf, 0, lineEnd, (byte) ' ');
+        if (methodEnd <= 0) {
+            throw new VideoCacheException("Bad request, syntax error, correct format: GET /example/file.html");
+        }
+        int uriStart = skipSpaces(buf, methodEnd, lineEnd);
+        int uriEnd = indexOf(buf, uriStart, lineEnd, (byte) ' ');
+        if (uriEnd == -1) {
+            uriEnd = trimEnd(buf, uriStart, lineEnd);
+        }
+        if (uriStart >= uriEnd) {
+            throw new VideoCacheException("Bad request, syntax error, correct format: GET /example/file.html");
+        }
+        mMethod = Method.lookup(buf, 0, methodEnd);
+        if (mMethod == null) {
+            throw new VideoCacheException("BAD REQUEST: Syntax error. HTTP verb " + new String(buf, 0, methodEnd) + " unhandled.");
+        }
+        mUri = ProxyCacheUtils.newAsciiString(buf, uriStart, uriEnd - uriStart);
+
+        // If there's another token, its protocol version
+        int versionStart = skipSpaces(buf, uriEnd, lineEnd);
+        int versionEnd = trimEnd(buf, versionStart, lineEnd);
+        if (versionStart >= versionEnd || regionEquals(buf, versionStart, versionEnd, HTTP_1_1)) {
+            // default protocol version
+            mProtocolVersion = HTTP_1_1;
+        } else if (regionEquals(buf, versionStart, versionEnd, HTTP_1_0)) {
+            mProtocolVersion = HTTP_1_0;
+        } else {
+            mProtocolVersion = ProxyCacheUtils.newAsciiString(buf, versionStart, versionEnd - versionStart);
+        }
+
+        // parse headers, 只关心Range和Connection
+        int lineStart = lineEnd + 1;
+        while (lineStart < length) {
+            lineEnd = findLineEnd(buf, lineStart, length);
+            int colonIndex = indexOf(buf, lineStart, lineEnd, (byte) ':');
+            if (colonIndex > lineStart) {
+                int nameEnd = trimEnd(buf, lineStart, colonIndex);
+                int valueStart = skipSpaces(buf, colonIndex + 1, lineEnd);
+                int valueEnd = trimEnd(buf, valueStart, lineEnd);
+                if (equalsIgnoreCase(buf, lineStart, nameEnd, HEADER_RANGE)) {
+                    mRange = ProxyCacheUtils.newAsciiString(buf, valueStart, valueEnd - valueStart);
+                } else if (equalsIgnoreCase(buf, lineStart, nameEnd, HEADER_CONNECTION)) {
+                    connectionClose = containsIgnoreCase(buf, valueStart, valueEnd, TOKEN_CLOSE);
+                    connectionKeepAlive = containsIgnoreCase(buf, valueStart, valueEnd, TOKEN_KEEP_ALIVE);
+                }
             }
+            lineStart = lineEnd + 1;
+        }
+        if (mProtocolVersion == HTTP_1_1) {
+            mKeepAlive = !connectionClose;
+        } else {
+            mKeepAlive = mProtocolVersion == HTTP_1_0 && connectionKeepAlive;
+        }
+    }
 
-            StringTokenizer st = new StringTokenizer(readLine);
-            if (!st.hasMoreTokens()) {
-                throw new VideoCacheException("Bad request, syntax error, correct format: GET /example/file.html");
+    //返回'\n'的位置, 没有找到返回end
+    private static int findLineEnd(byte[] buf, int start, int end) {
+        int index = indexOf(buf, start, end, (byte) '\n');
+        return index == -1 ? end : index;
+    }
+
+    private static int indexOf(byte[] buf, int start, int end, byte target) {
+        for (int index = start; index < end; index++) {
+            if (buf[index] == target) {
+                return index;
             }
+        }
+        return -1;
+    }
 
-            extraInfo.put("method", st.nextToken());
+    private static int skipSpaces(byte[] buf, int start, int end) {
+        while (start < end && (buf[start] == ' ' || buf[start] == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(byte[] buf, int start, int end) {
+        while (end > start && (buf[end - 1] == ' ' || buf[end - 1] == '\t' || buf[end - 1] == '\r')) {
+            end--;
+        }
+        return end;
+    }
 
-            if (!st.hasMoreTokens()) {
-                throw new VideoCacheException("Bad request, syntax error, correct format: GET /example/file.html");
+    private static boolean regionEquals(byte[] buf, int start, int end, String target) {
+        if (end - start != target.length()) {
+            return false;
+        }
+        for (int index = 0; index < target.length(); index++) {
+            if (buf[start + index] != target.charAt(index)) {
+                return false;
             }
+        }
+        return true;
+    }
+
+    //target必须是小写
+    private static boolean equalsIgnoreCase(byte[] buf, int start, int end, byte[] target) {
+        return end - start == target.length && regionMatchesIgnoreCase(buf, start, target);
+    }
 
-            String uri = st.nextToken();
-
-            // If there's another token, its protocol version,
-            // followed by HTTP headers.
-            // NOTE: this now forces header names lower case since they are
-            // case insensitive and vary by client.
-            if (st.hasMoreTokens()) {
-                mProtocolVersion = st.nextToken();
-            } else {
-                // default protocol version
-                mProtocolVersion = "HTTP/1.1";
+    private static boolean containsIgnoreCase(byte[] buf, int start, int end, byte[] target) {
+        for (int index = start; index + target.length <= end; index++) {
+            if (regionMatchesIgnoreCase(buf, index, target)) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            // parse headers:
-            String line = headerReader.readLine();
-            while (line != null && !line.trim().isEmpty()) {
-                int index = line.indexOf(':');
-                if (index >= 0 && index < line.length()) {
-                    headers.put(line.substring(0, index).trim().toLowerCase(Locale.US),
-                            line.substring(index + 1).trim());
-                }
-                line = headerReader.readLine();
+    private static boolean regionMatchesIgnoreCase(byte[] buf, int start, byte[] target) {
+        for (int index = 0; index < target.length; index++) {
+            int b = buf[start + index];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != target[index]) {
+                return false;
             }
+        }
+        return true;
+    }
 
-            extraInfo.put("uri", uri);
+    /**
+     * 检查播放器是否已经断开连接, 响应等待数据的时候调用
+     * 播放器在等待响应期间不会发送数据, 读到EOF说明连接已经关闭
+     * 如果读到了数据, 是pipelining的后续请求, 保留在buffer中
+     * 和release互斥, 连接关闭之后不再获取新的buffer
+     * @param socket
+     * @return release之后返回false
+     */
+    public synchronized boolean isPeerClosed(Socket socket) {
+        if (mReleased) {
+            return false;
+        }
+        if (mBuffer == null) {
+            mBuffer = BufferPool.getDefault().getBuf(StorageUtils.DEFAULT_BUFFER_SIZE);
+        }
+        if (mBufferLength == mBuffer.length) {
+            //buffer已满, 无法判断
+            return false;
+        }
+        int readTimeOut = -1;
+        try {
+            readTimeOut = socket.getSoTimeout();
+            socket.setSoTimeout(PROBE_TIME_OUT);
+            int read = socket.getInputStream().read(mBuffer, mBufferLength, mBuffer.length - mBufferLength);
+            if (read == -1) {
+                return true;
+            }
+            mBufferLength += read;
+            return false;
+        } catch (SocketTimeoutException e) {
+            //没有数据, 连接正常
+            return false;
         } catch (IOException e) {
-            throw new VideoCacheException("Parsing Header Exception: " + e.getMessage(), e);
+            return true;
+        } finally {
+            if (readTimeOut >= 0) {
+                try {
+                    socket.setSoTimeout(readTimeOut);
+                } catch (SocketException e) {
+                    //连接已经关闭, 忽略
+                }
+            }
         }
     }
 
+    /**
+     * NIO模式使用, 把检查连接时读到的后续请求数据转移到连接的buffer中
+     * @param buffer
+     */
+    public void drainPendingData(ByteBuffer buffer) {
+        if (mBuffer == null || mBufferLength == 0) {
+            return;
+        }
+        int length = Math.min(mBufferLength, buffer.remaining());
+        buffer.put(mBuffer, 0, length);
+        mBufferLength -= length;
+        System.arraycopy(mBuffer, length, mBuffer, 0, mBufferLength);
+    }
+
+    /**
+     * 连接关闭之后归还buffer, 之后不能再调用parseRequest
+     */
+    public synchronized void release() {
+        mReleased = true;
+        if (mBuffer != null) {
+            BufferPool.getDefault().returnBuf(mBuffer);
+            mBuffer = null;
+            mBufferLength = 0;
+            mConsumedLength = 0;
+        }
+    }
+
+    public String getRemoteIP() {
+        return mRemoteIP;
+    }
+
     public String getMimeType() {
         return "video/mpeg";
     }
@@ -200,6 +364,14 @@ public class HttpRequest {
     }
 
     public String getRangeString() {
-        return mHeaders.get(HEADER_RANGE);
+        return mRange;
+    }
+
+    public void setPlaybackSession(PlaybackSession session) {
+        mPlaybackSession = session;
+    }
+
+    public PlaybackSession getPlaybackSession() {
+        return mPlaybackSession;
     }
 }
@@ -22,6 +22,8 @@ public enum Method {
     LOCK,
     UNLOCK;
 
+    private static final Method[] VALUES = values();
+
     public static Method lookup(String method) {
         if (method == null)
             return null;
@@ -31,4 +33,28 @@ public enum Method {
             return null;
         }
     }
+
+    /**
+     * 直接在请求头的字节上匹配, 不生成字符串
+     * @param buf
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static Method lookup(byte[] buf, int offset, int length) {
+        for (Method method : VALUES) {
+            String name = method.name();
+            if (name.length() != length) {
+                continue;
+            }
+            int index = 0;
+            while (index < length && buf[offset + index] == name.charAt(index)) {
+                index++;
+            }
+            if (index == length) {
+                return method;
+            }
+        }
+        return null;
+    }
 }
@@ -1,8 +1,12 @@
 package com.jeffmony.videocache.socket.response;
 
+import android.os.SystemClock;
 import android.text.TextUtils;
 
+import com.jeffmony.videocache.PlaybackSession;
+import com.jeffmony.videocache.VideoAvailability;
 import com.jeffmony.videocache.VideoProxyCacheManager;
+import com.jeffmony.videocache.common.RequestClass;
 import com.jeffmony.videocache.common.VideoCacheException;
 import com.jeffmony.videocache.socket.request.ChunkedOutputStream;
 import com.jeffmony.videocache.socket.request.ContentType;
@@ -10,13 +14,19 @@ import com.jeffmony.videocache.socket.request.HttpRequest;
 import com.jeffmony.videocache.socket.request.IState;
 import com.jeffmony.videocache.socket.request.Method;
 import com.jeffmony.videocache.socket.request.ResponseState;
+import com.jeffmony.videocache.utils.LogUtils;
 import com.jeffmony.videocache.utils.ProxyCacheUtils;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -37,17 +47,31 @@ public abstract class BaseResponse {
     protected static final int MAX_WAIT_TIME = 2 * 1000;
 
     protected static final int TIME_OUT = 60 * 1000; //60s
+    private static final int DISCONNECT_CHECK_TIME = 1000; //等待数据期间检查播放器是否断开的间隔
+    private static final long TRANSFER_SIZE = 512 * 1024; //每次transferTo的最大长度, 期间检查请求是否失效
 
     protected final HttpRequest mRequest;
     protected final String mCachePath;
     protected final String mVideoUrl;
     protected final long mCurrentTime;
+    protected final PlaybackSession mSession;   //为null表示没有使用播放会话
     protected Map<String, String> mHeaders;
     protected final String mMimeType;
     protected final String mProtocolVersion;
     protected IState mResponseState;
     protected long mTotalSize;
     protected long mStartPosition;
+    protected long mEndPosition;          //range的结束位置, 包含
+    protected long mContentLength = -1L;  //响应数据的长度, -1表示未知, 使用chunked编码
+    protected boolean mBodyFinished;      //响应数据是否完整发送
+    private String mBodyMd5;
+    private File mBodyFile;               //已经完全缓存的文件, 不为null时走零拷贝发送
+    private long mBodyOffset;
+    private volatile boolean mCanceled;   //播放器已经断开, 不再需要这个响应
+    private boolean mPrepared;            //prepareResponse已经执行
+    private boolean mHeaderSent;          //响应头已经发送, 挂起之后继续发送body
+    private boolean mNonBlocking;         //NIO模式, 没有数据时挂起响应而不是在线程池中等待
+    private boolean mSuspended;           //数据还没有准备好, 等待下一次sendResponse继续发送
 
     public BaseResponse(HttpRequest request, String videoUrl, Map<String, String> headers, long time) {
         mRequest = request;
@@ -55,62 +79,291 @@ public abstract class BaseResponse {
         mVideoUrl = videoUrl;
         mHeaders = headers;
         mCurrentTime = time;
+        mSession = request.getPlaybackSession();
         mMimeType = request.getMimeType();
         mProtocolVersion = request.getProtocolVersion();
     }
 
+    /**
+     * 当前响应是否可以立即发送, NIO模式下没有准备好的请求会挂起, 不占用线程
+     * @return
+     */
+    public boolean isReadyToSend() {
+        return true;
+    }
+
+    /**
+     * NIO模式下设置, 数据没有准备好时sendResponse直接返回, 连接重新挂起到selector上
+     * @param nonBlocking
+     */
+    public void setNonBlocking(boolean nonBlocking) {
+        mNonBlocking = nonBlocking;
+    }
+
+    /**
+     * 上一次sendResponse因为等待数据而挂起, isReadyToSend之后再次调用sendResponse继续发送
+     * @return
+     */
+    public boolean isSuspended() {
+        return mSuspended;
+    }
+
+    /**
+     * 挂起当前响应, 只在NIO模式下有效
+     * @return 是否挂起
+     */
+    protected boolean suspend() {
+        if (mNonBlocking) {
+            mSuspended = true;
+        }
+        return mSuspended;
+    }
+
+    /**
+     * 请求的类别, 决定发送响应时的排队优先级
+     * 使用播放会话的请求由会话决定, 没有会话的请求根据是否是当前播放的视频决定
+     * @return
+     */
+    public int getRequestClass() {
+        if (mRequest.requestMethod() == Method.HEAD) {
+            return RequestClass.PROBE;
+        }
+        if (mSession != null) {
+            return mSession.getRequestClass();
+        }
+        String playingMd5 = VideoProxyCacheManager.getInstance().getPlayingUrlMd5();
+        if (TextUtils.isEmpty(playingMd5) || TextUtils.equals(playingMd5, getVideoMd5())) {
+            return RequestClass.FOREGROUND;
+        }
+        return RequestClass.PRELOAD;
+    }
+
+    /**
+     * 请求对应视频的md5, M3U8分片请求返回M3U8的md5
+     * @return
+     */
+    public String getVideoMd5() {
+        return ProxyCacheUtils.getCacheKey(mVideoUrl);
+    }
+
+    /**
+     * 发送响应头之前的准备工作, 阻塞模式下可以在这里等待数据
+     * @param socket
+     * @throws Exception
+     */
+    protected void prepareResponse(Socket socket) throws Exception {
+    }
+
+    /**
+     * 播放器已经断开连接, 取消当前响应, 只会执行一次
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+        }
+        LogUtils.i(TAG, "Client disconnected, cancel response, this=" + this);
+        onCanceled();
+    }
+
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * 响应被取消之后的回调, 子类通知缓存任务这个请求的数据已经不需要了
+     */
+    protected void onCanceled() {
+    }
+
+    /**
+     * 播放器是否已经断开连接
+     * @param socket
+     * @return
+     */
+    protected boolean isClientDisconnected(Socket socket) {
+        return socket.isClosed() || mRequest.isPeerClosed(socket);
+    }
+
+    /**
+     * 等待缓存数据更新, 等待期间定期检查播放器是否断开, 断开之后取消响应
+     * @param socket
+     * @param availability
+     * @param version
+     * @return true表示数据有更新, false表示超时或者播放器已经断开
+     * @throws InterruptedException
+     */
+    protected boolean awaitDataChanged(Socket socket, VideoAvailability availability, long version) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + TIME_OUT;
+        while (!mCanceled) {
+            long waitTime = deadline - SystemClock.uptimeMillis();
+            if (waitTime <= 0) {
+                return false;
+            }
+            if (availability.awaitChanged(version, Math.min(waitTime, DISCONNECT_CHECK_TIME))) {
+                return true;
+            }
+            if (isClientDisconnected(socket)) {
+                cancel();
+            }
+        }
+        return false;
+    }
+
     public void sendResponse(Socket socket, OutputStream outputStream) throws VideoCacheException {
         SimpleDateFormat gmtFormat = new SimpleDateFormat(GMT_PATTERN, Locale.US);
         gmtFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        mSuspended = false;
         try {
+            if (!mPrepared) {
+                prepareResponse(socket);
+                mPrepared = true;
+            }
+            if (mCanceled) {
+                throw new VideoCacheException("Client disconnected before response, this=" + this);
+            }
             if (mResponseState == null) {
                 throw new VideoCacheException("sendResponse(): Status can't be null.");
             }
-            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream, new ContentType(mMimeType).getEncoding())),false);
-            if (TextUtils.isEmpty(mProtocolVersion)) {
-                pw.append("HTTP/1.1 ");
-            } else {
-                pw.append(mProtocolVersion).append(" ");
-            }
-            pw.append(mResponseState.getDescription()).append(" \r\n");
-            if (!TextUtils.isEmpty(mMimeType)) {
-                appendHeader(pw, CONTENT_TYPE, mMimeType);
+            if (!mHeaderSent && mBodyFile == null && mRequest.requestMethod() != Method.HEAD &&
+                    mResponseState != ResponseState.RANGE_NOT_SATISFIABLE && !isReadyToSend() && suspend()) {
+                //NIO模式下第一段数据没有准备好, 不发送响应头, 挂起等待
+                return;
             }
-            appendHeader(pw, DATE, gmtFormat.format(new Date()));
-            appendHeader(pw, CONNECTION, (mRequest.keepAlive() ? "keep-alive" : "close"));
-            if (mRequest.requestMethod() != Method.HEAD) {
-                appendHeader(pw, TRANSFER_ENCODING, "chunked");
+            if (!mHeaderSent) {
+                sendHeader(outputStream, gmtFormat);
+                mHeaderSent = true;
             }
-            if (mResponseState == ResponseState.PARTIAL_CONTENT) {
-                long contentLength = mTotalSize - mStartPosition + 1;
-                appendHeader(pw, CONTENT_LENGTH, String.valueOf(contentLength));
-
-                String contentRange = String.format("bytes %s-%s/%s", String.valueOf(mStartPosition), String.valueOf(mTotalSize), String.valueOf(mTotalSize));
-                appendHeader(pw, CONTENT_RANGE, contentRange);
+            if (mRequest.requestMethod() == Method.HEAD || mContentLength == 0) {
+                mBodyFinished = true;
+            } else if (mBodyFile != null) {
+                sendFileBody(socket, outputStream);
+            } else if (mContentLength > 0) {
+                //长度已知, 直接写入socket, NIO模式下没有数据时挂起, 下次从挂起的位置继续发送
+                sendBody(socket, outputStream, mContentLength);
+            } else {
+                sendBodyWithCorrectTransferAndEncoding(socket, outputStream);
             }
-            pw.append("\r\n");
-            pw.flush();
-            sendBodyWithCorrectTransferAndEncoding(socket, outputStream);
             outputStream.flush();
         } catch (Exception e) {
+            //写入失败一般是播放器断开了连接
+            if (!mBodyFinished && isClientDisconnected(socket)) {
+                cancel();
+            }
             throw new VideoCacheException("send response failed: ", e);
         }
     }
 
+    private void sendHeader(OutputStream outputStream, SimpleDateFormat gmtFormat) throws Exception {
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream, new ContentType(mMimeType).getEncoding())),false);
+        if (TextUtils.isEmpty(mProtocolVersion)) {
+            pw.append("HTTP/1.1 ");
+        } else {
+            pw.append(mProtocolVersion).append(" ");
+        }
+        pw.append(mResponseState.getDescription()).append(" \r\n");
+        if (!TextUtils.isEmpty(mMimeType)) {
+            appendHeader(pw, CONTENT_TYPE, mMimeType);
+        }
+        appendHeader(pw, DATE, gmtFormat.format(new Date()));
+        appendHeader(pw, CONNECTION, (mRequest.keepAlive() ? "keep-alive" : "close"));
+        if (mTotalSize > 0) {
+            appendHeader(pw, ACCEPT_RANGES, "bytes");
+        }
+        if (mResponseState == ResponseState.RANGE_NOT_SATISFIABLE) {
+            mContentLength = 0;
+            appendHeader(pw, CONTENT_RANGE, "bytes */" + mTotalSize);
+        } else if (mResponseState == ResponseState.PARTIAL_CONTENT) {
+            appendHeader(pw, CONTENT_RANGE, "bytes " + mStartPosition + "-" + mEndPosition + "/" + mTotalSize);
+        }
+        if (mContentLength >= 0) {
+            appendHeader(pw, CONTENT_LENGTH, String.valueOf(mContentLength));
+        } else if (mRequest.requestMethod() != Method.HEAD) {
+            appendHeader(pw, TRANSFER_ENCODING, "chunked");
+        }
+        pw.append("\r\n");
+        pw.flush();
+    }
+
+    /**
+     * 只有完整发送的响应才能复用连接, 中途放弃的响应需要关闭连接
+     * @return
+     */
+    public boolean canKeepAlive() {
+        return mRequest.keepAlive() && mBodyFinished;
+    }
+
     protected void appendHeader(PrintWriter pw, String key, String value) {
         pw.append(key).append(": ").append(value).append("\r\n");
     }
 
+    /**
+     * 请求的数据已经完全缓存在文件中, 可以确定Content-Length, 使用零拷贝发送
+     * @param md5
+     * @param file
+     * @param offset
+     * @param length
+     */
+    protected void setFileBody(String md5, File file, long offset, long length) {
+        mBodyMd5 = md5;
+        mBodyFile = file;
+        mBodyOffset = offset;
+        mContentLength = length;
+    }
+
+    private void sendFileBody(Socket socket, OutputStream outputStream) throws Exception {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(mBodyFile, "r");
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            //socket由ServerSocketChannel创建时可以直接transferTo到socket channel
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(outputStream);
+            long position = mBodyOffset;
+            long end = mBodyOffset + mContentLength;
+            while (position < end && shouldSendResponse(socket, mBodyMd5)) {
+                long count = fileChannel.transferTo(position, Math.min(TRANSFER_SIZE, end - position), target);
+                if (count <= 0) {
+                    throw new VideoCacheException("transfer file failed, position=" + position + ", file length=" + fileChannel.size());
+                }
+                position += count;
+            }
+            mBodyFinished = position >= end;
+        } finally {
+            ProxyCacheUtils.close(randomAccessFile);
+        }
+    }
+
     protected void sendBodyWithCorrectTransferAndEncoding(Socket socket, OutputStream outputStream) throws Exception {
         ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
         sendBody(socket, chunkedOutputStream, -1);
         chunkedOutputStream.finish();
     }
 
+    /**
+     * @param pending 需要发送的数据长度, -1表示长度未知, outputStream是chunked编码
+     */
     public abstract void sendBody(Socket socket, OutputStream outputStream, long pending) throws Exception;
 
     protected boolean shouldSendResponse(Socket socket, String md5) {
-        return !socket.isClosed() && TextUtils.equals(md5, VideoProxyCacheManager.getInstance().getPlayingUrlMd5()) && (mCurrentTime == ProxyCacheUtils.getSocketTime());
+        if (mCanceled || socket.isClosed()) {
+            return false;
+        }
+        return isLatestRequest(md5);
+    }
+
+    /**
+     * 当前请求是否还是最新的请求, 被替代的请求不再发送数据
+     * @param md5
+     * @return
+     */
+    protected boolean isLatestRequest(String md5) {
+        if (mSession != null) {
+            //同一个播放会话中只有最新的请求可以发送数据
+            return mSession.isLatestRequest(mCurrentTime);
+        }
+        return TextUtils.equals(md5, VideoProxyCacheManager.getInstance().getPlayingUrlMd5()) && (mCurrentTime == ProxyCacheUtils.getSocketTime());
     }
 
     protected int getDelayTime(int waitTime) {
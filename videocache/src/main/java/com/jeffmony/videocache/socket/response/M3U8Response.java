@@ -2,7 +2,9 @@ package com.jeffmony.videocache.socket.response;
 
 import android.text.TextUtils;
 
-import com.jeffmony.videocache.VideoLockManager;
+import com.coolerfall.download.BufferPool;
+import com.jeffmony.videocache.VideoAvailability;
+import com.jeffmony.videocache.VideoAvailabilityManager;
 import com.jeffmony.videocache.VideoProxyCacheManager;
 import com.jeffmony.videocache.common.VideoCacheException;
 import com.jeffmony.videocache.socket.request.HttpRequest;
@@ -33,72 +35,72 @@ public class M3U8Response extends BaseResponse {
 
     public M3U8Response(HttpRequest request, String videoUrl, Map<String, String> headers, long time) {
         super(request, videoUrl, headers, time);
-        mMd5 = ProxyCacheUtils.computeMD5(videoUrl);
+        mMd5 = ProxyCacheUtils.getCacheKey(videoUrl);
         mFile = new File(mCachePath, mMd5 + File.separator + mMd5 + StorageUtils.PROXY_M3U8_SUFFIX);
         mResponseState = ResponseState.OK;
     }
 
+    @Override
+    public String getVideoMd5() {
+        return mMd5;
+    }
+
+    @Override
+    public boolean isReadyToSend() {
+        return VideoProxyCacheManager.getInstance().isM3U8LiveType(mMd5) || isProxyM3U8Ready();
+    }
+
+    private boolean isProxyM3U8Ready() {
+        return mFile.exists() && VideoProxyCacheManager.getInstance().isM3U8LocalProxyReady(mMd5);
+    }
+
+    @Override
+    protected void prepareResponse(Socket socket) throws Exception {
+        if (isProxyM3U8Ready()) {
+            setFileBody(mMd5, mFile, 0, mFile.length());
+        }
+    }
+
     @Override
     public void sendBody(Socket socket, OutputStream outputStream, long pending) throws Exception {
         if (TextUtils.isEmpty(mMd5)) {
             throw new VideoCacheException("Get md5 failed");
         }
-        Object lock = VideoLockManager.getInstance().getLock(mMd5);
-        int waitTime = WAIT_TIME;
-        long wait = 0;
+        VideoAvailability availability = VideoAvailabilityManager.getInstance().getAvailability(mMd5);
 
         /**
          * 1.如果文件不存在或者proxy M3U8文件没有生成
          * 2.当前M3U8不能是直播
+         * proxy m3u8生成/直播/解析失败都会通知availability
          */
-        while((!mFile.exists() || !VideoProxyCacheManager.getInstance().isM3U8LocalProxyReady(mMd5)) && wait < TIME_OUT) {
+        long version = availability.getVersion();
+        while (!isProxyM3U8Ready()) {
             if (VideoProxyCacheManager.getInstance().isM3U8LiveType(mMd5)) {
                 throw new VideoCacheException("M3U8 is live type");
             }
-            synchronized (lock) {
-                lock.wait(waitTime);
+            if (!awaitDataChanged(socket, availability, version)) {
+                LogUtils.e(TAG, "Wait proxy m3u8 failed, canceled=" + isCanceled());
+                return;
             }
-            wait += WAIT_TIME;
-        }
-        if (!mFile.exists() || !VideoProxyCacheManager.getInstance().isM3U8LocalProxyReady(mMd5)) {
-            LogUtils.e(TAG, "timeout");
-            return;
+            version = availability.getVersion();
         }
         RandomAccessFile randomAccessFile = null;
+        byte[] buffer = BufferPool.getDefault().getBuf(StorageUtils.RESPONSE_BUFFER_SIZE);
 
         try {
             randomAccessFile = new RandomAccessFile(mFile, "r");
-
-            int bufferedSize = StorageUtils.DEFAULT_BUFFER_SIZE;
-            byte[] buffer = new byte[bufferedSize];
-            long available = randomAccessFile.length();
-            long offset = 0;
-
-            while (shouldSendResponse(socket, mMd5)) {
-                if (available == 0) {
-                    synchronized (lock) {
-                        waitTime = getDelayTime(waitTime);
-                        lock.wait(waitTime);
-                    }
-                    available = randomAccessFile.length();
-                    if (waitTime < MAX_WAIT_TIME) {
-                        waitTime *= 2;
-                    }
-                } else {
-                    randomAccessFile.seek(offset);
-                    int readLength;
-                    while ((readLength = randomAccessFile.read(buffer, 0, buffer.length)) != -1) {
-                        offset += readLength;
-                        outputStream.write(buffer, 0, readLength);
-                        randomAccessFile.seek(offset);
-                    }
-                    LogUtils.i(TAG, "Send M3U8 video info end, this="+this);
-                    break;
+            if (shouldSendResponse(socket, mMd5)) {
+                int readLength;
+                while ((readLength = randomAccessFile.read(buffer, 0, buffer.length)) != -1) {
+                    outputStream.write(buffer, 0, readLength);
                 }
+                LogUtils.i(TAG, "Send M3U8 video info end, this="+this);
+                mBodyFinished = true;
             }
         } catch (Exception e) {
             throw e;
         } finally {
+            BufferPool.getDefault().returnBuf(buffer);
             ProxyCacheUtils.close(randomAccessFile);
         }
     }
@@ -84,6 +84,11 @@ public class M3U8SegResponse extends BaseResponse {
         return Integer.parseInt(str);
     }
 
+    @Override
+    public String getVideoMd5() {
+        return mM3U8Md5;
+    }
+
     @Override
     public void sendBody(Socket socket, OutputStream outputStream, long pending) throws Exception {
         //因为下载过程的文件名称和已经完成的不一样，可以简化判断条件
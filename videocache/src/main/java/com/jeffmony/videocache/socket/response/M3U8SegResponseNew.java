@@ -1,6 +1,8 @@
 package com.jeffmony.videocache.socket.response;
 
-import com.jeffmony.videocache.VideoLockManager;
+import com.coolerfall.download.BufferPool;
+import com.jeffmony.videocache.VideoAvailability;
+import com.jeffmony.videocache.VideoAvailabilityManager;
 import com.jeffmony.videocache.VideoProxyCacheManager;
 import com.jeffmony.videocache.common.VideoCacheException;
 import com.jeffmony.videocache.socket.request.HttpRequest;
@@ -17,7 +19,6 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.Socket;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -48,10 +49,6 @@ public class M3U8SegResponseNew extends BaseResponse {
         mFileName = mSegFile.getName();
         LogUtils.i(TAG, "SegFilePath="+mSegFile.getAbsolutePath());
         mM3U8Md5 = getM3U8Md5(fileName);
-        if (mHeaders == null) {
-            mHeaders = new HashMap<>();
-        }
-        mHeaders.put("Connection", "close");
         mSegIndex = getSegIndex(fileName);
         mResponseState = ResponseState.OK;
         LogUtils.i(TAG, "start M3U8SegResponse: index=" + mSegIndex +", parentUrl=" + mParentUrl + "\n, segUrl=" + mSegUrl);
@@ -85,31 +82,46 @@ public class M3U8SegResponseNew extends BaseResponse {
         return Integer.parseInt(str);
     }
 
+    @Override
+    public String getVideoMd5() {
+        return mM3U8Md5;
+    }
+
+    @Override
+    public boolean isReadyToSend() {
+        return mSegFile.exists();
+    }
+
+    @Override
+    protected void prepareResponse(Socket socket) throws Exception {
+        //ts文件下载完成之后才会重命名, 文件存在说明已经完整缓存
+        if (mSegFile.exists()) {
+            setFileBody(mM3U8Md5, mSegFile, 0, mSegFile.length());
+        }
+    }
+
     @Override
     public void sendBody(Socket socket, OutputStream outputStream, long pending) throws Exception {
-        Object lock = VideoLockManager.getInstance().getLock(mM3U8Md5);
-        long wait = 0;
-        //todo 如何感知播放器已经断开，避免占用线程池
-        while(!mSegFile.exists() && wait < TIME_OUT) {
-            synchronized (lock) {
-                lock.wait(WAIT_TIME);
-            }
-            if (wait == 0) {
-                LogUtils.d(TAG,  "wait " + mSegFile.getName() + " available");
+        VideoAvailability availability = VideoAvailabilityManager.getInstance().getAvailability(mM3U8Md5);
+        //分片下载完成时会通知availability, 新的请求到来时也会唤醒, 旧的请求直接退出
+        long version = availability.getVersion();
+        while (!mSegFile.exists() && shouldSendResponse(socket, mM3U8Md5)) {
+            LogUtils.d(TAG,  "wait " + mSegFile.getName() + " available");
+            if (!awaitDataChanged(socket, availability, version)) {
+                break;
             }
-            wait += WAIT_TIME;
+            version = availability.getVersion();
         }
         //播放器可能超时
         if (!mSegFile.exists()) {
-            LogUtils.e(TAG, "wait " + mSegFile.getName() + " timeout" + " socket.isClosed:" + socket.isClosed() + ",socket.isOutputShutdown:" + socket.isOutputShutdown());
+            LogUtils.e(TAG, "wait " + mSegFile.getName() + " failed" + " socket.isClosed:" + socket.isClosed() + ",socket.isOutputShutdown:" + socket.isOutputShutdown());
             return;
         }
         RandomAccessFile randomAccessFile = null;
+        byte[] buffer = BufferPool.getDefault().getBuf(StorageUtils.RESPONSE_BUFFER_SIZE);
 
         try {
             randomAccessFile = new RandomAccessFile(mSegFile, "r");
-            int bufferedSize = StorageUtils.DEFAULT_BUFFER_SIZE;
-            byte[] buffer = new byte[bufferedSize];
             long offset = 0;
 
             if(shouldSendResponse(socket, mM3U8Md5)) {
@@ -121,14 +133,22 @@ public class M3U8SegResponseNew extends BaseResponse {
                     randomAccessFile.seek(offset);
                 }
                 LogUtils.d(TAG, "Send M3U8 ts file end, this="+this);
+                mBodyFinished = true;
             }
         } catch (Exception e) {
             throw e;
         } finally {
+            BufferPool.getDefault().returnBuf(buffer);
             ProxyCacheUtils.close(randomAccessFile);
         }
     }
 
+    @Override
+    protected void onCanceled() {
+        //播放器放弃了这个分片请求, 通知缓存任务
+        VideoProxyCacheManager.getInstance().cancelCacheTaskFromServer(mParentUrl, mCurrentTime, mSegIndex);
+    }
+
     private void downloadSegFile(String url, File file) throws Exception {
         LogUtils.i(TAG, "downloadSegFile file:" + file);
         HttpURLConnection connection = null;
@@ -153,6 +173,7 @@ public class M3U8SegResponseNew extends BaseResponse {
 
     private void saveSegFile(InputStream inputStream, File file) throws Exception {
         FileOutputStream fos = null;
+        byte[] buffer = null;
         long totalLength = 0;
         File tmpFile = new File(file.getParentFile(), file.getName() + TEMP_POSTFIX);
         if (tmpFile.exists()) {
@@ -161,7 +182,7 @@ public class M3U8SegResponseNew extends BaseResponse {
         try {
             fos = new FileOutputStream(tmpFile);
             int readLength;
-            byte[] buffer = new byte[StorageUtils.DEFAULT_BUFFER_SIZE];
+            buffer = BufferPool.getDefault().getBuf(StorageUtils.DEFAULT_BUFFER_SIZE);
             while ((readLength = inputStream.read(buffer)) != -1) {
                 totalLength += readLength;
                 fos.write(buffer, 0, readLength);
@@ -176,6 +197,7 @@ public class M3U8SegResponseNew extends BaseResponse {
             }
             throw e;
         } finally {
+            BufferPool.getDefault().returnBuf(buffer);
             ProxyCacheUtils.close(fos);
             ProxyCacheUtils.close(inputStream);
         }
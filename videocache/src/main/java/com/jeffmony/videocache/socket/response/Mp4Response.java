@@ -2,9 +2,13 @@ package com.jeffmony.videocache.socket.response;
 
 import android.text.TextUtils;
 
-import com.jeffmony.videocache.VideoLockManager;
+import com.coolerfall.download.BufferPool;
+import com.jeffmony.videocache.VideoAvailability;
+import com.jeffmony.videocache.VideoAvailabilityManager;
+import com.jeffmony.videocache.VideoStreamBuffer;
 import com.jeffmony.videocache.VideoProxyCacheManager;
 import com.jeffmony.videocache.common.VideoCacheException;
+import com.jeffmony.videocache.socket.request.HttpRange;
 import com.jeffmony.videocache.socket.request.HttpRequest;
 import com.jeffmony.videocache.socket.request.ResponseState;
 import com.jeffmony.videocache.utils.LogUtils;
@@ -26,49 +30,78 @@ public class Mp4Response extends BaseResponse {
 
     private final File mFile;
     private final String mMd5;
+    private final VideoAvailability mAvailability;
+    private volatile long mSendOffset = -1L;   //下一个要发送的位置, prepareResponse之前为-1
 
     public Mp4Response(HttpRequest request, String videoUrl, Map<String, String> headers, long time) throws Exception {
         super(request, videoUrl, headers, time);
-        mMd5 = ProxyCacheUtils.computeMD5(videoUrl);
+        mMd5 = ProxyCacheUtils.getCacheKey(videoUrl);
         mFile = new File(mCachePath, mMd5 + File.separator + mMd5 + StorageUtils.NON_M3U8_SUFFIX);
         mResponseState = ResponseState.OK;
-        Object lock = VideoLockManager.getInstance().getLock(mMd5);
-        mTotalSize = VideoProxyCacheManager.getInstance().getTotalSize(mMd5);
-        //等不到MP4文件大小就不返回
-        while (mTotalSize <= 0) {
-            synchronized (lock) {
-                lock.wait(WAIT_TIME);
-            }
-            mTotalSize = VideoProxyCacheManager.getInstance().getTotalSize(mMd5);
-        }
+        mAvailability = VideoAvailabilityManager.getInstance().getAvailability(mMd5);
+        VideoProxyCacheManager.getInstance().notifyRequestStarted(mVideoUrl, time);
+    }
 
-        String rangeStr = request.getRangeString();
-        mStartPosition = getRequestStartPosition(rangeStr);
-        LogUtils.i(TAG, "Range header=" + request.getRangeString() + ", start position="+mStartPosition +", instance="+this);
-        if (mStartPosition != -1) {
-            mResponseState = ResponseState.PARTIAL_CONTENT;
-            //服务端将range起始位置设置到客户端
-            VideoProxyCacheManager.getInstance().seekToCacheTaskFromServer(videoUrl, mStartPosition);
-        }
+    @Override
+    public String getVideoMd5() {
+        return mMd5;
     }
 
     /**
-     * 获取range请求的起始位置
-     * bytes=15372019-
-     * @param rangeStr
+     * prepareResponse之前: 等到MP4文件大小, 之后在线程池中解析range并seek缓存任务
+     * prepareResponse之后: 等到下一个要发送的位置有数据; 请求失效时也需要调度, 结束这个响应
      * @return
      */
-    private long getRequestStartPosition(String rangeStr) {
-        if (TextUtils.isEmpty(rangeStr)) {
-            return -1L;
+    @Override
+    public boolean isReadyToSend() {
+        long offset = mSendOffset;
+        if (offset < 0) {
+            return VideoProxyCacheManager.getInstance().getTotalSize(mMd5) > 0;
         }
-        if (rangeStr.startsWith("bytes=")) {
-            rangeStr = rangeStr.substring("bytes=".length());
-            if (rangeStr.contains("-")) {
-                return Long.parseLong(rangeStr.split("-")[0]);
+        return offset > mEndPosition || isCanceled() || !isLatestRequest(mMd5) ||
+                mAvailability.getReadablePosition(offset) > offset;
+    }
+
+    @Override
+    protected void prepareResponse(Socket socket) throws Exception {
+        VideoAvailability availability = mAvailability;
+        //等不到MP4文件大小就不返回
+        while (true) {
+            long version = availability.getVersion();
+            mTotalSize = VideoProxyCacheManager.getInstance().getTotalSize(mMd5);
+            if (mTotalSize > 0) {
+                break;
+            }
+            if (!awaitDataChanged(socket, availability, version) && isCanceled()) {
+                return;
             }
         }
-        return -1L;
+
+        String rangeStr = mRequest.getRangeString();
+        HttpRange range = HttpRange.parse(rangeStr, mTotalSize);
+        LogUtils.i(TAG, "Range header=" + rangeStr + ", range="+range +", instance="+this);
+        if (range == HttpRange.UNSATISFIABLE) {
+            mResponseState = ResponseState.RANGE_NOT_SATISFIABLE;
+            return;
+        }
+        if (range != null) {
+            mResponseState = ResponseState.PARTIAL_CONTENT;
+            mStartPosition = range.getStart();
+            mEndPosition = range.getEnd();
+        } else {
+            mStartPosition = 0;
+            mEndPosition = mTotalSize - 1;
+        }
+        mContentLength = mEndPosition - mStartPosition + 1;
+        mSendOffset = mStartPosition;
+        if (mFile.length() >= mTotalSize &&
+                VideoProxyCacheManager.getInstance().isMp4CompletedFromPosition(mVideoUrl, mStartPosition)) {
+            //range之后的数据已经完全缓存, 不需要seek缓存任务
+            setFileBody(mMd5, mFile, mStartPosition, mContentLength);
+        } else if (range != null) {
+            //服务端将range起始位置设置到客户端
+            VideoProxyCacheManager.getInstance().seekToCacheTaskFromServer(mVideoUrl, mStartPosition);
+        }
     }
 
     @Override
@@ -76,68 +109,77 @@ public class Mp4Response extends BaseResponse {
         if (TextUtils.isEmpty(mMd5)) {
             throw new VideoCacheException("Current md5 is illegal, instance="+this);
         }
-        Object lock = VideoLockManager.getInstance().getLock(mMd5);
-        int waitTime = WAIT_TIME;
+        VideoAvailability availability = mAvailability;
         LogUtils.i(TAG, "Current VideoFile exists : " + mFile.exists() + ", File length=" + mFile.length()+", instance=" + this);
         RandomAccessFile randomAccessFile = null;
+        byte[] buffer = BufferPool.getDefault().getBuf(StorageUtils.RESPONSE_BUFFER_SIZE);
         try {
             randomAccessFile = new RandomAccessFile(mFile, "r");
-            int bufferedSize = StorageUtils.DEFAULT_BUFFER_SIZE;
-            byte[] buffer = new byte[bufferedSize];
-            long offset = mStartPosition == -1L ? 0 : mStartPosition;
-
-            long avilable = VideoProxyCacheManager.getInstance().getMp4CachedPosition(mVideoUrl, offset);
-
-            while(shouldSendResponse(socket, mMd5)) {
-                if (avilable == 0) {
-                    synchronized (lock) {
-                        lock.wait(waitTime = getDelayTime(waitTime));
-                    }
-                    avilable = VideoProxyCacheManager.getInstance().getMp4CachedPosition(mVideoUrl, offset);
-                    waitTime *= 2;
-                } else {
-                    randomAccessFile.seek(offset);
-                    int readLength;
-
-                    long bufferLength = (avilable - offset + 1) > bufferedSize ? bufferedSize : (avilable - offset + 1);
-
-                    while (bufferLength > 0 && (readLength = randomAccessFile.read(buffer, 0, (int) bufferLength)) != -1) {
-                        offset += readLength;
-                        outputStream.write(buffer, 0, readLength);
-                        randomAccessFile.seek(offset);
-                        bufferLength = (avilable - offset + 1) > bufferedSize ? bufferedSize : (avilable - offset + 1);
-                    }
+            long offset = mSendOffset;   //挂起之后从上次发送的位置继续
+            long endOffset = mEndPosition + 1;   //不包含
+            long filePosition = -1;              //randomAccessFile当前的读取位置
 
-                    if (offset >= mTotalSize) {
-                        LogUtils.i(TAG, "# Video file is cached in local storage. instance=" + this);
+            while (offset < endOffset && shouldSendResponse(socket, mMd5)) {
+                //先获取version再检查数据, 保证不会错过下载线程的通知
+                long version = availability.getVersion();
+                long available = Math.min(availability.getReadablePosition(offset), endOffset);
+                //播放器读取到的位置, 预读窗口根据这个位置暂停或者恢复下载
+                VideoProxyCacheManager.getInstance().notifyMp4ReadPosition(mVideoUrl, offset);
+                if (available <= offset) {
+                    if (suspend()) {
+                        //NIO模式下不占用线程等待, 连接挂回selector, 数据到达之后继续发送
                         break;
                     }
-                    if (offset < avilable) {
-                        continue;
+                    if (!awaitDataChanged(socket, availability, version)) {
+                        LogUtils.w(TAG, "Wait video data timeout, offset=" + offset + ", instance=" + this);
+                        break;
                     }
-                    long lastAvailable = avilable;
-                    avilable = VideoProxyCacheManager.getInstance().getMp4CachedPosition(mVideoUrl, offset);
-                    waitTime = WAIT_TIME;
-                    while(avilable - lastAvailable < bufferedSize && shouldSendResponse(socket, mMd5)) {
-                        if (avilable >= mTotalSize - 1) {
-                            LogUtils.i(TAG, "## Video file is cached in local storage. instance=" + this);
+                    continue;
+                }
+                while (offset < available) {
+                    int length = (int) Math.min(buffer.length, available - offset);
+                    //刚下载的数据优先从共享缓冲区读取, 不需要再读一次磁盘
+                    VideoStreamBuffer streamBuffer = availability.getStreamBuffer();
+                    int readLength = streamBuffer != null ? streamBuffer.read(offset, buffer, 0, length) : -1;
+                    if (readLength <= 0) {
+                        //缓冲区的数据已经被覆盖, 只能读取已经写入文件的部分, 还没有写入时重新等待
+                        long written = Math.min(availability.getAvailablePosition(offset), available);
+                        if (written <= offset) {
                             break;
                         }
-
-                        synchronized (lock) {
-                            lock.wait(waitTime = getDelayTime(waitTime));
+                        length = (int) Math.min(length, written - offset);
+                        if (filePosition != offset) {
+                            randomAccessFile.seek(offset);
+                        }
+                        readLength = randomAccessFile.read(buffer, 0, length);
+                        if (readLength == -1) {
+                            throw new VideoCacheException("Read video file failed, offset=" + offset + ", file length=" + randomAccessFile.length());
                         }
-                        avilable = VideoProxyCacheManager.getInstance().getMp4CachedPosition(mVideoUrl, offset);
-                        waitTime *= 2;
+                        filePosition = offset + readLength;
                     }
+                    outputStream.write(buffer, 0, readLength);
+                    offset += readLength;
+                    mSendOffset = offset;
                 }
             }
-            LogUtils.i(TAG, "Send video info end, instance="+this);
+            mBodyFinished = offset >= endOffset;
+            if (isSuspended()) {
+                LogUtils.d(TAG, "Suspend sending video, offset=" + offset + ", instance=" + this);
+                return;
+            }
+            LogUtils.i(TAG, "Send video info end, finished=" + mBodyFinished + ", instance="+this);
         } catch (Exception e) {
             LogUtils.w(TAG, "Send video info failed, exception="+e+", this="+this);
             throw e;
         } finally {
+            BufferPool.getDefault().returnBuf(buffer);
             ProxyCacheUtils.close(randomAccessFile);
         }
     }
+
+    @Override
+    protected void onCanceled() {
+        //播放器放弃了这个range请求, 通知缓存任务
+        VideoProxyCacheManager.getInstance().cancelCacheTaskFromServer(mVideoUrl, mCurrentTime, mStartPosition);
+    }
 }
@@ -2,6 +2,7 @@ package com.jeffmony.videocache.task;
 
 import android.text.TextUtils;
 
+import com.coolerfall.download.BufferPool;
 import com.jeffmony.videocache.common.VideoCacheException;
 import com.jeffmony.videocache.m3u8.M3U8;
 import com.jeffmony.videocache.m3u8.M3U8Seg;
@@ -224,6 +225,7 @@ public class M3U8CacheTask extends VideoCacheTask {
 
     private void saveSegFile(InputStream inputStream, File file, long contentLength, M3U8Seg seg, String downloadUrl) throws Exception {
         FileOutputStream fos = null;
+        byte[] buf = null;
         long totalLength = 0;
         File tmpFile = new File(file.getParentFile(), file.getName() + TEMP_POSTFIX);
         if (tmpFile.exists()) {
@@ -232,7 +234,7 @@ public class M3U8CacheTask extends VideoCacheTask {
         try {
             fos = new FileOutputStream(tmpFile);
             int len;
-            byte[] buf = new byte[StorageUtils.DEFAULT_BUFFER_SIZE];
+            buf = BufferPool.getDefault().getBuf(StorageUtils.DEFAULT_BUFFER_SIZE);
             while ((len = inputStream.read(buf)) != -1) {
                 totalLength += len;
                 fos.write(buf, 0, len);
@@ -277,6 +279,7 @@ public class M3U8CacheTask extends VideoCacheTask {
             }
 
         } finally {
+            BufferPool.getDefault().returnBuf(buf);
             ProxyCacheUtils.close(inputStream);
             ProxyCacheUtils.close(fos);
         }
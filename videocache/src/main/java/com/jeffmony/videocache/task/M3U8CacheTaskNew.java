@@ -5,6 +5,7 @@ import android.os.Looper;
 import android.os.SystemClock;
 
 import com.coolerfall.download.DownloadCallback;
+import com.jeffmony.videocache.VideoAvailabilityManager;
 import com.jeffmony.videocache.common.VideoCacheException;
 import com.jeffmony.videocache.m3u8.M3U8;
 import com.jeffmony.videocache.m3u8.M3U8Seg;
@@ -39,6 +40,7 @@ public class M3U8CacheTaskNew extends VideoCacheTask {
     private float maxSpeed = 0;
     private float minSpeed = 0;
     private int expectedSeekIndex = 0;
+    private long mLatestSegRequestTime = 0L; //最新的分片请求时间, 只在mHandler线程访问; 播放会话和进程内读取不会更新全局的socket time
 
     private volatile boolean initFlag = false;
 
@@ -143,11 +145,12 @@ public class M3U8CacheTaskNew extends VideoCacheTask {
     public void seekToCacheTaskFromServer(int segIndex, long time) {
         //来自于外部线程调用
         mHandler.post(() -> {
-            if (ProxyCacheUtils.getSocketTime() != time) {
+            if (time < mLatestSegRequestTime) {
                 //解决由于线程调度问题，可能旧的请求后于新的请求执行，这样子就乱套了，不过概率应该比较小
                 LogUtils.e(TAG, "seekToCacheTaskFromServer: out of date:" + segIndex);
                 return;
             }
+            mLatestSegRequestTime = time;
             mSeekIndex = segIndex;
             LogUtils.i(TAG, "seekToCacheTaskFromServer segIndex=" + mSeekIndex + " expectedSeekIndex:" + expectedSeekIndex);
             //必须保证当前请求可以下载
@@ -164,6 +167,19 @@ public class M3U8CacheTaskNew extends VideoCacheTask {
         });
     }
 
+    @Override
+    public void cancelCacheTaskFromServer(int segIndex) {
+        mHandler.post(() -> {
+            if (segIndex != mSeekIndex || !isStart) {
+                //播放器已经在请求其他分片了
+                return;
+            }
+            //播放器放弃了当前的分片, 正在下载的分片都不再需要
+            LogUtils.i(TAG, "cancelCacheTaskFromServer segIndex=" + segIndex);
+            pauseCacheTask();
+        });
+    }
+
     private final DownloadCallback mCallback = new DownloadCallback() {
         @Override
         public void onStart(int downloadId, long totalBytes) {
@@ -182,6 +198,8 @@ public class M3U8CacheTaskNew extends VideoCacheTask {
 
         @Override
         public void onSuccess(int downloadId, String filePath, long totalBytes, long time) {
+            //分片文件已经重命名完成, 立即唤醒等待该分片的本地代理请求
+            VideoAvailabilityManager.getInstance().notifyChanged(mCacheInfo.getMd5());
             //更新进度,子线程回调
             //mHandler不能做耗时操作，否则会影响消息处理速度
             mHandler.post(() -> {
@@ -1,14 +1,24 @@
 package com.jeffmony.videocache.task;
 
+import com.jeffmony.videocache.VideoAvailability;
+import com.jeffmony.videocache.VideoAvailabilityManager;
+import com.jeffmony.videocache.VideoProxyCacheManager;
 import com.jeffmony.videocache.listener.IMp4CacheThreadListener;
 import com.jeffmony.videocache.model.VideoCacheInfo;
 import com.jeffmony.videocache.model.VideoRange;
+import com.jeffmony.videocache.model.VideoRangeSet;
+import com.jeffmony.videocache.mp4.Mp4SampleIndex;
+import com.jeffmony.videocache.mp4.Mp4SampleIndexLoader;
+import com.jeffmony.videocache.mp4.Mp4BoxScanner;
 import com.jeffmony.videocache.utils.LogUtils;
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
+import com.jeffmony.videocache.utils.StorageUtils;
 import com.jeffmony.videocache.utils.VideoProxyThreadUtils;
-import com.jeffmony.videocache.utils.VideoRangeUtils;
 
-import java.util.LinkedHashMap;
+import java.io.File;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author jeffmony
@@ -19,43 +29,40 @@ public class Mp4CacheTask extends VideoCacheTask {
 
     private static final String TAG = "Mp4CacheSingleTask";
 
+    private static final long MOOV_SCAN_LIMIT = 1024 * 1024;   //文件开头下载了这么多还找不到mdat就不再扫描
+
     private Mp4VideoCacheThread mVideoCacheThread;
-    private final Object mSegMapLock = new Object();
-    private LinkedHashMap<Long, Long> mVideoSegMap;            //本地序列化的range结构
-    private LinkedHashMap<Long, VideoRange> mVideoRangeMap;    //已经缓存的video range结构
+    //已经缓存的video range结构, 只在updateVideoRangeInfo中发布新的快照, socket线程读取时不需要加锁
+    private final AtomicReference<VideoRangeSet> mVideoRangeSet = new AtomicReference<>(VideoRangeSet.EMPTY);
     private VideoRange mRequestRange;                          //当前请求的video range
+    private Mp4VideoCacheThread mMoovCacheThread;              //预取文件尾部moov的线程, 和顺序下载同时进行
+    private volatile boolean mMoovScanFinished;                //已经确定moov的位置, 不需要再扫描
     private long mCachedSize;                                  //已经缓存的文件大小
 
     private final String mVideoUrl;
+    private final VideoAvailability mAvailability;             //已经写入文件的区间
+    private final Mp4SampleIndexLoader mSampleIndexLoader;     //moov缓存完整之后解析关键帧索引
+    private final long mReadAheadWindowMs;                     //预读窗口, 0表示完整下载
+    private volatile long mReadPosition;                       //播放器最近读取的位置
+    private volatile boolean mReadAheadPaused;                 //缓存超过预读窗口暂停了顺序下载
 
     public Mp4CacheTask(VideoCacheInfo cacheInfo, Map<String, String> headers) {
         super(cacheInfo, headers);
         mTotalSize = cacheInfo.getTotalSize();
-        mVideoSegMap = cacheInfo.getVideoSegMap();
-        if (mVideoSegMap == null) {
-            mVideoSegMap = new LinkedHashMap<>();
-        }
-        if (mVideoRangeMap == null) {
-            mVideoRangeMap = new LinkedHashMap<>();
-        }
         mVideoUrl = cacheInfo.getVideoUrl();
+        mAvailability = VideoAvailabilityManager.getInstance().acquireAvailability(cacheInfo.getMd5());
         initVideoSegInfo();
+        mSampleIndexLoader = new Mp4SampleIndexLoader(new File(mSaveDir, cacheInfo.getMd5() + StorageUtils.NON_M3U8_SUFFIX), mTotalSize, mAvailability,
+                VideoProxyCacheManager.getInstance().getThreadHandler());
+        mReadAheadWindowMs = ProxyCacheUtils.getConfig().getMp4ReadAheadSeconds() * 1000L;
     }
 
     private void initVideoSegInfo() {
-        if (mVideoSegMap.isEmpty()) {
+        VideoRangeSet rangeSet = recoverMp4RangeSet(mAvailability);
+        mVideoRangeSet.set(rangeSet);
+        if (rangeSet.isEmpty()) {
             //当前没有缓存,需要从头下载
             mRequestRange = new VideoRange(0, mTotalSize);
-        } else {
-            for (Map.Entry<Long, Long> entry : mVideoSegMap.entrySet()) {
-                //因为mVideoSegMap是顺序存储的,所有这样的操作是可以的
-                long start = entry.getKey();
-                long end = entry.getValue();
-                mVideoRangeMap.put(start, new VideoRange(start, end));
-                /**
-                 * mVideoRangeMap中的key是起始位置, value是存储的VideoRange结构
-                 */
-            }
         }
     }
 
@@ -82,29 +89,7 @@ public class Mp4CacheTask extends VideoCacheTask {
      * @return
      */
     public VideoRange getRequestRange(long position) {
-        if (mVideoRangeMap.isEmpty()) {
-            return new VideoRange(0, mTotalSize);
-        } else {
-            long start = -1;
-            long end = -1;
-            for(Map.Entry<Long, VideoRange> entry : mVideoRangeMap.entrySet()) {
-                VideoRange videoRange = entry.getValue();
-                if (position < videoRange.getStart()) {
-                    end = videoRange.getStart();
-                } else if (position <= videoRange.getEnd()) {
-                    start = videoRange.getEnd();
-                } else {
-                    //说明position 在当前的videoRange之后
-                }
-            }
-            if (start == -1) {
-                start = position;
-            }
-            if (end == -1) {
-                end = mTotalSize;
-            }
-            return new VideoRange(start, end);
-        }
+        return mVideoRangeSet.get().getRequestRange(position, mTotalSize);
     }
 
     private IMp4CacheThreadListener mCacheThreadListener = new IMp4CacheThreadListener() {
@@ -116,6 +101,9 @@ public class Mp4CacheTask extends VideoCacheTask {
         @Override
         public void onCacheProgress(VideoRange range, long cachedSize, float speed, float percent) {
             notifyOnCacheProgress(cachedSize, speed, percent);
+            checkMoovPosition();
+            mSampleIndexLoader.requestLoad(false);
+            checkReadAheadPosition(cachedSize);
         }
 
         @Override
@@ -129,6 +117,43 @@ public class Mp4CacheTask extends VideoCacheTask {
         }
     };
 
+    private IMp4CacheThreadListener mMoovCacheThreadListener = new IMp4CacheThreadListener() {
+        @Override
+        public void onCacheFailed(VideoRange range, Exception e) {
+            //预取失败不影响顺序下载, 播放器请求moov时还会走seek逻辑
+            LogUtils.w(TAG, "Prefetch moov failed, range=" + range + ", exception=" + e);
+            stopMoovCacheThread(range);
+        }
+
+        @Override
+        public void onCacheProgress(VideoRange range, long cachedSize, float speed, float percent) {
+
+        }
+
+        @Override
+        public void onCacheRangeCompleted(VideoRange range) {
+            boolean completed;
+            synchronized (Mp4CacheTask.this) {
+                if (mMoovCacheThread == null || mMoovCacheThread.getRequestRange() != range) {
+                    return;
+                }
+                LogUtils.i(TAG, "Prefetch moov completed, range=" + range);
+                mMoovCacheThread = null;
+                updateVideoRangeInfo(range);
+                completed = mCacheInfo.isCompleted();
+            }
+            mSampleIndexLoader.requestLoad(true);
+            if (completed) {
+                notifyOnTaskCompleted();
+            }
+        }
+
+        @Override
+        public void onCacheCompleted(VideoRange range) {
+
+        }
+    };
+
     @Override
     public void startCacheTask() {
         if (mCacheInfo.isCompleted()) {
@@ -139,11 +164,129 @@ public class Mp4CacheTask extends VideoCacheTask {
         LogUtils.i(TAG, "startCacheTask");
         VideoRange requestRange = getRequestRange(0L);
         startVideoCacheThread(requestRange);
+        //文件开头已经缓存过, 直接检查moov的位置
+        checkMoovPosition();
+    }
+
+    /**
+     * 非faststart的MP4文件, 播放器读完文件头就会请求尾部的moov
+     * 在下载文件开头的同时预取moov, 避免播放器请求moov时中断顺序下载
+     */
+    private void checkMoovPosition() {
+        if (mMoovScanFinished || mTotalSize <= 0) {
+            return;
+        }
+        long availableLength = mAvailability.getAvailablePosition(0L);
+        if (availableLength <= 0) {
+            return;
+        }
+        long moovPosition;
+        try {
+            moovPosition = Mp4BoxScanner.findMoovPosition(new File(mSaveDir, mCacheInfo.getMd5() + StorageUtils.NON_M3U8_SUFFIX), availableLength, mTotalSize);
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Scan mp4 boxes failed, exception=" + e);
+            moovPosition = Mp4BoxScanner.NOT_FOUND;
+        }
+        if (moovPosition == Mp4BoxScanner.NEED_MORE_DATA && availableLength < MOOV_SCAN_LIMIT && availableLength < mTotalSize) {
+            return;
+        }
+        mMoovScanFinished = true;
+        LogUtils.i(TAG, "checkMoovPosition moovPosition=" + moovPosition);
+        if (moovPosition >= 0) {
+            startMoovCacheThread(moovPosition);
+        }
+    }
+
+    private synchronized void startMoovCacheThread(long moovPosition) {
+        if (mMoovCacheThread != null || isMp4CompletedFromPosition(moovPosition)) {
+            return;
+        }
+        if (mVideoCacheThread != null && mVideoCacheThread.isRunning() && mRequestRange != null &&
+                mRequestRange.getStart() <= moovPosition && moovPosition <= mCachedSize) {
+            //顺序下载已经到了moov的位置
+            return;
+        }
+        VideoRange moovRange = getRequestRange(moovPosition);
+        if (moovRange.getStart() >= moovRange.getEnd()) {
+            return;
+        }
+        LogUtils.i(TAG, "startMoovCacheThread " + moovRange);
+        mMoovCacheThread = new Mp4VideoCacheThread(mVideoUrl, mHeaders, moovRange, mTotalSize, mSaveDir.getAbsolutePath(), mMoovCacheThreadListener, false);
+        VideoProxyThreadUtils.submitDownloadTask(mMoovCacheThread);
+    }
+
+    //暂停预取并记录已经下载的部分
+    private synchronized void stopMoovCacheThread(VideoRange range) {
+        if (mMoovCacheThread == null || (range != null && mMoovCacheThread.getRequestRange() != range)) {
+            return;
+        }
+        mMoovCacheThread.pause();
+        updateVideoRangeInfo(new VideoRange(mMoovCacheThread.getRequestRange().getStart(), mMoovCacheThread.getCachedPosition()));
+        mMoovCacheThread = null;
+    }
+
+    /**
+     * 顺序下载超过播放位置之后的预读窗口时暂停, 节省流量
+     * 播放器继续读取时在notifyReadPosition中恢复
+     */
+    private void checkReadAheadPosition(long cachedSize) {
+        if (mReadAheadWindowMs <= 0 || cachedSize >= mTotalSize ||
+                cachedSize < getMp4ReadAheadPosition(mReadPosition, mReadAheadWindowMs)) {
+            return;
+        }
+        synchronized (this) {
+            if (mVideoCacheThread == null || !mVideoCacheThread.isRunning()) {
+                return;
+            }
+            LogUtils.i(TAG, "Pause by read ahead window, cachedSize=" + cachedSize + ", readPosition=" + mReadPosition);
+            pauseVideoCacheThread();
+            mReadAheadPaused = true;
+        }
+    }
+
+    @Override
+    public void notifyReadPosition(long position) {
+        mReadPosition = position;
+        if (!mReadAheadPaused) {
+            return;
+        }
+        //剩余的缓存不到半个窗口时才恢复, 避免频繁的暂停和请求
+        long availablePosition = mAvailability.getAvailablePosition(position);
+        if (availablePosition >= getMp4ReadAheadPosition(position, mReadAheadWindowMs / 2)) {
+            return;
+        }
+        synchronized (this) {
+            if (!mReadAheadPaused || (mVideoCacheThread != null && mVideoCacheThread.isRunning())) {
+                return;
+            }
+            LogUtils.i(TAG, "Resume by read ahead window, readPosition=" + position + ", availablePosition=" + availablePosition);
+            VideoRange requestRange = getRequestRange(availablePosition);
+            if (requestRange.getStart() < requestRange.getEnd()) {
+                startVideoCacheThread(requestRange);
+            }
+        }
     }
 
     @Override
     public synchronized void pauseCacheTask() {
         LogUtils.i(TAG, "pauseCacheTask");
+        pauseCacheThreads();
+        //暂停期间不需要共享缓冲区, 恢复下载时重新创建
+        mAvailability.releaseStreamBuffer();
+    }
+
+    private synchronized void pauseCacheThreads() {
+        mReadAheadPaused = false;
+        if (mMoovCacheThread != null) {
+            stopMoovCacheThread(null);
+            //恢复时重新检查
+            mMoovScanFinished = false;
+        }
+        pauseVideoCacheThread();
+    }
+
+    //暂停顺序下载并记录已经下载的部分
+    private synchronized void pauseVideoCacheThread() {
         if (mVideoCacheThread != null && mVideoCacheThread.isRunning()) {
             mVideoCacheThread.pause();
             mVideoCacheThread = null;
@@ -160,21 +303,45 @@ public class Mp4CacheTask extends VideoCacheTask {
     @Override
     public void stopCacheTask() {
         LogUtils.i(TAG, "stopCacheTask");
+        stopMoovCacheThread(null);
         if (mVideoCacheThread != null) {
             mVideoCacheThread.pause();
             mVideoCacheThread = null;
         }
+        closeBlockBitmap(mAvailability);
         if (!mCacheInfo.isCompleted() && mRequestRange != null) {
             long tempRangeStart = mRequestRange.getStart();
             long tempRangeEnd = mCachedSize;
             mRequestRange = new VideoRange(tempRangeStart, tempRangeEnd);
             updateVideoRangeInfo();
         }
+        closeRangeJournal(mAvailability, mVideoRangeSet.get());
+        VideoAvailabilityManager.getInstance().releaseAvailability(mCacheInfo.getMd5(), mAvailability);
     }
 
     @Override
     public void seekToCacheTaskFromClient(float percent) {
-        //来自客户端的seek操作
+        //来自客户端的seek操作, percent是播放进度的比例(0~1)
+        Mp4SampleIndex sampleIndex = getMp4SampleIndex();
+        if (sampleIndex == null || sampleIndex.getDurationMs() <= 0) {
+            //还不知道关键帧的位置, 等待播放器的请求
+            return;
+        }
+        seekToCacheTaskFromClientByTime((long) (percent * sampleIndex.getDurationMs()));
+    }
+
+    @Override
+    public void seekToCacheTaskFromClientByTime(long timeMs) {
+        //不用等播放器的请求到达本地代理, 直接从关键帧的位置开始缓存
+        Mp4SampleIndex sampleIndex = getMp4SampleIndex();
+        if (sampleIndex == null || mCacheInfo.isCompleted()) {
+            return;
+        }
+        long offset = sampleIndex.getKeyframeOffset(timeMs);
+        LogUtils.i(TAG, "seekToCacheTaskFromClientByTime ====> timeMs=" + timeMs + ", keyframe offset=" + offset);
+        if (offset >= 0 && !isMp4CompletedFromPosition(offset) && mAvailability.getAvailablePosition(offset) == offset) {
+            seekToCacheTaskFromServer(offset);
+        }
     }
 
     @Override
@@ -198,14 +365,24 @@ public class Mp4CacheTask extends VideoCacheTask {
         } else {
             shouldSeekToCacheTask = true;
         }
+        mReadPosition = startPosition;
         LogUtils.i(TAG, "seekToCacheTaskFromServer ====> shouldSeekToCacheTask="+shouldSeekToCacheTask+", startPosition="+startPosition);
         if (shouldSeekToCacheTask) {
-            pauseCacheTask();
+            pauseCacheThreads();
             VideoRange requestRange = getRequestRange(startPosition);
             startVideoCacheThread(requestRange);
         }
     }
 
+    @Override
+    public void cancelCacheTaskFromServer(long startPosition) {
+        //当前下载的range是为被取消的请求发起的, 暂停下载, 把带宽让给其他视频
+        if (mVideoCacheThread != null && mVideoCacheThread.isPositionContained(startPosition)) {
+            LogUtils.i(TAG, "cancelCacheTaskFromServer ====> startPosition=" + startPosition);
+            pauseCacheTask();
+        }
+    }
+
     /**
      * true   ====>  表示重新发起请求
      * false  ====>  表示没有必要重新发起请求
@@ -219,6 +396,11 @@ public class Mp4CacheTask extends VideoCacheTask {
         if (mCacheInfo.isCompleted()) {
             return false;
         }
+        Mp4VideoCacheThread moovCacheThread = mMoovCacheThread;
+        if (moovCacheThread != null && moovCacheThread.isPositionContained(startPosition)) {
+            //播放器请求的moov正在预取, 不需要中断顺序下载
+            return false;
+        }
         if (mRequestRange != null) {
             boolean result = mRequestRange.getStart() <= startPosition && startPosition < mRequestRange.getEnd();
             if (result) {
@@ -242,10 +424,12 @@ public class Mp4CacheTask extends VideoCacheTask {
         if (mCachedSize < mTotalSize) {
             VideoRange requestRange = getRequestRange(mCachedSize);
             startVideoCacheThread(requestRange);
+            checkMoovPosition();
         }
     }
 
     private void startVideoCacheThread(VideoRange requestRange) {
+        mReadAheadPaused = false;
         mRequestRange = requestRange;
         mVideoCacheThread = new Mp4VideoCacheThread(mVideoUrl, mHeaders, requestRange, mTotalSize, mSaveDir.getAbsolutePath(), mCacheThreadListener);
         VideoProxyThreadUtils.submitRunnableTask(mVideoCacheThread);
@@ -262,100 +446,44 @@ public class Mp4CacheTask extends VideoCacheTask {
     private void notifyOnCacheRangeCompleted(long startPosition) {
         //这时候已经缓存好了一段分片,可以更新一下video range数据结构了
         updateVideoRangeInfo();
+        mSampleIndexLoader.requestLoad(true);
         if (mCacheInfo.isCompleted()) {
             notifyOnTaskCompleted();
         } else {
-            if (startPosition == mTotalSize) {
-                //说明已经缓存好,但是整视频中间还有一些洞,但是不影响,可以忽略
+            VideoRange requestRange = getRequestRange(startPosition);
+            if (startPosition == mTotalSize || requestRange.getStart() >= requestRange.getEnd()) {
+                //说明已经缓存好(包括预取的moov),但是整视频中间还有一些洞,但是不影响,可以忽略
+            } else if (mReadAheadPaused || requestRange.getStart() >= getMp4ReadAheadPosition(mReadPosition, mReadAheadWindowMs)) {
+                //下一段在预读窗口之外, 等播放器继续读取时再下载
+                mReadAheadPaused = true;
             } else {
                 //开启下一段视频分片的缓存
-                VideoRange requestRange = getRequestRange(startPosition);
                 startVideoCacheThread(requestRange);
             }
         }
 
     }
 
-    private synchronized void updateVideoRangeInfo() {
-        if (!mVideoRangeMap.isEmpty()) {
-            long finalStart = -1;
-            long finalEnd = -1;
-
-            long requestStart = mRequestRange.getStart();
-            long requestEnd = mRequestRange.getEnd();
-            for(Map.Entry<Long, VideoRange> entry : mVideoRangeMap.entrySet()) {
-                VideoRange videoRange = entry.getValue();
-                long startResult = VideoRangeUtils.determineVideoRangeByPosition(videoRange, requestStart);
-                long endResult = VideoRangeUtils.determineVideoRangeByPosition(videoRange, requestEnd);
-
-                if (finalStart == -1) {
-                    if (startResult == 1) {
-                        finalStart = requestStart;
-                    } else if (startResult == 2) {
-                        finalStart = videoRange.getStart();
-                    } else {
-                        //先别急着赋值,还要看下一个videoRange
-                    }
-                }
-                if (finalEnd == -1) {
-                    if (endResult == 1) {
-                        finalEnd = requestEnd;
-                    } else if (endResult == 2) {
-                        finalEnd = videoRange.getEnd();
-                    } else {
-                        //先别急着赋值,还要看下一个videoRange
-                    }
-                }
-            }
-            if (finalStart == -1) {
-                finalStart = requestStart;
-            }
-            if (finalEnd == -1) {
-                finalEnd = requestEnd;
-            }
+    private void updateVideoRangeInfo() {
+        updateVideoRangeInfo(mRequestRange);
+    }
 
-            VideoRange finalVideoRange = new VideoRange(finalStart, finalEnd);
-            LogUtils.i(TAG, "updateVideoRangeInfo--->finalVideoRange: " + finalVideoRange);
-
-            LinkedHashMap<Long, VideoRange> tempVideoRangeMap = new LinkedHashMap<>();
-            for(Map.Entry<Long, VideoRange> entry : mVideoRangeMap.entrySet()) {
-                VideoRange videoRange = entry.getValue();
-                if (VideoRangeUtils.containsVideoRange(finalVideoRange, videoRange)) {
-                    tempVideoRangeMap.put(finalVideoRange.getStart(), finalVideoRange);
-                } else if (VideoRangeUtils.compareVideoRange(finalVideoRange, videoRange) == 1) {
-                    tempVideoRangeMap.put(finalVideoRange.getStart(), finalVideoRange);
-                    tempVideoRangeMap.put(videoRange.getStart(), videoRange);
-                } else if (VideoRangeUtils.compareVideoRange(finalVideoRange, videoRange) == 2) {
-                    tempVideoRangeMap.put(videoRange.getStart(), videoRange);
-                    tempVideoRangeMap.put(finalVideoRange.getStart(), finalVideoRange);
-                }
-            }
-            mVideoRangeMap.clear();
-            mVideoRangeMap.putAll(tempVideoRangeMap);
-        } else {
-            LogUtils.i(TAG, "updateVideoRangeInfo--->mRequestRange : " + mRequestRange);
-            mVideoRangeMap.put(mRequestRange.getStart(), mRequestRange);
+    private synchronized void updateVideoRangeInfo(VideoRange range) {
+        VideoRangeSet rangeSet = mVideoRangeSet.get();
+        if (range != null && range.getStart() < range.getEnd()) {
+            rangeSet = rangeSet.add(range.getStart(), range.getEnd());
+            mVideoRangeSet.set(rangeSet);
         }
+        LogUtils.i(TAG, "updateVideoRangeInfo--->range : " + range + ", result : " + rangeSet);
 
-        LinkedHashMap<Long, Long> tempSegMap = new LinkedHashMap<>();
-        for(Map.Entry<Long, VideoRange> entry : mVideoRangeMap.entrySet()) {
-            VideoRange videoRange = entry.getValue();
-            LogUtils.i(TAG, "updateVideoRangeInfo--->Result videoRange : " + videoRange);
-            tempSegMap.put(videoRange.getStart(), videoRange.getEnd());
-        }
-        synchronized (mSegMapLock) {
-            mVideoSegMap.clear();
-            mVideoSegMap.putAll(tempSegMap);
-        }
-        mCacheInfo.setVideoSegMap(mVideoSegMap);
+        //每次生成新的map, 不修改正在被序列化的map
+        mCacheInfo.setVideoSegMap(rangeSet.toSegMap());
 
-        if (mVideoRangeMap.size() == 1) {
-            VideoRange videoRange = mVideoRangeMap.get(0L);
-            LogUtils.i(TAG, "updateVideoRangeInfo---> videoRange : " + videoRange);
-            if (videoRange != null && videoRange.equals(new VideoRange(0, mTotalSize))) {
-                LogUtils.i(TAG, "updateVideoRangeInfo--->Set completed");
-                mCacheInfo.setIsCompleted(true);
-            }
+        if (rangeSet.size() == 1 && rangeSet.getStart(0) == 0 && mTotalSize > 0 && rangeSet.getEnd(0) >= mTotalSize) {
+            LogUtils.i(TAG, "updateVideoRangeInfo--->Set completed");
+            mCacheInfo.setIsCompleted(true);
+            closeBlockBitmap(mAvailability);
+            closeRangeJournal(mAvailability, mVideoRangeSet.get());
         }
 
         //子线程中执行
@@ -363,16 +491,47 @@ public class Mp4CacheTask extends VideoCacheTask {
     }
 
     @Override
-    public long getMp4CachedPosition(long position) {
-        if (mVideoCacheThread != null && mVideoCacheThread.isPositionContained(position)) {
-            return mVideoCacheThread.getRangeEndPosition();
+    public boolean isMp4PositionSegExisted(long startPosition) {
+        if (mCacheInfo.isCompleted()) {
+            return true;
         }
-        for (Map.Entry entry : mVideoRangeMap.entrySet()) {
-            VideoRange range = (VideoRange)entry.getValue();
-            if (range != null && range.contains(position)) {
-                return range.getEnd();
-            }
+        //位图只需要测试一个bit, 没有位图或者所在的块还没有写完时再查区间
+        return mAvailability.isBlockCached(startPosition) || mAvailability.getAvailablePosition(startPosition) > startPosition;
+    }
+
+    @Override
+    public Mp4SampleIndex getMp4SampleIndex() {
+        Mp4SampleIndex sampleIndex = mSampleIndexLoader.getSampleIndex();
+        if (sampleIndex == null) {
+            //这次返回null, 解析完成之后的调用可以拿到
+            mSampleIndexLoader.requestLoad(false);
         }
-        return 0L;
+        return sampleIndex;
+    }
+
+    @Override
+    public boolean isMp4Completed() {
+        return mCacheInfo.isCompleted();
+    }
+
+    @Override
+    public boolean isMp4CompletedFromPosition(long position) {
+        if (mCacheInfo.isCompleted()) {
+            return true;
+        }
+        if (mTotalSize <= 0) {
+            return false;
+        }
+        return mVideoRangeSet.get().isCompletedFromPosition(position, mTotalSize);
+    }
+
+    /**
+     * 从position开始连续缓存的结束位置(不包含), 由下载线程实际写入的数据决定
+     * @param position
+     * @return position没有缓存时返回position
+     */
+    @Override
+    public long getMp4CachedPosition(long position) {
+        return mAvailability.getAvailablePosition(position);
     }
 }
@@ -0,0 +1,495 @@
+package com.jeffmony.videocache.task;
+
+import android.os.SystemClock;
+
+import com.jeffmony.videocache.VideoAvailability;
+import com.jeffmony.videocache.VideoAvailabilityManager;
+import com.jeffmony.videocache.VideoProxyCacheManager;
+import com.jeffmony.videocache.listener.IMp4CacheThreadListener;
+import com.jeffmony.videocache.model.VideoCacheInfo;
+import com.jeffmony.videocache.model.VideoRange;
+import com.jeffmony.videocache.model.VideoRangeSet;
+import com.jeffmony.videocache.mp4.Mp4SampleIndex;
+import com.jeffmony.videocache.mp4.Mp4SampleIndexLoader;
+import com.jeffmony.videocache.utils.LogUtils;
+import com.jeffmony.videocache.utils.ProxyCacheUtils;
+import com.jeffmony.videocache.utils.StorageUtils;
+import com.jeffmony.videocache.utils.VideoProxyThreadUtils;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author jeffmony
+ *
+ * mp4视频多连接并行下载
+ * 没有缓存的区间切分成固定大小的块, 多个Mp4VideoCacheThread同时下载, 写入同一个稀疏的.video文件
+ * 播放位置所在的块始终最先下载, 其他连接依次下载播放位置之后的块, 到结尾之后再回到开头
+ * 实际的连接数根据总下载速度在1和最大连接数之间调整
+ */
+public class Mp4ParallelCacheTask extends VideoCacheTask {
+
+    private static final String TAG = "Mp4ParallelCacheTask";
+
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;     //每一块的大小, 4M
+    private static final long ADJUST_INTERVAL = 2000;            //调整连接数的最小间隔, 单位ms
+    private static final float ADJUST_THRESHOLD = 0.1f;          //总速度变化超过10%才调整连接数
+    private static final long SEEK_RESTART_SIZE = 1024 * 1024;   //seek位置在块的下载位置之后超过1M才重新请求
+    private static final long SEEK_RESTART_TIME = 2000;          //或者按当前速度超过2s才能下载到, 单位ms
+
+    //已经缓存的video range结构, 只在updateVideoRangeInfo中发布新的快照, socket线程读取时不需要加锁
+    private final AtomicReference<VideoRangeSet> mVideoRangeSet = new AtomicReference<>(VideoRangeSet.EMPTY);
+    //正在下载的块, 修改时需要持有this, 进度回调不加锁遍历
+    private final List<Mp4VideoCacheThread> mCacheThreads = new CopyOnWriteArrayList<>();
+    private final int mMaxConnectionCount;
+    private int mConnectionCount;              //当前允许的连接数
+    private long mPlayheadPosition;            //最近一次请求的位置
+    private volatile long mReadPosition;       //播放器最近读取的位置
+    private volatile boolean mReadAheadLimited;   //有块因为预读窗口没有下载
+    private long mLastAdjustTime;
+    private float mLastAdjustSpeed;
+
+    private final String mVideoUrl;
+    private final VideoAvailability mAvailability;             //已经写入文件的区间
+    private final Mp4SampleIndexLoader mSampleIndexLoader;     //moov缓存完整之后解析关键帧索引
+    private final long mReadAheadWindowMs;                     //预读窗口, 0表示完整下载
+
+    public Mp4ParallelCacheTask(VideoCacheInfo cacheInfo, Map<String, String> headers, int maxConnectionCount) {
+        super(cacheInfo, headers);
+        mTotalSize = cacheInfo.getTotalSize();
+        mMaxConnectionCount = Math.max(maxConnectionCount, 1);
+        mConnectionCount = Math.min(2, mMaxConnectionCount);
+        mVideoUrl = cacheInfo.getVideoUrl();
+        mAvailability = VideoAvailabilityManager.getInstance().acquireAvailability(cacheInfo.getMd5());
+        initVideoSegInfo();
+        mSampleIndexLoader = new Mp4SampleIndexLoader(new File(mSaveDir, cacheInfo.getMd5() + StorageUtils.NON_M3U8_SUFFIX), mTotalSize, mAvailability,
+                VideoProxyCacheManager.getInstance().getThreadHandler());
+        mReadAheadWindowMs = ProxyCacheUtils.getConfig().getMp4ReadAheadSeconds() * 1000L;
+    }
+
+    private void initVideoSegInfo() {
+        VideoRangeSet rangeSet = recoverMp4RangeSet(mAvailability);
+        mVideoRangeSet.set(rangeSet);
+    }
+
+    private class CacheThreadListener implements IMp4CacheThreadListener {
+
+        @Override
+        public void onCacheFailed(VideoRange range, Exception e) {
+            boolean shouldNotify;
+            synchronized (Mp4ParallelCacheTask.this) {
+                Mp4VideoCacheThread thread = findCacheThread(range);
+                if (thread == null) {
+                    //已经被暂停了
+                    return;
+                }
+                LogUtils.w(TAG, "onCacheFailed " + range + ", exception=" + e);
+                removeCacheThread(thread);
+                //减少连接数, 其他连接还在下载时不通知失败
+                mConnectionCount = Math.max(mConnectionCount - 1, 1);
+                shouldNotify = mCacheThreads.isEmpty();
+            }
+            if (shouldNotify) {
+                notifyOnTaskFailed(e);
+            }
+        }
+
+        @Override
+        public void onCacheProgress(VideoRange range, long cachedSize, float speed, float percent) {
+            notifyOnCacheProgress();
+            mSampleIndexLoader.requestLoad(false);
+        }
+
+        @Override
+        public void onCacheRangeCompleted(VideoRange range) {
+            boolean completed;
+            synchronized (Mp4ParallelCacheTask.this) {
+                Mp4VideoCacheThread thread = findCacheThread(range);
+                if (thread == null) {
+                    return;
+                }
+                adjustConnectionCount();
+                mCacheThreads.remove(thread);
+                updateVideoRangeInfo(range.getStart(), range.getEnd());
+                completed = mCacheInfo.isCompleted();
+                if (!completed) {
+                    //开始下载下一块
+                    startCacheThreads();
+                }
+            }
+            mSampleIndexLoader.requestLoad(true);
+            if (completed) {
+                notifyOnTaskCompleted();
+            }
+        }
+
+        @Override
+        public void onCacheCompleted(VideoRange range) {
+
+        }
+    }
+
+    private final IMp4CacheThreadListener mCacheThreadListener = new CacheThreadListener();
+
+    @Override
+    public void startCacheTask() {
+        if (mCacheInfo.isCompleted()) {
+            notifyOnTaskCompleted();
+            return;
+        }
+        notifyOnTaskStart();
+        LogUtils.i(TAG, "startCacheTask, maxConnectionCount=" + mMaxConnectionCount);
+        synchronized (this) {
+            startCacheThreads();
+        }
+    }
+
+    @Override
+    public synchronized void pauseCacheTask() {
+        LogUtils.i(TAG, "pauseCacheTask");
+        mReadAheadLimited = false;
+        while (!mCacheThreads.isEmpty()) {
+            removeCacheThread(mCacheThreads.get(0));
+        }
+        //暂停期间不需要共享缓冲区, 恢复下载时重新创建
+        mAvailability.releaseStreamBuffer();
+    }
+
+    @Override
+    public void stopCacheTask() {
+        LogUtils.i(TAG, "stopCacheTask");
+        pauseCacheTask();
+        closeBlockBitmap(mAvailability);
+        closeRangeJournal(mAvailability, mVideoRangeSet.get());
+        VideoAvailabilityManager.getInstance().releaseAvailability(mCacheInfo.getMd5(), mAvailability);
+    }
+
+    @Override
+    public void seekToCacheTaskFromClient(float percent) {
+        //来自客户端的seek操作, percent是播放进度的比例(0~1)
+        Mp4SampleIndex sampleIndex = getMp4SampleIndex();
+        if (sampleIndex == null || sampleIndex.getDurationMs() <= 0) {
+            //还不知道关键帧的位置, 等待播放器的请求
+            return;
+        }
+        seekToCacheTaskFromClientByTime((long) (percent * sampleIndex.getDurationMs()));
+    }
+
+    @Override
+    public void seekToCacheTaskFromClientByTime(long timeMs) {
+        //不用等播放器的请求到达本地代理, 直接从关键帧的位置开始缓存
+        Mp4SampleIndex sampleIndex = getMp4SampleIndex();
+        if (sampleIndex == null || mCacheInfo.isCompleted()) {
+            return;
+        }
+        long offset = sampleIndex.getKeyframeOffset(timeMs);
+        LogUtils.i(TAG, "seekToCacheTaskFromClientByTime ====> timeMs=" + timeMs + ", keyframe offset=" + offset);
+        if (offset >= 0 && !isMp4CompletedFromPosition(offset) && mAvailability.getAvailablePosition(offset) == offset) {
+            seekToCacheTaskFromServer(offset);
+        }
+    }
+
+    @Override
+    public void seekToCacheTaskFromServer(int segIndex) { }
+
+    @Override
+    public void seekToCacheTaskFromServer(int segIndex, long time) {
+
+    }
+
+    @Override
+    public synchronized void seekToCacheTaskFromServer(long startPosition) {
+        //来自服务端的seek操作
+        mPlayheadPosition = startPosition;
+        mReadPosition = startPosition;
+        if (mCacheInfo.isCompleted()) {
+            return;
+        }
+        Mp4VideoCacheThread thread = findCacheThread(startPosition);
+        LogUtils.i(TAG, "seekToCacheTaskFromServer ====> startPosition=" + startPosition + ", thread=" + (thread != null ? thread.getRequestRange() : null));
+        if (thread != null) {
+            long distance = startPosition - thread.getCachedPosition();
+            if (distance <= getSeekRestartDistance(thread)) {
+                //当前拖动到的位置正在下载或者很快就能下载到, 没有必要重新发起请求了
+                return;
+            }
+            //所在的块还要很久才能下载到这个位置, 从拖动的位置重新请求
+            removeCacheThread(thread);
+        } else if (mCacheThreads.size() >= mConnectionCount) {
+            //连接数已满, 让出离播放位置最远的块
+            removeCacheThread(findFarthestCacheThread());
+        }
+        startCacheThreads();
+    }
+
+    //块的下载位置落后seek位置多少才值得重新建立连接, 速度越快可以等待的距离越大
+    private long getSeekRestartDistance(Mp4VideoCacheThread thread) {
+        return Math.max(SEEK_RESTART_SIZE, (long) (thread.getSpeed() * SEEK_RESTART_TIME / 1000));
+    }
+
+    @Override
+    public synchronized void cancelCacheTaskFromServer(long startPosition) {
+        //当前下载是为被取消的请求发起的, 暂停所有连接, 把带宽让给其他视频
+        if (findCacheThread(startPosition) != null) {
+            LogUtils.i(TAG, "cancelCacheTaskFromServer ====> startPosition=" + startPosition);
+            pauseCacheTask();
+        }
+    }
+
+    @Override
+    public synchronized void resumeCacheTask() {
+        if (!mCacheThreads.isEmpty() || mCacheInfo.isCompleted()) {
+            //当前mp4缓存线程正在运行中, 没有必要重新启动下载了
+            return;
+        }
+        LogUtils.i(TAG, "resumeCacheTask");
+        startCacheThreads();
+    }
+
+    @Override
+    public void notifyReadPosition(long position) {
+        mReadPosition = position;
+        if (!mReadAheadLimited) {
+            return;
+        }
+        synchronized (this) {
+            //预读窗口随着播放器读取向后移动, 块的大小保证不会频繁发起请求
+            if (mReadAheadLimited && mCacheThreads.size() < mConnectionCount) {
+                startCacheThreads();
+            }
+        }
+    }
+
+    //持有this时调用, 补足连接数
+    private void startCacheThreads() {
+        while (mCacheThreads.size() < mConnectionCount) {
+            VideoRange requestRange = findNextChunk();
+            if (requestRange == null) {
+                return;
+            }
+            //只有播放器接下来要读取的块写入共享缓冲区
+            boolean useStreamBuffer = !isStreamBufferUsed() &&
+                    requestRange.getStart() <= mAvailability.getAvailablePosition(mPlayheadPosition);
+            LogUtils.i(TAG, "startCacheThread " + requestRange + ", useStreamBuffer=" + useStreamBuffer + ", connectionCount=" + mConnectionCount);
+            Mp4VideoCacheThread thread = new Mp4VideoCacheThread(mVideoUrl, mHeaders, requestRange, mTotalSize,
+                    mSaveDir.getAbsolutePath(), mCacheThreadListener, useStreamBuffer);
+            mCacheThreads.add(thread);
+            VideoProxyThreadUtils.submitDownloadTask(thread);
+        }
+    }
+
+    //先找播放位置之后的块, 没有的话再从头开始找, 开启预读窗口时只找窗口内的块
+    private VideoRange findNextChunk() {
+        long readAheadPosition = getMp4ReadAheadPosition(mReadPosition, mReadAheadWindowMs);
+        mReadAheadLimited = readAheadPosition < mTotalSize;
+        VideoRange range = findChunk(mPlayheadPosition, Math.min(readAheadPosition, mTotalSize));
+        if (range == null && mPlayheadPosition > 0 && !mReadAheadLimited) {
+            range = findChunk(0, mPlayheadPosition);
+        }
+        return range;
+    }
+
+    /**
+     * 从position开始找第一个没有缓存也没有在下载的块
+     * @param position
+     * @param limit 块的起始位置需要小于limit
+     * @return
+     */
+    private VideoRange findChunk(long position, long limit) {
+        VideoRangeSet rangeSet = mVideoRangeSet.get();
+        while (position < limit) {
+            VideoRange gap = rangeSet.getRequestRange(position, mTotalSize);
+            long start = gap.getStart();
+            if (start >= limit || start >= mTotalSize) {
+                return null;
+            }
+            Mp4VideoCacheThread thread = findCacheThread(start);
+            if (thread != null) {
+                position = thread.getRangeEndPosition();
+                continue;
+            }
+            long end = Math.min(gap.getEnd(), start + CHUNK_SIZE);
+            for (Mp4VideoCacheThread cacheThread : mCacheThreads) {
+                long threadStart = cacheThread.getRequestRange().getStart();
+                if (threadStart > start && threadStart < end) {
+                    end = threadStart;
+                }
+            }
+            if (start < end) {
+                return new VideoRange(start, end);
+            }
+            position = end + 1;
+        }
+        return null;
+    }
+
+    //持有this时调用, 根据总下载速度调整连接数
+    private void adjustConnectionCount() {
+        long nowTime = SystemClock.uptimeMillis();
+        if (nowTime - mLastAdjustTime < ADJUST_INTERVAL) {
+            return;
+        }
+        float speed = getTotalSpeed();
+        if (speed > mLastAdjustSpeed * (1 + ADJUST_THRESHOLD)) {
+            //增加连接后速度还在提升, 继续增加
+            if (mConnectionCount < mMaxConnectionCount) {
+                mConnectionCount++;
+            }
+        } else if (speed < mLastAdjustSpeed * (1 - ADJUST_THRESHOLD)) {
+            if (mConnectionCount > 1) {
+                mConnectionCount--;
+            }
+        }
+        LogUtils.i(TAG, "adjustConnectionCount speed=" + speed + ", lastSpeed=" + mLastAdjustSpeed + ", connectionCount=" + mConnectionCount);
+        mLastAdjustTime = nowTime;
+        mLastAdjustSpeed = speed;
+    }
+
+    private float getTotalSpeed() {
+        float speed = 0.0f;
+        for (Mp4VideoCacheThread thread : mCacheThreads) {
+            speed += thread.getSpeed();
+        }
+        return speed;
+    }
+
+    private boolean isStreamBufferUsed() {
+        for (Mp4VideoCacheThread thread : mCacheThreads) {
+            if (thread.usesStreamBuffer()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Mp4VideoCacheThread findCacheThread(VideoRange range) {
+        for (Mp4VideoCacheThread thread : mCacheThreads) {
+            if (thread.getRequestRange() == range) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    private Mp4VideoCacheThread findCacheThread(long position) {
+        for (Mp4VideoCacheThread thread : mCacheThreads) {
+            VideoRange range = thread.getRequestRange();
+            if (range.getStart() <= position && position < range.getEnd()) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    //播放位置之后的块按距离计算, 播放位置之前的块需要绕一圈才会用到, 距离最远
+    private Mp4VideoCacheThread findFarthestCacheThread() {
+        Mp4VideoCacheThread farthestThread = null;
+        long farthestDistance = -1;
+        for (Mp4VideoCacheThread thread : mCacheThreads) {
+            long start = thread.getRequestRange().getStart();
+            long distance = start >= mPlayheadPosition ? start - mPlayheadPosition : start + mTotalSize;
+            if (distance > farthestDistance) {
+                farthestDistance = distance;
+                farthestThread = thread;
+            }
+        }
+        return farthestThread;
+    }
+
+    //持有this时调用, 暂停下载并记录已经下载的部分
+    private void removeCacheThread(Mp4VideoCacheThread thread) {
+        thread.pause();
+        mCacheThreads.remove(thread);
+        updateVideoRangeInfo(thread.getRequestRange().getStart(), thread.getCachedPosition());
+    }
+
+    //每个连接的进度回调都会调用, 只读取快照不竞争this, 块刚完成时可能短暂重复计算
+    private void notifyOnCacheProgress() {
+        long cachedSize = mVideoRangeSet.get().getTotalLength();
+        for (Mp4VideoCacheThread thread : mCacheThreads) {
+            cachedSize += thread.getCachedPosition() - thread.getRequestRange().getStart();
+        }
+        if (mTotalSize > 0) {
+            cachedSize = Math.min(cachedSize, mTotalSize);
+        }
+        float speed = getTotalSpeed();
+        float percent = mTotalSize > 0 ? cachedSize * 1.0f * 100 / mTotalSize : 0.0f;
+        mCachedSize = cachedSize;
+        mSpeed = speed;
+        mPercent = percent;
+        mCacheInfo.setCachedSize(cachedSize);
+        mCacheInfo.setSpeed(speed);
+        mCacheInfo.setPercent(percent);
+        mListener.onTaskProgress(percent, cachedSize, speed);
+    }
+
+    private synchronized void updateVideoRangeInfo(long start, long end) {
+        VideoRangeSet rangeSet = mVideoRangeSet.get();
+        if (start < end) {
+            rangeSet = rangeSet.add(start, end);
+            mVideoRangeSet.set(rangeSet);
+        }
+        LogUtils.i(TAG, "updateVideoRangeInfo--->range : [" + start + ", " + end + "], result : " + rangeSet);
+
+        //每次生成新的map, 不修改正在被序列化的map
+        mCacheInfo.setVideoSegMap(rangeSet.toSegMap());
+
+        if (rangeSet.size() == 1 && rangeSet.getStart(0) == 0 && mTotalSize > 0 && rangeSet.getEnd(0) >= mTotalSize) {
+            LogUtils.i(TAG, "updateVideoRangeInfo--->Set completed");
+            mCacheInfo.setIsCompleted(true);
+            closeBlockBitmap(mAvailability);
+            closeRangeJournal(mAvailability, mVideoRangeSet.get());
+        }
+
+        //子线程中执行
+        saveVideoInfo();
+    }
+
+    @Override
+    public boolean isMp4PositionSegExisted(long startPosition) {
+        if (mCacheInfo.isCompleted()) {
+            return true;
+        }
+        //位图只需要测试一个bit, 没有位图或者所在的块还没有写完时再查区间
+        return mAvailability.isBlockCached(startPosition) || mAvailability.getAvailablePosition(startPosition) > startPosition;
+    }
+
+    @Override
+    public Mp4SampleIndex getMp4SampleIndex() {
+        Mp4SampleIndex sampleIndex = mSampleIndexLoader.getSampleIndex();
+        if (sampleIndex == null) {
+            //这次返回null, 解析完成之后的调用可以拿到
+            mSampleIndexLoader.requestLoad(false);
+        }
+        return sampleIndex;
+    }
+
+    @Override
+    public boolean isMp4Completed() {
+        return mCacheInfo.isCompleted();
+    }
+
+    @Override
+    public boolean isMp4CompletedFromPosition(long position) {
+        if (mCacheInfo.isCompleted()) {
+            return true;
+        }
+        if (mTotalSize <= 0) {
+            return false;
+        }
+        return mVideoRangeSet.get().isCompletedFromPosition(position, mTotalSize);
+    }
+
+    /**
+     * 从position开始连续缓存的结束位置(不包含), 由下载线程实际写入的数据决定
+     * @param position
+     * @return position没有缓存时返回position
+     */
+    @Override
+    public long getMp4CachedPosition(long position) {
+        return mAvailability.getAvailablePosition(position);
+    }
+}
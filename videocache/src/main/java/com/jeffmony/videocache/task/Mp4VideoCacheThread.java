@@ -1,5 +1,10 @@
 package com.jeffmony.videocache.task;
 
+import com.coolerfall.download.BufferPool;
+import com.coolerfall.download.DiskWriter;
+import com.jeffmony.videocache.VideoAvailability;
+import com.jeffmony.videocache.VideoAvailabilityManager;
+import com.jeffmony.videocache.VideoStreamBuffer;
 import com.jeffmony.videocache.common.VideoCacheException;
 import com.jeffmony.videocache.listener.IMp4CacheThreadListener;
 import com.jeffmony.videocache.model.VideoRange;
@@ -11,15 +16,21 @@ import com.jeffmony.videocache.utils.StorageUtils;
 
 import java.io.File;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.util.HashMap;
 import java.util.Map;
 
+import okio.Buffer;
+import okio.BufferedSource;
+
 public class Mp4VideoCacheThread implements Runnable {
 
     private static final String TAG = "Mp4VideoCacheThread";
 
+    private static final long MAX_BATCH_TIME = 100;            //攒数据的最长时间, 不写共享缓冲区时本地代理需要等数据写入文件
+
+    private static volatile long sBytesPerSecond;              //最近的下载速度, 新的缓存线程直接使用合适的buffer大小
+
     private final VideoRange mRequestRange;                          //当前请求的video range
     private Map<String, String> mHeaders;
     private final IMp4CacheThreadListener mListener;
@@ -27,22 +38,34 @@ public class Mp4VideoCacheThread implements Runnable {
     private long mLastInvokeTime;                              //上次回调的时间戳
     private float mPercent = 0.0f;                             //缓存百分比
     private float mSpeed = 0.0f;                               //缓存速度
-    private boolean mIsRunning = true;
+    private volatile boolean mIsRunning = true;
+    private volatile long mCachedPosition;                     //已经写入文件的位置
     private final File mSaveDir;
     private final long mTotalSize;
     private final String mVideoUrl;
     private final String mMd5;
+    private final VideoAvailability mAvailability;
+    private final VideoStreamBuffer mStreamBuffer;   //正在播放的请求直接从这里读取刚下载的数据
 
     public Mp4VideoCacheThread(String url, Map<String, String> headers, VideoRange requestRange, long totalSize, String filePath, IMp4CacheThreadListener listener) {
+        this(url, headers, requestRange, totalSize, filePath, listener, true);
+    }
+
+    /**
+     * @param useStreamBuffer 是否写入共享缓冲区, 并行下载时只有播放位置所在的块需要写入
+     */
+    public Mp4VideoCacheThread(String url, Map<String, String> headers, VideoRange requestRange, long totalSize, String filePath,
+                               IMp4CacheThreadListener listener, boolean useStreamBuffer) {
         mVideoUrl = url;
-        mHeaders = headers;
-        if (mHeaders == null) {
-            mHeaders = new HashMap<>();
-        }
+        //每个线程需要设置自己的Range, 不能修改缓存任务共享的headers
+        mHeaders = headers != null ? new HashMap<>(headers) : new HashMap<>();
         mRequestRange = requestRange;
+        mCachedPosition = requestRange.getStart();
         mTotalSize = totalSize;
         mListener = listener;
-        mMd5 = ProxyCacheUtils.computeMD5(url);
+        mMd5 = ProxyCacheUtils.getCacheKey(url);
+        mAvailability = VideoAvailabilityManager.getInstance().getAvailability(mMd5);
+        mStreamBuffer = useStreamBuffer ? mAvailability.obtainStreamBuffer() : null;
         mSaveDir = new File(filePath);
         if (!mSaveDir.exists()) {
             mSaveDir.mkdir();
@@ -66,6 +89,22 @@ public class Mp4VideoCacheThread implements Runnable {
         return mRequestRange != null ? mRequestRange.getEnd() : 0L;
     }
 
+    public VideoRange getRequestRange() {
+        return mRequestRange;
+    }
+
+    public long getCachedPosition() {
+        return mCachedPosition;
+    }
+
+    public float getSpeed() {
+        return mIsRunning ? mSpeed : 0.0f;
+    }
+
+    public boolean usesStreamBuffer() {
+        return mStreamBuffer != null;
+    }
+
     @Override
     public void run() {
         if (!mIsRunning) {
@@ -94,50 +133,82 @@ public class Mp4VideoCacheThread implements Runnable {
         long requestEnd = mRequestRange.getEnd();
         mHeaders.put("Range", "bytes=" + requestStart + "-" + requestEnd);
 
-        InputStream inputStream = null;
-        RandomAccessFile randomAccessFile = null;
+        BufferedSource source = null;
+        DiskWriter diskWriter = null;
+        Buffer segments = new Buffer();
 
         try {
-            randomAccessFile = new RandomAccessFile(videoFile.getAbsolutePath(), "rw");
-            randomAccessFile.seek(requestStart);
+            diskWriter = new DiskWriter(videoFile, requestStart, DiskWriter.DEFAULT_QUEUE_CAPACITY, position -> {
+                //数据写入文件之后立即通知等待的本地代理请求
+                mAvailability.addRange(requestStart, position);
+                mCachedPosition = position;
+            });
             long cachedSize = requestStart;
             LogUtils.i(TAG, "Start request : " + mRequestRange + ", CurrentCachedSize=" + cachedSize);
-            inputStream = OkHttpManager.getInstance().getResponseBody(mVideoUrl, mHeaders, contentLength -> {
-                LogUtils.i(TAG, "getResponseBody--->FetchContentLength: " + contentLength);
+            source = OkHttpManager.getInstance().getResponseSource(mVideoUrl, mHeaders, contentLength -> {
+                LogUtils.i(TAG, "getResponseSource--->FetchContentLength: " + contentLength);
             });
+            if (source == null) {
+                throw new VideoCacheException("Response source is null, range=" + mRequestRange);
+            }
             LogUtils.i(TAG, "Receive response");
-            byte[] buffer = new byte[StorageUtils.DEFAULT_BUFFER_SIZE];
-            int readLength;
-            while(mIsRunning && (readLength = inputStream.read(buffer)) != -1) {
+            //数据一直保存在okio的segment中, 整段交给写线程, 不再拷贝到byte[]
+            long readLength;
+            long batchStartTime = 0;   //segments中第一块数据的读取时间
+            while(mIsRunning && (readLength = source.read(segments, getReadByteCount(segments, cachedSize, requestEnd))) != -1) {
                 if (cachedSize >= requestEnd) {
-                    cachedSize = requestEnd;
+                    //Range请求包含结束位置, 多出来的数据丢弃
+                    segments.clear();
+                    continue;
                 }
-                if (cachedSize + readLength > requestEnd) {
-                    long read = requestEnd - cachedSize;
-                    randomAccessFile.write(buffer, 0, (int)read);
-                    cachedSize = requestEnd;
-                } else {
-                    randomAccessFile.write(buffer, 0, readLength);
-                    cachedSize += readLength;
+                if (segments.size() == readLength) {
+                    batchStartTime = System.currentTimeMillis();
+                }
+                //新读取的数据在segments的末尾, 写入共享缓冲区之后本地代理就可以读取
+                writeStreamBuffer(cachedSize, segments, segments.size() - readLength, readLength);
+                cachedSize += readLength;
+                if (cachedSize < requestEnd && segments.size() < BufferPool.sizeForThroughput(sBytesPerSecond) &&
+                        System.currentTimeMillis() - batchStartTime < MAX_BATCH_TIME) {
+                    //攒够一块再写文件; 网速慢时按时间写入, 不写共享缓冲区的线程和进度回调不能等太久
+                    continue;
                 }
+                //写文件交给写线程, 队列满时阻塞在这里, 不再继续读取网络数据
+                diskWriter.write(segments);
 
-                notifyOnCacheProgress(cachedSize);
+                if (cachedSize >= requestEnd) {
+                    //等待这一段全部写入文件
+                    diskWriter.flush();
+                }
+                //进度使用已经写入文件的位置
+                notifyOnCacheProgress(mCachedPosition);
 
                 if (cachedSize >= requestEnd) {
                     //缓存好了一段,开始缓存下一段
                     notifyOnCacheRangeCompleted();
                 }
             }
+            //暂停或者数据结束时还没有写入的数据
+            diskWriter.write(segments);
             mIsRunning = false;
         } catch (Exception e) {
             notifyOnCacheFailed(e);
         } finally {
             mIsRunning = false;
-            ProxyCacheUtils.close(inputStream);
-            ProxyCacheUtils.close(randomAccessFile);
+            segments.clear();
+            ProxyCacheUtils.close(source);
+            closeDiskWriter(diskWriter);
         }
     }
 
+    //每次读取的数据不超过这一段剩下的大小, 这一段结束之后读取多出来的数据
+    private long getReadByteCount(Buffer segments, long cachedSize, long requestEnd) {
+        long byteCount = BufferPool.sizeForThroughput(sBytesPerSecond) - segments.size();
+        if (cachedSize < requestEnd) {
+            byteCount = Math.min(byteCount, requestEnd - cachedSize);
+        }
+        return Math.max(byteCount, 1);
+    }
+
     private void downloadVideo() {
         File videoFile;
         try {
@@ -155,33 +226,43 @@ public class Mp4VideoCacheThread implements Runnable {
         mHeaders.put("Range", "bytes=" + requestStart + "-" + requestEnd);
         HttpURLConnection connection = null;
         InputStream inputStream = null;
-        RandomAccessFile randomAccessFile = null;
+        DiskWriter diskWriter = null;
+        byte[] buffer = null;
 
         try {
-            randomAccessFile = new RandomAccessFile(videoFile.getAbsolutePath(), "rw");
-            randomAccessFile.seek(requestStart);
+            diskWriter = new DiskWriter(videoFile, requestStart, DiskWriter.DEFAULT_QUEUE_CAPACITY, position -> {
+                //数据写入文件之后立即通知等待的本地代理请求
+                mAvailability.addRange(requestStart, position);
+                mCachedPosition = position;
+            });
             long cachedSize = requestStart;
             LogUtils.i(TAG, "Start request : " + mRequestRange + ", CurrentCachedSize="+cachedSize);
             connection = HttpUtils.getConnection(mVideoUrl, mHeaders);
             inputStream = connection.getInputStream();
             LogUtils.i(TAG, "Receive response");
 
-            byte[] buffer = new byte[StorageUtils.DEFAULT_BUFFER_SIZE];
+            buffer = BufferPool.getDefault().getBuf(BufferPool.sizeForThroughput(sBytesPerSecond));
             int readLength;
             while(mIsRunning && (readLength = inputStream.read(buffer)) != -1) {
                 if (cachedSize >= requestEnd) {
                     cachedSize = requestEnd;
                 }
-                if (cachedSize + readLength > requestEnd) {
-                    long read = requestEnd - cachedSize;
-                    randomAccessFile.write(buffer, 0, (int)read);
-                    cachedSize = requestEnd;
-                } else {
-                    randomAccessFile.write(buffer, 0, readLength);
-                    cachedSize += readLength;
-                }
+                int length = (int) Math.min(readLength, requestEnd - cachedSize);
+                writeStreamBuffer(cachedSize, buffer, length);
+                //写文件交给写线程, 队列满时阻塞在这里, 不再继续读取网络数据
+                //数组交给写线程, 即使写入失败也由写线程归还
+                byte[] block = buffer;
+                buffer = null;
+                diskWriter.write(block, length);
+                cachedSize += length;
+                buffer = BufferPool.getDefault().getBuf(BufferPool.sizeForThroughput(sBytesPerSecond));
 
-                notifyOnCacheProgress(cachedSize);
+                if (cachedSize >= requestEnd) {
+                    //等待这一段全部写入文件
+                    diskWriter.flush();
+                }
+                //进度使用已经写入文件的位置
+                notifyOnCacheProgress(mCachedPosition);
 
                 if (cachedSize >= requestEnd) {
                     //缓存好了一段,开始缓存下一段
@@ -193,12 +274,53 @@ public class Mp4VideoCacheThread implements Runnable {
             notifyOnCacheFailed(e);
         } finally {
             mIsRunning = false;
+            BufferPool.getDefault().returnBuf(buffer);
             ProxyCacheUtils.close(inputStream);
-            ProxyCacheUtils.close(randomAccessFile);
+            closeDiskWriter(diskWriter);
             HttpUtils.closeConnection(connection);
         }
     }
 
+    //共享缓冲区写入之后通知本地代理, 不用等数据写入文件
+    private void writeStreamBuffer(long position, byte[] buffer, int length) {
+        if (mStreamBuffer != null && length > 0) {
+            mStreamBuffer.write(position, buffer, 0, length);
+            mAvailability.notifyChanged();
+        }
+    }
+
+    //okio的segment不能直接交给共享缓冲区, 逐个segment拷贝[offset, offset + length)的数据
+    private void writeStreamBuffer(long position, Buffer segments, long offset, long length) {
+        if (mStreamBuffer == null || length <= 0) {
+            return;
+        }
+        Buffer.UnsafeCursor cursor = segments.readUnsafe();
+        try {
+            for (int count = cursor.seek(offset); count != -1 && length > 0; count = cursor.next()) {
+                int writeLength = (int) Math.min(count, length);
+                mStreamBuffer.write(position, cursor.data, cursor.start, writeLength);
+                position += writeLength;
+                length -= writeLength;
+            }
+        } finally {
+            cursor.close();
+        }
+        mAvailability.notifyChanged();
+    }
+
+    //暂停或者失败时已经排队的数据仍然写入文件
+    private void closeDiskWriter(DiskWriter diskWriter) {
+        if (diskWriter == null) {
+            return;
+        }
+        try {
+            diskWriter.close();
+        } catch (Exception e) {
+            LogUtils.w(TAG, "Close disk writer failed, exception=" + e);
+        }
+        LogUtils.i(TAG, "Close disk writer, range=" + mRequestRange + ", " + diskWriter);
+    }
+
     private void notifyOnCacheFailed(Exception e) {
         mListener.onCacheFailed(mRequestRange, e);
     }
@@ -213,6 +335,7 @@ public class Mp4VideoCacheThread implements Runnable {
             long nowTime = System.currentTimeMillis();
             if (cachedSize > mLastCachedSize && nowTime > mLastInvokeTime) {
                 mSpeed = (cachedSize - mLastCachedSize) * 1000 * 1.0f / (nowTime - mLastInvokeTime);
+                sBytesPerSecond = (long) mSpeed;
             }
             mListener.onCacheProgress(mRequestRange, cachedSize, mSpeed, mPercent);
             mPercent = percent;
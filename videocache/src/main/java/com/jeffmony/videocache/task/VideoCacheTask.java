@@ -3,8 +3,13 @@ package com.jeffmony.videocache.task;
 import android.support.annotation.NonNull;
 
 import com.jeffmony.videocache.StorageManager;
+import com.jeffmony.videocache.VideoAvailability;
+import com.jeffmony.videocache.VideoBlockBitmap;
+import com.jeffmony.videocache.VideoRangeJournal;
 import com.jeffmony.videocache.listener.IVideoCacheTaskListener;
 import com.jeffmony.videocache.model.VideoCacheInfo;
+import com.jeffmony.videocache.model.VideoRangeSet;
+import com.jeffmony.videocache.mp4.Mp4SampleIndex;
 import com.jeffmony.videocache.utils.StorageUtils;
 import com.jeffmony.videocache.utils.VideoProxyThreadUtils;
 
@@ -27,6 +32,8 @@ public abstract class VideoCacheTask {
     protected float mPercent = 0.0f;
     protected float mSpeed = 0.0f;
     protected File mSaveDir;
+    protected VideoBlockBitmap mBlockBitmap;      //非M3U8视频按块持久化的缓存进度, 写入数据后立即记录
+    protected VideoRangeJournal mRangeJournal;    //非M3U8视频精确到字节的缓存进度日志, 按检查点追加
 
     protected volatile boolean isStart = false;
 
@@ -62,6 +69,12 @@ public abstract class VideoCacheTask {
 
     public abstract void seekToCacheTaskFromClient(float percent);        //来自客户端的seek操作
 
+    /**
+     * 来自客户端按时间的seek操作, 默认不处理, 等待播放器的请求到达本地代理
+     * @param timeMs 播放器seek到的时间, 单位ms
+     */
+    public void seekToCacheTaskFromClientByTime(long timeMs) { }
+
     public abstract void seekToCacheTaskFromServer(long startPosition);   //来自服务端的seek操作,针对非M3U8视频
 
     @Deprecated
@@ -71,6 +84,18 @@ public abstract class VideoCacheTask {
 
     public abstract void resumeCacheTask();
 
+    /**
+     * 来自服务端的取消操作: 播放器断开了等待数据的请求, 之后也没有新的请求
+     * 默认不处理, 子类可以暂停不再需要的下载, 新的请求到来时会调用resumeCacheTask恢复
+     * @param startPosition 被取消的请求起始位置, 针对非M3U8视频
+     */
+    public void cancelCacheTaskFromServer(long startPosition) { }
+
+    /**
+     * @param segIndex 被取消的分片索引, 针对M3U8视频
+     */
+    public void cancelCacheTaskFromServer(int segIndex) { }
+
     protected void notifyOnTaskStart() {
         mListener.onTaskStart();
     }
@@ -121,6 +146,122 @@ public abstract class VideoCacheTask {
      */
     public long getMp4CachedPosition(long position) { return -1L; }
 
+    /**
+     * 播放器已经读取到的位置, 针对非M3U8视频的预读窗口
+     * @param position
+     */
+    public void notifyReadPosition(long position) { }
+
+    /**
+     * 获取mp4视频的关键帧索引
+     * @return moov还没有缓存完整或者不是mp4时返回null
+     */
+    public Mp4SampleIndex getMp4SampleIndex() { return null; }
+
+    /**
+     * 播放器读取到position时, 预读windowMs需要缓存到的位置
+     * 没有关键帧索引时无法换算成字节, 不做限制
+     * @param position
+     * @param windowMs 小于等于0表示完整下载
+     * @return
+     */
+    protected long getMp4ReadAheadPosition(long position, long windowMs) {
+        Mp4SampleIndex sampleIndex = windowMs > 0 ? getMp4SampleIndex() : null;
+        if (sampleIndex == null || mTotalSize <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return sampleIndex.getReadAheadPosition(position, windowMs, mTotalSize);
+    }
+
+    /**
+     * 非M3U8视频恢复已经缓存的区间: 合并保存的range结构, 块位图和区间日志, 并设置到availability中
+     * 恢复之后发现已经完整缓存时更新cacheInfo, 不再需要位图和日志
+     * @param availability 这个视频的数据可用性
+     * @return 已经缓存的区间
+     */
+    protected VideoRangeSet recoverMp4RangeSet(VideoAvailability availability) {
+        File blockBitmapFile = new File(mSaveDir, mCacheInfo.getMd5() + StorageUtils.BLOCK_BITMAP_SUFFIX);
+        if (mCacheInfo.isCompleted() && mTotalSize > 0) {
+            availability.addRange(0, mTotalSize);
+            //之前的版本完整缓存之后没有删除位图
+            if (blockBitmapFile.exists()) {
+                blockBitmapFile.delete();
+            }
+        }
+        //本地序列化的range结构可能是旧版本保存的, 重新排序合并一下
+        VideoRangeSet rangeSet = VideoRangeSet.fromSegMap(mCacheInfo.getVideoSegMap());
+        if (!mCacheInfo.isCompleted() && mTotalSize > 0) {
+            mBlockBitmap = VideoBlockBitmap.open(blockBitmapFile, mTotalSize);
+            if (mBlockBitmap != null) {
+                //range结构只在分片完成或者暂停时保存, 位图中还有崩溃前已经写入的块
+                rangeSet = rangeSet.addAll(mBlockBitmap.toRangeSet());
+            }
+            mRangeJournal = VideoRangeJournal.open(new File(mSaveDir, mCacheInfo.getMd5() + StorageUtils.RANGE_JOURNAL_SUFFIX), mTotalSize);
+            if (mRangeJournal != null) {
+                //位图不记录不完整的块, 日志中有每段区间精确的结束位置
+                rangeSet = rangeSet.addAll(mRangeJournal.getRangeSet());
+            }
+            if (rangeSet.isCompletedFromPosition(0, mTotalSize)) {
+                mCacheInfo.setIsCompleted(true);
+                mCacheInfo.setVideoSegMap(rangeSet.toSegMap());
+                saveVideoInfo();
+                //已经完整缓存, 不再需要位图和日志
+                if (mBlockBitmap != null) {
+                    mBlockBitmap.delete();
+                    mBlockBitmap = null;
+                }
+                if (mRangeJournal != null) {
+                    mRangeJournal.delete();
+                    mRangeJournal = null;
+                }
+            }
+        }
+        for (int index = 0; index < rangeSet.size(); index++) {
+            availability.addRange(rangeSet.getStart(index), rangeSet.getEnd(index));
+        }
+        if (mBlockBitmap != null) {
+            availability.setBlockBitmap(mBlockBitmap);
+        }
+        if (mRangeJournal != null) {
+            availability.setRangeJournal(mRangeJournal);
+        }
+        return rangeSet;
+    }
+
+    /**
+     * 非M3U8视频完整缓存之后删除位图, 否则写回磁盘, 之后写入的数据不再记录
+     * @param availability
+     */
+    protected synchronized void closeBlockBitmap(VideoAvailability availability) {
+        if (mBlockBitmap == null) {
+            return;
+        }
+        availability.setBlockBitmap(null);
+        if (mCacheInfo.isCompleted()) {
+            mBlockBitmap.delete();
+        } else {
+            mBlockBitmap.close();
+        }
+        mBlockBitmap = null;
+    }
+
+    /**
+     * 非M3U8视频完整缓存之后删除日志, 否则补上最后的数据并压缩
+     * @param availability
+     * @param rangeSet 缓存任务记录的已经写入文件的区间
+     */
+    protected synchronized void closeRangeJournal(VideoAvailability availability, VideoRangeSet rangeSet) {
+        if (mRangeJournal == null) {
+            return;
+        }
+        availability.setRangeJournal(null);
+        if (mCacheInfo.isCompleted()) {
+            mRangeJournal.delete();
+        } else {
+            mRangeJournal.close(rangeSet);
+        }
+    }
+
     protected void setThreadPoolArgument(int corePoolSize, int maxPoolSize) {
         if (isTaskRunning()) {
             mTaskExecutor.setCorePoolSize(corePoolSize);
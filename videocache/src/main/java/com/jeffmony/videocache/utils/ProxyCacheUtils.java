@@ -5,6 +5,10 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Base64;
 
+import com.jeffmony.videocache.PlaybackSession;
+import com.jeffmony.videocache.PlaybackSessionManager;
+import com.jeffmony.videocache.ProxyResourceManager;
+import com.jeffmony.videocache.VideoProxyCacheManager;
 import com.jeffmony.videocache.common.VideoCacheConfig;
 import com.jeffmony.videocache.common.VideoMime;
 import com.jeffmony.videocache.common.VideoParams;
@@ -39,6 +43,18 @@ public class ProxyCacheUtils {
     private static int sLocalPort = 0;
     private volatile static long mSocketTime;     //socket运行的时间戳
 
+    private static final char[] HEX_CHARS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final ThreadLocal<MessageDigest> MD5_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
     public static void setVideoCacheConfig(VideoCacheConfig config) {
         sConfig = config;
     }
@@ -59,6 +75,18 @@ public class ProxyCacheUtils {
 
     public static long getSocketTime() { return mSocketTime; }
 
+    /**
+     * 请求头都是ASCII字符, 直接按字节构建字符串, 不经过charset解码
+     * @param buf
+     * @param offset
+     * @param length
+     * @return
+     */
+    @SuppressWarnings("deprecation")
+    public static String newAsciiString(byte[] buf, int offset, int length) {
+        return new String(buf, 0, offset, length);
+    }
+
     public static void close(Closeable closeable) {
         if (closeable != null) {
             try {
@@ -70,21 +98,31 @@ public class ProxyCacheUtils {
     }
 
     private static String bytesToHexString(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
+        char[] result = new char[bytes.length * 2];
+        int index = 0;
         for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+            result[index++] = HEX_CHARS[(b >> 4) & 0xF];
+            result[index++] = HEX_CHARS[b & 0xF];
         }
-        return sb.toString();
+        return new String(result);
     }
 
     public static String computeMD5(String string) {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            byte[] digestBytes = messageDigest.digest(string.getBytes());
-            return bytesToHexString(digestBytes);
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+        MessageDigest messageDigest = MD5_DIGEST.get();
+        byte[] digestBytes = messageDigest.digest(string.getBytes());
+        return bytesToHexString(digestBytes);
+    }
+
+    /**
+     * 视频url对应的缓存key, 规则由VideoCacheConfig中的CacheKeyFactory决定
+     * @param videoUrl
+     * @return
+     */
+    public static String getCacheKey(String videoUrl) {
+        if (sConfig == null) {
+            return computeMD5(videoUrl);
         }
+        return sConfig.getCacheKeyFactory().getCacheKey(videoUrl);
     }
 
     //当前mimetype是否是M3U8类型
@@ -130,6 +168,30 @@ public class ProxyCacheUtils {
         return headerStr.toString();
     }
 
+    /**
+     * 按照分隔符拆分代理url中的参数, 使用indexOf代替正则的split
+     * @param str
+     * @param separator
+     * @return
+     */
+    public static String[] splitProxyInfo(String str, String separator) {
+        int count = 1;
+        int index = str.indexOf(separator);
+        while (index != -1) {
+            count++;
+            index = str.indexOf(separator, index + separator.length());
+        }
+        String[] result = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            index = str.indexOf(separator, start);
+            result[i] = str.substring(start, index);
+            start = index + separator.length();
+        }
+        result[count - 1] = str.substring(start);
+        return result;
+    }
+
     public static Map<String, String> str2Map(String headerStr) {
         Map<String, String> headers = new HashMap<>();
         if (!TextUtils.isEmpty(headerStr) && !TextUtils.equals(headerStr, UNKNOWN)) {
@@ -180,23 +242,36 @@ public class ProxyCacheUtils {
     }
 
     /**
-     * 判断代理服务器是否存活
+     * 判断代理服务器是否存活, 读取本地代理的心跳状态, 不再发送ping请求
      * @return true or false
      */
     public static boolean isServerAlive() {
-        return Pinger.ping(2, 70);   // 70+140=max~210ms
+        return VideoProxyCacheManager.getInstance().isLocalProxyServerAlive();
     }
 
     public static String getProxyUrl(String videoUrl, Map<String, String> headers, Map<String, Object> cacheParams) {
+        return getProxyUrl(videoUrl, headers, cacheParams, null);
+    }
+
+    /**
+     * 多个播放器同时播放时每个播放器使用自己的会话, 互相不会中断对方的请求
+     * @param session PlaybackSessionManager.openSession()创建, 为null表示不使用会话
+     */
+    public static String getProxyUrl(String videoUrl, Map<String, String> headers, Map<String, Object> cacheParams, PlaybackSession session) {
         if (!isServerAlive()) {
             LogUtils.e(TAG, "local server is not alive, return primitive video url");
+            if (sConfig != null && sConfig.autoRestartServer()) {
+                //后台重启, 下次获取代理url时生效
+                VideoProxyCacheManager.getInstance().restartLocalProxyServer();
+            }
             return videoUrl;
         }
         String videoInfo = getVideoTypeInfo(videoUrl, cacheParams);
-        String headerStr = map2Str(headers);
-        String proxyExtraInfo = videoUrl + VIDEO_PROXY_SPLIT_STR + videoInfo + VIDEO_PROXY_SPLIT_STR + headerStr;
-        //http://127.0.0.1:port/base64-parameter
-        return String.format(Locale.US, "http://%s:%d/%s", LOCAL_PROXY_HOST, sLocalPort, encodeUriWithBase64(proxyExtraInfo));
+        String id = ProxyResourceManager.getInstance().registerResource(videoUrl, videoInfo, headers);
+        String suffix = TextUtils.equals(M3U8, videoInfo) ? StorageUtils.M3U8_SUFFIX : "";
+        //http://127.0.0.1:port/v/id 或者 http://127.0.0.1:port/ps/sessionId/v/id, 原始url和请求头保存在ProxyResourceManager中
+        return String.format(Locale.US, "http://%s:%d/%s%s%s%s", LOCAL_PROXY_HOST, sLocalPort,
+                PlaybackSessionManager.getSessionPath(session), ProxyResourceManager.VIDEO_PATH, id, suffix);
     }
 
     private static String getVideoTypeInfo(String videoUrl, Map<String, Object> cacheParams) {
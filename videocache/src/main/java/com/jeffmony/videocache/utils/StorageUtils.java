@@ -24,11 +24,14 @@ public class StorageUtils {
     private static final String TAG = "StorageUtils";
 
     public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    public static final int RESPONSE_BUFFER_SIZE = 64 * 1024;   //本地代理回环连接的发送buffer
     public static final String INFO_FILE = "video.info";
     public static final String LOCAL_M3U8_SUFFIX = "_local.m3u8";
     public static final String PROXY_M3U8_SUFFIX = "_proxy.m3u8";
     public static final String M3U8_SUFFIX = ".m3u8";
     public static final String NON_M3U8_SUFFIX = ".video";
+    public static final String BLOCK_BITMAP_SUFFIX = ".bitmap";
+    public static final String RANGE_JOURNAL_SUFFIX = ".journal";
 
     private static final Object sInfoFileLock = new Object();
 
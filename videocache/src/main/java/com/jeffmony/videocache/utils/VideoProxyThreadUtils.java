@@ -7,6 +7,7 @@ import android.os.Process;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
@@ -32,6 +33,9 @@ public class VideoProxyThreadUtils {
     private static final ExecutorService sThreadPoolExecutor = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
             TimeUnit.SECONDS, sThreadPoolWorkQueue, new MediaWorkerThreadFactory(), new ThreadPoolExecutor.DiscardOldestPolicy());
 
+    //mp4并行下载专用的线程池, 下载线程长时间阻塞在网络读取上, 不能占满公共线程池
+    private static final ExecutorService sDownloadExecutor = Executors.newCachedThreadPool(new MediaWorkerThreadFactory());
+
     //sdk中唯一的主线程handler
     private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
@@ -85,4 +89,8 @@ public class VideoProxyThreadUtils {
     public static Future submitRunnableTask(Runnable task) {
         return sThreadPoolExecutor.submit(task);
     }
+
+    public static Future submitDownloadTask(Runnable task) {
+        return sDownloadExecutor.submit(task);
+    }
 }
@@ -0,0 +1,84 @@
+package com.jeffmony.videocache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VideoAvailabilityTest {
+
+    @Test
+    public void readablePositionIncludesStreamBuffer() {
+        VideoAvailability availability = new VideoAvailability();
+        availability.addRange(0, 100);
+        assertEquals(100, availability.getReadablePosition(0));
+
+        //共享缓冲区中还没有写入文件的数据也可以读取
+        VideoStreamBuffer streamBuffer = availability.obtainStreamBuffer();
+        streamBuffer.write(80, new byte[300], 0, 300);
+        assertEquals(380, availability.getReadablePosition(0));
+        assertEquals(380, availability.getReadablePosition(200));
+        assertEquals(100, availability.getAvailablePosition(0));
+        assertEquals(200, availability.getAvailablePosition(200));
+
+        availability.releaseStreamBuffer();
+        assertEquals(100, availability.getReadablePosition(0));
+    }
+
+    @Test
+    public void streamBufferKeepsLatestData() {
+        VideoStreamBuffer streamBuffer = new VideoStreamBuffer(100);
+        byte[] data = new byte[150];
+        for (int index = 0; index < data.length; index++) {
+            data[index] = (byte) index;
+        }
+        streamBuffer.write(1000, data, 0, 60);
+        streamBuffer.write(1060, data, 60, 90);
+        //只保留最后100个字节
+        assertEquals(1150, streamBuffer.getAvailablePosition(1050));
+        assertEquals(1040, streamBuffer.getAvailablePosition(1040));
+        byte[] result = new byte[100];
+        assertEquals(100, streamBuffer.read(1050, result, 0, 200));
+        for (int index = 0; index < result.length; index++) {
+            assertEquals(data[50 + index], result[index]);
+        }
+        assertEquals(-1, streamBuffer.read(1040, result, 0, 10));
+
+        //seek之后的数据不连续, 之前的数据丢弃
+        streamBuffer.write(5000, data, 0, 10);
+        assertEquals(1100, streamBuffer.getAvailablePosition(1100));
+        assertEquals(5010, streamBuffer.getAvailablePosition(5000));
+    }
+
+    @Test
+    public void addRangeWakesWaiters() throws Exception {
+        final VideoAvailability availability = new VideoAvailability();
+        long version = availability.getVersion();
+        Thread thread = new Thread(() -> availability.addRange(0, 100));
+        thread.start();
+        assertTrue(availability.awaitChanged(version, 5000));
+        thread.join();
+        assertEquals(100, availability.getAvailablePosition(0));
+    }
+
+    @Test
+    public void releaseAvailabilityDropsStreamBuffer() {
+        VideoAvailabilityManager manager = VideoAvailabilityManager.getInstance();
+        String md5 = "release_availability_test";
+        VideoAvailability availability = manager.acquireAvailability(md5);
+        assertSame(availability, manager.acquireAvailability(md5));
+        assertNotNull(availability.obtainStreamBuffer());
+
+        //还有一个任务在使用
+        manager.releaseAvailability(md5, availability);
+        assertNotNull(availability.getStreamBuffer());
+
+        manager.releaseAvailability(md5, availability);
+        assertNull(availability.getStreamBuffer());
+        //还在等待的请求持有的对象不会被替换
+        assertSame(availability, manager.getAvailability(md5));
+    }
+}
@@ -0,0 +1,60 @@
+package com.jeffmony.videocache;
+
+import com.jeffmony.videocache.model.VideoRangeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class VideoBlockBitmapTest {
+
+    private static final long TOTAL_SIZE = VideoBlockBitmap.BLOCK_SIZE * 4L + 100;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("block_bitmap", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void reopenKeepsCachedBlocks() {
+        VideoBlockBitmap blockBitmap = VideoBlockBitmap.open(mFile, TOTAL_SIZE);
+        assertNotNull(blockBitmap);
+        //第一块不完整, 不记录
+        blockBitmap.setRange(100, VideoBlockBitmap.BLOCK_SIZE * 3L);
+        blockBitmap.close();
+
+        blockBitmap = VideoBlockBitmap.open(mFile, TOTAL_SIZE);
+        assertNotNull(blockBitmap);
+        VideoRangeSet rangeSet = blockBitmap.toRangeSet();
+        assertEquals(1, rangeSet.size());
+        assertEquals(VideoBlockBitmap.BLOCK_SIZE, rangeSet.getStart(0));
+        assertEquals(VideoBlockBitmap.BLOCK_SIZE * 3L, rangeSet.getEnd(0));
+        blockBitmap.close();
+    }
+
+    @Test
+    public void deleteRemovesFile() {
+        VideoBlockBitmap blockBitmap = VideoBlockBitmap.open(mFile, TOTAL_SIZE);
+        assertNotNull(blockBitmap);
+        blockBitmap.setRange(0, TOTAL_SIZE);
+        assertTrue(blockBitmap.isCached(TOTAL_SIZE - 1));
+        blockBitmap.delete();
+        assertFalse(mFile.exists());
+        //删除之后写入的数据不再记录
+        blockBitmap.setRange(0, TOTAL_SIZE);
+    }
+}
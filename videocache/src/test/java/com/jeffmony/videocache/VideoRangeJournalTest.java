@@ -0,0 +1,109 @@
+package com.jeffmony.videocache;
+
+import com.jeffmony.videocache.model.VideoRangeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class VideoRangeJournalTest {
+
+    private static final long TOTAL_SIZE = 10 * 1024 * 1024;
+    private static final long MB = 1024 * 1024;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 20;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("journal", ".range");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getParentFile(), mFile.getName() + ".tmp").delete();
+    }
+
+    //写入两条完整的记录[0, 1M)和[3M, 5M)
+    private void writeRecords() {
+        VideoRangeJournal journal = VideoRangeJournal.open(mFile, TOTAL_SIZE);
+        assertNotNull(journal);
+        journal.checkpoint(0, MB);
+        journal.checkpoint(3 * MB, 5 * MB);
+        assertEquals(HEADER_SIZE + 2 * RECORD_SIZE, mFile.length());
+    }
+
+    private static void assertRanges(VideoRangeSet rangeSet, long... ranges) {
+        assertEquals(rangeSet.toString(), ranges.length / 2, rangeSet.size());
+        for (int index = 0; index < rangeSet.size(); index++) {
+            assertEquals(ranges[index * 2], rangeSet.getStart(index));
+            assertEquals(ranges[index * 2 + 1], rangeSet.getEnd(index));
+        }
+    }
+
+    @Test
+    public void recoverRecords() {
+        writeRecords();
+        VideoRangeJournal journal = VideoRangeJournal.open(mFile, TOTAL_SIZE);
+        assertRanges(journal.getRangeSet(), 0, MB, 3 * MB, 5 * MB);
+    }
+
+    @Test
+    public void dropTornRecord() throws Exception {
+        writeRecords();
+        //崩溃时只写了半条记录
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+        randomAccessFile.seek(randomAccessFile.length());
+        randomAccessFile.write(new byte[]{0, 0, 0, 0, 0, 0x70, 0, 0, 0, 0, 0});
+        randomAccessFile.close();
+
+        VideoRangeJournal journal = VideoRangeJournal.open(mFile, TOTAL_SIZE);
+        assertRanges(journal.getRangeSet(), 0, MB, 3 * MB, 5 * MB);
+        assertEquals(HEADER_SIZE + 2 * RECORD_SIZE, mFile.length());
+
+        //截断之后继续追加的记录可以恢复
+        journal.checkpoint(8 * MB, TOTAL_SIZE);
+        assertRanges(VideoRangeJournal.open(mFile, TOTAL_SIZE).getRangeSet(), 0, MB, 3 * MB, 5 * MB, 8 * MB, TOTAL_SIZE);
+    }
+
+    @Test
+    public void dropRecordsAfterChecksumMismatch() throws Exception {
+        writeRecords();
+        //第一条记录的end被破坏, 后面的记录都不可信
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+        randomAccessFile.seek(HEADER_SIZE + 8);
+        randomAccessFile.writeLong(2 * MB);
+        randomAccessFile.close();
+
+        VideoRangeJournal journal = VideoRangeJournal.open(mFile, TOTAL_SIZE);
+        assertTrue(journal.getRangeSet().isEmpty());
+        assertEquals(HEADER_SIZE, mFile.length());
+    }
+
+    @Test
+    public void resetWhenTotalSizeChanged() {
+        writeRecords();
+        VideoRangeJournal journal = VideoRangeJournal.open(mFile, TOTAL_SIZE * 2);
+        assertTrue(journal.getRangeSet().isEmpty());
+        assertEquals(HEADER_SIZE, mFile.length());
+    }
+
+    @Test
+    public void closeCompactsRecords() {
+        VideoRangeJournal journal = VideoRangeJournal.open(mFile, TOTAL_SIZE);
+        journal.checkpoint(0, MB);
+        journal.checkpoint(0, 2 * MB);
+        journal.close(VideoRangeSet.EMPTY.add(2 * MB, 2 * MB + 100));
+        assertEquals(HEADER_SIZE + RECORD_SIZE, mFile.length());
+        assertRanges(VideoRangeJournal.open(mFile, TOTAL_SIZE).getRangeSet(), 0, 2 * MB + 100);
+    }
+}
@@ -0,0 +1,107 @@
+package com.jeffmony.videocache.m3u8;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class M3U8UtilsTest {
+
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    //升级之前生成的proxy m3u8, 分片url是base64编码的原始url和请求头, 相对m3u8的地址解析
+    private static final String OLD_PROXY_M3U8 = "#EXTM3U\n" +
+            "#EXT-X-VERSION:3\n" +
+            "#EXT-X-MEDIA-SEQUENCE:0\n" +
+            "#EXT-X-TARGETDURATION:10.0\n" +
+            "#EXTINF:10.0,\n" +
+            "aHR0cDovL2V4YW1wbGUuY29tL3ZpZGVvLm0zdTgmanZjX3NlZ18maHR0cDovL2V4YW1wbGUuY29tLzAudHM\n" +
+            "#EXTINF:10.0,\n" +
+            "aHR0cDovL2V4YW1wbGUuY29tL3ZpZGVvLm0zdTgmanZjX3NlZ18maHR0cDovL2V4YW1wbGUuY29tLzEudHM\n" +
+            "#EXT-X-ENDLIST";
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile(MD5, "_proxy.m3u8");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static M3U8 createM3U8() {
+        M3U8 m3u8 = new M3U8("http://example.com/video.m3u8");
+        m3u8.setVersion(3);
+        m3u8.setTargetDuration(10);
+        for (int index = 0; index < 2; index++) {
+            M3U8Seg seg = new M3U8Seg();
+            //不设置分片url, 分片名的后缀需要android.net.Uri解析
+            seg.setParentUrl("http://example.com/video.m3u8");
+            seg.setSegIndex(index);
+            seg.setDuration(10);
+            m3u8.addSeg(seg);
+        }
+        return m3u8;
+    }
+
+    private void writeFile(String content) throws Exception {
+        FileWriter writer = new FileWriter(mFile, false);
+        writer.write(content);
+        writer.close();
+    }
+
+    private List<String> readLines() throws Exception {
+        return Files.readAllLines(mFile.toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void recreateOldProxyM3U8() throws Exception {
+        writeFile(OLD_PROXY_M3U8);
+        assertEquals(1, M3U8Utils.getProxyM3U8Version(mFile));
+
+        M3U8Utils.createProxyM3U8File(mFile, createM3U8(), MD5);
+        assertEquals(M3U8Utils.PROXY_M3U8_VERSION, M3U8Utils.getProxyM3U8Version(mFile));
+        //分片url改成资源id的相对路径, 播放器解析成/s/{md5}/{segName}
+        int segCount = 0;
+        for (String line : readLines()) {
+            if (!line.startsWith("#")) {
+                assertTrue(line, line.startsWith("../s/" + MD5 + "/"));
+                segCount++;
+            }
+        }
+        assertEquals(2, segCount);
+    }
+
+    @Test
+    public void keepCurrentProxyM3U8() throws Exception {
+        M3U8Utils.createProxyM3U8File(mFile, createM3U8(), MD5);
+        List<String> lines = readLines();
+        assertEquals(Constants.PLAYLIST_HEADER, lines.get(0));
+        assertEquals(Constants.TAG_PROXY_VERSION + ":" + M3U8Utils.PROXY_M3U8_VERSION, lines.get(1));
+
+        //当前版本的文件不再重新生成
+        M3U8 m3u8 = createM3U8();
+        m3u8.addSeg(new M3U8Seg());
+        M3U8Utils.createProxyM3U8File(mFile, m3u8, MD5);
+        assertEquals(lines, readLines());
+    }
+
+    @Test
+    public void missingFileIsOldVersion() {
+        assertTrue(mFile.delete());
+        assertFalse(mFile.exists());
+        assertEquals(1, M3U8Utils.getProxyM3U8Version(mFile));
+    }
+}
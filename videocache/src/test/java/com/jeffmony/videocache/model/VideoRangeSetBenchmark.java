@@ -0,0 +1,66 @@
+package com.jeffmony.videocache.model;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * VideoRangeSet查找和之前遍历segMap的对比
+ * 不在默认的单元测试中运行, 使用./gradlew test -Pbenchmark
+ */
+public class VideoRangeSetBenchmark {
+
+    private static final int WARMUP_COUNT = 20000;
+    private static final int RUN_COUNT = 200000;
+    private static final int RANGE_COUNT = 1000;
+    private static final long VIDEO_SIZE = RANGE_COUNT * 1000L;
+
+    //VideoRangeSet之前的做法, 每次遍历整个segMap
+    private static long scanAvailablePosition(Map<Long, Long> segMap, long position) {
+        for (Map.Entry<Long, Long> entry : segMap.entrySet()) {
+            if (entry.getKey() <= position && position < entry.getValue()) {
+                return entry.getValue();
+            }
+        }
+        return position;
+    }
+
+    private static long nextPosition(int index) {
+        return (index * 7919L) % VIDEO_SIZE;
+    }
+
+    @Test
+    public void rangeLookup() {
+        VideoRangeSet rangeSet = VideoRangeSet.EMPTY;
+        for (int index = 0; index < RANGE_COUNT; index++) {
+            rangeSet = rangeSet.add(index * 1000L, index * 1000L + 500);
+        }
+        LinkedHashMap<Long, Long> segMap = rangeSet.toSegMap();
+        long checksum = 0;
+        for (int index = 0; index < WARMUP_COUNT; index++) {
+            long position = nextPosition(index);
+            checksum += rangeSet.getAvailablePosition(position) - scanAvailablePosition(segMap, position);
+        }
+        assertEquals(0, checksum);
+
+        long startTime = System.nanoTime();
+        for (int index = 0; index < RUN_COUNT; index++) {
+            checksum += rangeSet.getAvailablePosition(nextPosition(index));
+        }
+        long rangeSetNanos = (System.nanoTime() - startTime) / RUN_COUNT;
+
+        startTime = System.nanoTime();
+        for (int index = 0; index < RUN_COUNT / 100; index++) {
+            checksum -= scanAvailablePosition(segMap, nextPosition(index));
+        }
+        long scanNanos = (System.nanoTime() - startTime) / (RUN_COUNT / 100);
+
+        String result = "ranges=" + RANGE_COUNT + ", VideoRangeSet=" + rangeSetNanos + "ns/op, segMap scan=" + scanNanos + "ns/op";
+        assertTrue(result, checksum != 0);
+        assertTrue(result, rangeSetNanos < scanNanos);
+    }
+}
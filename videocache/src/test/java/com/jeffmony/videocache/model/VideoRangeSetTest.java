@@ -0,0 +1,89 @@
+package com.jeffmony.videocache.model;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VideoRangeSetTest {
+
+    @Test
+    public void addKeepsRangesSorted() {
+        VideoRangeSet rangeSet = VideoRangeSet.EMPTY.add(300, 400).add(0, 100).add(150, 200);
+        assertEquals(3, rangeSet.size());
+        assertEquals(0, rangeSet.getStart(0));
+        assertEquals(150, rangeSet.getStart(1));
+        assertEquals(300, rangeSet.getStart(2));
+        assertEquals(250, rangeSet.getTotalLength());
+    }
+
+    @Test
+    public void addMergesOverlappingAndAdjacentRanges() {
+        VideoRangeSet rangeSet = VideoRangeSet.EMPTY.add(0, 100).add(200, 300).add(400, 500);
+        //相邻的区间合并
+        assertEquals(3, rangeSet.add(100, 150).size());
+        assertEquals(150, rangeSet.add(100, 150).getEnd(0));
+        //跨越多个区间
+        VideoRangeSet merged = rangeSet.add(50, 450);
+        assertEquals(1, merged.size());
+        assertEquals(0, merged.getStart(0));
+        assertEquals(500, merged.getEnd(0));
+    }
+
+    @Test
+    public void addContainedRangeReturnsSameInstance() {
+        VideoRangeSet rangeSet = VideoRangeSet.EMPTY.add(0, 100);
+        assertSame(rangeSet, rangeSet.add(10, 90));
+        assertSame(rangeSet, rangeSet.add(0, 100));
+        assertSame(rangeSet, rangeSet.add(50, 50));
+    }
+
+    @Test
+    public void getAvailablePosition() {
+        VideoRangeSet rangeSet = VideoRangeSet.EMPTY.add(0, 100).add(200, 300);
+        assertEquals(100, rangeSet.getAvailablePosition(0));
+        assertEquals(100, rangeSet.getAvailablePosition(99));
+        //结束位置不包含
+        assertEquals(100, rangeSet.getAvailablePosition(100));
+        assertEquals(150, rangeSet.getAvailablePosition(150));
+        assertEquals(300, rangeSet.getAvailablePosition(250));
+        assertEquals(350, rangeSet.getAvailablePosition(350));
+    }
+
+    @Test
+    public void isCompletedFromPosition() {
+        VideoRangeSet rangeSet = VideoRangeSet.EMPTY.add(100, 200);
+        assertTrue(rangeSet.isCompletedFromPosition(100, 200));
+        assertTrue(rangeSet.isCompletedFromPosition(150, 180));
+        assertFalse(rangeSet.isCompletedFromPosition(50, 150));
+        assertFalse(rangeSet.isCompletedFromPosition(150, 250));
+    }
+
+    @Test
+    public void getRequestRangeSkipsCachedData() {
+        VideoRangeSet rangeSet = VideoRangeSet.EMPTY.add(0, 100).add(200, 300);
+        VideoRange range = rangeSet.getRequestRange(50, 1000);
+        assertEquals(100, range.getStart());
+        assertEquals(200, range.getEnd());
+        range = rangeSet.getRequestRange(350, 1000);
+        assertEquals(350, range.getStart());
+        assertEquals(1000, range.getEnd());
+    }
+
+    @Test
+    public void segMapRoundTrip() {
+        LinkedHashMap<Long, Long> segMap = new LinkedHashMap<>();
+        segMap.put(500L, 600L);
+        segMap.put(0L, 100L);
+        segMap.put(50L, 150L);
+        VideoRangeSet rangeSet = VideoRangeSet.fromSegMap(segMap);
+        assertEquals(2, rangeSet.size());
+        LinkedHashMap<Long, Long> result = rangeSet.toSegMap();
+        assertEquals(Long.valueOf(150L), result.get(0L));
+        assertEquals(Long.valueOf(600L), result.get(500L));
+    }
+}
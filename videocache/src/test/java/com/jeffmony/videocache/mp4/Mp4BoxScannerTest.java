@@ -0,0 +1,84 @@
+package com.jeffmony.videocache.mp4;
+
+import com.jeffmony.videocache.VideoAvailability;
+import com.jeffmony.videocache.model.VideoRange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class Mp4BoxScannerTest {
+
+    private static final int FTYP_SIZE = 24;
+    private static final int MDAT_SIZE = 1000;
+    private static final int MOOV_SIZE = 200;
+    private static final long TOTAL_SIZE = FTYP_SIZE + MDAT_SIZE + MOOV_SIZE;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("box_scanner", ".mp4");
+        //ftyp + mdat(64位的size) + moov, moov在文件尾部
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeInt(FTYP_SIZE);
+        dataOutputStream.writeBytes("ftyp");
+        dataOutputStream.write(new byte[FTYP_SIZE - 8]);
+        dataOutputStream.writeInt(1);
+        dataOutputStream.writeBytes("mdat");
+        dataOutputStream.writeLong(MDAT_SIZE);
+        dataOutputStream.write(new byte[MDAT_SIZE - 16]);
+        dataOutputStream.writeInt(MOOV_SIZE);
+        dataOutputStream.writeBytes("moov");
+        dataOutputStream.write(new byte[MOOV_SIZE - 8]);
+        FileOutputStream fileOutputStream = new FileOutputStream(mFile);
+        try {
+            outputStream.writeTo(fileOutputStream);
+        } finally {
+            fileOutputStream.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void findMoovAfterMdat() throws IOException {
+        assertEquals(Mp4BoxScanner.NEED_MORE_DATA, Mp4BoxScanner.findMoovPosition(mFile, 4, TOTAL_SIZE));
+        //mdat的64位size还没有下载
+        assertEquals(Mp4BoxScanner.NEED_MORE_DATA, Mp4BoxScanner.findMoovPosition(mFile, FTYP_SIZE + 8, TOTAL_SIZE));
+        assertEquals(FTYP_SIZE + MDAT_SIZE, Mp4BoxScanner.findMoovPosition(mFile, FTYP_SIZE + 16, TOTAL_SIZE));
+    }
+
+    @Test
+    public void findTopLevelBoxFromCachedHeaders() throws IOException {
+        VideoAvailability availability = new VideoAvailability();
+        availability.addRange(0, FTYP_SIZE + 16);
+        //moov的头部还没有缓存
+        assertNull(Mp4BoxScanner.findTopLevelBox(mFile, Mp4BoxScanner.TYPE_MOOV, TOTAL_SIZE, availability));
+
+        availability.addRange(FTYP_SIZE + MDAT_SIZE, FTYP_SIZE + MDAT_SIZE + 8);
+        VideoRange range = Mp4BoxScanner.findTopLevelBox(mFile, Mp4BoxScanner.TYPE_MOOV, TOTAL_SIZE, availability);
+        assertNotNull(range);
+        assertEquals(FTYP_SIZE + MDAT_SIZE, range.getStart());
+        assertEquals(TOTAL_SIZE, range.getEnd());
+
+        range = Mp4BoxScanner.findTopLevelBox(mFile, Mp4BoxScanner.TYPE_MDAT, TOTAL_SIZE, availability);
+        assertNotNull(range);
+        assertEquals(FTYP_SIZE, range.getStart());
+        assertEquals(FTYP_SIZE + MDAT_SIZE, range.getEnd());
+    }
+}
@@ -0,0 +1,103 @@
+package com.jeffmony.videocache.mp4;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class Mp4SampleTableParserTest {
+
+    private static final int HANDLER_VIDEO = 0x76696465;   //"vide"
+    private static final int HANDLER_SOUND = 0x736F756E;   //"soun"
+
+    private static byte[] box(String type, byte[]... children) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (byte[] child : children) {
+            payload.write(child);
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeInt(payload.size() + 8);
+        dataOutputStream.writeBytes(type);
+        payload.writeTo(dataOutputStream);
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] ints(int... values) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        for (int value : values) {
+            dataOutputStream.writeInt(value);
+        }
+        return outputStream.toByteArray();
+    }
+
+    //4个sample, 每个1s, 每个chunk一个sample, 关键帧是第1和第3个sample
+    private static byte[] moov(int handler, byte[] stss, byte[] stsz, byte[] stco) throws IOException {
+        byte[] hdlr = box("hdlr", ints(0, 0, handler, 0, 0, 0));
+        byte[] mdhd = box("mdhd", ints(0, 0, 0, 1000, 4000, 0));
+        byte[] stts = box("stts", ints(0, 1, 4, 1000));
+        byte[] stsc = box("stsc", ints(0, 1, 1, 1, 1));
+        byte[] stbl = stss != null ? box("stbl", stts, stss, stsc, stsz, stco) : box("stbl", stts, stsc, stsz, stco);
+        return box("moov", box("trak", box("mdia", hdlr, mdhd, box("minf", stbl))));
+    }
+
+    private static byte[] moov(int stssCount, int stszCount, int stcoCount) throws IOException {
+        return moov(HANDLER_VIDEO,
+                box("stss", ints(0, stssCount, 1, 3)),
+                box("stsz", ints(0, 0, stszCount, 100, 100, 100, 100)),
+                box("stco", ints(0, stcoCount, 1000, 1100, 1200, 1300)));
+    }
+
+    @Test
+    public void parseKeyframes() throws Exception {
+        Mp4SampleIndex index = Mp4SampleTableParser.parse(moov(2, 4, 4));
+        assertNotNull(index);
+        assertEquals(4000, index.getDurationMs());
+        assertEquals(2, index.getKeyframeCount());
+        assertEquals(1000, index.getKeyframeOffset(1500));
+        assertEquals(1200, index.getKeyframeOffset(2500));
+        assertEquals(2000, index.getTimeAtOffset(1250));
+    }
+
+    @Test
+    public void parseWithoutSyncSamples() throws Exception {
+        //没有stss时每个sample都是关键帧, 所有sample大小相同时没有表
+        Mp4SampleIndex index = Mp4SampleTableParser.parse(moov(HANDLER_VIDEO, null,
+                box("stsz", ints(0, 100, 4)),
+                box("co64", ints(0, 4, 0, 1000, 0, 1100, 0, 1200, 0, 1300))));
+        assertNotNull(index);
+        assertEquals(4, index.getKeyframeCount());
+        assertEquals(1100, index.getKeyframeOffset(1000));
+    }
+
+    @Test
+    public void ignoreAudioTrack() throws Exception {
+        assertNull(Mp4SampleTableParser.parse(moov(HANDLER_SOUND,
+                box("stss", ints(0, 2, 1, 3)),
+                box("stsz", ints(0, 0, 4, 100, 100, 100, 100)),
+                box("stco", ints(0, 4, 1000, 1100, 1200, 1300)))));
+    }
+
+    @Test
+    public void rejectEntryCountLargerThanBox() throws Exception {
+        assertNull(Mp4SampleTableParser.parse(moov(Integer.MAX_VALUE, 4, 4)));
+        assertNull(Mp4SampleTableParser.parse(moov(-1, 4, 4)));
+        assertNull(Mp4SampleTableParser.parse(moov(3, 4, 4)));
+        assertNull(Mp4SampleTableParser.parse(moov(2, 5, 4)));
+        assertNull(Mp4SampleTableParser.parse(moov(2, 4, 0x10000000)));
+    }
+
+    @Test
+    public void rejectTruncatedMoov() throws Exception {
+        byte[] moov = moov(2, 4, 4);
+        byte[] truncated = new byte[moov.length - 10];
+        System.arraycopy(moov, 0, truncated, 0, truncated.length);
+        assertNull(Mp4SampleTableParser.parse(truncated));
+    }
+}
@@ -0,0 +1,64 @@
+package com.jeffmony.videocache.socket.request;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class HttpRangeTest {
+
+    private static final long TOTAL_SIZE = 1000;
+
+    @Test
+    public void parseOpenRange() {
+        HttpRange range = HttpRange.parse("bytes=100-", TOTAL_SIZE);
+        assertEquals(100, range.getStart());
+        assertEquals(999, range.getEnd());
+        assertEquals(900, range.getLength());
+    }
+
+    @Test
+    public void parseBoundedRange() {
+        HttpRange range = HttpRange.parse("bytes=100-199", TOTAL_SIZE);
+        assertEquals(100, range.getStart());
+        assertEquals(199, range.getEnd());
+        assertEquals(100, range.getLength());
+        //结束位置超出文件大小时截断
+        assertEquals(999, HttpRange.parse("bytes=100-5000", TOTAL_SIZE).getEnd());
+    }
+
+    @Test
+    public void parseSuffixRange() {
+        HttpRange range = HttpRange.parse("bytes=-500", TOTAL_SIZE);
+        assertEquals(500, range.getStart());
+        assertEquals(999, range.getEnd());
+        assertEquals(0, HttpRange.parse("bytes=-5000", TOTAL_SIZE).getStart());
+    }
+
+    @Test
+    public void parseIgnoresCaseSpacesAndExtraRanges() {
+        HttpRange range = HttpRange.parse("  Bytes= 10 - 20 , 30-40", TOTAL_SIZE);
+        assertEquals(10, range.getStart());
+        assertEquals(20, range.getEnd());
+    }
+
+    @Test
+    public void parseUnsatisfiableRange() {
+        assertSame(HttpRange.UNSATISFIABLE, HttpRange.parse("bytes=1000-", TOTAL_SIZE));
+        assertSame(HttpRange.UNSATISFIABLE, HttpRange.parse("bytes=-0", TOTAL_SIZE));
+    }
+
+    @Test
+    public void parseInvalidRange() {
+        //没有Range请求头
+        assertNull(HttpRange.parse(null, TOTAL_SIZE));
+        assertNull(HttpRange.parse("", TOTAL_SIZE));
+        assertNull(HttpRange.parse("items=0-100", TOTAL_SIZE));
+        assertNull(HttpRange.parse("bytes=100", TOTAL_SIZE));
+        assertNull(HttpRange.parse("bytes=-", TOTAL_SIZE));
+        assertNull(HttpRange.parse("bytes=200-100", TOTAL_SIZE));
+        assertNull(HttpRange.parse("bytes=abc-", TOTAL_SIZE));
+        assertNull(HttpRange.parse("bytes=0-", 0));
+    }
+}
@@ -0,0 +1,113 @@
+package com.jeffmony.videocache.socket.request;
+
+import com.jeffmony.videocache.utils.StorageUtils;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按字节解析请求头和之前BufferedReader + StringTokenizer解析的对比
+ * 不在默认的单元测试中运行, 使用./gradlew test -Pbenchmark
+ */
+public class HttpRequestBenchmark {
+
+    private static final int WARMUP_COUNT = 20000;
+    private static final int RUN_COUNT = 100000;
+
+    private static final byte[] REQUEST = ("GET /v/3f2a9c.mp4 HTTP/1.1\r\n" +
+            "Host: 127.0.0.1:8888\r\nUser-Agent: ExoPlayerLib/2.11.7\r\nAccept-Encoding: identity\r\n" +
+            "Range: bytes=1048576-\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * 之前的解析方式: 每个请求分配buffer, 用BufferedReader逐行读取, StringTokenizer拆分请求行, 所有header放到HashMap
+     */
+    private static final class LegacyParser {
+        private final Map<String, String> mHeaders = new HashMap<>();
+        private String mMethod;
+        private String mUri;
+        private String mProtocolVersion;
+
+        void parse(InputStream inputStream) throws IOException {
+            BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+            byte[] buf = new byte[StorageUtils.DEFAULT_BUFFER_SIZE];
+            int readLength = 0;
+            int read = bufferedInputStream.read(buf, 0, buf.length);
+            while (read > 0) {
+                readLength += read;
+                if (HttpRequest.findResponseHeaderEnd(buf, readLength) > 0) {
+                    break;
+                }
+                read = bufferedInputStream.read(buf, readLength, buf.length - readLength);
+            }
+            BufferedReader headerReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, readLength)));
+            StringTokenizer st = new StringTokenizer(headerReader.readLine());
+            mMethod = st.nextToken();
+            mUri = st.nextToken();
+            mProtocolVersion = st.hasMoreTokens() ? st.nextToken() : "HTTP/1.1";
+            String line = headerReader.readLine();
+            while (line != null && !line.trim().isEmpty()) {
+                int index = line.indexOf(':');
+                if (index >= 0) {
+                    mHeaders.put(line.substring(0, index).trim().toLowerCase(Locale.US), line.substring(index + 1).trim());
+                }
+                line = headerReader.readLine();
+            }
+        }
+    }
+
+    private static String parseLegacy() throws IOException {
+        LegacyParser parser = new LegacyParser();
+        parser.parse(new ByteArrayInputStream(REQUEST));
+        return parser.mMethod + " " + parser.mUri + " " + parser.mProtocolVersion + " " + parser.mHeaders.get("range");
+    }
+
+    private static String parseCurrent(InetAddress address) throws Exception {
+        HttpRequest request = new HttpRequest(new ByteArrayInputStream(REQUEST), address);
+        try {
+            request.parseRequest();
+            return request.requestMethod() + " " + request.getUri() + " " + request.getProtocolVersion() + " " + request.getRangeString();
+        } finally {
+            request.release();
+        }
+    }
+
+    @Test
+    public void requestParse() throws Exception {
+        InetAddress address = InetAddress.getLoopbackAddress();
+        assertEquals(parseLegacy(), parseCurrent(address));
+        for (int index = 0; index < WARMUP_COUNT; index++) {
+            parseLegacy();
+            parseCurrent(address);
+        }
+
+        long startTime = System.nanoTime();
+        for (int index = 0; index < RUN_COUNT; index++) {
+            parseLegacy();
+        }
+        long legacyNanos = (System.nanoTime() - startTime) / RUN_COUNT;
+
+        startTime = System.nanoTime();
+        for (int index = 0; index < RUN_COUNT; index++) {
+            parseCurrent(address);
+        }
+        long currentNanos = (System.nanoTime() - startTime) / RUN_COUNT;
+
+        String result = "legacy parser=" + legacyNanos + "ns/op, byte parser=" + currentNanos + "ns/op";
+        assertTrue(result, currentNanos < legacyNanos);
+    }
+}
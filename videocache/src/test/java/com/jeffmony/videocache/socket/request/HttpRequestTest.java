@@ -0,0 +1,92 @@
+package com.jeffmony.videocache.socket.request;
+
+import com.jeffmony.videocache.common.VideoCacheException;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HttpRequestTest {
+
+    private static HttpRequest newRequest(String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+        return new HttpRequest(new ByteArrayInputStream(bytes), InetAddress.getLoopbackAddress());
+    }
+
+    @Test
+    public void parseRequestLineAndHeaders() throws Exception {
+        HttpRequest request = newRequest("GET /video.mp4?id=1 HTTP/1.1\r\nHost: 127.0.0.1\r\nRANGE:  bytes=100-  \r\n\r\n");
+        request.parseRequest();
+        assertSame(Method.GET, request.requestMethod());
+        assertEquals("/video.mp4?id=1", request.getUri());
+        assertEquals("HTTP/1.1", request.getProtocolVersion());
+        assertEquals("bytes=100-", request.getRangeString());
+        assertTrue(request.keepAlive());
+        request.release();
+    }
+
+    @Test
+    public void parseConnectionHeader() throws Exception {
+        HttpRequest request = newRequest("GET / HTTP/1.1\r\nConnection: Close\r\n\r\n");
+        request.parseRequest();
+        assertFalse(request.keepAlive());
+        request.release();
+
+        request = newRequest("HEAD / HTTP/1.0\r\n\r\n");
+        request.parseRequest();
+        assertSame(Method.HEAD, request.requestMethod());
+        assertFalse(request.keepAlive());
+        assertNull(request.getRangeString());
+        request.release();
+
+        request = newRequest("GET / HTTP/1.0\r\nconnection: keep-alive\r\n\r\n");
+        request.parseRequest();
+        assertTrue(request.keepAlive());
+        request.release();
+    }
+
+    @Test
+    public void parsePipelinedRequests() throws Exception {
+        HttpRequest request = newRequest("GET /first HTTP/1.1\r\nRange: bytes=0-\r\n\r\nGET /second HTTP/1.1\n\n");
+        request.parseRequest();
+        assertEquals("/first", request.getUri());
+        assertEquals("bytes=0-", request.getRangeString());
+        //第二个请求保留在buffer中, 上一个请求的header不能残留
+        request.parseRequest();
+        assertEquals("/second", request.getUri());
+        assertNull(request.getRangeString());
+        request.release();
+    }
+
+    @Test
+    public void findResponseHeaderEnd() {
+        byte[] buf = "GET / HTTP/1.1\r\nHost: a\r\n\r\nbody".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(27, HttpRequest.findResponseHeaderEnd(buf, buf.length));
+        //header还没有读取完整
+        assertEquals(0, HttpRequest.findResponseHeaderEnd(buf, 26));
+    }
+
+    @Test(expected = VideoCacheException.class)
+    public void parseUnknownMethod() throws Exception {
+        HttpRequest request = newRequest("FETCH / HTTP/1.1\r\n\r\n");
+        try {
+            request.parseRequest();
+        } finally {
+            request.release();
+        }
+    }
+
+    @Test(expected = VideoCacheException.class)
+    public void parseMissingUri() throws Exception {
+        byte[] buf = "GET\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        new HttpRequest(InetAddress.getLoopbackAddress()).parseRequest(buf, buf.length);
+    }
+}